@@ -34,6 +34,8 @@ import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
 
+import java.util.List;
+
 /**
  * Bpf coordinator class for API shims.
  */
@@ -89,6 +91,23 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public boolean addIpv6DownstreamRules(@NonNull final List<Ipv6DownstreamRule> rules) {
+        // netd has no batch API, so rules are sent one by one.
+        for (Ipv6DownstreamRule rule : rules) {
+            if (!addIpv6DownstreamRule(rule)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeIpv6DownstreamRules(@NonNull final List<Ipv6DownstreamRule> rules) {
+        for (Ipv6DownstreamRule rule : rules) {
+            if (!removeIpv6DownstreamRule(rule)) return false;
+        }
+        return true;
+    }
+
     @Override
     @Nullable
     public SparseArray<TetherStatsValue> tetherOffloadGetStats() {
@@ -182,6 +201,12 @@ public class BpfCoordinatorShimImpl
         return false;
     }
 
+    @Override
+    public int getIpv4RuleCount() {
+        /* no op */
+        return 0;
+    }
+
     @Override
     public boolean addDevMap(int ifIndex) {
         /* no op */
@@ -50,6 +50,8 @@ import com.android.networkstack.tethering.TetherUpstream6Key;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Bpf coordinator class for API shims.
@@ -225,6 +227,41 @@ public class BpfCoordinatorShimImpl
         return true;
     }
 
+    @Override
+    public boolean addIpv6DownstreamRules(@NonNull final List<Ipv6DownstreamRule> rules) {
+        final ArrayList<TetherDownstream6Key> keys = new ArrayList<>(rules.size());
+        final ArrayList<Tether6Value> values = new ArrayList<>(rules.size());
+        for (Ipv6DownstreamRule rule : rules) {
+            keys.add(rule.makeTetherDownstream6Key());
+            values.add(rule.makeTether6Value());
+        }
+
+        try {
+            mBpfDownstream6Map.updateBatch(keys, values);
+        } catch (ErrnoException e) {
+            mLog.e("Could not update " + rules.size() + " entries: ", e);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean removeIpv6DownstreamRules(@NonNull final List<Ipv6DownstreamRule> rules) {
+        final ArrayList<TetherDownstream6Key> keys = new ArrayList<>(rules.size());
+        for (Ipv6DownstreamRule rule : rules) {
+            keys.add(rule.makeTetherDownstream6Key());
+        }
+
+        try {
+            // Keys that do not exist are ignored.
+            mBpfDownstream6Map.deleteBatch(keys);
+        } catch (ErrnoException e) {
+            mLog.e("Could not delete " + rules.size() + " entries: ", e);
+            return false;
+        }
+        return true;
+    }
+
     @Override
     @Nullable
     public SparseArray<TetherStatsValue> tetherOffloadGetStats() {
@@ -436,6 +473,15 @@ public class BpfCoordinatorShimImpl
         return mRule4CountOnUpstream.get(ifIndex) != null;
     }
 
+    @Override
+    public int getIpv4RuleCount() {
+        int count = 0;
+        for (int i = 0; i < mRule4CountOnUpstream.size(); i++) {
+            count += mRule4CountOnUpstream.valueAt(i);
+        }
+        return count;
+    }
+
     @Override
     public boolean addDevMap(int ifIndex) {
         try {
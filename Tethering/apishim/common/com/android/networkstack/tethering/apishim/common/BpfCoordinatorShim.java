@@ -29,6 +29,8 @@ import com.android.networkstack.tethering.BpfCoordinator.Dependencies;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
 
+import java.util.List;
+
 /**
  * Bpf coordinator class for API shims.
  */
@@ -99,6 +101,30 @@ public abstract class BpfCoordinatorShim {
      */
     public abstract boolean removeIpv6DownstreamRule(@NonNull Ipv6DownstreamRule rule);
 
+    /**
+     * Adds or updates tethering offload downstream rules in the BPF map in one batch.
+     *
+     * If the operation fails, some of the rules may have been added. As adding a rule that
+     * already exists updates it, the caller may then add the rules one by one.
+     * Note that this can be only called on handler thread.
+     *
+     * @param rules The rules to add or update.
+     * @return true if all rules were added, false otherwise.
+     */
+    public abstract boolean addIpv6DownstreamRules(@NonNull List<Ipv6DownstreamRule> rules);
+
+    /**
+     * Deletes tethering offload downstream rules from the BPF map in one batch.
+     *
+     * It is not an error if there is no matching rule to delete. If the operation fails, some of
+     * the rules may have been deleted.
+     * Note that this can be only called on handler thread.
+     *
+     * @param rules The rules to delete.
+     * @return true if all rules were deleted or did not exist, false otherwise.
+     */
+    public abstract boolean removeIpv6DownstreamRules(@NonNull List<Ipv6DownstreamRule> rules);
+
     /**
      * Return BPF tethering offload statistics.
      *
@@ -169,6 +195,12 @@ public abstract class BpfCoordinatorShim {
      */
     public abstract boolean isAnyIpv4RuleOnUpstream(int ifIndex);
 
+    /**
+     * Returns the number of IPv4 downstream rules on all upstreams, which is the number of
+     * offloaded IPv4 flows.
+     */
+    public abstract int getIpv4RuleCount();
+
     /**
      * Attach BPF program.
      *
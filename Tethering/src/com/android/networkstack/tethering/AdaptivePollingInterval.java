@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Interval of a periodic task that backs off while the task finds nothing to do.
+ *
+ * <p>The interval is the base interval as long as runs are active. After
+ * {@link #IDLE_RUNS_BEFORE_BACKOFF} consecutive idle runs, it doubles after each idle run, up to
+ * the base interval shifted left by the maximum backoff shift. An active run or {@link #reset}
+ * brings it back to the base interval.
+ *
+ * <p>This class is not thread-safe.
+ *
+ * @hide
+ */
+public class AdaptivePollingInterval {
+    @VisibleForTesting
+    static final int IDLE_RUNS_BEFORE_BACKOFF = 3;
+
+    private final int mMaxBackoffShift;
+    private int mIdleRuns = 0;
+    private int mBackoffShift = 0;
+
+    public AdaptivePollingInterval(int maxBackoffShift) {
+        mMaxBackoffShift = maxBackoffShift;
+    }
+
+    /** Returns the interval until the next run, given the interval when active. */
+    public long getIntervalMs(long baseIntervalMs) {
+        if (baseIntervalMs > (Long.MAX_VALUE >> mBackoffShift)) return Long.MAX_VALUE;
+        return baseIntervalMs << mBackoffShift;
+    }
+
+    /** Records the result of a run, and updates the interval until the next run. */
+    public void onRun(boolean active) {
+        if (active) {
+            reset();
+            return;
+        }
+        mIdleRuns++;
+        if (mIdleRuns >= IDLE_RUNS_BEFORE_BACKOFF && mBackoffShift < mMaxBackoffShift) {
+            mBackoffShift++;
+        }
+    }
+
+    /**
+     * Brings the interval back to the base interval.
+     *
+     * @return whether the interval was backed off, in which case the next run may need to be
+     *         rescheduled.
+     */
+    public boolean reset() {
+        final boolean wasBackedOff = mBackoffShift > 0;
+        mIdleRuns = 0;
+        mBackoffShift = 0;
+        return wasBackedOff;
+    }
+
+    /** Returns how many times the base interval was doubled. */
+    public int getBackoffShift() {
+        return mBackoffShift;
+    }
+}
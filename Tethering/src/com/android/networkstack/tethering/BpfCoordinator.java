@@ -79,8 +79,8 @@ import com.android.net.module.util.ip.ConntrackMonitor;
 import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
-import com.android.net.module.util.netlink.NetlinkUtils;
 import com.android.networkstack.tethering.apishim.common.BpfCoordinatorShim;
+import com.android.networkstack.tethering.metrics.OffloadFlowStats;
 import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
 
 import java.io.IOException;
@@ -90,6 +90,9 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -97,6 +100,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -146,6 +150,21 @@ public class BpfCoordinator {
 
     @VisibleForTesting
     static final int CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS = 60_000;
+    // Maximum number of conntrack timeout updates sent in one netlink write. Each update is about
+    // 100 bytes, and each ack is queued in the socket receive buffer until the batch is sent.
+    @VisibleForTesting
+    static final int CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE = 64;
+    // The batches of a refresh are spread over this part of the refresh interval, so that
+    // refreshing thousands of flows does not hold the handler thread in one go. The last batch
+    // is still sent well before the next refresh, and before any UDP stream times out.
+    @VisibleForTesting
+    static final int CONNTRACK_TIMEOUT_UPDATE_SPREAD_MS = CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS / 2;
+    // Maximum number of times the stats polling and conntrack timeout refresh intervals are
+    // doubled when idle. See AdaptivePollingInterval.
+    @VisibleForTesting
+    static final int STATS_POLLING_MAX_BACKOFF_SHIFT = 3;
+    @VisibleForTesting
+    static final int CONNTRACK_TIMEOUT_UPDATE_MAX_BACKOFF_SHIFT = 2;
     @VisibleForTesting
     static final int NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED = 432_000;
     @VisibleForTesting
@@ -182,6 +201,8 @@ public class BpfCoordinator {
     private final BpfCoordinatorShim mBpfCoordinatorShim;
     @NonNull
     private final BpfConntrackEventConsumer mBpfConntrackEventConsumer;
+    @NonNull
+    private final ConntrackTimeoutSession mConntrackTimeoutSession;
 
     // True if BPF offload is supported, false otherwise. The BPF offload could be disabled by
     // a runtime resource overlay package or device configuration. This flag is only initialized
@@ -304,18 +325,76 @@ public class BpfCoordinator {
     @Nullable
     private UpstreamInfo mIpv4UpstreamInfo = null;
 
+    // Intervals of the stats polling and of the conntrack timeout refresh, which back off while
+    // there is nothing to do and are reset when a new flow is offloaded. The stats polling keeps
+    // its base interval while a quota is set, so that limits are not overshot. The conntrack
+    // timeout refresh only backs off when no IPv4 flow is offloaded, as a flow that is not
+    // refreshed in time would be timed out by the kernel while still forwarded by BPF.
+    private final AdaptivePollingInterval mStatsPollingInterval =
+            new AdaptivePollingInterval(STATS_POLLING_MAX_BACKOFF_SHIFT);
+    private final AdaptivePollingInterval mConntrackTimeoutUpdateInterval =
+            new AdaptivePollingInterval(CONNTRACK_TIMEOUT_UPDATE_MAX_BACKOFF_SHIFT);
+
     // Runnable that used by scheduling next polling of stats.
     private final Runnable mScheduledPollingStats = () -> {
-        updateForwardedStats();
+        final int changedUpstreams = updateForwardedStats();
+        mStatsPollingInterval.onRun(changedUpstreams > 0 || isQuotaSet());
         maybeSchedulePollingStats();
     };
 
     // Runnable that used by scheduling next refreshing of conntrack timeout.
     private final Runnable mScheduledConntrackTimeoutUpdate = () -> {
         refreshAllConntrackTimeouts();
+        mConntrackTimeoutUpdateInterval.onRun(getIpv4FlowCount() > 0);
         maybeScheduleConntrackTimeoutUpdate();
     };
 
+    // Conntrack timeout updates of the current refresh which are not sent yet, and the delay
+    // between two batches of them.
+    private final ArrayList<ConntrackTimeoutUpdate> mPendingConntrackTimeoutUpdates =
+            new ArrayList<>();
+    private long mConntrackTimeoutBatchDelayMs = 0;
+    private final Runnable mScheduledConntrackTimeoutBatch = this::sendConntrackTimeoutBatch;
+
+    // Counters of the conntrack timeout updates, for dump.
+    private long mConntrackTimeoutBatches = 0;
+    private long mConntrackTimeoutUpdates = 0;
+    private long mConntrackTimeoutEnoent = 0;
+    private long mConntrackTimeoutErrors = 0;
+    private long mConntrackTimeoutBatchNanosTotal = 0;
+    private long mConntrackTimeoutBatchNanosMax = 0;
+
+    // Counters of the tether stats polls, for dump.
+    private long mStatsPolls = 0;
+    private long mStatsPolledUpstreams = 0;
+    private long mStatsChangedUpstreams = 0;
+    private long mStatsPollNanosTotal = 0;
+    private long mStatsPollNanosMax = 0;
+
+    // Flow table counters, for dump and metrics. Rule add failures are mostly caused by full BPF
+    // maps. The number of offloaded IPv4 flows is counted by the shim as rules are added and
+    // removed, see #getIpv4FlowCount.
+    private int mIpv4FlowCountMax = 0;
+    private long mIpv4FlowsAdded = 0;
+    private long mIpv4FlowsDeleted = 0;
+    private long mIpv4FlowAddFailures = 0;
+    private long mPollingStartTimeNanos = 0;
+
+    // Bytes forwarded by BPF, and bytes received and sent by the downstream interfaces, counted
+    // while polling. Their ratio is the offload hit ratio: all tethered traffic goes through
+    // the downstream interfaces, offloaded or not. Keys of mDownstreamBytes are the names of the
+    // monitored downstream interfaces, values their counters at the last poll.
+    private long mOffloadedBytes = 0;
+    private long mTetheredBytes = 0;
+    private final ArrayMap<String, Long> mDownstreamBytes = new ArrayMap<>();
+
+    // Counters of the IPv6 rule set updates and of the downstream rule batches, for dump.
+    private long mIpv6RuleUpdates = 0;
+    private long mIpv6RuleUpdateNanosTotal = 0;
+    private long mIpv6RuleUpdateNanosMax = 0;
+    private long mIpv6DownstreamRuleBatches = 0;
+    private long mIpv6DownstreamRuleBatchFailures = 0;
+
     // TODO: add BpfMap<TetherDownstream64Key, TetherDownstream64Value> retrieving function.
     @VisibleForTesting
     public abstract static class Dependencies {
@@ -339,6 +418,11 @@ public class BpfCoordinator {
             return new ConntrackMonitor(getHandler(), getSharedLog(), consumer);
         }
 
+        /** Get the netlink session used to update conntrack timeouts. */
+        @NonNull public ConntrackTimeoutSession getConntrackTimeoutSession() {
+            return new ConntrackTimeoutSession();
+        }
+
         /** Get interface information for a given interface. */
         @NonNull public InterfaceParams getInterfaceParams(String ifName) {
             return InterfaceParams.getByName(ifName);
@@ -361,6 +445,25 @@ public class BpfCoordinator {
             return SdkLevel.isAtLeastS();
         }
 
+        /**
+         * Gets the total bytes received and sent by the given interface as counted by its
+         * driver, which includes the packets forwarded by BPF, or -1 if unavailable.
+         */
+        public long getInterfaceTotalBytes(@NonNull String iface) {
+            try {
+                return readInterfaceCounter(iface, "rx_bytes")
+                        + readInterfaceCounter(iface, "tx_bytes");
+            } catch (IOException | NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static long readInterfaceCounter(@NonNull String iface, @NonNull String counter)
+                throws IOException {
+            final Path path = Paths.get("/sys/class/net", iface, "statistics", counter);
+            return Long.parseLong(new String(Files.readAllBytes(path)).trim());
+        }
+
         /**
          * Gets the MTU of the given interface.
          */
@@ -485,6 +588,7 @@ public class BpfCoordinator {
         // mocked for testing.
         mBpfConntrackEventConsumer = new BpfConntrackEventConsumer();
         mConntrackMonitor = mDeps.getConntrackMonitor(mBpfConntrackEventConsumer);
+        mConntrackTimeoutSession = mDeps.getConntrackTimeoutSession();
 
         BpfTetherStatsProvider provider = new BpfTetherStatsProvider();
         try {
@@ -519,6 +623,9 @@ public class BpfCoordinator {
         }
 
         mPollingStarted = true;
+        mPollingStartTimeNanos = mDeps.elapsedRealtimeNanos();
+        mStatsPollingInterval.reset();
+        mConntrackTimeoutUpdateInterval.reset();
         maybeSchedulePollingStats();
         maybeScheduleConntrackTimeoutUpdate();
 
@@ -540,6 +647,9 @@ public class BpfCoordinator {
         if (mHandler.hasCallbacks(mScheduledConntrackTimeoutUpdate)) {
             mHandler.removeCallbacks(mScheduledConntrackTimeoutUpdate);
         }
+        mHandler.removeCallbacks(mScheduledConntrackTimeoutBatch);
+        mPendingConntrackTimeoutUpdates.clear();
+        mConntrackTimeoutSession.close();
         // Stop scheduled polling stats and poll the latest stats from BPF maps.
         if (mHandler.hasCallbacks(mScheduledPollingStats)) {
             mHandler.removeCallbacks(mScheduledPollingStats);
@@ -622,6 +732,7 @@ public class BpfCoordinator {
         }
 
         mMonitoringIpServers.remove(ipServer);
+        mDownstreamBytes.remove(ipServer.interfaceName());
 
         if (!mMonitoringIpServers.isEmpty()) return;
 
@@ -740,13 +851,95 @@ public class BpfCoordinator {
         if (downstreamRules == null) return null;
 
         final Collection<Ipv6DownstreamRule> removedRules = downstreamRules.values();
-        for (final Ipv6DownstreamRule rule : removedRules) {
-            if (rule.upstreamIfindex == NO_UPSTREAM) continue;
-            mBpfCoordinatorShim.removeIpv6DownstreamRule(rule);
+        final List<Ipv6DownstreamRule> programmedRules = getProgrammedRules(removedRules);
+        if (programmedRules.isEmpty()) return removedRules;
+
+        mIpv6DownstreamRuleBatches++;
+        if (!mBpfCoordinatorShim.removeIpv6DownstreamRules(programmedRules)) {
+            mIpv6DownstreamRuleBatchFailures++;
+            for (final Ipv6DownstreamRule rule : programmedRules) {
+                mBpfCoordinatorShim.removeIpv6DownstreamRule(rule);
+            }
         }
         return removedRules;
     }
 
+    /**
+     * Add downstream rules for a given IpServer in one batch. If the batch fails, the rules are
+     * added one by one, so that only the rules that are in the BPF map are kept.
+     */
+    private void addIpv6DownstreamRules(@NonNull final IpServer ipServer,
+            @NonNull final Collection<Ipv6DownstreamRule> rules) {
+        if (rules.isEmpty()) return;
+
+        final List<Ipv6DownstreamRule> programmedRules = getProgrammedRules(rules);
+        boolean batchFailed = false;
+        if (!programmedRules.isEmpty()) {
+            mIpv6DownstreamRuleBatches++;
+            batchFailed = !mBpfCoordinatorShim.addIpv6DownstreamRules(programmedRules);
+            if (batchFailed) mIpv6DownstreamRuleBatchFailures++;
+        }
+
+        final LinkedHashMap<Inet6Address, Ipv6DownstreamRule> downstreamRules =
+                new LinkedHashMap<>();
+        for (final Ipv6DownstreamRule rule : rules) {
+            if (batchFailed && rule.upstreamIfindex != NO_UPSTREAM
+                    && !mBpfCoordinatorShim.addIpv6DownstreamRule(rule)) {
+                continue;
+            }
+            downstreamRules.put(rule.address, rule);
+        }
+        if (downstreamRules.isEmpty()) return;
+        mIpv6DownstreamRules.computeIfAbsent(ipServer,
+                k -> new LinkedHashMap<Inet6Address, Ipv6DownstreamRule>())
+                .putAll(downstreamRules);
+    }
+
+    // Rules without upstream are only kept in mIpv6DownstreamRules and are not in the BPF map.
+    @NonNull
+    private static List<Ipv6DownstreamRule> getProgrammedRules(
+            @NonNull final Collection<Ipv6DownstreamRule> rules) {
+        final ArrayList<Ipv6DownstreamRule> programmedRules = new ArrayList<>(rules.size());
+        for (final Ipv6DownstreamRule rule : rules) {
+            if (rule.upstreamIfindex != NO_UPSTREAM) programmedRules.add(rule);
+        }
+        return programmedRules;
+    }
+
+    /**
+     * Update the upstream rules of a given IpServer to the given rules on the same upstream,
+     * changing only the rules of the prefixes that were added or removed. New rules are added
+     * before stale rules are removed, so that the data limit of the upstream is kept.
+     */
+    private void updateIpv6UpstreamRules(@NonNull final IpServer ipServer,
+            @NonNull final Set<Ipv6UpstreamRule> newRules) {
+        final ArraySet<Ipv6UpstreamRule> currentRules = mIpv6UpstreamRules.get(ipServer);
+        final ArraySet<Ipv6UpstreamRule> staleRules = new ArraySet<>(currentRules);
+        staleRules.removeAll(newRules);
+        for (final Ipv6UpstreamRule rule : newRules) {
+            if (!currentRules.contains(rule)) addIpv6UpstreamRule(ipServer, rule);
+        }
+
+        int upstreamIfindex = 0;
+        for (final Ipv6UpstreamRule rule : staleRules) {
+            upstreamIfindex = rule.upstreamIfindex;
+            mBpfCoordinatorShim.removeIpv6UpstreamRule(rule);
+            currentRules.remove(rule);
+        }
+        if (currentRules.isEmpty()) {
+            mIpv6UpstreamRules.remove(ipServer);
+            maybeClearLimit(upstreamIfindex);
+        }
+    }
+
+    // Returns the upstream interface index of the upstream rules of a given IpServer, or
+    // NO_UPSTREAM if it has none.
+    private int getIpv6UpstreamIfindex(@NonNull final IpServer ipServer) {
+        final ArraySet<Ipv6UpstreamRule> rules = mIpv6UpstreamRules.get(ipServer);
+        if (rules == null || rules.isEmpty()) return NO_UPSTREAM;
+        return rules.valueAt(0).upstreamIfindex;
+    }
+
     /**
      * Clear all forwarding rules for a given downstream.
      * Note that this can be only called on handler thread.
@@ -761,8 +954,12 @@ public class BpfCoordinator {
     }
 
     /**
-     * Delete all upstream and downstream rules for the passed-in IpServer, and if the new upstream
-     * is nonzero, reapply them to the new upstream.
+     * Update all upstream and downstream rules for the passed-in IpServer to the new upstream and
+     * its prefixes.
+     *
+     * If the upstream is unchanged, only the upstream rules of the prefixes that changed are
+     * updated. Otherwise, all rules are deleted, and if the new upstream is nonzero, reapplied to
+     * the new upstream. Downstream rules are deleted and reapplied in one batch each.
      * Note that this can be only called on handler thread.
      */
     public void updateAllIpv6Rules(@NonNull final IpServer ipServer,
@@ -770,6 +967,32 @@ public class BpfCoordinator {
             @NonNull final Set<IpPrefix> newUpstreamPrefixes) {
         if (!isUsingBpf()) return;
 
+        final long start = mDeps.elapsedRealtimeNanos();
+        final ArraySet<Ipv6UpstreamRule> newUpstreamRules = new ArraySet<>();
+        if (newUpstreamIfindex != 0 && interfaceParams != null && interfaceParams.macAddr != null) {
+            for (final IpPrefix ipPrefix : newUpstreamPrefixes) {
+                newUpstreamRules.add(new Ipv6UpstreamRule(
+                        newUpstreamIfindex, interfaceParams.index, ipPrefix,
+                        interfaceParams.macAddr, NULL_MAC_ADDRESS, NULL_MAC_ADDRESS));
+            }
+        }
+
+        if (newUpstreamIfindex != NO_UPSTREAM && !newUpstreamRules.isEmpty()
+                && newUpstreamIfindex == getIpv6UpstreamIfindex(ipServer)) {
+            // The downstream rules only depend on the upstream interface, so they are kept.
+            updateIpv6UpstreamRules(ipServer, newUpstreamRules);
+        } else {
+            replaceAllIpv6Rules(ipServer, newUpstreamIfindex, newUpstreamRules);
+        }
+
+        final long latency = mDeps.elapsedRealtimeNanos() - start;
+        mIpv6RuleUpdates++;
+        mIpv6RuleUpdateNanosTotal += latency;
+        mIpv6RuleUpdateNanosMax = Math.max(mIpv6RuleUpdateNanosMax, latency);
+    }
+
+    private void replaceAllIpv6Rules(@NonNull final IpServer ipServer, int newUpstreamIfindex,
+            @NonNull final Set<Ipv6UpstreamRule> newUpstreamRules) {
         // Remove IPv6 downstream rules. Remove the old ones before adding the new rules, otherwise
         // we need to keep a copy of the old rules.
         // We still need to keep the downstream rules even when the upstream goes away because it
@@ -789,19 +1012,18 @@ public class BpfCoordinator {
         clearIpv6UpstreamRules(ipServer);
 
         // Add new upstream rules.
-        if (newUpstreamIfindex != 0 && interfaceParams != null && interfaceParams.macAddr != null) {
-            for (final IpPrefix ipPrefix : newUpstreamPrefixes) {
-                addIpv6UpstreamRule(ipServer, new Ipv6UpstreamRule(
-                        newUpstreamIfindex, interfaceParams.index, ipPrefix,
-                        interfaceParams.macAddr, NULL_MAC_ADDRESS, NULL_MAC_ADDRESS));
-            }
+        for (final Ipv6UpstreamRule rule : newUpstreamRules) {
+            addIpv6UpstreamRule(ipServer, rule);
         }
 
         // Add updated downstream rules.
         if (deletedDownstreamRules == null) return;
+        final ArrayList<Ipv6DownstreamRule> updatedDownstreamRules =
+                new ArrayList<>(deletedDownstreamRules.size());
         for (final Ipv6DownstreamRule rule : deletedDownstreamRules) {
-            addIpv6DownstreamRule(ipServer, rule.onNewUpstream(newUpstreamIfindex));
+            updatedDownstreamRules.add(rule.onNewUpstream(newUpstreamIfindex));
         }
+        addIpv6DownstreamRules(ipServer, updatedDownstreamRules);
     }
 
     /**
@@ -927,7 +1149,7 @@ public class BpfCoordinator {
             mBpfCoordinatorShim.tetherOffloadRuleRemove(UPSTREAM, k);
         }
         for (final Tether4Key k : deleteDownstreamRuleKeys) {
-            mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM, k);
+            if (mBpfCoordinatorShim.tetherOffloadRuleRemove(DOWNSTREAM, k)) mIpv4FlowsDeleted++;
         }
 
         // Cleanup each upstream interface by a set which avoids duplicated work on the same
@@ -1143,6 +1365,10 @@ public class BpfCoordinator {
         pw.println("Upstream quota: " + mInterfaceQuotas.toString());
         pw.println("Polling interval: " + getPollingInterval() + " ms");
         pw.println("Bpf shim: " + mBpfCoordinatorShim.toString());
+        dumpConntrackTimeoutUpdates(pw);
+        dumpStatsPolls(pw);
+        dumpFlowTable(pw);
+        dumpIpv6RuleUpdates(pw);
 
         pw.println("Forwarding stats:");
         pw.increaseIndent();
@@ -1200,6 +1426,72 @@ public class BpfCoordinator {
         pw.decreaseIndent();
     }
 
+    private void dumpConntrackTimeoutUpdates(@NonNull IndentingPrintWriter pw) {
+        final long avgBatchUs = (mConntrackTimeoutBatches == 0) ? 0
+                : mConntrackTimeoutBatchNanosTotal / mConntrackTimeoutBatches / 1000;
+        final long enoentPercent = (mConntrackTimeoutUpdates == 0) ? 0
+                : mConntrackTimeoutEnoent * 100 / mConntrackTimeoutUpdates;
+        pw.println("Conntrack timeout updates: " + mConntrackTimeoutUpdates
+                + " in " + mConntrackTimeoutBatches + " batches"
+                + ", ENOENT: " + mConntrackTimeoutEnoent + " (" + enoentPercent + "%)"
+                + ", other errors: " + mConntrackTimeoutErrors
+                + ", batch latency avg " + avgBatchUs + " us"
+                + " max " + mConntrackTimeoutBatchNanosMax / 1000 + " us"
+                + ", pending: " + mPendingConntrackTimeoutUpdates.size());
+    }
+
+    private void dumpStatsPolls(@NonNull IndentingPrintWriter pw) {
+        final long avgPollUs = (mStatsPolls == 0) ? 0 : mStatsPollNanosTotal / mStatsPolls / 1000;
+        pw.println("Stats polls: " + mStatsPolls
+                + ", upstreams polled: " + mStatsPolledUpstreams
+                + ", changed: " + mStatsChangedUpstreams
+                + ", poll latency avg " + avgPollUs + " us"
+                + " max " + mStatsPollNanosMax / 1000 + " us");
+    }
+
+    private void dumpFlowTable(@NonNull IndentingPrintWriter pw) {
+        int ipv6UpstreamRules = 0;
+        for (ArraySet<Ipv6UpstreamRule> rules : mIpv6UpstreamRules.values()) {
+            ipv6UpstreamRules += rules.size();
+        }
+        int ipv6DownstreamRules = 0;
+        for (LinkedHashMap<Inet6Address, Ipv6DownstreamRule> rules
+                : mIpv6DownstreamRules.values()) {
+            ipv6DownstreamRules += rules.size();
+        }
+        final long minutes = mPollingStarted
+                ? (mDeps.elapsedRealtimeNanos() - mPollingStartTimeNanos) / 60_000_000_000L : 0;
+        pw.println("Flow table: IPv4 flows " + getIpv4FlowCount()
+                + " (max " + mIpv4FlowCountMax + ")"
+                + ", IPv6 upstream rules " + ipv6UpstreamRules
+                + ", IPv6 downstream rules " + ipv6DownstreamRules);
+        pw.increaseIndent();
+        pw.println("IPv4 flows added: " + mIpv4FlowsAdded
+                + (minutes > 0 ? " (" + mIpv4FlowsAdded / minutes + "/min)" : "")
+                + ", deleted: " + mIpv4FlowsDeleted
+                + (minutes > 0 ? " (" + mIpv4FlowsDeleted / minutes + "/min)" : "")
+                + ", add failures: " + mIpv4FlowAddFailures);
+        final int hitRatio = getOffloadHitRatioPercent();
+        pw.println("Offloaded bytes: " + mOffloadedBytes + ", tethered bytes: " + mTetheredBytes
+                + ", offload hit ratio: " + (hitRatio < 0 ? "n/a" : hitRatio + "%"));
+        pw.println("Stats polling interval: "
+                + mStatsPollingInterval.getIntervalMs(getPollingInterval()) + " ms"
+                + ", conntrack timeout update interval: "
+                + mConntrackTimeoutUpdateInterval.getIntervalMs(
+                        CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) + " ms");
+        pw.decreaseIndent();
+    }
+
+    private void dumpIpv6RuleUpdates(@NonNull IndentingPrintWriter pw) {
+        final long avgUpdateUs = (mIpv6RuleUpdates == 0) ? 0
+                : mIpv6RuleUpdateNanosTotal / mIpv6RuleUpdates / 1000;
+        pw.println("IPv6 rule updates: " + mIpv6RuleUpdates
+                + ", latency avg " + avgUpdateUs + " us"
+                + " max " + mIpv6RuleUpdateNanosMax / 1000 + " us"
+                + ", downstream rule batches: " + mIpv6DownstreamRuleBatches
+                + ", failed: " + mIpv6DownstreamRuleBatchFailures);
+    }
+
     private void dumpStats(@NonNull IndentingPrintWriter pw) {
         for (int i = 0; i < mStats.size(); i++) {
             final int upstreamIfindex = mStats.keyAt(i);
@@ -1847,6 +2139,7 @@ public class BpfCoordinator {
                     mInterfaceQuotas.put(iface, quotaBytes);
                 }
                 maybeUpdateDataLimit(iface);
+                maybeResetStatsPollingInterval();
             });
         }
 
@@ -2035,6 +2328,7 @@ public class BpfCoordinator {
                     return;
                 }
 
+                mIpv4FlowsDeleted++;
                 maybeClearLimit(upstreamIndex);
                 return;
             }
@@ -2047,11 +2341,30 @@ public class BpfCoordinator {
 
             maybeAddDevMap(upstreamIndex, tetherClient.downstreamIfindex);
             maybeSetLimit(upstreamIndex);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstream4Key, upstream4Value);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstream4Key, downstream4Value);
+            final int flowCount = getIpv4FlowCount();
+            final boolean addedUpstream = mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM,
+                    upstream4Key, upstream4Value);
+            final boolean addedDownstream = mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM,
+                    downstream4Key, downstream4Value);
+            if (!addedUpstream || !addedDownstream) {
+                mIpv4FlowAddFailures++;
+                return;
+            }
+            // Conntrack also sends events for the flows which are already offloaded.
+            if (getIpv4FlowCount() == flowCount) return;
+            mIpv4FlowsAdded++;
+            mIpv4FlowCountMax = Math.max(mIpv4FlowCountMax, getIpv4FlowCount());
+            onFlowOffloaded();
         }
     }
 
+    // A new flow is forwarded: poll and refresh at the base intervals again, as the flow needs its
+    // conntrack timeout refreshed and is likely to move traffic.
+    private void onFlowOffloaded() {
+        if (mStatsPollingInterval.reset()) maybeSchedulePollingStats();
+        if (mConntrackTimeoutUpdateInterval.reset()) maybeScheduleConntrackTimeoutUpdate();
+    }
+
     private boolean isBpfEnabled() {
         final TetheringConfiguration config = mDeps.getTetherConfig();
         return (config != null) ? config.isBpfOffloadEnabled() : true /* default value */;
@@ -2228,26 +2541,46 @@ public class BpfCoordinator {
         if (mRemainingAlertQuota == newQuota) return;
 
         mRemainingAlertQuota = newQuota;
+        maybeResetStatsPollingInterval();
         if (mRemainingAlertQuota == 0) {
             mLog.i("onAlertReached");
             if (mStatsProvider != null) mStatsProvider.notifyAlertReached();
         }
     }
 
-    private void updateQuotaAndStatsFromSnapshot(
+    private static boolean hasSameCounters(@NonNull ForwardedStats stats,
+            @NonNull TetherStatsValue tetherStats) {
+        return stats.rxBytes == tetherStats.rxBytes && stats.rxPackets == tetherStats.rxPackets
+                && stats.txBytes == tetherStats.txBytes
+                && stats.txPackets == tetherStats.txPackets;
+    }
+
+    // Returns the number of upstreams whose counters changed since the last snapshot.
+    private int updateQuotaAndStatsFromSnapshot(
             @NonNull final SparseArray<TetherStatsValue> tetherStatsList) {
         long usedAlertQuota = 0;
+        int changedUpstreams = 0;
         for (int i = 0; i < tetherStatsList.size(); i++) {
-            final Integer ifIndex = tetherStatsList.keyAt(i);
+            final int ifIndex = tetherStatsList.keyAt(i);
             final TetherStatsValue tetherStats = tetherStatsList.valueAt(i);
-            final ForwardedStats curr = new ForwardedStats(tetherStats);
             final ForwardedStats base = mStats.get(ifIndex);
+            // Most upstreams are idle between two polls: skip them before building anything.
+            if (base != null && hasSameCounters(base, tetherStats)) continue;
+            changedUpstreams++;
+
+            final ForwardedStats curr = new ForwardedStats(tetherStats);
             final ForwardedStats diff = (base != null) ? curr.subtract(base) : curr;
-            usedAlertQuota += diff.rxBytes + diff.txBytes;
 
             // Update the local cache for counting tether stats delta.
             mStats.put(ifIndex, curr);
 
+            // Counters that went backwards, or a first snapshot without traffic, have no delta.
+            if (diff.rxBytes == 0 && diff.rxPackets == 0 && diff.txBytes == 0
+                    && diff.txPackets == 0) {
+                continue;
+            }
+            usedAlertQuota += diff.rxBytes + diff.txBytes;
+
             // Update the accumulated tether stats delta to the stats provider for the service
             // querying.
             if (mStatsProvider != null) {
@@ -2262,6 +2595,7 @@ public class BpfCoordinator {
             }
         }
 
+        mOffloadedBytes += usedAlertQuota;
         if (mRemainingAlertQuota > 0 && usedAlertQuota > 0) {
             // Trim to zero if overshoot.
             final long newQuota = Math.max(mRemainingAlertQuota - usedAlertQuota, 0);
@@ -2269,18 +2603,79 @@ public class BpfCoordinator {
         }
 
         // TODO: Count the used limit quota for notifying data limit reached.
+        return changedUpstreams;
     }
 
-    private void updateForwardedStats() {
+    // Returns the number of upstreams whose stats changed.
+    private int updateForwardedStats() {
+        final long start = mDeps.elapsedRealtimeNanos();
         final SparseArray<TetherStatsValue> tetherStatsList =
                 mBpfCoordinatorShim.tetherOffloadGetStats();
 
         if (tetherStatsList == null) {
             mLog.e("Problem fetching tethering stats");
-            return;
+            return 0;
         }
 
-        updateQuotaAndStatsFromSnapshot(tetherStatsList);
+        final int changedUpstreams = updateQuotaAndStatsFromSnapshot(tetherStatsList);
+        updateTetheredBytes();
+        final long latency = mDeps.elapsedRealtimeNanos() - start;
+        mStatsPolls++;
+        mStatsPolledUpstreams += tetherStatsList.size();
+        mStatsChangedUpstreams += changedUpstreams;
+        mStatsPollNanosTotal += latency;
+        mStatsPollNanosMax = Math.max(mStatsPollNanosMax, latency);
+        return changedUpstreams;
+    }
+
+    // Accumulate the bytes received and sent by the downstream interfaces since the last poll.
+    private void updateTetheredBytes() {
+        for (IpServer ipServer : mMonitoringIpServers) {
+            final String iface = ipServer.interfaceName();
+            final long bytes = mDeps.getInterfaceTotalBytes(iface);
+            if (bytes < 0) continue;
+            final Long lastBytes = mDownstreamBytes.put(iface, bytes);
+            // Counters that went backwards, e.g. as the interface was recreated, have no delta.
+            if (lastBytes != null && bytes > lastBytes) mTetheredBytes += bytes - lastBytes;
+        }
+    }
+
+    // Percentage of the tethered traffic forwarded by BPF, or -1 if there was no traffic.
+    private int getOffloadHitRatioPercent() {
+        if (mTetheredBytes == 0) return -1;
+        // The two counters are not read at the same time, so trim to 100% if overshoot.
+        return (int) Math.min(100, mOffloadedBytes * 100 / mTetheredBytes);
+    }
+
+    /**
+     * Returns the offload stats of the IPv4 flows for metrics, or null if BPF is not used.
+     * Note that this can be only called on handler thread.
+     */
+    @Nullable
+    public OffloadFlowStats getOffloadFlowStats() {
+        if (!isUsingBpf()) return null;
+        return OffloadFlowStats.newBuilder()
+                .setIpv4FlowsAdded(mIpv4FlowsAdded)
+                .setIpv4FlowsDeleted(mIpv4FlowsDeleted)
+                .setIpv4FlowAddFailures(mIpv4FlowAddFailures)
+                .setMaxIpv4Flows(mIpv4FlowCountMax)
+                .setOffloadedBytes(mOffloadedBytes)
+                .setTetheredBytes(mTetheredBytes)
+                .setOffloadHitRatioPercent(getOffloadHitRatioPercent())
+                .build();
+    }
+
+    private int getIpv4FlowCount() {
+        return mBpfCoordinatorShim.getIpv4RuleCount();
+    }
+
+    private boolean isQuotaSet() {
+        return mRemainingAlertQuota > 0 || !mInterfaceQuotas.isEmpty();
+    }
+
+    // Poll at the base interval as soon as a quota is set, so that it is not overshot.
+    private void maybeResetStatsPollingInterval() {
+        if (isQuotaSet() && mStatsPollingInterval.reset()) maybeSchedulePollingStats();
     }
 
     @VisibleForTesting
@@ -2305,18 +2700,32 @@ public class BpfCoordinator {
         return null;
     }
 
-    // Update CTA_TUPLE_ORIG timeout for a given conntrack entry. Note that there will also be
-    // coming a conntrack event to notify updated timeout.
-    private void updateConntrackTimeout(byte proto, Inet4Address src4, short srcPort,
-            Inet4Address dst4, short dstPort) {
+    // A conntrack timeout update request, and the flow it is for.
+    private static class ConntrackTimeoutUpdate {
+        @NonNull
+        public final byte[] msg;
+        @NonNull
+        public final String flow;
+
+        ConntrackTimeoutUpdate(@NonNull byte[] msg, @NonNull String flow) {
+            this.msg = msg;
+            this.flow = flow;
+        }
+    }
+
+    // Build a request to update CTA_TUPLE_ORIG timeout for a given conntrack entry. Note that
+    // there will also be coming a conntrack event to notify updated timeout.
+    @Nullable
+    private ConntrackTimeoutUpdate makeConntrackTimeoutUpdate(byte proto, Inet4Address src4,
+            short srcPort, Inet4Address dst4, short dstPort) {
+        final String flow = "proto: " + proto + ", "
+                + "src4: " + src4 + ", "
+                + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
+                + "dst4: " + dst4 + ", "
+                + "dstPort: " + Short.toUnsignedInt(dstPort);
         if (src4 == null || dst4 == null) {
-            mLog.e("Either source or destination IPv4 address is invalid ("
-                    + "proto: " + proto + ", "
-                    + "src4: " + src4 + ", "
-                    + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
-                    + "dst4: " + dst4 + ", "
-                    + "dstPort: " + Short.toUnsignedInt(dstPort) + ")");
-            return;
+            mLog.e("Either source or destination IPv4 address is invalid (" + flow + ")");
+            return null;
         }
 
         // TODO: consider acquiring the timeout setting from nf_conntrack_* variables.
@@ -2328,55 +2737,97 @@ public class BpfCoordinator {
                 : NF_CONNTRACK_UDP_TIMEOUT_STREAM;
         final byte[] msg = ConntrackMessage.newIPv4TimeoutUpdateRequest(
                 proto, src4, (int) srcPort, dst4, (int) dstPort, timeoutSec);
-        try {
-            NetlinkUtils.sendOneShotKernelMessage(OsConstants.NETLINK_NETFILTER, msg);
-        } catch (ErrnoException e) {
-            // Lower the log level for the entry not existing. The conntrack entry may have been
-            // deleted and not handled by the conntrack event monitor yet. In other words, the
-            // rule has not been deleted from the BPF map yet. Deleting a non-existent entry may
-            // happen during the conntrack timeout refreshing iteration. Note that ENOENT may be
-            // a real error but is hard to distinguish.
-            // TODO: Figure out a better way to handle this.
-            final String errMsg = "Failed to update conntrack entry ("
-                    + "proto: " + proto + ", "
-                    + "src4: " + src4 + ", "
-                    + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
-                    + "dst4: " + dst4 + ", "
-                    + "dstPort: " + Short.toUnsignedInt(dstPort) + "), "
-                    + "msg: " + NetlinkConstants.hexify(msg) + ", "
-                    + "e: " + e;
-            if (OsConstants.ENOENT == e.errno) {
-                mLog.w(errMsg);
-            } else {
-                mLog.e(errMsg);
-            }
-        }
+        return new ConntrackTimeoutUpdate(msg, flow);
+    }
+
+    private void addConntrackTimeoutUpdate(@Nullable ConntrackTimeoutUpdate update) {
+        if (update != null) mPendingConntrackTimeoutUpdates.add(update);
     }
 
     private void refreshAllConntrackTimeouts() {
         final long now = mDeps.elapsedRealtimeNanos();
 
+        // Updates left over from the previous refresh, if any, are superseded by this one.
+        mHandler.removeCallbacks(mScheduledConntrackTimeoutBatch);
+        mPendingConntrackTimeoutUpdates.clear();
+
         // TODO: Consider ignoring TCP traffic on upstream and monitor on downstream only
         // because TCP is a bidirectional traffic. Probably don't need to extend timeout by
         // both directions for TCP.
         mBpfCoordinatorShim.tetherOffloadRuleForEach(UPSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                addConntrackTimeoutUpdate(makeConntrackTimeoutUpdate((byte) k.l4proto,
                         parseIPv4Address(k.src4), (short) k.srcPort,
-                        parseIPv4Address(k.dst4), (short) k.dstPort);
+                        parseIPv4Address(k.dst4), (short) k.dstPort));
             }
         });
 
         // Reverse the source and destination {address, port} from downstream value because
-        // #updateConntrackTimeout refresh the timeout of netlink attribute CTA_TUPLE_ORIG
+        // #makeConntrackTimeoutUpdate refresh the timeout of netlink attribute CTA_TUPLE_ORIG
         // which is opposite direction for downstream map value.
         mBpfCoordinatorShim.tetherOffloadRuleForEach(DOWNSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                addConntrackTimeoutUpdate(makeConntrackTimeoutUpdate((byte) k.l4proto,
                         parseIPv4Address(v.dst46), (short) v.dstPort,
-                        parseIPv4Address(v.src46), (short) v.srcPort);
+                        parseIPv4Address(v.src46), (short) v.srcPort));
             }
         });
+
+        if (mPendingConntrackTimeoutUpdates.isEmpty()) return;
+        final int batches = (mPendingConntrackTimeoutUpdates.size()
+                + CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE - 1) / CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE;
+        mConntrackTimeoutBatchDelayMs = CONNTRACK_TIMEOUT_UPDATE_SPREAD_MS / batches;
+        sendConntrackTimeoutBatch();
+    }
+
+    // Send the next batch of pending conntrack timeout updates, and schedule the following one.
+    private void sendConntrackTimeoutBatch() {
+        final int count = Math.min(mPendingConntrackTimeoutUpdates.size(),
+                CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE);
+        final List<ConntrackTimeoutUpdate> batch =
+                mPendingConntrackTimeoutUpdates.subList(0, count);
+        final ArrayList<byte[]> requests = new ArrayList<>(count);
+        for (ConntrackTimeoutUpdate update : batch) requests.add(update.msg);
+
+        final long start = mDeps.elapsedRealtimeNanos();
+        int[] errnos;
+        try {
+            errnos = mConntrackTimeoutSession.sendBatch(requests);
+        } catch (ErrnoException e) {
+            mLog.e("Failed to send " + count + " conntrack timeout updates: " + e);
+            errnos = null;
+        }
+        final long latency = mDeps.elapsedRealtimeNanos() - start;
+        mConntrackTimeoutBatches++;
+        mConntrackTimeoutUpdates += count;
+        mConntrackTimeoutBatchNanosTotal += latency;
+        mConntrackTimeoutBatchNanosMax = Math.max(mConntrackTimeoutBatchNanosMax, latency);
+
+        for (int i = 0; i < count; i++) {
+            final int errno = (errnos != null) ? errnos[i] : OsConstants.EIO;
+            if (errno == 0) continue;
+            // The conntrack entry may have been deleted and not handled by the conntrack event
+            // monitor yet. In other words, the rule has not been deleted from the BPF map yet.
+            // Updating a non-existent entry may happen during the conntrack timeout refreshing
+            // iteration, so ENOENT is only counted. Note that ENOENT may be a real error but is
+            // hard to distinguish.
+            // TODO: Figure out a better way to handle this.
+            if (OsConstants.ENOENT == errno) {
+                mConntrackTimeoutEnoent++;
+                continue;
+            }
+            mConntrackTimeoutErrors++;
+            if (errnos != null) {
+                mLog.e("Failed to update conntrack entry (" + batch.get(i).flow + "), "
+                        + "msg: " + NetlinkConstants.hexify(batch.get(i).msg) + ", "
+                        + "errno: " + errno);
+            }
+        }
+        batch.clear();
+
+        if (!mPendingConntrackTimeoutUpdates.isEmpty()) {
+            mHandler.postDelayed(mScheduledConntrackTimeoutBatch, mConntrackTimeoutBatchDelayMs);
+        }
     }
 
     private void maybeSchedulePollingStats() {
@@ -2386,7 +2837,8 @@ public class BpfCoordinator {
             mHandler.removeCallbacks(mScheduledPollingStats);
         }
 
-        mHandler.postDelayed(mScheduledPollingStats, getPollingInterval());
+        mHandler.postDelayed(mScheduledPollingStats,
+                mStatsPollingInterval.getIntervalMs(getPollingInterval()));
     }
 
     private void maybeScheduleConntrackTimeoutUpdate() {
@@ -2397,7 +2849,8 @@ public class BpfCoordinator {
         }
 
         mHandler.postDelayed(mScheduledConntrackTimeoutUpdate,
-                CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+                mConntrackTimeoutUpdateInterval.getIntervalMs(
+                        CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS));
     }
 
     // Return IPv6 downstream forwarding rule map. This is used for testing only.
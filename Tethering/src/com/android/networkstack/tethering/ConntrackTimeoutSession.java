@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.EIO;
+import static android.system.OsConstants.ETIMEDOUT;
+import static android.system.OsConstants.NETLINK_NETFILTER;
+
+import static com.android.net.module.util.SocketUtils.closeSocketQuietly;
+import static com.android.net.module.util.netlink.NetlinkUtils.DEFAULT_RECV_BUFSIZE;
+import static com.android.net.module.util.netlink.NetlinkUtils.IO_TIMEOUT_MS;
+import static com.android.net.module.util.netlink.NetlinkUtils.SOCKET_RECV_BUFSIZE;
+
+import android.system.ErrnoException;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.netlink.NetlinkErrorMessage;
+import com.android.net.module.util.netlink.NetlinkMessage;
+import com.android.net.module.util.netlink.NetlinkUtils;
+import com.android.net.module.util.netlink.StructNlMsgErr;
+import com.android.net.module.util.netlink.StructNlMsgHdr;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A persistent NETLINK_NETFILTER session used to send conntrack update requests in batches.
+ *
+ * {@link NetlinkUtils#sendOneShotKernelMessage} opens, connects and closes a socket for each
+ * request. This class keeps one socket open, writes a whole batch of requests in a single
+ * datagram, which the kernel processes in order, and matches the acks back to the requests by
+ * sequence number. Acks of a previous batch that timed out are recognized by their sequence
+ * number and ignored.
+ *
+ * This class is not thread-safe.
+ *
+ * @hide
+ */
+public class ConntrackTimeoutSession {
+    private static final String TAG = ConntrackTimeoutSession.class.getSimpleName();
+
+    // Offset of nlmsg_seq in struct nlmsghdr.
+    private static final int NLMSG_SEQ_OFFSET = 8;
+    // Marks a request for which no ack was received yet.
+    private static final int NO_ACK = -1;
+
+    @NonNull
+    private final Dependencies mDeps;
+    private FileDescriptor mFd;
+    private int mNextSeq = 1;
+
+    /**
+     * Dependencies of ConntrackTimeoutSession, for injection in tests.
+     */
+    @VisibleForTesting
+    public static class Dependencies {
+        /** Open a NETLINK_NETFILTER socket connected to the kernel. */
+        @NonNull
+        public FileDescriptor openSocket() throws ErrnoException {
+            final FileDescriptor fd =
+                    NetlinkUtils.netlinkSocketForProto(NETLINK_NETFILTER, SOCKET_RECV_BUFSIZE);
+            try {
+                NetlinkUtils.connectToKernel(fd);
+            } catch (ErrnoException | SocketException e) {
+                closeSocketQuietly(fd);
+                throw new ErrnoException("Cannot connect conntrack session", EIO, e);
+            }
+            return fd;
+        }
+
+        /** @see NetlinkUtils#sendMessage */
+        public void sendMessage(@NonNull FileDescriptor fd, @NonNull byte[] bytes, int offset,
+                int count, long timeoutMs) throws ErrnoException, InterruptedIOException {
+            NetlinkUtils.sendMessage(fd, bytes, offset, count, timeoutMs);
+        }
+
+        /** @see NetlinkUtils#recvMessage */
+        @NonNull
+        public ByteBuffer recvMessage(@NonNull FileDescriptor fd, int bufsize, long timeoutMs)
+                throws ErrnoException, InterruptedIOException {
+            return NetlinkUtils.recvMessage(fd, bufsize, timeoutMs);
+        }
+
+        /** Close a socket returned by {@link #openSocket}. */
+        public void closeSocket(@NonNull FileDescriptor fd) {
+            closeSocketQuietly(fd);
+        }
+    }
+
+    public ConntrackTimeoutSession() {
+        this(new Dependencies());
+    }
+
+    @VisibleForTesting
+    public ConntrackTimeoutSession(@NonNull Dependencies deps) {
+        mDeps = deps;
+    }
+
+    /**
+     * Send conntrack requests to the kernel and wait for their acks.
+     *
+     * @param requests netlink messages requesting an ack, such as the ones built by
+     *         {@link com.android.net.module.util.netlink.ConntrackMessage
+     *         #newIPv4TimeoutUpdateRequest}. Their sequence numbers are overwritten.
+     * @return the errno of each request, in the same order, or 0 if the request succeeded.
+     *         Requests without an ack in time get ETIMEDOUT.
+     * @throws ErrnoException if the requests could not be sent. The socket is then closed, and
+     *         opened again by the next call.
+     */
+    @NonNull
+    public int[] sendBatch(@NonNull List<byte[]> requests) throws ErrnoException {
+        final int[] errnos = new int[requests.size()];
+        if (requests.isEmpty()) return errnos;
+
+        // Sequence numbers are unique within the batch, and 0 is never used so that
+        // unsolicited messages can't be confused with acks.
+        if (mNextSeq <= 0 || mNextSeq > Integer.MAX_VALUE - requests.size()) mNextSeq = 1;
+        final int firstSeq = mNextSeq;
+        mNextSeq += requests.size();
+
+        int length = 0;
+        for (byte[] request : requests) length += request.length;
+        final ByteBuffer batch = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+        for (int i = 0; i < requests.size(); i++) {
+            final int start = batch.position();
+            batch.put(requests.get(i));
+            batch.putInt(start + NLMSG_SEQ_OFFSET, firstSeq + i);
+        }
+
+        final FileDescriptor fd = getOrOpenSocket();
+        try {
+            mDeps.sendMessage(fd, batch.array(), 0, length, IO_TIMEOUT_MS);
+            Arrays.fill(errnos, NO_ACK);
+            receiveAcks(fd, firstSeq, errnos);
+        } catch (InterruptedIOException e) {
+            close();
+            throw new ErrnoException("Timed out sending conntrack batch", ETIMEDOUT, e);
+        } catch (ErrnoException e) {
+            close();
+            throw e;
+        }
+        for (int i = 0; i < errnos.length; i++) {
+            if (errnos[i] == NO_ACK) errnos[i] = ETIMEDOUT;
+        }
+        return errnos;
+    }
+
+    private void receiveAcks(@NonNull FileDescriptor fd, int firstSeq, @NonNull int[] errnos)
+            throws ErrnoException {
+        int pending = errnos.length;
+        while (pending > 0) {
+            final ByteBuffer bytes;
+            try {
+                bytes = mDeps.recvMessage(fd, DEFAULT_RECV_BUFSIZE, IO_TIMEOUT_MS);
+            } catch (InterruptedIOException e) {
+                Log.e(TAG, "Timed out waiting for " + pending + " conntrack acks");
+                return;
+            }
+            while (bytes.remaining() >= StructNlMsgHdr.STRUCT_SIZE) {
+                final NetlinkMessage msg = NetlinkMessage.parse(bytes, NETLINK_NETFILTER);
+                if (!(msg instanceof NetlinkErrorMessage)) continue;
+                final StructNlMsgErr err = ((NetlinkErrorMessage) msg).getNlMsgError();
+                final int index = msg.getHeader().nlmsg_seq - firstSeq;
+                if (err == null || index < 0 || index >= errnos.length
+                        || errnos[index] != NO_ACK) {
+                    continue;
+                }
+                // Kernel errnos are negative.
+                errnos[index] = Math.abs(err.error);
+                pending--;
+            }
+        }
+    }
+
+    @NonNull
+    private FileDescriptor getOrOpenSocket() throws ErrnoException {
+        if (mFd == null) mFd = mDeps.openSocket();
+        return mFd;
+    }
+
+    /** Close the socket, if open. It is opened again as needed. */
+    public void close() {
+        if (mFd == null) return;
+        mDeps.closeSocket(mFd);
+        mFd = null;
+    }
+}
@@ -763,6 +763,7 @@ public class Tethering {
         if (result != TETHER_ERROR_NO_ERROR) {
             mActiveTetheringRequests.remove(type);
             mTetheringMetrics.updateErrorCode(type, result);
+            mTetheringMetrics.updateOffloadFlowStats(mBpfCoordinator.getOffloadFlowStats());
             mTetheringMetrics.sendReport(type);
         }
     }
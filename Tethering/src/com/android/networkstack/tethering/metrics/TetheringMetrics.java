@@ -83,6 +83,7 @@ public class TetheringMetrics {
     private final ArrayList<RecordUpstreamEvent> mUpstreamEventList = new ArrayList<>();
     private UpstreamType mCurrentUpstream = null;
     private Long mCurrentUpStreamStartTime = 0L;
+    private OffloadFlowStats mOffloadFlowStats = null;
 
 
     /**
@@ -158,6 +159,14 @@ public class TetheringMetrics {
         mCurrentUpStreamStartTime = newTime;
     }
 
+    /**
+     * Update the BPF offload stats of the IPv4 flows to report with the upstream events.
+     * @param stats The offload stats, or null if offload is not used.
+     */
+    public void updateOffloadFlowStats(@Nullable final OffloadFlowStats stats) {
+        mOffloadFlowStats = stats;
+    }
+
     /**
      * Updates the upstream events builder with a new upstream event.
      * @param upstreamEventsBuilder the builder for the upstream events list
@@ -210,6 +219,7 @@ public class TetheringMetrics {
         // Handle the last upstream event.
         addUpstreamEvent(upstreamEventsBuilder, startTime, stopTime, mCurrentUpstream,
                 0L /* txBytes */, 0L /* rxBytes */);
+        if (mOffloadFlowStats != null) upstreamEventsBuilder.setOffloadFlowStats(mOffloadFlowStats);
         statsBuilder.setUpstreamEvents(upstreamEventsBuilder);
         statsBuilder.setDurationMillis(stopTime - downstreamStartTime);
     }
@@ -282,6 +292,7 @@ public class TetheringMetrics {
         mUpstreamEventList.clear();
         mCurrentUpstream = null;
         mCurrentUpStreamStartTime = 0L;
+        mOffloadFlowStats = null;
     }
 
     private DownstreamType downstreamTypeToEnum(final int ifaceType) {
@@ -35,6 +35,7 @@ import android.system.OsConstants;
 import android.util.ArrayMap;
 
 import com.android.net.module.util.BpfMap;
+import com.android.net.module.util.Struct;
 import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo;
 import com.android.testutils.DevSdkIgnoreRunner;
 
@@ -45,6 +46,8 @@ import org.junit.runner.RunWith;
 
 import java.io.File;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -356,6 +359,110 @@ public final class BpfMapTest {
         assertTrue(mTestMap.isEmpty());
     }
 
+    @Test
+    public void testForEachRaw() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap = new ArrayMap<>(mTestData);
+        for (int i = 0; i < resultMap.size(); i++) {
+            mTestMap.insertEntry(resultMap.keyAt(i), resultMap.valueAt(i));
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        mTestMap.forEachRaw((rawKey, rawValue) -> {
+            final TetherDownstream6Key key =
+                    Struct.parse(TetherDownstream6Key.class, rawKey);
+            final Tether6Value value = Struct.parse(Tether6Value.class, rawValue);
+            // Deleting the current entry is allowed.
+            assertTrue(mTestMap.deleteEntry(key));
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+            count.incrementAndGet();
+        });
+        assertEquals(3, count.get());
+        assertTrue(resultMap.isEmpty());
+        assertTrue(mTestMap.isEmpty());
+    }
+
+    @Test
+    public void testBatchOperations() throws Exception {
+        final List<TetherDownstream6Key> keys = new ArrayList<>(mTestData.keySet());
+        final List<Tether6Value> values = new ArrayList<>(mTestData.values());
+        mTestMap.updateBatch(keys, values);
+        for (int i = 0; i < mTestData.size(); i++) {
+            assertEquals(mTestData.valueAt(i), mTestMap.getValue(mTestData.keyAt(i)));
+        }
+
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap = new ArrayMap<>(mTestData);
+        mTestMap.lookupBatch((key, value) -> {
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+        });
+        assertTrue(resultMap.isEmpty());
+
+        // Keys which don't exist are skipped.
+        final TetherDownstream6Key missingKey =
+                createTetherDownstream6Key(104, "00:00:00:00:00:dd", "2001:db8::4");
+        final List<TetherDownstream6Key> keysToDelete =
+                List.of(keys.get(0), missingKey, keys.get(2));
+        assertEquals(2, mTestMap.deleteBatch(keysToDelete));
+        assertNull(mTestMap.getValue(keys.get(0)));
+        assertEquals(values.get(1), mTestMap.getValue(keys.get(1)));
+        assertNull(mTestMap.getValue(keys.get(2)));
+    }
+
+    @Test
+    public void testLookupBatch_moreEntriesThanBatch() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap = new ArrayMap<>();
+        for (int i = 0; i < TEST_MAP_SIZE; i++) {
+            resultMap.put(createTetherDownstream6Key(i, "00:00:00:00:00:aa", "2001:db8::1"),
+                    createTether6Value(100 + i, "11:11:11:00:00:0b", "00:00:00:00:00:0a",
+                    ETH_P_IPV6, 1280));
+        }
+        mTestMap.updateBatch(new ArrayList<>(resultMap.keySet()),
+                new ArrayList<>(resultMap.values()));
+
+        final AtomicInteger count = new AtomicInteger();
+        mTestMap.lookupBatch((key, value) -> {
+            // Modifying the map is allowed while iterating in batches.
+            mTestMap.deleteEntry(key);
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+            count.incrementAndGet();
+        });
+        assertEquals(TEST_MAP_SIZE, count.get());
+        assertTrue(resultMap.isEmpty());
+        assertTrue(mTestMap.isEmpty());
+    }
+
+    @Test
+    public void testLookupBatchRaw() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> resultMap = new ArrayMap<>();
+        for (int i = 0; i < TEST_MAP_SIZE; i++) {
+            resultMap.put(createTetherDownstream6Key(i, "00:00:00:00:00:aa", "2001:db8::1"),
+                    createTether6Value(100 + i, "11:11:11:00:00:0b", "00:00:00:00:00:0a",
+                    ETH_P_IPV6, 1280));
+        }
+        mTestMap.updateBatch(new ArrayList<>(resultMap.keySet()),
+                new ArrayList<>(resultMap.values()));
+
+        final AtomicInteger count = new AtomicInteger();
+        mTestMap.lookupBatchRaw((rawKey, rawValue) -> {
+            // Each buffer only holds the current entry.
+            assertEquals(Struct.getSize(TetherDownstream6Key.class), rawKey.remaining());
+            assertEquals(Struct.getSize(Tether6Value.class), rawValue.remaining());
+            final TetherDownstream6Key key = Struct.parse(TetherDownstream6Key.class, rawKey);
+            final Tether6Value value = Struct.parse(Tether6Value.class, rawValue);
+            if (!value.equals(resultMap.remove(key))) {
+                fail("Unexpected result: " + key + ", value: " + value);
+            }
+            count.incrementAndGet();
+        });
+        assertEquals(TEST_MAP_SIZE, count.get());
+        assertTrue(resultMap.isEmpty());
+    }
+
     @Test
     public void testInsertOverflow() throws Exception {
         final ArrayMap<TetherDownstream6Key, Tether6Value> testData =
@@ -385,6 +492,39 @@ public final class BpfMapTest {
         }
     }
 
+    @Test
+    public void testUpdateBatchOverflow() throws Exception {
+        final ArrayMap<TetherDownstream6Key, Tether6Value> testData = new ArrayMap<>();
+        for (int i = 1; i <= TEST_MAP_SIZE + 1; i++) {
+            testData.put(
+                    createTetherDownstream6Key(i, "00:00:00:00:00:01", "2001:db8::1"),
+                    createTether6Value(100, "de:ad:be:ef:00:01", "de:ad:be:ef:00:02",
+                    ETH_P_IPV6, 1500));
+        }
+        // Probe the batch support.
+        mTestMap.updateBatch(List.of(testData.keyAt(0)), List.of(testData.valueAt(0)));
+
+        // Errors after the probe are reported to the caller.
+        try {
+            mTestMap.updateBatch(new ArrayList<>(testData.keySet()),
+                    new ArrayList<>(testData.values()));
+            fail("Writing too many entries should throw ErrnoException");
+        } catch (ErrnoException expected) {
+            assertEquals(OsConstants.E2BIG, expected.errno);
+        }
+
+        // Batch operations keep working after the error.
+        final AtomicInteger count = new AtomicInteger();
+        mTestMap.lookupBatch((key, value) -> {
+            assertEquals(testData.get(key), value);
+            count.incrementAndGet();
+        });
+        assertEquals(TEST_MAP_SIZE, count.get());
+        final List<TetherDownstream6Key> keys = new ArrayList<>(testData.keySet());
+        assertEquals(TEST_MAP_SIZE, mTestMap.deleteBatch(keys));
+        assertTrue(mTestMap.isEmpty());
+    }
+
     @Test
     public void testOpenNonexistentMap() throws Exception {
         try {
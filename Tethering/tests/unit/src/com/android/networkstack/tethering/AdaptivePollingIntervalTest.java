@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static com.android.networkstack.tethering.AdaptivePollingInterval.IDLE_RUNS_BEFORE_BACKOFF;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class AdaptivePollingIntervalTest {
+    private static final long BASE_INTERVAL_MS = 5000L;
+    private static final int MAX_BACKOFF_SHIFT = 3;
+
+    private final AdaptivePollingInterval mInterval =
+            new AdaptivePollingInterval(MAX_BACKOFF_SHIFT);
+
+    private void runIdle(int count) {
+        for (int i = 0; i < count; i++) mInterval.onRun(false /* active */);
+    }
+
+    @Test
+    public void testBackoffAfterIdleRuns() {
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF - 1);
+        assertEquals(BASE_INTERVAL_MS, mInterval.getIntervalMs(BASE_INTERVAL_MS));
+
+        runIdle(1);
+        assertEquals(BASE_INTERVAL_MS * 2, mInterval.getIntervalMs(BASE_INTERVAL_MS));
+        runIdle(1);
+        assertEquals(BASE_INTERVAL_MS * 4, mInterval.getIntervalMs(BASE_INTERVAL_MS));
+
+        // The interval does not grow beyond the maximum backoff.
+        runIdle(10);
+        assertEquals(MAX_BACKOFF_SHIFT, mInterval.getBackoffShift());
+        assertEquals(BASE_INTERVAL_MS << MAX_BACKOFF_SHIFT,
+                mInterval.getIntervalMs(BASE_INTERVAL_MS));
+    }
+
+    @Test
+    public void testActiveRunResetsInterval() {
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF + 1);
+        assertEquals(2, mInterval.getBackoffShift());
+
+        mInterval.onRun(true /* active */);
+        assertEquals(BASE_INTERVAL_MS, mInterval.getIntervalMs(BASE_INTERVAL_MS));
+
+        // Idle runs are counted again from the last active run.
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF - 1);
+        assertEquals(0, mInterval.getBackoffShift());
+    }
+
+    @Test
+    public void testReset() {
+        assertFalse(mInterval.reset());
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF - 1);
+        assertFalse(mInterval.reset());
+
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF);
+        assertTrue(mInterval.reset());
+        assertEquals(BASE_INTERVAL_MS, mInterval.getIntervalMs(BASE_INTERVAL_MS));
+        assertFalse(mInterval.reset());
+    }
+
+    @Test
+    public void testGetIntervalMs_NoOverflow() {
+        runIdle(IDLE_RUNS_BEFORE_BACKOFF);
+        assertEquals(Long.MAX_VALUE, mInterval.getIntervalMs(Long.MAX_VALUE / 2 + 1));
+    }
+}
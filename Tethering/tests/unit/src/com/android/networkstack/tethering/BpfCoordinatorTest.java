@@ -28,11 +28,11 @@ import static android.net.NetworkStats.UID_TETHERING;
 import static android.net.TetheringManager.TETHERING_WIFI;
 import static android.net.ip.IpServer.STATE_TETHERED;
 import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+import static android.system.OsConstants.EIO;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
-import static android.system.OsConstants.NETLINK_NETFILTER;
 
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.staticMockMarker;
@@ -50,7 +50,9 @@ import static com.android.net.module.util.netlink.NetlinkConstants.RTM_NEWNEIGH;
 import static com.android.net.module.util.netlink.StructNdMsg.NUD_FAILED;
 import static com.android.net.module.util.netlink.StructNdMsg.NUD_REACHABLE;
 import static com.android.net.module.util.netlink.StructNdMsg.NUD_STALE;
+import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE;
 import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS;
+import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_SPREAD_MS;
 import static com.android.networkstack.tethering.BpfCoordinator.INVALID_MTU;
 import static com.android.networkstack.tethering.BpfCoordinator.NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED;
 import static com.android.networkstack.tethering.BpfCoordinator.NF_CONNTRACK_UDP_TIMEOUT_STREAM;
@@ -80,6 +82,7 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -108,6 +111,7 @@ import android.net.ip.RouterAdvertisementDaemon;
 import android.os.Build;
 import android.os.Handler;
 import android.os.test.TestLooper;
+import android.system.ErrnoException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.SparseArray;
@@ -138,11 +142,11 @@ import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
 import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
-import com.android.net.module.util.netlink.NetlinkUtils;
 import com.android.networkstack.tethering.BpfCoordinator.BpfConntrackEventConsumer;
 import com.android.networkstack.tethering.BpfCoordinator.ClientInfo;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6DownstreamRule;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6UpstreamRule;
+import com.android.networkstack.tethering.metrics.OffloadFlowStats;
 import com.android.networkstack.tethering.metrics.TetheringMetrics;
 import com.android.networkstack.tethering.util.InterfaceSet;
 import com.android.testutils.DevSdkIgnoreRule;
@@ -314,6 +318,11 @@ public class BpfCoordinatorTest {
                 return this;
             }
 
+            public Builder setSrcPort(int srcPort) {
+                mSrcPort = srcPort;
+                return this;
+            }
+
             public Tether4Key build() {
                 return new Tether4Key(mIif, mDstMac, mL4proto, mSrc4, mDst4, mSrcPort, mDstPort);
             }
@@ -448,6 +457,7 @@ public class BpfCoordinatorTest {
     @Mock private IpServer mIpServer2;
     @Mock private TetheringConfiguration mTetherConfig;
     @Mock private ConntrackMonitor mConntrackMonitor;
+    @Mock private ConntrackTimeoutSession mConntrackTimeoutSession;
     @Mock private IpNeighborMonitor mIpNeighborMonitor;
     @Mock private RouterAdvertisementDaemon mRaDaemon;
     @Mock private IpServer.Dependencies mIpServerDeps;
@@ -521,6 +531,11 @@ public class BpfCoordinatorTest {
                         return mConntrackMonitor;
                     }
 
+                    @NonNull
+                    public ConntrackTimeoutSession getConntrackTimeoutSession() {
+                        return mConntrackTimeoutSession;
+                    }
+
                     public long elapsedRealtimeNanos() {
                         return mElapsedRealtimeNanos;
                     }
@@ -1132,15 +1147,14 @@ public class BpfCoordinatorTest {
                 buildTestTetherStatsParcel(wlanIfIndex, 1000, 100, 2000, 200),
                 buildTestTetherStatsParcel(mobileIfIndex, 3010, 320, 4030, 440)});
 
-        final NetworkStats expectedIfaceStatsDiff = new NetworkStats(0L, 2)
-                .addEntry(buildTestEntry(STATS_PER_IFACE, wlanIface, 0, 0, 0, 0))
+        final NetworkStats expectedIfaceStatsDiff = new NetworkStats(0L, 1)
                 .addEntry(buildTestEntry(STATS_PER_IFACE, mobileIface, 10, 20, 30, 40));
 
-        final NetworkStats expectedUidStatsDiff = new NetworkStats(0L, 2)
-                .addEntry(buildTestEntry(STATS_PER_UID, wlanIface, 0, 0, 0, 0))
+        final NetworkStats expectedUidStatsDiff = new NetworkStats(0L, 1)
                 .addEntry(buildTestEntry(STATS_PER_UID, mobileIface, 10, 20, 30, 40));
 
-        // Force pushing stats update to verify that only diff of stats is reported.
+        // Force pushing stats update to verify that only diff of stats is reported, and that
+        // the interface whose stats did not change is not reported.
         mTetherStatsProvider.pushTetherStats();
         mTetherStatsProviderCb.expectNotifyStatsUpdated(expectedIfaceStatsDiff,
                 expectedUidStatsDiff);
@@ -1492,8 +1506,8 @@ public class BpfCoordinatorTest {
         updateStatsEntryForTetherOffloadGetAndClearStats(
                 buildTestTetherStatsParcel(ethIfIndex, 10, 20, 30, 40));
 
-        // Update the existing rules for upstream changes. The rules are removed and re-added one
-        // by one for updating upstream interface index and prefixes by #tetherOffloadRuleUpdate.
+        // Update the existing rules for upstream changes. The downstream rules are removed and
+        // re-added in one batch each for updating upstream interface index.
         coordinator.updateAllIpv6Rules(
                 mIpServer, DOWNSTREAM_IFACE_PARAMS, mobileIfIndex, UPSTREAM_PREFIXES2);
         verifyRemoveDownstreamRule(inOrder, ethernetRuleA);
@@ -1527,6 +1541,46 @@ public class BpfCoordinatorTest {
                 .addEntry(buildTestEntry(STATS_PER_UID, mobileIface, 50, 60, 70, 80)));
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testUpdateAllIpv6Rules_BatchFailure() throws Exception {
+        setupFunctioningNetdInterface();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        final int ethIfIndex = 100;
+        final int mobileIfIndex = 101;
+        coordinator.maybeAddUpstreamToLookupTable(ethIfIndex, "eth1");
+        coordinator.maybeAddUpstreamToLookupTable(mobileIfIndex, "rmnet_data0");
+
+        coordinator.updateAllIpv6Rules(
+                mIpServer, DOWNSTREAM_IFACE_PARAMS, ethIfIndex, UPSTREAM_PREFIXES);
+        coordinator.addIpv6DownstreamRule(mIpServer,
+                buildTestDownstreamRule(ethIfIndex, NEIGH_A, MAC_A));
+        coordinator.addIpv6DownstreamRule(mIpServer,
+                buildTestDownstreamRule(ethIfIndex, NEIGH_B, MAC_B));
+
+        // If the batch update fails, the rules are added one by one.
+        doThrow(new ErrnoException("updateBatch", EIO))
+                .when(mBpfDownstream6Map).updateBatch(any(), any());
+        updateStatsEntryForTetherOffloadGetAndClearStats(
+                buildTestTetherStatsParcel(ethIfIndex, 0, 0, 0, 0));
+        clearInvocations(mBpfDownstream6Map);
+        coordinator.updateAllIpv6Rules(
+                mIpServer, DOWNSTREAM_IFACE_PARAMS, mobileIfIndex, UPSTREAM_PREFIXES);
+
+        final Ipv6DownstreamRule mobileRuleA = buildTestDownstreamRule(
+                mobileIfIndex, NEIGH_A, MAC_A);
+        final Ipv6DownstreamRule mobileRuleB = buildTestDownstreamRule(
+                mobileIfIndex, NEIGH_B, MAC_B);
+        verify(mBpfDownstream6Map).deleteBatch(any());
+        verify(mBpfDownstream6Map).updateBatch(any(), any());
+        verifyAddDownstreamRule(mobileRuleA);
+        verifyAddDownstreamRule(mobileRuleB);
+        final LinkedHashMap<Inet6Address, Ipv6DownstreamRule> rules =
+                coordinator.getIpv6DownstreamRulesForTesting().get(mIpServer);
+        assertEquals(List.of(mobileRuleA, mobileRuleB), new ArrayList<>(rules.values()));
+    }
+
     private void checkBpfDisabled() throws Exception {
         // The caller may mock the global dependencies |mDeps| which is used in
         // #makeBpfCoordinator for testing.
@@ -1795,6 +1849,48 @@ public class BpfCoordinatorTest {
         verifyTetherOffloadGetStats();
     }
 
+    @Test
+    public void testPollingIntervalBackoffWhenIdle() throws Exception {
+        setupFunctioningNetdInterface();
+
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+
+        // [1] Stats are polled at the base interval until enough polls found no change.
+        for (int i = 0; i < AdaptivePollingInterval.IDLE_RUNS_BEFORE_BACKOFF; i++) {
+            clearStatsInvocations();
+            mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+            waitForIdle();
+            verifyTetherOffloadGetStats();
+        }
+
+        // [2] The next poll happens after twice the base interval.
+        clearStatsInvocations();
+        mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        waitForIdle();
+        verifyNeverTetherOffloadGetStats();
+        mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        waitForIdle();
+        verifyTetherOffloadGetStats();
+
+        // [3] Setting an alert brings polling back to the base interval.
+        mTetherStatsProvider.onSetAlert(100);
+        waitForIdle();
+        clearStatsInvocations();
+        mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+        waitForIdle();
+        verifyTetherOffloadGetStats();
+
+        // [4] Polling stays at the base interval while the alert is set.
+        for (int i = 0; i < AdaptivePollingInterval.IDLE_RUNS_BEFORE_BACKOFF + 1; i++) {
+            clearStatsInvocations();
+            mTestLooper.moveTimeForward(DEFAULT_TETHER_OFFLOAD_POLL_INTERVAL_MS);
+            waitForIdle();
+            verifyTetherOffloadGetStats();
+        }
+        coordinator.stopPolling();
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.R)
     public void testStartStopConntrackMonitoring() throws Exception {
@@ -2081,49 +2177,51 @@ public class BpfCoordinatorTest {
         final long validTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L;
         final long expiredTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS + 1) * 1_000_000L;
 
-        // Static mocking for NetlinkUtils.
-        MockitoSession mockSession = ExtendedMockito.mockitoSession()
-                .mockStatic(NetlinkUtils.class)
-                .startMocking();
-        try {
-            final BpfCoordinator coordinator = makeBpfCoordinator();
-            coordinator.startPolling();
-            bpfMap.insertEntry(tcpKey, tcpValue);
-            bpfMap.insertEntry(udpKey, udpValue);
+        final List<List<byte[]>> batches = recordConntrackTimeoutBatches();
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        bpfMap.insertEntry(tcpKey, tcpValue);
+        bpfMap.insertEntry(udpKey, udpValue);
 
-            // [1] Don't refresh conntrack timeout.
-            setElapsedRealtimeNanos(expiredTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
+        // [1] Don't refresh conntrack timeout.
+        setElapsedRealtimeNanos(expiredTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        assertEquals(0, batches.size());
 
-            // [2] Refresh conntrack timeout.
-            setElapsedRealtimeNanos(validTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
-            final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
-            ExtendedMockito.verify(() -> NetlinkUtils.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkTcp)));
-            ExtendedMockito.verify(() -> NetlinkUtils.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkUdp)));
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
-
-            // [3] Don't refresh conntrack timeout if polling stopped.
-            coordinator.stopPolling();
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkUtils.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkUtils.class));
-        } finally {
-            mockSession.finishMocking();
-        }
+        // [2] Refresh conntrack timeout, with a single batch.
+        setElapsedRealtimeNanos(validTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
+        final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+        assertTrue(batches.get(0).stream().anyMatch(m -> Arrays.equals(m, expectedNetlinkTcp)));
+        assertTrue(batches.get(0).stream().anyMatch(m -> Arrays.equals(m, expectedNetlinkUdp)));
+        batches.clear();
+
+        // [3] Don't refresh conntrack timeout if polling stopped.
+        coordinator.stopPolling();
+        verify(mConntrackTimeoutSession).close();
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        assertEquals(0, batches.size());
+    }
+
+    // Make the conntrack timeout session succeed, and record the requests of each batch.
+    private List<List<byte[]>> recordConntrackTimeoutBatches() throws Exception {
+        final List<List<byte[]>> batches = new ArrayList<>();
+        doAnswer(invocation -> {
+            final List<byte[]> requests = invocation.getArgument(0);
+            batches.add(new ArrayList<>(requests));
+            return new int[requests.size()];
+        }).when(mConntrackTimeoutSession).sendBatch(any());
+        return batches;
     }
 
     @Test
@@ -2158,6 +2256,47 @@ public class BpfCoordinatorTest {
         checkRefreshConntrackTimeout(bpfDownstream4Map, tcpKey, tcpValue, udpKey, udpValue);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRefreshConntrackTimeout_SpreadBatches() throws Exception {
+        final TestBpfMap<Tether4Key, Tether4Value> bpfUpstream4Map =
+                new TestBpfMap<>(Tether4Key.class, Tether4Value.class);
+        doReturn(bpfUpstream4Map).when(mDeps).getBpfUpstream4Map();
+        final List<List<byte[]>> batches = recordConntrackTimeoutBatches();
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+
+        // One more flow than fits in a batch. Rules last used at 0 are still valid.
+        for (int i = 0; i <= CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE; i++) {
+            bpfUpstream4Map.insertEntry(new TestUpstream4Key.Builder()
+                    .setProto(IPPROTO_UDP).setSrcPort(1024 + i).build(),
+                    new TestUpstream4Value.Builder().build());
+        }
+        setElapsedRealtimeNanos(0);
+
+        // The first batch is sent right away, and the second later in the interval.
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        assertEquals(1, batches.size());
+        assertEquals(CONNTRACK_TIMEOUT_UPDATE_BATCH_SIZE, batches.get(0).size());
+
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_SPREAD_MS / 2);
+        waitForIdle();
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(1).size());
+
+        // Stopping polling drops the updates not sent yet.
+        batches.clear();
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS
+                - CONNTRACK_TIMEOUT_UPDATE_SPREAD_MS / 2);
+        waitForIdle();
+        assertEquals(1, batches.size());
+        coordinator.stopPolling();
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        assertEquals(1, batches.size());
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.R)
     public void testNotAllowOffloadByConntrackMessageDestinationPort() throws Exception {
@@ -2380,6 +2519,42 @@ public class BpfCoordinatorTest {
         assertNull(mTetherClients.get(mIpServer2));
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testOffloadFlowStats() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        addDownstreamAndClientInformationTo(coordinator, DOWNSTREAM_IFINDEX);
+        addDownstreamAndClientInformationTo(coordinator, DOWNSTREAM_IFINDEX2);
+        setUpstreamInformationTo(coordinator, UPSTREAM_IFINDEX);
+
+        // [1] Adding the rules of a flow counts it.
+        addAndCheckRule4ForDownstreams();
+        OffloadFlowStats stats = coordinator.getOffloadFlowStats();
+        assertEquals(2, stats.getIpv4FlowsAdded());
+        assertEquals(0, stats.getIpv4FlowsDeleted());
+        assertEquals(2, stats.getMaxIpv4Flows());
+        assertEquals(-1, stats.getOffloadHitRatioPercent());
+
+        // [2] Conntrack updates of the offloaded flows are not counted.
+        mConsumer.accept(CONNTRACK_EVENT_A);
+        mConsumer.accept(CONNTRACK_EVENT_B);
+        stats = coordinator.getOffloadFlowStats();
+        assertEquals(2, stats.getIpv4FlowsAdded());
+        assertEquals(0, stats.getIpv4FlowAddFailures());
+
+        // [3] Clearing a client counts the removal of its flows.
+        coordinator.tetherOffloadClientClear(mIpServer);
+        stats = coordinator.getOffloadFlowStats();
+        assertEquals(1, stats.getIpv4FlowsDeleted());
+
+        // [4] A flow added again is counted, but the maximum is unchanged.
+        addDownstreamAndClientInformationTo(coordinator, DOWNSTREAM_IFINDEX);
+        mConsumer.accept(CONNTRACK_EVENT_A);
+        stats = coordinator.getOffloadFlowStats();
+        assertEquals(3, stats.getIpv4FlowsAdded());
+        assertEquals(2, stats.getMaxIpv4Flows());
+    }
+
     private void assertClientInfoExists(@NonNull IpServer ipServer,
             @NonNull ClientInfo clientInfo) {
         HashMap<Inet4Address, ClientInfo> clients = mTetherClients.get(ipServer);
@@ -2922,17 +3097,16 @@ public class BpfCoordinatorTest {
         verifyNoUpstreamIpv6ForwardingChange(inOrder);
         resetNetdAndBpfMaps();
 
-        // Upstream link addresses change result in updating the rules.
+        // Upstream link addresses change result in updating the upstream rules of the new
+        // prefixes only. Downstream rules do not depend on the prefixes, so they are kept.
         LinkProperties lp2 = new LinkProperties();
         lp2.setInterfaceName(UPSTREAM_IFACE2);
         lp2.setLinkAddresses(UPSTREAM_ADDRESSES2);
         dispatchTetherConnectionChanged(ipServer, UPSTREAM_IFACE2, lp2, -1);
-        verifyRemoveDownstreamRule(inOrder, ruleA2);
-        verifyRemoveDownstreamRule(inOrder, ruleB2);
-        verifyStopUpstreamIpv6Forwarding(inOrder, UPSTREAM_PREFIXES);
-        verifyStartUpstreamIpv6Forwarding(inOrder, UPSTREAM_IFINDEX2, UPSTREAM_PREFIXES2);
-        verifyAddDownstreamRule(inOrder, ruleA2);
-        verifyAddDownstreamRule(inOrder, ruleB2);
+        verifyStartUpstreamIpv6Forwarding(inOrder, UPSTREAM_IFINDEX2, Set.of(UPSTREAM_PREFIX2));
+        verifyNeverRemoveUpstreamRule();
+        verifyNeverAddDownstreamRule();
+        verifyNeverRemoveDownstreamRule();
         resetNetdAndBpfMaps();
 
         // When the upstream is lost, rules are removed.
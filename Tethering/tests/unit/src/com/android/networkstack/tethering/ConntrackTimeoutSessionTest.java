@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.networkstack.tethering;
+
+import static android.system.OsConstants.EIO;
+import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.EPERM;
+import static android.system.OsConstants.ETIMEDOUT;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import android.system.ErrnoException;
+
+import androidx.annotation.NonNull;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.netlink.NetlinkConstants;
+import com.android.net.module.util.netlink.StructNlMsgErr;
+import com.android.net.module.util.netlink.StructNlMsgHdr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ConntrackTimeoutSessionTest {
+    private static final short TEST_REQUEST_TYPE = 0x0100;
+
+    /**
+     * Fake netlink socket: records the sequence numbers of each sent batch, and returns the
+     * datagrams queued with {@link #queueReply}, timing out once none are left.
+     */
+    private static class FakeNetlinkSocket extends ConntrackTimeoutSession.Dependencies {
+        final List<int[]> mSentSeqs = new ArrayList<>();
+        final Queue<ByteBuffer> mReplies = new ArrayDeque<>();
+        ErrnoException mSendError;
+        int mOpenCount;
+        int mCloseCount;
+
+        @NonNull
+        @Override
+        public FileDescriptor openSocket() {
+            mOpenCount++;
+            return new FileDescriptor();
+        }
+
+        @Override
+        public void sendMessage(@NonNull FileDescriptor fd, @NonNull byte[] bytes, int offset,
+                int count, long timeoutMs) throws ErrnoException {
+            if (mSendError != null) throw mSendError;
+            final ByteBuffer batch = ByteBuffer.wrap(bytes, offset, count)
+                    .order(ByteOrder.nativeOrder());
+            final List<Integer> seqs = new ArrayList<>();
+            while (batch.remaining() >= StructNlMsgHdr.STRUCT_SIZE) {
+                final int start = batch.position();
+                final StructNlMsgHdr hdr = StructNlMsgHdr.parse(batch);
+                seqs.add(hdr.nlmsg_seq);
+                batch.position(start + hdr.nlmsg_len);
+            }
+            mSentSeqs.add(seqs.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        @NonNull
+        @Override
+        public ByteBuffer recvMessage(@NonNull FileDescriptor fd, int bufsize, long timeoutMs)
+                throws InterruptedIOException {
+            final ByteBuffer reply = mReplies.poll();
+            if (reply == null) throw new InterruptedIOException("Timed out");
+            return reply;
+        }
+
+        @Override
+        public void closeSocket(@NonNull FileDescriptor fd) {
+            mCloseCount++;
+        }
+
+        int[] lastSentSeqs() {
+            return mSentSeqs.get(mSentSeqs.size() - 1);
+        }
+
+        /** Queue one datagram holding an ack for each {seq, errno} pair, in the given order. */
+        void queueReply(int[]... acks) {
+            final ByteBuffer reply = ByteBuffer.allocate(acks.length
+                    * (StructNlMsgHdr.STRUCT_SIZE + StructNlMsgErr.STRUCT_SIZE))
+                    .order(ByteOrder.nativeOrder());
+            for (int[] ack : acks) {
+                new StructNlMsgHdr(StructNlMsgErr.STRUCT_SIZE, NetlinkConstants.NLMSG_ERROR,
+                        (short) 0, ack[0]).pack(reply);
+                final StructNlMsgErr err = new StructNlMsgErr();
+                // Kernel errnos are negative.
+                err.error = -ack[1];
+                err.msg = new StructNlMsgHdr(0, TEST_REQUEST_TYPE, (short) 0, ack[0]);
+                err.pack(reply);
+            }
+            reply.flip();
+            mReplies.add(reply);
+        }
+    }
+
+    private final FakeNetlinkSocket mSocket = new FakeNetlinkSocket();
+    private final ConntrackTimeoutSession mSession = new ConntrackTimeoutSession(mSocket);
+
+    private static List<byte[]> makeRequests(int count) {
+        final List<byte[]> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer request = ByteBuffer.allocate(StructNlMsgHdr.STRUCT_SIZE)
+                    .order(ByteOrder.nativeOrder());
+            new StructNlMsgHdr(0, TEST_REQUEST_TYPE, (short) 0, 0 /* seq */).pack(request);
+            requests.add(request.array());
+        }
+        return requests;
+    }
+
+    @Test
+    public void testSendBatch_acksMatchedBySeq() throws Exception {
+        // Acks in a different order than the requests, split across two datagrams, with an ack
+        // of an unknown request and a duplicate ack which must be ignored.
+        mSocket.queueReply(new int[] {3, ENOENT}, new int[] {4, EPERM});
+        mSocket.queueReply(new int[] {1, 0}, new int[] {3, 0}, new int[] {2, EPERM});
+        final int[] errnos = mSession.sendBatch(makeRequests(3));
+
+        assertArrayEquals(new int[] {1, 2, 3}, mSocket.lastSentSeqs());
+        assertArrayEquals(new int[] {0, EPERM, ENOENT}, errnos);
+        assertEquals(1, mSocket.mOpenCount);
+        assertEquals(0, mSocket.mCloseCount);
+    }
+
+    @Test
+    public void testSendBatch_timeout() throws Exception {
+        mSocket.queueReply(new int[] {1, 0});
+        // The ack of the second request never arrives.
+        assertArrayEquals(new int[] {0, ETIMEDOUT}, mSession.sendBatch(makeRequests(2)));
+        assertArrayEquals(new int[] {1, 2}, mSocket.lastSentSeqs());
+
+        // A late ack of the previous batch does not complete a request of the next one.
+        mSocket.queueReply(new int[] {2, ENOENT});
+        mSocket.queueReply(new int[] {3, 0});
+        assertArrayEquals(new int[] {ETIMEDOUT, 0}, mSession.sendBatch(makeRequests(2)));
+        assertArrayEquals(new int[] {3, 4}, mSocket.lastSentSeqs());
+        // Timeouts waiting for acks keep the socket open.
+        assertEquals(1, mSocket.mOpenCount);
+        assertEquals(0, mSocket.mCloseCount);
+    }
+
+    @Test
+    public void testSendBatch_sendErrorClosesSocket() throws Exception {
+        mSocket.mSendError = new ErrnoException("send", EIO);
+        final ErrnoException e = assertThrows(ErrnoException.class,
+                () -> mSession.sendBatch(makeRequests(1)));
+        assertEquals(EIO, e.errno);
+        assertEquals(1, mSocket.mCloseCount);
+
+        // The next batch opens a new socket, and does not reuse the sequence numbers.
+        mSocket.mSendError = null;
+        mSocket.queueReply(new int[] {2, 0});
+        assertArrayEquals(new int[] {0}, mSession.sendBatch(makeRequests(1)));
+        assertEquals(2, mSocket.mOpenCount);
+        assertArrayEquals(new int[] {2}, mSocket.lastSentSeqs());
+    }
+
+    @Test
+    public void testSendBatch_empty() throws Exception {
+        assertArrayEquals(new int[0], mSession.sendBatch(new ArrayList<>()));
+        assertEquals(0, mSocket.mOpenCount);
+    }
+}
@@ -379,4 +379,40 @@ public final class TetheringMetricsTest {
                 UserType.USER_SETTINGS, upstreamEvents,
                 currentTimeMillis() - wifiTetheringStartTime);
     }
+
+    @Test
+    public void testOffloadFlowStats() throws Exception {
+        final OffloadFlowStats offloadStats = OffloadFlowStats.newBuilder()
+                .setIpv4FlowsAdded(10)
+                .setIpv4FlowsDeleted(7)
+                .setIpv4FlowAddFailures(1)
+                .setMaxIpv4Flows(5)
+                .setOffloadedBytes(9_000)
+                .setTetheredBytes(10_000)
+                .setOffloadHitRatioPercent(90)
+                .build();
+        mTetheringMetrics.createBuilder(TETHERING_WIFI, SETTINGS_PKG);
+        final long duration = 2 * SECOND_IN_MILLIS;
+        incrementCurrentTime(duration);
+        mTetheringMetrics.updateOffloadFlowStats(offloadStats);
+        updateErrorAndSendReport(TETHERING_WIFI, TETHER_ERROR_NO_ERROR);
+
+        UpstreamEvents.Builder upstreamEvents = UpstreamEvents.newBuilder();
+        addUpstreamEvent(upstreamEvents, UpstreamType.UT_NO_NETWORK, duration, 0L, 0L);
+        upstreamEvents.setOffloadFlowStats(offloadStats);
+        verifyReport(DownstreamType.DS_TETHERING_WIFI, ErrorCode.EC_NO_ERROR,
+                UserType.USER_SETTINGS, upstreamEvents, duration);
+
+        // The stats are not reported again once tethering is turned off.
+        reset(mTetheringMetrics);
+        mTetheringMetrics.cleanup();
+        mTetheringMetrics.createBuilder(TETHERING_WIFI, SETTINGS_PKG);
+        incrementCurrentTime(duration);
+        updateErrorAndSendReport(TETHERING_WIFI, TETHER_ERROR_NO_ERROR);
+
+        upstreamEvents = UpstreamEvents.newBuilder();
+        addUpstreamEvent(upstreamEvents, UpstreamType.UT_NO_NETWORK, duration, 0L, 0L);
+        verifyReport(DownstreamType.DS_TETHERING_WIFI, ErrorCode.EC_NO_ERROR,
+                UserType.USER_SETTINGS, upstreamEvents, duration);
+    }
 }
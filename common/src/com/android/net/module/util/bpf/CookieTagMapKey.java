@@ -20,6 +20,8 @@ import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /**
  * Key for cookie tag map.
  */
@@ -30,4 +32,19 @@ public class CookieTagMapKey extends Struct {
     public CookieTagMapKey(final long socketCookie) {
         this.socketCookie = socketCookie;
     }
+
+    static {
+        // Specialized codec matching the @Field layout above, see Struct.Codec.
+        Struct.registerCodec(CookieTagMapKey.class, new Struct.Codec<CookieTagMapKey>() {
+            @Override
+            public CookieTagMapKey decode(ByteBuffer buf) {
+                return new CookieTagMapKey(buf.getLong());
+            }
+
+            @Override
+            public void encode(CookieTagMapKey value, ByteBuffer output) {
+                output.putLong(value.socketCookie);
+            }
+        });
+    }
 }
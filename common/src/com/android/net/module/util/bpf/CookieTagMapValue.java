@@ -20,6 +20,8 @@ import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /**
  * Value for cookie tag map.
  */
@@ -34,4 +36,22 @@ public class CookieTagMapValue extends Struct {
         this.uid = uid;
         this.tag = tag;
     }
+
+    static {
+        // Specialized codec matching the @Field layout above, see Struct.Codec.
+        Struct.registerCodec(CookieTagMapValue.class, new Struct.Codec<CookieTagMapValue>() {
+            @Override
+            public CookieTagMapValue decode(ByteBuffer buf) {
+                final int uid = buf.getInt();
+                final long tag = buf.getInt() & 0xFFFFFFFFL;
+                return new CookieTagMapValue(uid, tag);
+            }
+
+            @Override
+            public void encode(CookieTagMapValue value, ByteBuffer output) {
+                output.putInt(value.uid);
+                output.putInt((int) (value.tag & 0xFFFFFFFFL));
+            }
+        });
+    }
 }
@@ -204,6 +204,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     // Delta between IPv4 header (20b) and IPv6 header (40b).
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
+    // Minimum number of rows for lookups to build a key index, below which linear scans are
+    // cheaper than hashing.
+    private static final int KEY_INDEX_MIN_SIZE = 16;
 
     // TODO: move fields to "mVariable" notation
 
@@ -243,6 +246,35 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private long[] operations;
 
+    /**
+     * Index from the keys of the rows to the first row with these keys, so that lookups by key
+     * are not linear scans. Built lazily by lookups once there are {@link #KEY_INDEX_MIN_SIZE}
+     * rows, kept up to date by {@link #insertEntry(Entry)}, and dropped when rows are moved or
+     * removed, including by the native code filling stats from BPF maps. Not parceled.
+     */
+    @Nullable
+    private KeyIndex mKeyIndex;
+
+    /**
+     * Open-addressing hash table with linear probing. Each slot holds a row index plus one, or 0
+     * if empty. The table is at most half full, so that probing always ends on an empty slot.
+     */
+    private static final class KeyIndex {
+        @NonNull
+        final int[] slots;
+        int count;
+
+        // The rows are indexed in the constructor, so that threads only reading an object see
+        // complete slots through the final field even if the index is built by another reader.
+        KeyIndex(@NonNull NetworkStats stats) {
+            // A power of two between 2 and 4 times the number of rows.
+            slots = new int[Integer.highestOneBit(Math.max(stats.size, 8) * 4 - 1)];
+            for (int i = 0; i < stats.size; i++) {
+                stats.addToKeyIndex(this, i);
+            }
+        }
+    }
+
     /**
      * Basic element of network statistics. Contains the number of packets and number of bytes
      * transferred on both directions in a given set of conditions. See
@@ -612,6 +644,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public void clear() {
+        this.mKeyIndex = null;
         this.capacity = 0;
         this.iface = EmptyArray.STRING;
         this.uid = EmptyArray.INT;
@@ -681,6 +714,14 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         setValues(size, entry);
         size++;
 
+        final KeyIndex index = mKeyIndex;
+        if (index != null) {
+            if ((index.count + 1) * 2 > index.slots.length) {
+                mKeyIndex = buildKeyIndex();
+            } else {
+                addToKeyIndex(index, size - 1);
+            }
+        }
         return this;
     }
 
@@ -756,6 +797,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     private void maybeCopyEntry(int dest, int src) {
         if (dest == src) return;
+        mKeyIndex = null;
         iface[dest] = iface[src];
         uid[dest] = uid[src];
         set[dest] = set[src];
@@ -885,6 +927,11 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        final KeyIndex index = getKeyIndex();
+        if (index != null) {
+            return findIndexInKeyIndex(index, iface, uid, set, tag, metered, roaming,
+                    defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
             if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
                     && metered == this.metered[i] && roaming == this.roaming[i]
@@ -925,6 +972,90 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return -1;
     }
 
+    // Find the row matching the given keys, checking the hinted row first: rows of successive
+    // snapshots are usually in the same order. Otherwise, look the row up in the key index.
+    private int findIndexForSubtract(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork, int hintIndex) {
+        if (hintIndex < size && keyEquals(hintIndex, iface, uid, set, tag, metered, roaming,
+                defaultNetwork)) {
+            return hintIndex;
+        }
+        final KeyIndex index = getKeyIndex();
+        if (index == null) {
+            return findIndexHinted(iface, uid, set, tag, metered, roaming, defaultNetwork,
+                    hintIndex);
+        }
+        return findIndexInKeyIndex(index, iface, uid, set, tag, metered, roaming,
+                defaultNetwork);
+    }
+
+    private boolean keyEquals(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashKey(String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        int hash = Objects.hashCode(iface);
+        hash = 31 * hash + uid;
+        hash = 31 * hash + set;
+        hash = 31 * hash + tag;
+        hash = 31 * hash + metered;
+        hash = 31 * hash + roaming;
+        hash = 31 * hash + defaultNetwork;
+        // Spread the high bits, as only the low bits select the slot.
+        return hash ^ (hash >>> 16);
+    }
+
+    // Returns the key index, building it if there are enough rows, or null otherwise.
+    @Nullable
+    private KeyIndex getKeyIndex() {
+        KeyIndex index = mKeyIndex;
+        if (index == null && size >= KEY_INDEX_MIN_SIZE) {
+            index = buildKeyIndex();
+            mKeyIndex = index;
+        }
+        return index;
+    }
+
+    @NonNull
+    private KeyIndex buildKeyIndex() {
+        return new KeyIndex(this);
+    }
+
+    private void addToKeyIndex(@NonNull KeyIndex index, int row) {
+        final int mask = index.slots.length - 1;
+        int slot = hashKey(iface[row], uid[row], set[row], tag[row], metered[row], roaming[row],
+                defaultNetwork[row]) & mask;
+        while (index.slots[slot] != 0) {
+            // Keep the first row with these keys, as returned by a linear scan.
+            if (keyEquals(index.slots[slot] - 1, iface[row], uid[row], set[row], tag[row],
+                    metered[row], roaming[row], defaultNetwork[row])) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index.slots[slot] = row + 1;
+        index.count++;
+    }
+
+    private int findIndexInKeyIndex(@NonNull KeyIndex index, String iface, int uid, int set,
+            int tag, int metered, int roaming, int defaultNetwork) {
+        final int mask = index.slots.length - 1;
+        int slot = hashKey(iface, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+        while (index.slots[slot] != 0) {
+            final int row = index.slots[slot] - 1;
+            if (keyEquals(row, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -1130,6 +1261,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.mKeyIndex = null;
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
@@ -1150,8 +1282,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
 
             // Find the remote row that matches and subtract.
             // The returned row must be uniquely matched.
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            final int j = right.findIndexForSubtract(entry.iface, entry.uid, entry.set,
+                    entry.tag, entry.metered, entry.roaming, entry.defaultNetwork, i);
             if (j != -1) {
                 // Found matching row, subtract remote value.
                 entry.rxBytes -= right.rxBytes[j];
@@ -1390,6 +1522,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 nextOutputEntry++;
             }
         }
+        if (nextOutputEntry != size) mKeyIndex = null;
         size = nextOutputEntry;
     }
 
@@ -58,6 +58,7 @@ import android.util.Log;
 import android.util.Range;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FileRotator;
 import com.android.modules.utils.FastDataInput;
@@ -82,6 +83,7 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -109,7 +111,23 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     private static final int VERSION_UNIFIED_INIT = 16;
 
+    // Maximum number of templates whose matchers are kept in mTemplateMatchers.
+    private static final int MAX_TEMPLATE_MATCHERS = 16;
+
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
+    // Identity sets of the keys in mStats, interned so that all keys on the same network share
+    // one instance. This lets queries match each network against a template only once.
+    private final ArrayMap<NetworkIdentitySet, NetworkIdentitySet> mIdentSets = new ArrayMap<>();
+    // Matchers of the templates recently queried, so that consecutive queries with the same
+    // template, such as the per-uid queries of NetworkStatsManager#queryDetails, reuse the match
+    // result of each identity set. Cleared whenever identity sets are added or pruned.
+    @GuardedBy("mTemplateMatchers")
+    private final ArrayMap<NetworkTemplate, TemplateMatcher> mTemplateMatchers = new ArrayMap<>();
+    // Histories moved to a columnar store by compact(), if any. A key can be both in mStats and
+    // in mColumns, its history then being the sum of both. Histories in mStats of keys in
+    // mColumns always use mBucketDurationMillis buckets.
+    @Nullable
+    private NetworkStatsColumns mColumns;
 
     private final long mBucketDurationMillis;
 
@@ -150,6 +168,9 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mColumns = null;
+        mIdentSets.clear();
+        clearTemplateMatchers();
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -240,19 +261,30 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 final int callerUid) {
         final ArrayList<Integer> uids = new ArrayList<>();
         for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)) {
-                int j = Collections.binarySearch(uids, new Integer(key.uid));
-
-                if (j < 0) {
-                    j = ~j;
-                    uids.add(j, key.uid);
-                }
+            addRelevantUid(uids, mStats.keyAt(i).uid, accessLevel, callerUid);
+        }
+        if (mColumns != null) {
+            for (int i = 0; i < mColumns.size(); i++) {
+                // Keys are sorted by uid.
+                if (i > 0 && mColumns.getUid(i) == mColumns.getUid(i - 1)) continue;
+                addRelevantUid(uids, mColumns.getUid(i), accessLevel, callerUid);
             }
         }
         return CollectionUtils.toIntArray(uids);
     }
 
+    private static void addRelevantUid(ArrayList<Integer> uids, int uid,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        if (NetworkStatsAccess.isAccessibleToUser(uid, callerUid, accessLevel)) {
+            int j = Collections.binarySearch(uids, new Integer(uid));
+
+            if (j < 0) {
+                j = ~j;
+                uids.add(j, uid);
+            }
+        }
+    }
+
     /**
      * Combine all {@link NetworkStatsHistory} in this collection which match
      * the requested parameters.
@@ -309,14 +341,34 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
+        final TemplateMatcher matcher = getTemplateMatcher(template);
         for (int i = 0; i < mStats.size(); i++) {
             final Key key = mStats.keyAt(i);
             if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
+                    && matcher.matches(key.ident)) {
+                // Histories of keys in the columnar store are added along with it below.
+                if (mColumns != null && mColumns.indexOf(key) >= 0) continue;
                 final NetworkStatsHistory value = mStats.valueAt(i);
                 combined.recordHistory(value, collectStart, collectEnd);
             }
         }
+        if (mColumns != null) {
+            for (int i = mColumns.firstIndexOfUid(uid);
+                    i < mColumns.size() && mColumns.getUid(i) == uid; i++) {
+                if (!NetworkStats.setMatches(set, mColumns.getSet(i)) || mColumns.getTag(i) != tag
+                        || !matcher.matches(mColumns.getIdent(i))) {
+                    continue;
+                }
+                final NetworkStatsHistory overlay =
+                        mStats.isEmpty() ? null : mStats.get(mColumns.getKey(i));
+                if (overlay != null) {
+                    combined.recordHistory(mColumns.getHistory(i, overlay), collectStart,
+                            collectEnd);
+                } else {
+                    mColumns.recordHistory(i, combined, collectStart, collectEnd);
+                }
+            }
+        }
 
         if (augmentStart != SubscriptionPlan.TIME_UNKNOWN) {
             final NetworkStatsHistory.Entry entry = combined.getValues(
@@ -397,37 +449,76 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
+        final TemplateMatcher matcher = getTemplateMatcher(template);
+        // Histories to add to the ones of the keys in the columnar store, by key index.
+        final NetworkStatsHistory[] overlays = mColumns != null && !mStats.isEmpty()
+                ? new NetworkStatsHistory[mColumns.size()] : null;
         for (int i = 0; i < mStats.size(); i++) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
+            if (matcher.matches(key.ident)
                     && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
                 final NetworkStatsHistory value = mStats.valueAt(i);
+                if (overlays != null) {
+                    final int index = mColumns.indexOf(key);
+                    if (index >= 0) {
+                        overlays[index] = value;
+                        continue;
+                    }
+                }
                 historyEntry = value.getValues(start, end, now, historyEntry);
-
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
-                        ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
-                entry.rxBytes = historyEntry.rxBytes;
-                entry.rxPackets = historyEntry.rxPackets;
-                entry.txBytes = historyEntry.txBytes;
-                entry.txPackets = historyEntry.txPackets;
-                entry.operations = historyEntry.operations;
-
-                if (!entry.isEmpty()) {
-                    stats.combineValues(entry);
+                combineSummaryEntry(stats, entry, key.uid, key.set, key.tag,
+                        key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO,
+                        key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO,
+                        key.ident.areAllMembersOnDefaultNetwork()
+                                ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO,
+                        historyEntry);
+            }
+        }
+        if (mColumns != null) {
+            for (int i = 0; i < mColumns.size(); i++) {
+                if (mColumns.getSet(i) >= NetworkStats.SET_DEBUG_START
+                        || !NetworkStatsAccess.isAccessibleToUser(
+                                mColumns.getUid(i), callerUid, accessLevel)
+                        || !matcher.matches(mColumns.getIdent(i))) {
+                    continue;
                 }
+                if (overlays != null && overlays[i] != null) {
+                    historyEntry = mColumns.getHistory(i, overlays[i])
+                            .getValues(start, end, now, historyEntry);
+                } else {
+                    historyEntry = mColumns.getValues(i, start, end, now, historyEntry);
+                }
+                combineSummaryEntry(stats, entry, mColumns.getUid(i), mColumns.getSet(i),
+                        mColumns.getTag(i), mColumns.getMetered(i), mColumns.getRoaming(i),
+                        mColumns.getDefaultNetwork(i), historyEntry);
             }
         }
 
         return stats;
     }
 
+    private static void combineSummaryEntry(NetworkStats stats, NetworkStats.Entry entry,
+            int uid, int set, int tag, int metered, int roaming, int defaultNetwork,
+            NetworkStatsHistory.Entry historyEntry) {
+        entry.iface = IFACE_ALL;
+        entry.uid = uid;
+        entry.set = set;
+        entry.tag = tag;
+        entry.defaultNetwork = defaultNetwork;
+        entry.metered = metered;
+        entry.roaming = roaming;
+        entry.rxBytes = historyEntry.rxBytes;
+        entry.rxPackets = historyEntry.rxPackets;
+        entry.txBytes = historyEntry.txBytes;
+        entry.txPackets = historyEntry.txPackets;
+        entry.operations = historyEntry.operations;
+
+        if (!entry.isEmpty()) {
+            stats.combineValues(entry);
+        }
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      * @hide
@@ -452,8 +543,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
         NetworkStatsHistory target = mStats.get(key);
         if (target == null) {
-            target = new NetworkStatsHistory(history.getBucketDuration());
-            mStats.put(key, target);
+            // Keys in the columnar store already have a history, with buckets of the collection.
+            final long bucketDuration = mColumns != null && mColumns.indexOf(key) >= 0
+                    ? mBucketDurationMillis : history.getBucketDuration();
+            target = new NetworkStatsHistory(bucketDuration);
+            mStats.put(internKey(key), target);
         }
         target.recordEntireHistory(history);
     }
@@ -466,22 +560,24 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      */
     public void recordCollection(@NonNull NetworkStatsCollection another) {
         Objects.requireNonNull(another);
-        for (int i = 0; i < another.mStats.size(); i++) {
-            final Key key = another.mStats.keyAt(i);
-            final NetworkStatsHistory value = another.mStats.valueAt(i);
+        final ArrayMap<Key, NetworkStatsHistory> histories = another.getHistories();
+        for (int i = 0; i < histories.size(); i++) {
+            final Key key = histories.keyAt(i);
+            final NetworkStatsHistory value = histories.valueAt(i);
             recordHistory(key, value);
         }
     }
 
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
-        final Key key = new Key(ident, uid, set, tag);
+        Key key = new Key(ident, uid, set, tag);
         final NetworkStatsHistory existing = mStats.get(key);
 
         // update when no existing, or when bucket duration changed
         NetworkStatsHistory updated = null;
         if (existing == null) {
             updated = new NetworkStatsHistory(mBucketDurationMillis, 10);
+            key = internKey(key);
         } else if (existing.getBucketDuration() != mBucketDurationMillis) {
             updated = new NetworkStatsHistory(existing, mBucketDurationMillis);
         }
@@ -547,8 +643,9 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     private void write(DataOutput out) throws IOException {
         // cluster key lists grouped by ident
+        final ArrayMap<Key, NetworkStatsHistory> histories = getHistories();
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = new HashMap<>();
-        for (Key key : mStats.keySet()) {
+        for (Key key : histories.keySet()) {
             ArrayList<Key> keys = keysByIdent.get(key.ident);
             if (keys == null) {
                 keys = new ArrayList<>();
@@ -567,7 +664,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
             out.writeInt(keys.size());
             for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
+                final NetworkStatsHistory history = histories.get(key);
                 out.writeInt(key.uid);
                 out.writeInt(key.set);
                 out.writeInt(key.tag);
@@ -701,6 +798,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeUids(int[] uids) {
+        expandColumns();
         final ArrayList<Key> knownKeys = new ArrayList<>();
         knownKeys.addAll(mStats.keySet());
 
@@ -718,6 +816,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 mDirty = true;
             }
         }
+        pruneIdentSets();
     }
 
     /**
@@ -725,6 +824,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      * @hide
      */
     public void removeHistoryBefore(long cutoffMillis) {
+        expandColumns();
         final ArrayList<Key> knownKeys = new ArrayList<>();
         knownKeys.addAll(mStats.keySet());
 
@@ -738,6 +838,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             }
             mDirty = true;
         }
+        pruneIdentSets();
     }
 
     private void noteRecordedHistory(long startMillis, long endMillis, long totalBytes) {
@@ -752,22 +853,23 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 / mBucketDurationMillis);
     }
 
-    private ArrayList<Key> getSortedKeys() {
+    private static ArrayList<Key> getSortedKeys(ArrayMap<Key, NetworkStatsHistory> histories) {
         final ArrayList<Key> keys = new ArrayList<>();
-        keys.addAll(mStats.keySet());
+        keys.addAll(histories.keySet());
         Collections.sort(keys, (left, right) -> Key.compare(left, right));
         return keys;
     }
 
     /** @hide */
     public void dump(IndentingPrintWriter pw) {
-        for (Key key : getSortedKeys()) {
+        final ArrayMap<Key, NetworkStatsHistory> histories = getHistories();
+        for (Key key : getSortedKeys(histories)) {
             pw.print("ident="); pw.print(key.ident.toString());
             pw.print(" uid="); pw.print(key.uid);
             pw.print(" set="); pw.print(NetworkStats.setToString(key.set));
             pw.print(" tag="); pw.println(NetworkStats.tagToString(key.tag));
 
-            final NetworkStatsHistory history = mStats.get(key);
+            final NetworkStatsHistory history = histories.get(key);
             pw.increaseIndent();
             history.dump(pw, true);
             pw.decreaseIndent();
@@ -778,7 +880,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     public void dumpDebug(ProtoOutputStream proto, long tag) {
         final long start = proto.start(tag);
 
-        for (Key key : getSortedKeys()) {
+        final ArrayMap<Key, NetworkStatsHistory> histories = getHistories();
+        for (Key key : getSortedKeys(histories)) {
             final long startStats = proto.start(NetworkStatsCollectionProto.STATS);
 
             // Key
@@ -790,7 +893,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             proto.end(startKey);
 
             // Value
-            final NetworkStatsHistory history = mStats.get(key);
+            final NetworkStatsHistory history = histories.get(key);
             history.dumpDebug(proto, NetworkStatsCollectionStatsProto.HISTORY);
             proto.end(startStats);
         }
@@ -817,11 +920,13 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final ArrayMap<Key, NetworkStatsHistory> grouped = new ArrayMap<>();
 
         // Walk through all history, grouping by matching network templates
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            final NetworkStatsHistory value = mStats.valueAt(i);
+        final TemplateMatcher matcher = getTemplateMatcher(groupTemplate);
+        final ArrayMap<Key, NetworkStatsHistory> histories = getHistories();
+        for (int i = 0; i < histories.size(); i++) {
+            final Key key = histories.keyAt(i);
+            final NetworkStatsHistory value = histories.valueAt(i);
 
-            if (!templateMatches(groupTemplate, key.ident)) continue;
+            if (!matcher.matches(key.ident)) continue;
             if (key.set >= NetworkStats.SET_DEBUG_START) continue;
 
             final Key groupKey = new Key(new NetworkIdentitySet(), key.uid, key.set, key.tag);
@@ -850,6 +955,78 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
     }
 
+    /**
+     * Returns a key equal to the given key, using the interned instance of its identity set.
+     * Must only be called for keys about to be added to {@link #mStats}.
+     */
+    private Key internKey(Key key) {
+        final NetworkIdentitySet interned = mIdentSets.get(key.ident);
+        if (interned == null) {
+            mIdentSets.put(key.ident, key.ident);
+            clearTemplateMatchers();
+            return key;
+        }
+        if (interned == key.ident) return key;
+        return new Key(interned, key.uid, key.set, key.tag);
+    }
+
+    /**
+     * Drops the interned identity sets that are no longer used by any key in {@link #mStats}
+     * or {@link #mColumns}, so that networks whose stats were all removed do not stay in memory.
+     */
+    private void pruneIdentSets() {
+        final ArraySet<NetworkIdentitySet> used = new ArraySet<>(mIdentSets.size());
+        for (int i = 0; i < mStats.size(); i++) {
+            used.add(mStats.keyAt(i).ident);
+        }
+        if (mColumns != null) {
+            for (int i = 0; i < mColumns.getIdentCount(); i++) {
+                used.add(mColumns.getIdentAt(i));
+            }
+        }
+        if (used.size() < mIdentSets.size()) {
+            mIdentSets.retainAll(used);
+            // Don't keep the identity sets that were dropped alive through the matchers.
+            clearTemplateMatchers();
+        }
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public int getIdentSetCount() {
+        return mIdentSets.size();
+    }
+
+    /**
+     * Returns the matcher of the given template, shared with the previous queries using an
+     * equal template since the identity sets last changed.
+     */
+    private TemplateMatcher getTemplateMatcher(NetworkTemplate template) {
+        synchronized (mTemplateMatchers) {
+            TemplateMatcher matcher = mTemplateMatchers.get(template);
+            if (matcher == null) {
+                if (mTemplateMatchers.size() >= MAX_TEMPLATE_MATCHERS) mTemplateMatchers.clear();
+                matcher = new TemplateMatcher(template);
+                mTemplateMatchers.put(template, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    private void clearTemplateMatchers() {
+        synchronized (mTemplateMatchers) {
+            mTemplateMatchers.clear();
+        }
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public int getTemplateMatcherCount() {
+        synchronized (mTemplateMatchers) {
+            return mTemplateMatchers.size();
+        }
+    }
+
     /**
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
@@ -863,6 +1040,31 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return false;
     }
 
+    /**
+     * Matches identity sets against a template, remembering the result for each identity set
+     * instance. Keys on the same network share an interned identity set, so the template is
+     * matched once per network instead of once per key. Matchers are shared by the queries
+     * using the same template, see {@link #getTemplateMatcher}.
+     */
+    private static final class TemplateMatcher {
+        private final NetworkTemplate mTemplate;
+        private final IdentityHashMap<NetworkIdentitySet, Boolean> mResults =
+                new IdentityHashMap<>();
+
+        TemplateMatcher(NetworkTemplate template) {
+            mTemplate = template;
+        }
+
+        synchronized boolean matches(NetworkIdentitySet identSet) {
+            Boolean result = mResults.get(identSet);
+            if (result == null) {
+                result = templateMatches(mTemplate, identSet);
+                mResults.put(identSet, result);
+            }
+            return result;
+        }
+    }
+
     /**
      * Get the all historical stats of the collection {@link NetworkStatsCollection}.
      *
@@ -870,7 +1072,62 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
      */
     @NonNull
     public Map<Key, NetworkStatsHistory> getEntries() {
-        return new ArrayMap(mStats);
+        return new ArrayMap(getHistories());
+    }
+
+    /**
+     * Moves the histories of this collection to a columnar store, which keeps the buckets of
+     * all keys in a few primitive arrays. This takes much less memory than one
+     * {@link NetworkStatsHistory} per key, and makes queries scan contiguous memory. The content
+     * of the collection does not change.
+     *
+     * Data recorded afterwards is kept in per-key histories until the next call, and removing
+     * data moves the histories back out of the store, so this is meant for large collections
+     * that are mostly queried, such as the complete history of a recorder.
+     * @hide
+     */
+    public void compact() {
+        if (mStats.isEmpty()) return;
+        final NetworkStatsColumns columns =
+                new NetworkStatsColumns(mColumns, mStats, mBucketDurationMillis);
+        final ArrayMap<Key, NetworkStatsHistory> remaining = new ArrayMap<>();
+        for (int i = 0; i < mStats.size(); i++) {
+            final NetworkStatsHistory history = mStats.valueAt(i);
+            if (!NetworkStatsColumns.canStore(history, mBucketDurationMillis)) {
+                remaining.put(mStats.keyAt(i), history);
+            }
+        }
+        mColumns = columns;
+        mStats = remaining;
+    }
+
+    /** @hide */
+    @VisibleForTesting
+    public boolean isCompacted() {
+        return mColumns != null;
+    }
+
+    /**
+     * Returns the history of each key. If the collection is compacted, the histories of the
+     * columnar store are copied into new histories, else this returns {@link #mStats} itself.
+     */
+    private ArrayMap<Key, NetworkStatsHistory> getHistories() {
+        if (mColumns == null) return mStats;
+        final ArrayMap<Key, NetworkStatsHistory> histories =
+                new ArrayMap<>(mColumns.size() + mStats.size());
+        histories.putAll(mStats);
+        for (int i = 0; i < mColumns.size(); i++) {
+            final Key key = mColumns.getKey(i);
+            histories.put(key, mColumns.getHistory(i, mStats.get(key)));
+        }
+        return histories;
+    }
+
+    /** Moves the histories of the columnar store back to {@link #mStats}, to modify them. */
+    private void expandColumns() {
+        if (mColumns == null) return;
+        mStats = getHistories();
+        mColumns = null;
     }
 
     /**
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.DEFAULT_NETWORK_YES;
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.METERED_YES;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.ROAMING_YES;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import static com.android.net.module.util.NetworkStatsUtils.multiplySafeByRational;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStatsCollection.Key;
+import android.util.ArrayMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * Immutable columnar store of the histories of a {@link NetworkStatsCollection}.
+ *
+ * Keys are sorted by uid, tag and set, and the buckets of all keys are kept in a few primitive
+ * arrays, the buckets of each key being contiguous and sorted by start time. Compared to one
+ * {@link NetworkStatsHistory} per key in a hash map, this saves the per-object overhead and the
+ * spare capacity of each history, and scans touch contiguous memory. All histories use the
+ * bucket duration of the collection and record all fields.
+ *
+ * A store is built from a previous store, if any, and histories to add to it: the buckets of a
+ * key present in both are added together.
+ */
+final class NetworkStatsColumns {
+    private final long mBucketDuration;
+
+    // Identity sets, and their attributes as used in NetworkStats entries.
+    private final NetworkIdentitySet[] mIdents;
+    private final int[] mIdentMetered;
+    private final int[] mIdentRoaming;
+    private final int[] mIdentDefaultNetwork;
+
+    // One element per key. Key i owns the buckets from mKeyBucketOffset[i] (inclusive) to
+    // mKeyBucketOffset[i + 1] (exclusive).
+    private final int[] mKeyIdent;
+    private final int[] mKeyUid;
+    private final int[] mKeyTag;
+    private final int[] mKeySet;
+    private final long[] mKeyTotalBytes;
+    private final int[] mKeyBucketOffset;
+
+    private final Buckets mBuckets;
+
+    private static final class Buckets {
+        final long[] start;
+        final long[] activeTime;
+        final long[] rxBytes;
+        final long[] rxPackets;
+        final long[] txBytes;
+        final long[] txPackets;
+        final long[] operations;
+
+        Buckets(int size) {
+            start = new long[size];
+            activeTime = new long[size];
+            rxBytes = new long[size];
+            rxPackets = new long[size];
+            txBytes = new long[size];
+            txPackets = new long[size];
+            operations = new long[size];
+        }
+
+        void copy(int i, @NonNull Buckets src, int j) {
+            start[i] = src.start[j];
+            activeTime[i] = src.activeTime[j];
+            rxBytes[i] = src.rxBytes[j];
+            rxPackets[i] = src.rxPackets[j];
+            txBytes[i] = src.txBytes[j];
+            txPackets[i] = src.txPackets[j];
+            operations[i] = src.operations[j];
+        }
+
+        void add(int i, @NonNull NetworkStatsHistory.Entry entry) {
+            start[i] = entry.bucketStart;
+            activeTime[i] += entry.activeTime;
+            rxBytes[i] += entry.rxBytes;
+            rxPackets[i] += entry.rxPackets;
+            txBytes[i] += entry.txBytes;
+            txPackets[i] += entry.txPackets;
+            operations[i] += entry.operations;
+        }
+    }
+
+    /**
+     * Build a store holding the histories of {@code base} plus the given histories.
+     *
+     * @param base previous store, or null.
+     * @param histories histories to add. Only the ones with {@code bucketDuration} buckets are
+     *         used, the caller is expected to keep the other ones.
+     * @param bucketDuration bucket duration of the store, which must be the one of {@code base}.
+     */
+    NetworkStatsColumns(@Nullable NetworkStatsColumns base,
+            @NonNull ArrayMap<Key, NetworkStatsHistory> histories, long bucketDuration) {
+        mBucketDuration = bucketDuration;
+        final int baseSize = base != null ? base.size() : 0;
+
+        // Histories to add to the keys of the base, and indices of the histories of new keys.
+        final NetworkStatsHistory[] overlays = new NetworkStatsHistory[baseSize];
+        final ArrayList<Integer> newKeys = new ArrayList<>();
+        for (int i = 0; i < histories.size(); i++) {
+            if (!canStore(histories.valueAt(i), bucketDuration)) continue;
+            final int index = base != null ? base.indexOf(histories.keyAt(i)) : -1;
+            if (index >= 0) {
+                overlays[index] = histories.valueAt(i);
+            } else {
+                newKeys.add(i);
+            }
+        }
+        newKeys.sort((left, right) -> {
+            final Key l = histories.keyAt(left);
+            final Key r = histories.keyAt(right);
+            return compareKeys(l.uid, l.tag, l.set, r.uid, r.tag, r.set);
+        });
+
+        // Merge the base keys, which are sorted, with the new ones. Each key comes either from
+        // the base, stored as its index, or from the new keys, stored as the complement of its
+        // index in newKeys.
+        final int size = baseSize + newKeys.size();
+        final int[] sources = new int[size];
+        final NetworkStatsHistory.Entry recycle = new NetworkStatsHistory.Entry();
+        int bucketCount = 0;
+        for (int i = 0, b = 0, n = 0; i < size; i++) {
+            final boolean fromBase;
+            if (b == baseSize) {
+                fromBase = false;
+            } else if (n == newKeys.size()) {
+                fromBase = true;
+            } else {
+                final Key key = histories.keyAt(newKeys.get(n));
+                fromBase = compareKeys(base.mKeyUid[b], base.mKeyTag[b], base.mKeySet[b],
+                        key.uid, key.tag, key.set) <= 0;
+            }
+            if (fromBase) {
+                sources[i] = b;
+                bucketCount += mergeBuckets(base, b, overlays[b], null, 0, recycle);
+                b++;
+            } else {
+                sources[i] = ~n;
+                bucketCount += histories.valueAt(newKeys.get(n)).size();
+                n++;
+            }
+        }
+
+        mKeyIdent = new int[size];
+        mKeyUid = new int[size];
+        mKeyTag = new int[size];
+        mKeySet = new int[size];
+        mKeyTotalBytes = new long[size];
+        mKeyBucketOffset = new int[size + 1];
+        mBuckets = new Buckets(bucketCount);
+        final IdentityHashMap<NetworkIdentitySet, Integer> identIndices = new IdentityHashMap<>();
+        final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; i < size; i++) {
+            final NetworkIdentitySet ident;
+            final NetworkStatsHistory history;
+            final int baseKey = sources[i];
+            if (baseKey >= 0) {
+                ident = base.getIdent(baseKey);
+                mKeyUid[i] = base.mKeyUid[baseKey];
+                mKeyTag[i] = base.mKeyTag[baseKey];
+                mKeySet[i] = base.mKeySet[baseKey];
+                mKeyTotalBytes[i] = base.mKeyTotalBytes[baseKey];
+                history = overlays[baseKey];
+            } else {
+                final int index = newKeys.get(~baseKey);
+                final Key key = histories.keyAt(index);
+                ident = key.ident;
+                mKeyUid[i] = key.uid;
+                mKeyTag[i] = key.tag;
+                mKeySet[i] = key.set;
+                history = histories.valueAt(index);
+            }
+            if (history != null) mKeyTotalBytes[i] += history.getTotalBytes();
+
+            Integer identIndex = identIndices.get(ident);
+            if (identIndex == null) {
+                identIndex = idents.size();
+                identIndices.put(ident, identIndex);
+                idents.add(ident);
+            }
+            mKeyIdent[i] = identIndex;
+
+            mKeyBucketOffset[i] = offset;
+            offset = mergeBuckets(baseKey >= 0 ? base : null, baseKey, history, mBuckets, offset,
+                    recycle);
+        }
+        mKeyBucketOffset[size] = offset;
+
+        mIdents = idents.toArray(new NetworkIdentitySet[0]);
+        mIdentMetered = new int[mIdents.length];
+        mIdentRoaming = new int[mIdents.length];
+        mIdentDefaultNetwork = new int[mIdents.length];
+        for (int i = 0; i < mIdents.length; i++) {
+            mIdentMetered[i] = mIdents[i].isAnyMemberMetered() ? METERED_YES : METERED_NO;
+            mIdentRoaming[i] = mIdents[i].isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+            mIdentDefaultNetwork[i] = mIdents[i].areAllMembersOnDefaultNetwork()
+                    ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+        }
+    }
+
+    /**
+     * Returns whether the given history can be added to a store with the given bucket duration:
+     * the store does not keep histories without some fields, which return UNKNOWN values.
+     */
+    static boolean canStore(@NonNull NetworkStatsHistory history, long bucketDuration) {
+        if (history.getBucketDuration() != bucketDuration) return false;
+        final NetworkStatsHistory.Entry entry = history.getValues(0, 0, 0, null);
+        return entry.activeTime != NetworkStatsHistory.Entry.UNKNOWN
+                && entry.rxBytes != NetworkStatsHistory.Entry.UNKNOWN
+                && entry.rxPackets != NetworkStatsHistory.Entry.UNKNOWN
+                && entry.txBytes != NetworkStatsHistory.Entry.UNKNOWN
+                && entry.txPackets != NetworkStatsHistory.Entry.UNKNOWN
+                && entry.operations != NetworkStatsHistory.Entry.UNKNOWN;
+    }
+
+    private static int compareKeys(int leftUid, int leftTag, int leftSet,
+            int rightUid, int rightTag, int rightSet) {
+        int res = Integer.compare(leftUid, rightUid);
+        if (res == 0) res = Integer.compare(leftTag, rightTag);
+        if (res == 0) res = Integer.compare(leftSet, rightSet);
+        return res;
+    }
+
+    /**
+     * Merge the buckets of key {@code baseKey} of {@code base}, if not null, with the buckets of
+     * {@code history}, if not null, adding up buckets with the same start.
+     *
+     * @param dest where to write the merged buckets from {@code offset} on, or null to only
+     *         count them.
+     * @return {@code offset} plus the number of merged buckets.
+     */
+    private static int mergeBuckets(@Nullable NetworkStatsColumns base, int baseKey,
+            @Nullable NetworkStatsHistory history, @Nullable Buckets dest, int offset,
+            @NonNull NetworkStatsHistory.Entry recycle) {
+        int b = base != null ? base.mKeyBucketOffset[baseKey] : 0;
+        final int baseEnd = base != null ? base.mKeyBucketOffset[baseKey + 1] : 0;
+        int h = 0;
+        final int historyEnd = history != null ? history.size() : 0;
+        NetworkStatsHistory.Entry entry = h < historyEnd ? history.getValues(h, recycle) : null;
+        while (b < baseEnd || entry != null) {
+            final boolean fromBase = b < baseEnd
+                    && (entry == null || base.mBuckets.start[b] <= entry.bucketStart);
+            final boolean fromHistory = entry != null
+                    && (b == baseEnd || entry.bucketStart <= base.mBuckets.start[b]);
+            if (fromBase) {
+                if (dest != null) dest.copy(offset, base.mBuckets, b);
+                b++;
+            }
+            if (fromHistory) {
+                if (dest != null) dest.add(offset, entry);
+                h++;
+                entry = h < historyEnd ? history.getValues(h, recycle) : null;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    int size() {
+        return mKeyUid.length;
+    }
+
+    int getUid(int key) {
+        return mKeyUid[key];
+    }
+
+    int getTag(int key) {
+        return mKeyTag[key];
+    }
+
+    int getSet(int key) {
+        return mKeySet[key];
+    }
+
+    @NonNull
+    NetworkIdentitySet getIdent(int key) {
+        return mIdents[mKeyIdent[key]];
+    }
+
+    int getMetered(int key) {
+        return mIdentMetered[mKeyIdent[key]];
+    }
+
+    int getRoaming(int key) {
+        return mIdentRoaming[mKeyIdent[key]];
+    }
+
+    int getDefaultNetwork(int key) {
+        return mIdentDefaultNetwork[mKeyIdent[key]];
+    }
+
+    @NonNull
+    Key getKey(int key) {
+        return new Key(getIdent(key), mKeyUid[key], mKeySet[key], mKeyTag[key]);
+    }
+
+    /** Returns the number of distinct identity sets used by the keys of this store. */
+    int getIdentCount() {
+        return mIdents.length;
+    }
+
+    @NonNull
+    NetworkIdentitySet getIdentAt(int index) {
+        return mIdents[index];
+    }
+
+    /** Returns the index of the first key with a uid, tag and set not less than the given ones. */
+    private int lowerBound(int uid, int tag, int set) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (compareKeys(mKeyUid[mid], mKeyTag[mid], mKeySet[mid], uid, tag, set) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the index of the first key of the given uid, or of the next uid. */
+    int firstIndexOfUid(int uid) {
+        return lowerBound(uid, Integer.MIN_VALUE, Integer.MIN_VALUE);
+    }
+
+    /** Returns the index of the given key, or -1 if not found. */
+    int indexOf(@NonNull Key key) {
+        for (int i = lowerBound(key.uid, key.tag, key.set); i < size() && mKeyUid[i] == key.uid
+                && mKeyTag[i] == key.tag && mKeySet[i] == key.set; i++) {
+            final NetworkIdentitySet ident = getIdent(i);
+            if (ident == key.ident || ident.equals(key.ident)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a new history holding the buckets of the given key, plus the ones of
+     * {@code overlay} if not null.
+     */
+    @NonNull
+    NetworkStatsHistory getHistory(int key, @Nullable NetworkStatsHistory overlay) {
+        final NetworkStatsHistory.Entry recycle = new NetworkStatsHistory.Entry();
+        final int bucketCount = mergeBuckets(this, key, overlay, null, 0, recycle);
+        final Buckets buckets = new Buckets(bucketCount);
+        mergeBuckets(this, key, overlay, buckets, 0, recycle);
+        final long totalBytes = mKeyTotalBytes[key]
+                + (overlay != null ? overlay.getTotalBytes() : 0);
+        return new NetworkStatsHistory(mBucketDuration, buckets.start, buckets.activeTime,
+                buckets.rxBytes, buckets.rxPackets, buckets.txBytes, buckets.txPackets,
+                buckets.operations, bucketCount, totalBytes);
+    }
+
+    /**
+     * Same as {@link NetworkStatsHistory#getValues(long, long, long, NetworkStatsHistory.Entry)}
+     * on the history of the given key.
+     */
+    @NonNull
+    NetworkStatsHistory.Entry getValues(int key, long start, long end, long now,
+            @Nullable NetworkStatsHistory.Entry recycle) {
+        final NetworkStatsHistory.Entry entry =
+                recycle != null ? recycle : new NetworkStatsHistory.Entry();
+        entry.bucketDuration = end - start;
+        entry.bucketStart = start;
+        entry.activeTime = 0;
+        entry.rxBytes = 0;
+        entry.rxPackets = 0;
+        entry.txBytes = 0;
+        entry.txPackets = 0;
+        entry.operations = 0;
+
+        final int first = mKeyBucketOffset[key];
+        final int last = mKeyBucketOffset[key + 1] - 1;
+        if (last < first) return entry;
+
+        // Start from the bucket after the one holding end, as NetworkStatsHistory#getIndexAfter.
+        int index = Arrays.binarySearch(mBuckets.start, first, last + 1, end);
+        index = index < 0 ? ~index : index + 1;
+        for (int i = Math.min(index, last); i >= first; i--) {
+            final long curStart = mBuckets.start[i];
+            long curEnd = curStart + mBucketDuration;
+
+            if (curEnd <= start) break;
+            if (curStart >= end) continue;
+
+            if (curEnd > now) curEnd = now;
+            final long bucketSpan = curEnd - curStart;
+            if (bucketSpan <= 0) continue;
+
+            final long overlapEnd = curEnd < end ? curEnd : end;
+            final long overlapStart = curStart > start ? curStart : start;
+            final long overlap = overlapEnd - overlapStart;
+            if (overlap <= 0) continue;
+
+            entry.activeTime += multiplySafeByRational(mBuckets.activeTime[i], overlap, bucketSpan);
+            entry.rxBytes += multiplySafeByRational(mBuckets.rxBytes[i], overlap, bucketSpan);
+            entry.rxPackets += multiplySafeByRational(mBuckets.rxPackets[i], overlap, bucketSpan);
+            entry.txBytes += multiplySafeByRational(mBuckets.txBytes[i], overlap, bucketSpan);
+            entry.txPackets += multiplySafeByRational(mBuckets.txPackets[i], overlap, bucketSpan);
+            entry.operations +=
+                    multiplySafeByRational(mBuckets.operations[i], overlap, bucketSpan);
+        }
+        return entry;
+    }
+
+    /**
+     * Same as {@link NetworkStatsHistory#recordHistory(NetworkStatsHistory, long, long)} with
+     * the history of the given key as input.
+     */
+    void recordHistory(int key, @NonNull NetworkStatsHistory target, long start, long end) {
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 0L);
+        for (int i = mKeyBucketOffset[key]; i < mKeyBucketOffset[key + 1]; i++) {
+            final long bucketStart = mBuckets.start[i];
+            final long bucketEnd = bucketStart + mBucketDuration;
+
+            if (bucketStart < start || bucketEnd > end) continue;
+
+            entry.rxBytes = mBuckets.rxBytes[i];
+            entry.rxPackets = mBuckets.rxPackets[i];
+            entry.txBytes = mBuckets.txBytes[i];
+            entry.txPackets = mBuckets.txPackets[i];
+            entry.operations = mBuckets.operations[i];
+            target.recordData(bucketStart, bucketEnd, entry);
+        }
+    }
+}
@@ -18,8 +18,12 @@
 
 #include <errno.h>
 #include <inttypes.h>
+#include <string.h>
 #include <sys/stat.h>
 #include <sys/types.h>
+#include <map>
+#include <mutex>
+#include <string>
 #include <vector>
 
 #include <jni.h>
@@ -58,8 +62,31 @@ static struct {
     jfieldID txBytes;
     jfieldID txPackets;
     jfieldID operations;
+    jfieldID keyIndex;
 } gNetworkStatsClassInfo;
 
+// Interfaces are few and long-lived, so the Java string for each interface name is created once
+// and shared by all rows of all reads. Values are global references.
+static constexpr size_t MAX_INTERNED_IFACES = 256;
+static std::mutex gIfaceStringsLock;
+static std::map<std::string, jstring> gIfaceStrings;
+
+// Returns the interned Java string for the given interface name, or NULL if it could not be
+// created or too many names are interned already. The returned reference must not be deleted.
+static jstring get_interned_iface(JNIEnv* env, const char* iface) {
+    std::lock_guard<std::mutex> guard(gIfaceStringsLock);
+    const auto it = gIfaceStrings.find(iface);
+    if (it != gIfaceStrings.end()) return it->second;
+    if (gIfaceStrings.size() >= MAX_INTERNED_IFACES) return NULL;
+
+    ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(iface));
+    if (ifaceString.get() == NULL) return NULL;
+    jstring interned = static_cast<jstring>(env->NewGlobalRef(ifaceString.get()));
+    if (interned == NULL) return NULL;
+    gIfaceStrings.emplace(iface, interned);
+    return interned;
+}
+
 static jobjectArray get_string_array(JNIEnv* env, jobject obj, jfieldID field, int size, bool grow)
 {
     if (!grow) {
@@ -97,62 +124,84 @@ static int statsLinesToNetworkStats(JNIEnv* env, jclass clazz, jobject stats,
                             std::vector<stats_line>& lines) {
     int size = lines.size();
 
-    bool grow = size > env->GetIntField(stats, gNetworkStatsClassInfo.capacity);
+    // Stats objects may be reused across reads. Only reallocate the arrays when they are too
+    // small, leaving some headroom so that a few new rows do not reallocate them on every read.
+    int capacity = env->GetIntField(stats, gNetworkStatsClassInfo.capacity);
+    bool grow = size > capacity;
+    if (grow) capacity = size + size / 8;
 
     ScopedLocalRef<jobjectArray> iface(env, get_string_array(env, stats,
-            gNetworkStatsClassInfo.iface, size, grow));
+            gNetworkStatsClassInfo.iface, capacity, grow));
     if (iface.get() == NULL) return -1;
     ScopedIntArrayRW uid(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.uid, size, grow));
+            gNetworkStatsClassInfo.uid, capacity, grow));
     if (uid.get() == NULL) return -1;
     ScopedIntArrayRW set(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.set, size, grow));
+            gNetworkStatsClassInfo.set, capacity, grow));
     if (set.get() == NULL) return -1;
     ScopedIntArrayRW tag(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.tag, size, grow));
+            gNetworkStatsClassInfo.tag, capacity, grow));
     if (tag.get() == NULL) return -1;
     ScopedIntArrayRW metered(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.metered, size, grow));
+            gNetworkStatsClassInfo.metered, capacity, grow));
     if (metered.get() == NULL) return -1;
     ScopedIntArrayRW roaming(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.roaming, size, grow));
+            gNetworkStatsClassInfo.roaming, capacity, grow));
     if (roaming.get() == NULL) return -1;
     ScopedIntArrayRW defaultNetwork(env, get_int_array(env, stats,
-            gNetworkStatsClassInfo.defaultNetwork, size, grow));
+            gNetworkStatsClassInfo.defaultNetwork, capacity, grow));
     if (defaultNetwork.get() == NULL) return -1;
     ScopedLongArrayRW rxBytes(env, get_long_array(env, stats,
-            gNetworkStatsClassInfo.rxBytes, size, grow));
+            gNetworkStatsClassInfo.rxBytes, capacity, grow));
     if (rxBytes.get() == NULL) return -1;
     ScopedLongArrayRW rxPackets(env, get_long_array(env, stats,
-            gNetworkStatsClassInfo.rxPackets, size, grow));
+            gNetworkStatsClassInfo.rxPackets, capacity, grow));
     if (rxPackets.get() == NULL) return -1;
     ScopedLongArrayRW txBytes(env, get_long_array(env, stats,
-            gNetworkStatsClassInfo.txBytes, size, grow));
+            gNetworkStatsClassInfo.txBytes, capacity, grow));
     if (txBytes.get() == NULL) return -1;
     ScopedLongArrayRW txPackets(env, get_long_array(env, stats,
-            gNetworkStatsClassInfo.txPackets, size, grow));
+            gNetworkStatsClassInfo.txPackets, capacity, grow));
     if (txPackets.get() == NULL) return -1;
     ScopedLongArrayRW operations(env, get_long_array(env, stats,
-            gNetworkStatsClassInfo.operations, size, grow));
+            gNetworkStatsClassInfo.operations, capacity, grow));
     if (operations.get() == NULL) return -1;
 
+    const char* lastIfaceName = NULL;
+    jstring lastIface = NULL;
     for (int i = 0; i < size; i++) {
-        ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(lines[i].iface));
-        env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+        // Rows are mostly grouped by interface, so avoid looking up the same name repeatedly.
+        if (lastIfaceName == NULL || strcmp(lastIfaceName, lines[i].iface)) {
+            lastIfaceName = lines[i].iface;
+            lastIface = get_interned_iface(env, lastIfaceName);
+        }
+        if (lastIface != NULL) {
+            env->SetObjectArrayElement(iface.get(), i, lastIface);
+        } else {
+            ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(lines[i].iface));
+            env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+        }
 
         uid[i] = lines[i].uid;
         set[i] = lines[i].set;
         tag[i] = lines[i].tag;
-        // Metered, roaming and defaultNetwork are populated in Java-land.
+        // Metered, roaming and defaultNetwork are populated in Java-land. Clear them and
+        // operations since the arrays may be reused.
+        metered[i] = 0;
+        roaming[i] = 0;
+        defaultNetwork[i] = 0;
         rxBytes[i] = lines[i].rxBytes;
         rxPackets[i] = lines[i].rxPackets;
         txBytes[i] = lines[i].txBytes;
         txPackets[i] = lines[i].txPackets;
+        operations[i] = 0;
     }
 
     env->SetIntField(stats, gNetworkStatsClassInfo.size, size);
+    // The rows were replaced behind the back of the Java object, so drop its index of them.
+    env->SetObjectField(stats, gNetworkStatsClassInfo.keyIndex, NULL);
     if (grow) {
-        env->SetIntField(stats, gNetworkStatsClassInfo.capacity, size);
+        env->SetIntField(stats, gNetworkStatsClassInfo.capacity, capacity);
         env->SetObjectField(stats, gNetworkStatsClassInfo.iface, iface.get());
         env->SetObjectField(stats, gNetworkStatsClassInfo.uid, uid.getJavaArray());
         env->SetObjectField(stats, gNetworkStatsClassInfo.set, set.getJavaArray());
@@ -167,7 +216,7 @@ static int statsLinesToNetworkStats(JNIEnv* env, jclass clazz, jobject stats,
         env->SetObjectField(stats, gNetworkStatsClassInfo.txPackets, txPackets.getJavaArray());
         env->SetObjectField(stats, gNetworkStatsClassInfo.operations, operations.getJavaArray());
     }
-    return 0;
+    return size;
 }
 
 static int readNetworkStatsDetail(JNIEnv* env, jclass clazz, jobject stats) {
@@ -217,6 +266,8 @@ int register_android_server_net_NetworkStatsFactory(JNIEnv* env) {
     gNetworkStatsClassInfo.txBytes = env->GetFieldID(clazz, "txBytes", "[J");
     gNetworkStatsClassInfo.txPackets = env->GetFieldID(clazz, "txPackets", "[J");
     gNetworkStatsClassInfo.operations = env->GetFieldID(clazz, "operations", "[J");
+    gNetworkStatsClassInfo.keyIndex = env->GetFieldID(clazz, "mKeyIndex",
+            "Landroid/net/NetworkStats$KeyIndex;");
 
     return err;
 }
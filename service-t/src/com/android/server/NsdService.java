@@ -1851,6 +1851,12 @@ public class NsdService extends INsdManager.Stub {
                         mContext, MdnsFeatureFlags.NSD_UNICAST_REPLY_ENABLED))
                 .setIsAggressiveQueryModeEnabled(mDeps.isFeatureEnabled(
                         mContext, MdnsFeatureFlags.NSD_AGGRESSIVE_QUERY_MODE))
+                .setIsStreamingResponseParsingEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_STREAMING_RESPONSE_PARSING))
+                .setIsQueryAggregationEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_QUERY_AGGREGATION))
+                .setIsCachedReplyPacketsEnabled(mDeps.isFeatureEnabled(
+                        mContext, MdnsFeatureFlags.NSD_CACHED_REPLY_PACKETS))
                 .setOverrideProvider(flag -> mDeps.isFeatureEnabled(
                         mContext, FORCE_ENABLE_FLAG_FOR_TEST_PREFIX + flag))
                 .build();
@@ -2557,6 +2563,22 @@ public class NsdService extends INsdManager.Stub {
         HandlerUtils.runWithScissorsForDump(
                 mNsdStateMachine.getHandler(), () -> mMdnsDiscoveryManager.dump(pw), 10_000);
         pw.decreaseIndent();
+
+        // Dump SocketProvider
+        pw.println();
+        pw.println("SocketProvider:");
+        pw.increaseIndent();
+        HandlerUtils.runWithScissorsForDump(
+                mNsdStateMachine.getHandler(), () -> mMdnsSocketProvider.dump(pw), 10_000);
+        pw.decreaseIndent();
+
+        // Dump Advertiser
+        pw.println();
+        pw.println("Advertiser:");
+        pw.increaseIndent();
+        HandlerUtils.runWithScissorsForDump(
+                mNsdStateMachine.getHandler(), () -> mAdvertiser.dump(pw), 10_000);
+        pw.decreaseIndent();
     }
 
     private abstract static class ClientRequest {
@@ -19,6 +19,7 @@ package com.android.server.connectivity.mdns;
 import static com.android.server.connectivity.mdns.MdnsServiceTypeClient.INVALID_TRANSACTION_ID;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.os.Build;
 import android.text.TextUtils;
 import android.util.Pair;
@@ -80,6 +81,10 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
     @NonNull
     private final SharedLog sharedLog;
     private final boolean onlyUseIpv6OnIpv6OnlyNetworks;
+    @NonNull
+    private final List<MdnsPointerRecord> knownAnswers;
+    @Nullable
+    private final MdnsQueryAggregator queryAggregator;
 
     EnqueueMdnsQueryCallable(
             @NonNull MdnsSocketClientBase requestSender,
@@ -94,6 +99,34 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
             @NonNull Collection<MdnsResponse> servicesToResolve,
             @NonNull MdnsUtils.Clock clock,
             @NonNull SharedLog sharedLog) {
+        this(requestSender, packetWriter, serviceType, subtypes, expectUnicastResponse,
+                transactionId, socketKey, onlyUseIpv6OnIpv6OnlyNetworks, sendDiscoveryQueries,
+                servicesToResolve, clock, sharedLog, Collections.emptyList(),
+                null /* queryAggregator */);
+    }
+
+    /**
+     * Creates a callable that enqueues the query to the given {@link MdnsQueryAggregator} if not
+     * null, instead of sending it directly.
+     *
+     * @param knownAnswers PTR records already known for the service type and its subtypes, sent as
+     *                     known answers of the discovery queries when aggregated.
+     */
+    EnqueueMdnsQueryCallable(
+            @NonNull MdnsSocketClientBase requestSender,
+            @NonNull MdnsPacketWriter packetWriter,
+            @NonNull String serviceType,
+            @NonNull Collection<String> subtypes,
+            boolean expectUnicastResponse,
+            int transactionId,
+            @NonNull SocketKey socketKey,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks,
+            boolean sendDiscoveryQueries,
+            @NonNull Collection<MdnsResponse> servicesToResolve,
+            @NonNull MdnsUtils.Clock clock,
+            @NonNull SharedLog sharedLog,
+            @NonNull Collection<MdnsPointerRecord> knownAnswers,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         weakRequestSender = new WeakReference<>(requestSender);
         this.packetWriter = packetWriter;
         serviceTypeLabels = TextUtils.split(serviceType, "\\.");
@@ -106,6 +139,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         this.servicesToResolve = new ArrayList<>(servicesToResolve);
         this.clock = clock;
         this.sharedLog = sharedLog;
+        this.knownAnswers = new ArrayList<>(knownAnswers);
+        this.queryAggregator = queryAggregator;
     }
 
     /**
@@ -176,6 +211,13 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
                 return Pair.create(INVALID_TRANSACTION_ID, new ArrayList<>());
             }
 
+            if (queryAggregator != null) {
+                queryAggregator.enqueueQuery(transactionId, questions,
+                        getKnownAnswers(questions), expectUnicastResponse,
+                        onlyUseIpv6OnIpv6OnlyNetworks);
+                return Pair.create(transactionId, subtypes);
+            }
+
             final MdnsPacket queryPacket = new MdnsPacket(
                     transactionId,
                     MdnsConstants.FLAGS_QUERY,
@@ -184,10 +226,8 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
                     Collections.emptyList(), /* authorityRecords */
                     Collections.emptyList() /* additionalRecords */);
             MdnsUtils.writeMdnsPacket(packetWriter, queryPacket);
-            sendPacketToIpv4AndIpv6(requestSender, MdnsConstants.MDNS_PORT);
-            for (Integer emulatorPort : castShellEmulatorMdnsPorts) {
-                sendPacketToIpv4AndIpv6(requestSender, emulatorPort);
-            }
+            sendQueryPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks, sharedLog);
             return Pair.create(transactionId, subtypes);
         } catch (IOException e) {
             sharedLog.e(String.format("Failed to create mDNS packet for subtype: %s.",
@@ -196,7 +236,41 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         }
     }
 
-    private void sendPacket(MdnsSocketClientBase requestSender, InetSocketAddress address)
+    // Known answers are only useful for the PTR questions that are asked.
+    @NonNull
+    private List<MdnsRecord> getKnownAnswers(@NonNull List<MdnsRecord> questions) {
+        final List<MdnsRecord> answers = new ArrayList<>();
+        for (MdnsPointerRecord knownAnswer : knownAnswers) {
+            for (MdnsRecord question : questions) {
+                if (question instanceof MdnsPointerRecord && MdnsUtils.equalsDnsLabelIgnoreDnsCase(
+                        question.getName(), knownAnswer.getName())) {
+                    answers.add(knownAnswer);
+                    break;
+                }
+            }
+        }
+        return answers;
+    }
+
+    /**
+     * Sends the packet written by the given writer to the mDNS IPv4 and IPv6 multicast addresses,
+     * on the mDNS port and on the ports of cast shell emulators if any.
+     */
+    static void sendQueryPacket(@NonNull MdnsSocketClientBase requestSender,
+            @NonNull MdnsPacketWriter packetWriter, @NonNull SocketKey socketKey,
+            boolean expectUnicastResponse, boolean onlyUseIpv6OnIpv6OnlyNetworks,
+            @NonNull SharedLog sharedLog) {
+        sendPacketToIpv4AndIpv6(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                onlyUseIpv6OnIpv6OnlyNetworks, sharedLog, MdnsConstants.MDNS_PORT);
+        for (Integer emulatorPort : castShellEmulatorMdnsPorts) {
+            sendPacketToIpv4AndIpv6(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks, sharedLog, emulatorPort);
+        }
+    }
+
+    private static void sendPacket(MdnsSocketClientBase requestSender,
+            MdnsPacketWriter packetWriter, SocketKey socketKey, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks, InetSocketAddress address)
             throws IOException {
         DatagramPacket packet = packetWriter.getPacket(address);
         if (expectUnicastResponse) {
@@ -222,18 +296,22 @@ public class EnqueueMdnsQueryCallable implements Callable<Pair<Integer, List<Str
         }
     }
 
-    private void sendPacketToIpv4AndIpv6(MdnsSocketClientBase requestSender, int port) {
+    private static void sendPacketToIpv4AndIpv6(MdnsSocketClientBase requestSender,
+            MdnsPacketWriter packetWriter, SocketKey socketKey, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks, SharedLog sharedLog, int port) {
         try {
-            sendPacket(requestSender,
+            sendPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks,
                     new InetSocketAddress(MdnsConstants.getMdnsIPv4Address(), port));
         } catch (IOException e) {
             sharedLog.e("Can't send packet to IPv4", e);
         }
         try {
-            sendPacket(requestSender,
+            sendPacket(requestSender, packetWriter, socketKey, expectUnicastResponse,
+                    onlyUseIpv6OnIpv6OnlyNetworks,
                     new InetSocketAddress(MdnsConstants.getMdnsIPv6Address(), port));
         } catch (IOException e) {
             sharedLog.e("Can't send packet to IPv6", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -45,6 +45,7 @@ import com.android.net.module.util.SharedLog;
 import com.android.server.connectivity.ConnectivityResources;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -936,6 +937,14 @@ public class MdnsAdvertiser {
                 registration.mConflictDuringProbingCount, registration.mConflictAfterProbingCount);
     }
 
+    /**
+     * Dump the advertiser stats.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        checkThread();
+        forAllAdvertisers(advertiser -> advertiser.dump(pw));
+    }
+
     private static <K, V> boolean any(@NonNull ArrayMap<K, V> map,
             @NonNull BiPredicate<K, V> predicate) {
         for (int i = 0; i < map.size(); i++) {
@@ -59,10 +59,17 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
     // Only accessed on the handler thread, initialized before first use
     @Nullable
     private MdnsServiceCache serviceCache;
+    // Query aggregators of the sockets that have clients, only accessed on the handler thread
+    @NonNull
+    private final ArrayMap<SocketKey, MdnsQueryAggregator> queryAggregators = new ArrayMap<>();
 
     private static class PerSocketServiceTypeClients {
         private final ArrayMap<Pair<String, SocketKey>, MdnsServiceTypeClient> clients =
                 new ArrayMap<>();
+        // Filters of the service types discovered on each socket, built on demand and cleared
+        // when clients change.
+        private final ArrayMap<SocketKey, MdnsResponseDecoder.ServiceTypeFilter> filters =
+                new ArrayMap<>();
 
         public void put(@NonNull String serviceType, @NonNull SocketKey socketKey,
                 @NonNull MdnsServiceTypeClient client) {
@@ -70,6 +77,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
             final Pair<String, SocketKey> perSocketServiceType = new Pair<>(dnsLowerServiceType,
                     socketKey);
             clients.put(perSocketServiceType, client);
+            filters.clear();
         }
 
         @Nullable
@@ -108,10 +116,29 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
             return new ArrayList<>(clients.values());
         }
 
+        @NonNull
+        public MdnsResponseDecoder.ServiceTypeFilter getServiceTypeFilter(
+                @NonNull SocketKey socketKey) {
+            MdnsResponseDecoder.ServiceTypeFilter filter = filters.get(socketKey);
+            if (filter == null) {
+                final List<String> serviceTypes = new ArrayList<>();
+                for (int i = 0; i < clients.size(); i++) {
+                    final Pair<String, SocketKey> perSocketServiceType = clients.keyAt(i);
+                    if (socketKey.equals(perSocketServiceType.second)) {
+                        serviceTypes.add(perSocketServiceType.first);
+                    }
+                }
+                filter = new MdnsResponseDecoder.ServiceTypeFilter(serviceTypes);
+                filters.put(socketKey, filter);
+            }
+            return filter;
+        }
+
         public void remove(@NonNull MdnsServiceTypeClient client) {
             for (int i = 0; i < clients.size(); ++i) {
                 if (Objects.equals(client, clients.valueAt(i))) {
                     clients.removeAt(i);
+                    filters.clear();
                     break;
                 }
             }
@@ -268,6 +295,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                         serviceTypeClient.notifySocketDestroyed();
                         executorProvider.shutdownExecutorService(serviceTypeClient.getExecutor());
                         perSocketServiceTypeClients.remove(serviceTypeClient);
+                        maybeRemoveQueryAggregators();
                     }
                 });
     }
@@ -306,6 +334,7 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                 perSocketServiceTypeClients.remove(serviceTypeClient);
             }
         }
+        maybeRemoveQueryAggregators();
         if (perSocketServiceTypeClients.isEmpty()) {
             // No discovery request. Stops the socket client.
             sharedLog.i("All service type listeners unregistered; stopping discovery");
@@ -326,6 +355,16 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
         }
     }
 
+    @Nullable
+    @Override
+    public MdnsResponseDecoder.ServiceTypeFilter getServiceTypeFilter(
+            @NonNull SocketKey socketKey) {
+        // Clients of all sockets receive the responses of sockets that are not per-network.
+        if (!socketClient.supportsRequestingSpecificNetworks()) return null;
+        discoveryExecutor.ensureRunningOnHandlerThread();
+        return perSocketServiceTypeClients.getServiceTypeFilter(socketKey);
+    }
+
     private List<MdnsServiceTypeClient> getMdnsServiceTypeClient(@NonNull SocketKey socketKey) {
         if (socketClient.supportsRequestingSpecificNetworks()) {
             return perSocketServiceTypeClients.getBySocketKey(socketKey);
@@ -362,7 +401,35 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
         return new MdnsServiceTypeClient(
                 serviceType, socketClient,
                 executorProvider.newServiceTypeClientSchedulerExecutor(), socketKey,
-                sharedLog.forSubComponent(tag), looper, serviceCache);
+                sharedLog.forSubComponent(tag), looper, serviceCache,
+                getOrCreateQueryAggregator(socketKey, looper));
+    }
+
+    @Nullable
+    private MdnsQueryAggregator getOrCreateQueryAggregator(@NonNull SocketKey socketKey,
+            @NonNull Looper looper) {
+        // Queries can only be merged if they are sent on the same socket.
+        if (!mdnsFeatureFlags.isQueryAggregationEnabled()
+                || !socketClient.supportsRequestingSpecificNetworks()) {
+            return null;
+        }
+        MdnsQueryAggregator queryAggregator = queryAggregators.get(socketKey);
+        if (queryAggregator == null) {
+            queryAggregator = new MdnsQueryAggregator(looper, socketClient, socketKey,
+                    sharedLog.forSubComponent("QueryAggregator/" + socketKey.getInterfaceIndex()),
+                    new MdnsUtils.Clock());
+            queryAggregators.put(socketKey, queryAggregator);
+        }
+        return queryAggregator;
+    }
+
+    private void maybeRemoveQueryAggregators() {
+        for (int i = queryAggregators.size() - 1; i >= 0; i--) {
+            if (perSocketServiceTypeClients.getBySocketKey(queryAggregators.keyAt(i)).isEmpty()) {
+                queryAggregators.valueAt(i).shutDown();
+                queryAggregators.removeAt(i);
+            }
+        }
     }
 
     /**
@@ -376,6 +443,9 @@ public class MdnsDiscoveryManager implements MdnsSocketClientBase.Callback {
                     : perSocketServiceTypeClients.getAllMdnsServiceTypeClient()) {
                 serviceTypeClient.dump(pw);
             }
+            for (int i = 0; i < queryAggregators.size(); i++) {
+                queryAggregators.valueAt(i).dump(pw);
+            }
         });
     }
 }
\ No newline at end of file
@@ -62,6 +62,24 @@ public class MdnsFeatureFlags {
      */
     public static final String NSD_AGGRESSIVE_QUERY_MODE = "nsd_aggressive_query_mode";
 
+    /**
+     * A feature flag to control whether received responses should be parsed in streaming mode,
+     * skipping records that are not relevant to any queried service type.
+     */
+    public static final String NSD_STREAMING_RESPONSE_PARSING = "nsd_streaming_response_parsing";
+
+    /**
+     * A feature flag to control whether queries of different service types on the same socket
+     * should be merged into as few packets as possible, with known answers.
+     */
+    public static final String NSD_QUERY_AGGREGATION = "nsd_query_aggregation";
+
+    /**
+     * A feature flag to control whether serialized reply and announcement packets should be cached
+     * and reused when the same records are sent again.
+     */
+    public static final String NSD_CACHED_REPLY_PACKETS = "nsd_cached_reply_packets";
+
     // Flag for offload feature
     public final boolean mIsMdnsOffloadFeatureEnabled;
 
@@ -83,6 +101,15 @@ public class MdnsFeatureFlags {
     // Flag for aggressive query mode
     public final boolean mIsAggressiveQueryModeEnabled;
 
+    // Flag for streaming response parsing
+    public final boolean mIsStreamingResponseParsingEnabled;
+
+    // Flag for query aggregation
+    public final boolean mIsQueryAggregationEnabled;
+
+    // Flag for cached reply packets
+    public final boolean mIsCachedReplyPacketsEnabled;
+
     @Nullable
     private final FlagOverrideProvider mOverrideProvider;
 
@@ -117,6 +144,28 @@ public class MdnsFeatureFlags {
         return mIsAggressiveQueryModeEnabled || isForceEnabledForTest(NSD_AGGRESSIVE_QUERY_MODE);
     }
 
+    /**
+     * Indicates whether {@link #NSD_STREAMING_RESPONSE_PARSING} is enabled, including for testing.
+     */
+    public boolean isStreamingResponseParsingEnabled() {
+        return mIsStreamingResponseParsingEnabled
+                || isForceEnabledForTest(NSD_STREAMING_RESPONSE_PARSING);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_QUERY_AGGREGATION} is enabled, including for testing.
+     */
+    public boolean isQueryAggregationEnabled() {
+        return mIsQueryAggregationEnabled || isForceEnabledForTest(NSD_QUERY_AGGREGATION);
+    }
+
+    /**
+     * Indicates whether {@link #NSD_CACHED_REPLY_PACKETS} is enabled, including for testing.
+     */
+    public boolean isCachedReplyPacketsEnabled() {
+        return mIsCachedReplyPacketsEnabled || isForceEnabledForTest(NSD_CACHED_REPLY_PACKETS);
+    }
+
     /**
      * Indicates whether {@link #NSD_KNOWN_ANSWER_SUPPRESSION} is enabled, including for testing.
      */
@@ -135,6 +184,9 @@ public class MdnsFeatureFlags {
             boolean isKnownAnswerSuppressionEnabled,
             boolean isUnicastReplyEnabled,
             boolean isAggressiveQueryModeEnabled,
+            boolean isStreamingResponseParsingEnabled,
+            boolean isQueryAggregationEnabled,
+            boolean isCachedReplyPacketsEnabled,
             @Nullable FlagOverrideProvider overrideProvider) {
         mIsMdnsOffloadFeatureEnabled = isOffloadFeatureEnabled;
         mIncludeInetAddressRecordsInProbing = includeInetAddressRecordsInProbing;
@@ -143,6 +195,9 @@ public class MdnsFeatureFlags {
         mIsKnownAnswerSuppressionEnabled = isKnownAnswerSuppressionEnabled;
         mIsUnicastReplyEnabled = isUnicastReplyEnabled;
         mIsAggressiveQueryModeEnabled = isAggressiveQueryModeEnabled;
+        mIsStreamingResponseParsingEnabled = isStreamingResponseParsingEnabled;
+        mIsQueryAggregationEnabled = isQueryAggregationEnabled;
+        mIsCachedReplyPacketsEnabled = isCachedReplyPacketsEnabled;
         mOverrideProvider = overrideProvider;
     }
 
@@ -162,6 +217,9 @@ public class MdnsFeatureFlags {
         private boolean mIsKnownAnswerSuppressionEnabled;
         private boolean mIsUnicastReplyEnabled;
         private boolean mIsAggressiveQueryModeEnabled;
+        private boolean mIsStreamingResponseParsingEnabled;
+        private boolean mIsQueryAggregationEnabled;
+        private boolean mIsCachedReplyPacketsEnabled;
         private FlagOverrideProvider mOverrideProvider;
 
         /**
@@ -175,6 +233,9 @@ public class MdnsFeatureFlags {
             mIsKnownAnswerSuppressionEnabled = false;
             mIsUnicastReplyEnabled = true;
             mIsAggressiveQueryModeEnabled = false;
+            mIsStreamingResponseParsingEnabled = false;
+            mIsQueryAggregationEnabled = false;
+            mIsCachedReplyPacketsEnabled = false;
             mOverrideProvider = null;
         }
 
@@ -260,6 +321,37 @@ public class MdnsFeatureFlags {
             return this;
         }
 
+        /**
+         * Set whether received responses are parsed in streaming mode.
+         *
+         * @see #NSD_STREAMING_RESPONSE_PARSING
+         */
+        public Builder setIsStreamingResponseParsingEnabled(
+                boolean isStreamingResponseParsingEnabled) {
+            mIsStreamingResponseParsingEnabled = isStreamingResponseParsingEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether queries on the same socket are aggregated.
+         *
+         * @see #NSD_QUERY_AGGREGATION
+         */
+        public Builder setIsQueryAggregationEnabled(boolean isQueryAggregationEnabled) {
+            mIsQueryAggregationEnabled = isQueryAggregationEnabled;
+            return this;
+        }
+
+        /**
+         * Set whether serialized reply packets are cached.
+         *
+         * @see #NSD_CACHED_REPLY_PACKETS
+         */
+        public Builder setIsCachedReplyPacketsEnabled(boolean isCachedReplyPacketsEnabled) {
+            mIsCachedReplyPacketsEnabled = isCachedReplyPacketsEnabled;
+            return this;
+        }
+
         /**
          * Builds a {@link MdnsFeatureFlags} with the arguments supplied to this builder.
          */
@@ -271,6 +363,9 @@ public class MdnsFeatureFlags {
                     mIsKnownAnswerSuppressionEnabled,
                     mIsUnicastReplyEnabled,
                     mIsAggressiveQueryModeEnabled,
+                    mIsStreamingResponseParsingEnabled,
+                    mIsQueryAggregationEnabled,
+                    mIsCachedReplyPacketsEnabled,
                     mOverrideProvider);
         }
     }
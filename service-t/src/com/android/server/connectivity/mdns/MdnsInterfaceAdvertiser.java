@@ -37,6 +37,7 @@ import com.android.server.connectivity.mdns.MdnsPacketRepeater.PacketRepeaterCal
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
@@ -420,6 +421,13 @@ public class MdnsInterfaceAdvertiser implements MulticastPacketReader.PacketHand
         mReplySender.queueReply(answers);
     }
 
+    /**
+     * Dump the advertiser stats.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        mReplySender.dump(pw);
+    }
+
     /**
      * Get the socket interface name.
      */
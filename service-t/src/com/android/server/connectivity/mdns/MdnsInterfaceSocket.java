@@ -176,6 +176,14 @@ public class MdnsInterfaceSocket {
         mPacketReader.removePacketHandler(handler);
     }
 
+    /**
+     * Returns the statistics of the packets received on this socket.
+     */
+    @NonNull
+    public MulticastPacketReader.ReceiveStats getReceiveStats() {
+        return mPacketReader.getReceiveStats();
+    }
+
     /**
      * Returns the network interface that this socket is bound to.
      *
@@ -240,9 +240,15 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
     private void processResponsePacket(byte[] recvbuf, int length, @NonNull SocketKey socketKey) {
         int packetNumber = ++mReceivedPacketNumber;
 
+        final MdnsResponseDecoder.ServiceTypeFilter filter =
+                mCallback != null && mMdnsFeatureFlags.isStreamingResponseParsingEnabled()
+                        ? mCallback.getServiceTypeFilter(socketKey) : null;
         final MdnsPacket response;
         try {
-            response = MdnsResponseDecoder.parseResponse(recvbuf, length, mMdnsFeatureFlags);
+            response = filter == null
+                    ? MdnsResponseDecoder.parseResponse(recvbuf, length, mMdnsFeatureFlags)
+                    : MdnsResponseDecoder.parseResponse(recvbuf, length, mMdnsFeatureFlags,
+                            filter);
         } catch (MdnsPacket.ParseException e) {
             if (e.code != MdnsResponseErrorCode.ERROR_NOT_RESPONSE_MESSAGE) {
                 mSharedLog.e(e.getMessage(), e);
@@ -252,6 +258,10 @@ public class MdnsMultinetworkSocketClient implements MdnsSocketClientBase {
             }
             return;
         }
+        if (response == null) {
+            // No record is relevant to the service types being discovered on this socket.
+            return;
+        }
 
         if (mCallback != null) {
             mCallback.onResponseReceived(response, socketKey);
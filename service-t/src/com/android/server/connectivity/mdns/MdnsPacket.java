@@ -149,6 +149,18 @@ public class MdnsPacket {
                     "Reached the end of the mDNS response unexpectedly.", e);
         }
 
+        return parseRecordData(reader, name, type, isQuestion);
+    }
+
+    /**
+     * Parse the rest of a record of the given name and type, the reader being positioned just
+     * after the type field.
+     *
+     * @return the parsed record, or null if the record type is not supported and was skipped.
+     */
+    @Nullable
+    static MdnsRecord parseRecordData(@NonNull MdnsPacketReader reader, @NonNull String[] name,
+            int type, boolean isQuestion) throws ParseException {
         switch (type) {
             case MdnsRecord.TYPE_A: {
                 try {
@@ -226,7 +238,7 @@ public class MdnsPacket {
         }
     }
 
-    private static void skipMdnsRecord(@NonNull MdnsPacketReader reader, boolean isQuestion)
+    static void skipMdnsRecord(@NonNull MdnsPacketReader reader, boolean isQuestion)
             throws IOException {
         reader.skip(2); // Skip the class
         if (isQuestion) return;
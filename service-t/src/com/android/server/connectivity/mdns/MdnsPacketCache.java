@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import android.annotation.NonNull;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A cache of serialized mDNS packets, for packets that are sent repeatedly.
+ *
+ * <p>Packets are serialized with {@link MdnsUtils#createRawDnsPacket}, which does not depend on
+ * the current time, and the records of a {@link MdnsRecordRepository} are not modified once
+ * created: they are replaced when a service or an address changes. The bytes of a packet thus
+ * only depend on the record instances it contains, which is what entries are keyed by. NSEC
+ * records are instead created every time a packet is built, so they are keyed by the fields
+ * that they are serialized from. This avoids serializing again announcements that are sent
+ * several times on both IPv4 and IPv6, and replies that are identical for queries from
+ * different hosts. Entries of replaced records are never matched again, and are evicted in
+ * least-recently-used order.
+ *
+ * <p>This class is not thread-safe.
+ */
+public class MdnsPacketCache {
+    @VisibleForTesting
+    static final int MAX_ENTRIES = 32;
+
+    @NonNull
+    private final Map<PacketKey, byte[]> mPackets =
+            new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true /* accessOrder */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PacketKey, byte[]> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Identifies a packet by its header and the identity of its records, or the contents of its
+     * NSEC records.
+     */
+    private static final class PacketKey {
+        private final int mTransactionId;
+        private final int mFlags;
+        private final int[] mSectionSizes;
+        @NonNull
+        private final MdnsRecord[] mRecords;
+        private final int mHashCode;
+
+        PacketKey(@NonNull MdnsPacket packet) {
+            mTransactionId = packet.transactionId;
+            mFlags = packet.flags;
+            mSectionSizes = new int[] { packet.questions.size(), packet.answers.size(),
+                    packet.authorityRecords.size(), packet.additionalRecords.size() };
+            mRecords = new MdnsRecord[mSectionSizes[0] + mSectionSizes[1] + mSectionSizes[2]
+                    + mSectionSizes[3]];
+            int index = 0;
+            index = addRecords(packet.questions, index);
+            index = addRecords(packet.answers, index);
+            index = addRecords(packet.authorityRecords, index);
+            addRecords(packet.additionalRecords, index);
+
+            int hashCode = 31 * mTransactionId + mFlags;
+            for (int size : mSectionSizes) {
+                hashCode = 31 * hashCode + size;
+            }
+            for (MdnsRecord record : mRecords) {
+                hashCode = 31 * hashCode + recordHashCode(record);
+            }
+            mHashCode = hashCode;
+        }
+
+        private int addRecords(@NonNull List<? extends MdnsRecord> records, int index) {
+            for (int i = 0; i < records.size(); i++) {
+                mRecords[index++] = records.get(i);
+            }
+            return index;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PacketKey)) return false;
+            final PacketKey other = (PacketKey) o;
+            if (mHashCode != other.mHashCode
+                    || mTransactionId != other.mTransactionId
+                    || mFlags != other.mFlags
+                    || mRecords.length != other.mRecords.length) {
+                return false;
+            }
+            for (int i = 0; i < mSectionSizes.length; i++) {
+                if (mSectionSizes[i] != other.mSectionSizes[i]) return false;
+            }
+            for (int i = 0; i < mRecords.length; i++) {
+                if (!isSameRecord(mRecords[i], other.mRecords[i])) return false;
+            }
+            return true;
+        }
+
+        private static int recordHashCode(@NonNull MdnsRecord record) {
+            if (!(record instanceof MdnsNsecRecord)) return System.identityHashCode(record);
+            final MdnsNsecRecord nsec = (MdnsNsecRecord) record;
+            return Objects.hash(Arrays.hashCode(nsec.getName()), nsec.getTtl(),
+                    Arrays.hashCode(nsec.getNextDomain()), Arrays.hashCode(nsec.getTypes()));
+        }
+
+        private static boolean isSameRecord(@NonNull MdnsRecord a, @NonNull MdnsRecord b) {
+            if (a == b) return true;
+            // Other records are compared by identity: equal records may have different data.
+            if (!(a instanceof MdnsNsecRecord) || !(b instanceof MdnsNsecRecord)) return false;
+            final MdnsNsecRecord nsecA = (MdnsNsecRecord) a;
+            final MdnsNsecRecord nsecB = (MdnsNsecRecord) b;
+            // Names are compared case-sensitively, as they are written as-is.
+            return nsecA.getReceiptTime() == nsecB.getReceiptTime()
+                    && nsecA.getTtl() == nsecB.getTtl()
+                    && nsecA.getCacheFlush() == nsecB.getCacheFlush()
+                    && Arrays.equals(nsecA.getName(), nsecB.getName())
+                    && Arrays.equals(nsecA.getNextDomain(), nsecB.getNextDomain())
+                    && Arrays.equals(nsecA.getTypes(), nsecB.getTypes());
+        }
+    }
+
+    /**
+     * Get the serialized packet, serializing it with the given buffer if it is not cached.
+     *
+     * <p>The returned array may be returned again by later calls, so it must not be modified.
+     */
+    @NonNull
+    public byte[] getOrCreateRawPacket(@NonNull byte[] packetCreationBuffer,
+            @NonNull MdnsPacket packet) throws IOException {
+        final PacketKey key = new PacketKey(packet);
+        final byte[] cached = mPackets.get(key);
+        if (cached != null) {
+            mHitCount++;
+            return cached;
+        }
+        mMissCount++;
+        final byte[] rawPacket = MdnsUtils.createRawDnsPacket(packetCreationBuffer, packet);
+        mPackets.put(key, rawPacket);
+        return rawPacket;
+    }
+
+    /** Remove all cached packets. */
+    public void clear() {
+        mPackets.clear();
+    }
+
+    /** Returns the number of packets that were found in the cache. */
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of packets that had to be serialized. */
+    public int getMissCount() {
+        return mMissCount;
+    }
+}
@@ -18,15 +18,13 @@ package com.android.server.connectivity.mdns;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
-import android.util.SparseArray;
 
 import com.android.server.connectivity.mdns.MdnsServiceInfo.TextEntry;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Locale;
 
 /** Simple decoder for mDNS packets. */
@@ -38,7 +36,9 @@ public class MdnsPacketReader {
     private static final int LABEL_COUNT_LIMIT = 128;
     private final byte[] buf;
     private final int count;
-    private final SparseArray<LabelEntry> labelDictionary;
+    // Offsets of the length byte of each label read by the last call to readLabelOffsets.
+    private int[] labelOffsets;
+    private int labelCount;
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     private int pos;
     private int limit;
@@ -54,7 +54,7 @@ public class MdnsPacketReader {
         count = length;
         pos = 0;
         limit = -1;
-        labelDictionary = new SparseArray<>(16);
+        labelOffsets = new int[16];
         mMdnsFeatureFlags = mdnsFeatureFlags;
     }
 
@@ -143,64 +143,110 @@ public class MdnsPacketReader {
      * @throws IOException  If invalid data is read.
      */
     public String[] readLabels() throws IOException {
-        List<String> result = new ArrayList<>(5);
-        LabelEntry previousEntry = null;
-        int tracingHops = 0;
-
-        while (getRemaining() > 0) {
-            byte nextByte = peekByte();
+        readLabelOffsets();
+        return decodeLabels();
+    }
 
-            if (nextByte == 0) {
+    /**
+     * Reads a sequence of labels like {@link #readLabels}, without decoding them.
+     *
+     * <p>The labels that were read can then be compared with {@link #labelsEqualIgnoreDnsCase}
+     * and decoded with {@link #decodeLabels}, until the next sequence of labels is read.
+     *
+     * <p>Compression pointers must point backwards in the packet, each one before the target of
+     * the previous one, so that reading always terminates.
+     *
+     * @return the number of labels that were read.
+     * @throws EOFException If there are not enough bytes remaining in the packet to satisfy the
+     *                      read.
+     * @throws IOException  If invalid data is read.
+     */
+    public int readLabelOffsets() throws IOException {
+        labelCount = 0;
+        // Offset of the next label to read after following a compression pointer, or -1 while
+        // labels are read at the current position.
+        int offset = -1;
+        int lastTarget = -1;
+        while (offset >= 0 || getRemaining() > 0) {
+            final int labelOffset = offset >= 0 ? offset : pos;
+            final int length = offset >= 0 ? readUInt8At(labelOffset) : readUInt8();
+            if (length == 0) {
                 // A NUL byte terminates a sequence of labels.
-                skip(1);
                 break;
             }
 
-            int currentOffset = pos;
-
-            boolean isLabelPointer = (nextByte & 0xC0) == 0xC0;
-            if (isLabelPointer) {
-                // A pointer terminates a sequence of labels. Store the pointer value in the
-                // previous label entry.
-                int labelOffset = ((readUInt8() & 0x3F) << 8) | (readUInt8() & 0xFF);
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = labelOffset;
+            if ((length & 0xC0) == 0xC0) {
+                final int lowBits = offset >= 0 ? readUInt8At(labelOffset + 1) : readUInt8();
+                final int target = ((length & 0x3F) << 8) | lowBits;
+                if (target >= (offset >= 0 ? lastTarget : labelOffset)) {
+                    throw new IOException(
+                            String.format(Locale.ROOT, "Invalid label pointer: %04X", target));
                 }
+                offset = target;
+                lastTarget = target;
+                continue;
+            }
 
-                // Follow the chain of labels starting at this pointer, adding all of them onto the
-                // result.
-                while (labelOffset != 0) {
-                    if (mMdnsFeatureFlags.mIsLabelCountLimitEnabled
-                            && tracingHops > LABEL_COUNT_LIMIT) {
-                        throw new IOException("Invalid MDNS response packet: Too many labels.");
-                    }
-                    LabelEntry entry = labelDictionary.get(labelOffset);
-                    if (entry == null) {
-                        throw new IOException(
-                                String.format(Locale.ROOT, "Invalid label pointer: %04X",
-                                        labelOffset));
-                    }
-                    result.add(entry.label);
-                    labelOffset = entry.nextOffset;
-                    tracingHops++;
+            if (mMdnsFeatureFlags.mIsLabelCountLimitEnabled && labelCount >= LABEL_COUNT_LIMIT) {
+                throw new IOException("Invalid MDNS response packet: Too many labels.");
+            }
+            if (offset >= 0) {
+                if (labelOffset + 1 + length > count) {
+                    throw new EOFException();
                 }
-                break;
+                offset += 1 + length;
             } else {
-                // It's an ordinary label. Chain it onto the previous label entry (if any), and add
-                // it onto the result.
-                String val = readString();
-                LabelEntry newEntry = new LabelEntry(val);
-                labelDictionary.put(currentOffset, newEntry);
-
-                if (previousEntry != null) {
-                    previousEntry.nextOffset = currentOffset;
-                }
-                previousEntry = newEntry;
-                result.add(val);
+                skip(length);
             }
+            if (labelCount == labelOffsets.length) {
+                labelOffsets = Arrays.copyOf(labelOffsets, labelCount * 2);
+            }
+            labelOffsets[labelCount++] = labelOffset;
+        }
+        return labelCount;
+    }
+
+    /** Decodes the labels read by the last call to {@link #readLabelOffsets}. */
+    public String[] decodeLabels() {
+        final String[] labels = new String[labelCount];
+        for (int i = 0; i < labelCount; i++) {
+            final int offset = labelOffsets[i];
+            labels[i] = new String(buf, offset + 1, buf[offset] & 0xFF,
+                    MdnsConstants.getUtf8Charset());
+        }
+        return labels;
+    }
+
+    /**
+     * Indicates whether the labels read by the last call to {@link #readLabelOffsets}, starting
+     * from the label at index {@code firstLabel}, are equal to the given labels by DNS
+     * case-insensitive comparison.
+     *
+     * @param dnsLowerLabels the labels to compare with, encoded in UTF-8 and already converted to
+     *                       DNS lowercase.
+     */
+    public boolean labelsEqualIgnoreDnsCase(int firstLabel, @NonNull byte[][] dnsLowerLabels) {
+        if (labelCount - firstLabel != dnsLowerLabels.length) return false;
+        for (int i = 0; i < dnsLowerLabels.length; i++) {
+            if (!labelEqualsIgnoreDnsCase(firstLabel + i, dnsLowerLabels[i])) return false;
         }
+        return true;
+    }
 
-        return result.toArray(new String[result.size()]);
+    /**
+     * Indicates whether the label at index {@code index} read by the last call to
+     * {@link #readLabelOffsets} is equal to the given label by DNS case-insensitive comparison.
+     */
+    public boolean labelEqualsIgnoreDnsCase(int index, @NonNull byte[] dnsLowerLabel) {
+        final int offset = labelOffsets[index];
+        if ((buf[offset] & 0xFF) != dnsLowerLabel.length) return false;
+        for (int i = 0; i < dnsLowerLabel.length; i++) {
+            // DNS case folding only applies to ASCII letters, which are single bytes in UTF-8.
+            final byte b = buf[offset + 1 + i];
+            final byte lower = b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+            if (lower != dnsLowerLabel[i]) return false;
+        }
+        return true;
     }
 
     /**
@@ -275,12 +321,12 @@ public class MdnsPacketReader {
         }
     }
 
-    private static class LabelEntry {
-        public final String label;
-        public int nextOffset = 0;
-
-        public LabelEntry(String label) {
-            this.label = label;
+    // Reads an unsigned 8-bit integer at the given offset in the packet, regardless of the
+    // current read position and limit.
+    private int readUInt8At(int offset) throws EOFException {
+        if (offset >= count) {
+            throw new EOFException();
         }
+        return buf[offset] & 0xFF;
     }
 }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns;
+
+import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningOnHandlerThread;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.net.module.util.SharedLog;
+import com.android.server.connectivity.mdns.util.MdnsUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Merges the queries of the {@link MdnsServiceTypeClient}s of a socket.
+ *
+ * <p>Each client schedules its own queries, so clients browsing different service types on the
+ * same socket would each send their own packets. Instead, queries enqueued within
+ * {@link #AGGREGATION_WINDOW_MS} of the first pending one are merged into as few packets as fit
+ * in {@link #MAX_PACKET_SIZE}, without duplicate questions or known answers. The questions of a
+ * query are kept in the same packet as long as they fit, together with its known answers. Known
+ * answers that do not fit in the packet of the questions are sent in continuation packets, with
+ * the TC bit set in all packets but the last (RFC6762 7.2).
+ *
+ * <p>Queries can be enqueued from any thread. Packets are built and sent on the looper thread.
+ */
+public class MdnsQueryAggregator {
+    /** Delay during which queries are held to be merged with the ones that follow. */
+    @VisibleForTesting
+    static final long AGGREGATION_WINDOW_MS = 20L;
+    /** Maximum size of the packets, so that they fit in an Ethernet MTU with IPv6 headers. */
+    @VisibleForTesting
+    static final int MAX_PACKET_SIZE = 1500 - 40 /* IPv6 header */ - 8 /* UDP header */;
+    private static final int HEADER_SIZE = 12;
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final MdnsSocketClientBase mSocketClient;
+    @NonNull
+    private final SocketKey mSocketKey;
+    @NonNull
+    private final SharedLog mSharedLog;
+    @NonNull
+    private final MdnsUtils.Clock mClock;
+    @NonNull
+    private final Runnable mFlushRunnable = this::flush;
+
+    // The following are only accessed on the handler thread.
+    @NonNull
+    private final List<Query> mPendingQueries = new ArrayList<>();
+    private boolean mIsShutDown;
+    // Number of queries sent, each of which would have been sent in its own packets if not merged.
+    private int mQueryCount;
+    private int mPacketCount;
+    private int mTruncatedPacketCount;
+
+    private static class Query {
+        final int transactionId;
+        @NonNull
+        final List<MdnsRecord> questions;
+        @NonNull
+        final List<MdnsRecord> knownAnswers;
+        final boolean expectUnicastResponse;
+        final boolean onlyUseIpv6OnIpv6OnlyNetworks;
+
+        Query(int transactionId, @NonNull List<MdnsRecord> questions,
+                @NonNull List<MdnsRecord> knownAnswers, boolean expectUnicastResponse,
+                boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+            this.transactionId = transactionId;
+            this.questions = questions;
+            this.knownAnswers = knownAnswers;
+            this.expectUnicastResponse = expectUnicastResponse;
+            this.onlyUseIpv6OnIpv6OnlyNetworks = onlyUseIpv6OnIpv6OnlyNetworks;
+        }
+
+        // Queries that are sent differently can't be merged.
+        boolean canMergeWith(@NonNull Query other) {
+            return expectUnicastResponse == other.expectUnicastResponse
+                    && onlyUseIpv6OnIpv6OnlyNetworks == other.onlyUseIpv6OnIpv6OnlyNetworks;
+        }
+    }
+
+    public MdnsQueryAggregator(@NonNull Looper looper, @NonNull MdnsSocketClientBase socketClient,
+            @NonNull SocketKey socketKey, @NonNull SharedLog sharedLog,
+            @NonNull MdnsUtils.Clock clock) {
+        mHandler = new Handler(looper);
+        mSocketClient = socketClient;
+        mSocketKey = socketKey;
+        mSharedLog = sharedLog;
+        mClock = clock;
+    }
+
+    /**
+     * Enqueues a query, to be sent with the other queries enqueued within
+     * {@link #AGGREGATION_WINDOW_MS}.
+     *
+     * @param questions the questions of the query.
+     * @param knownAnswers records already known for the questions.
+     */
+    public void enqueueQuery(int transactionId, @NonNull List<MdnsRecord> questions,
+            @NonNull List<MdnsRecord> knownAnswers, boolean expectUnicastResponse,
+            boolean onlyUseIpv6OnIpv6OnlyNetworks) {
+        final Query query = new Query(transactionId, new ArrayList<>(questions),
+                new ArrayList<>(knownAnswers), expectUnicastResponse,
+                onlyUseIpv6OnIpv6OnlyNetworks);
+        mHandler.post(() -> {
+            if (mIsShutDown) return;
+            if (mPendingQueries.isEmpty()) {
+                mHandler.postDelayed(mFlushRunnable, AGGREGATION_WINDOW_MS);
+            }
+            mPendingQueries.add(query);
+        });
+    }
+
+    /** Drops the pending queries, and ignores queries enqueued later. */
+    public void shutDown() {
+        ensureRunningOnHandlerThread(mHandler);
+        mIsShutDown = true;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mPendingQueries.clear();
+    }
+
+    private void flush() {
+        final long now = mClock.elapsedRealtime();
+        while (!mPendingQueries.isEmpty()) {
+            final Query first = mPendingQueries.get(0);
+            final List<Query> queries = new ArrayList<>();
+            final Iterator<Query> it = mPendingQueries.iterator();
+            while (it.hasNext()) {
+                final Query query = it.next();
+                if (first.canMergeWith(query)) {
+                    queries.add(query);
+                    it.remove();
+                }
+            }
+            try {
+                sendQueries(queries, now);
+            } catch (IOException e) {
+                mSharedLog.e("Failed to create aggregated mDNS query packet", e);
+            }
+        }
+    }
+
+    private void sendQueries(@NonNull List<Query> queries, long now) throws IOException {
+        final Query first = queries.get(0);
+        final List<MdnsRecord> questions = new ArrayList<>();
+        final List<MdnsRecord> knownAnswers = new ArrayList<>();
+        int questionsSize = HEADER_SIZE;
+        for (Query query : queries) {
+            final int[] sizes = new int[query.questions.size()];
+            int addedSize = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                final MdnsRecord question = query.questions.get(i);
+                sizes[i] = getMaxSize(question, true /* isQuestion */, now);
+                if (!questions.contains(question)) addedSize += sizes[i];
+            }
+            // Start new packets rather than split the questions of a query, as its known answers
+            // must be sent with all of its questions (RFC6762 7.2).
+            if (!questions.isEmpty() && questionsSize + addedSize > MAX_PACKET_SIZE) {
+                sendPackets(first, questions, questionsSize, knownAnswers, now);
+                questions.clear();
+                knownAnswers.clear();
+                questionsSize = HEADER_SIZE;
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                final MdnsRecord question = query.questions.get(i);
+                if (questions.contains(question)) continue;
+                if (!questions.isEmpty() && questionsSize + sizes[i] > MAX_PACKET_SIZE) {
+                    // The questions of this query alone do not fit in a packet, so its known
+                    // answers are sent with each part.
+                    addKnownAnswers(knownAnswers, query);
+                    sendPackets(first, questions, questionsSize, knownAnswers, now);
+                    questions.clear();
+                    knownAnswers.clear();
+                    questionsSize = HEADER_SIZE;
+                }
+                questions.add(question);
+                questionsSize += sizes[i];
+            }
+            addKnownAnswers(knownAnswers, query);
+        }
+        if (!questions.isEmpty()) {
+            sendPackets(first, questions, questionsSize, knownAnswers, now);
+        }
+        mQueryCount += queries.size();
+    }
+
+    private static void addKnownAnswers(@NonNull List<MdnsRecord> knownAnswers,
+            @NonNull Query query) {
+        for (MdnsRecord knownAnswer : query.knownAnswers) {
+            if (!knownAnswers.contains(knownAnswer)) {
+                knownAnswers.add(knownAnswer);
+            }
+        }
+    }
+
+    // Sends the questions and their known answers, in continuation packets if needed.
+    private void sendPackets(@NonNull Query query, @NonNull List<MdnsRecord> questions,
+            int questionsSize, @NonNull List<MdnsRecord> knownAnswers, long now)
+            throws IOException {
+        List<MdnsRecord> packetQuestions = questions;
+        int size = questionsSize;
+        int answerStart = 0;
+        while (true) {
+            int answerEnd = answerStart;
+            while (answerEnd < knownAnswers.size()) {
+                final int answerSize = getMaxSize(knownAnswers.get(answerEnd),
+                        false /* isQuestion */, now);
+                // Continuation packets have at least one answer, so that they always progress.
+                if (size + answerSize > MAX_PACKET_SIZE
+                        && (!packetQuestions.isEmpty() || answerEnd > answerStart)) {
+                    break;
+                }
+                size += answerSize;
+                answerEnd++;
+            }
+            final boolean truncated = answerEnd < knownAnswers.size();
+            sendPacket(query, truncated, packetQuestions,
+                    knownAnswers.subList(answerStart, answerEnd), now);
+            if (!truncated) return;
+            packetQuestions = Collections.emptyList();
+            size = HEADER_SIZE;
+            answerStart = answerEnd;
+        }
+    }
+
+    private void sendPacket(@NonNull Query query, boolean truncated,
+            @NonNull List<MdnsRecord> questions, @NonNull List<MdnsRecord> answers, long now)
+            throws IOException {
+        final MdnsPacketWriter writer = new MdnsPacketWriter(MAX_PACKET_SIZE);
+        writer.writeUInt16(query.transactionId);
+        writer.writeUInt16(truncated
+                ? MdnsConstants.FLAGS_QUERY | MdnsConstants.FLAG_TRUNCATED
+                : MdnsConstants.FLAGS_QUERY);
+        writer.writeUInt16(questions.size());
+        writer.writeUInt16(answers.size());
+        writer.writeUInt16(0); // authority entries count
+        writer.writeUInt16(0); // additional records count
+        for (MdnsRecord question : questions) {
+            question.writeHeaderFields(writer);
+        }
+        for (MdnsRecord answer : answers) {
+            // Known answers are written with their remaining TTL (RFC6762 7.1).
+            answer.write(writer, now);
+        }
+        EnqueueMdnsQueryCallable.sendQueryPacket(mSocketClient, writer, mSocketKey,
+                query.expectUnicastResponse, query.onlyUseIpv6OnIpv6OnlyNetworks, mSharedLog);
+        mPacketCount++;
+        if (truncated) mTruncatedPacketCount++;
+    }
+
+    // The size of the record written alone, which is at least its size in a packet as names can
+    // only be compressed further with other records.
+    private static int getMaxSize(@NonNull MdnsRecord record, boolean isQuestion, long now)
+            throws IOException {
+        final MdnsPacketWriter writer = new MdnsPacketWriter(MAX_PACKET_SIZE);
+        if (isQuestion) {
+            record.writeHeaderFields(writer);
+        } else {
+            record.write(writer, now);
+        }
+        return writer.getWritePosition();
+    }
+
+    /** Returns the number of queries that were sent. */
+    public int getQueryCount() {
+        ensureRunningOnHandlerThread(mHandler);
+        return mQueryCount;
+    }
+
+    /** Returns the number of packets that were sent, including continuation packets. */
+    public int getPacketCount() {
+        ensureRunningOnHandlerThread(mHandler);
+        return mPacketCount;
+    }
+
+    /** Returns the number of packets that were sent with the TC bit set. */
+    public int getTruncatedPacketCount() {
+        ensureRunningOnHandlerThread(mHandler);
+        return mTruncatedPacketCount;
+    }
+
+    /**
+     * Dump the aggregator stats.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        ensureRunningOnHandlerThread(mHandler);
+        pw.println("QueryAggregator: " + mSocketKey + " queries=" + mQueryCount
+                + " packets=" + mPacketCount + " truncated=" + mTruncatedPacketCount
+                // Continuation packets can outnumber the queries they save.
+                + " saved=" + Math.max(0, mQueryCount - mPacketCount));
+    }
+}
@@ -50,6 +50,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -94,6 +95,10 @@ public class MdnsRecordRepository {
     private final SparseArray<ServiceRegistration> mServices = new SparseArray<>();
     @NonNull
     private final List<RecordInfo<?>> mGeneralRecords = new ArrayList<>();
+    // Index of the records of mGeneralRecords and mServices by name, or null if it needs to be
+    // rebuilt because records were added or removed. See getRecordIndex.
+    @Nullable
+    private Map<DnsNameKey, List<IndexedRecords>> mRecordIndex;
     @NonNull
     private final Looper mLooper;
     @NonNull
@@ -160,6 +165,51 @@ public class MdnsRecordRepository {
         }
     }
 
+    /**
+     * A record name, case-folded once so that it can be hashed and compared as a map key.
+     */
+    private static final class DnsNameKey {
+        @NonNull
+        private final String[] mLowercaseLabels;
+        private final int mHashCode;
+
+        DnsNameKey(@NonNull String[] name) {
+            mLowercaseLabels = MdnsUtils.toDnsLabelsLowerCase(name);
+            mHashCode = Arrays.hashCode(mLowercaseLabels);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object other) {
+            if (this == other) return true;
+            if (!(other instanceof DnsNameKey)) return false;
+            final DnsNameKey otherKey = (DnsNameKey) other;
+            return mHashCode == otherKey.mHashCode
+                    && Arrays.equals(mLowercaseLabels, otherKey.mLowercaseLabels);
+        }
+    }
+
+    /**
+     * The records with a given name, from the general records or from one service registration.
+     */
+    private static class IndexedRecords {
+        /** The ID of the service owning the records, or NO_SERVICE for general records. */
+        public final int serviceId;
+        /** The records with the indexed name, in the order of the general or service records. */
+        @NonNull
+        public final List<RecordInfo<?>> records = new ArrayList<>(1);
+
+        IndexedRecords(int serviceId) {
+            this.serviceId = serviceId;
+        }
+    }
+
+    private static final int NO_SERVICE = -1;
+
     private static class ServiceRegistration {
         @NonNull
         public final List<RecordInfo<?>> allRecords;
@@ -350,6 +400,7 @@ public class MdnsRecordRepository {
      * Inform the repository of the latest interface addresses.
      */
     public void updateAddresses(@NonNull List<LinkAddress> newAddresses) {
+        mRecordIndex = null;
         mGeneralRecords.clear();
         for (LinkAddress addr : newAddresses) {
             final String[] revDnsAddr = getReverseDnsAddress(addr.getAddress());
@@ -390,6 +441,7 @@ public class MdnsRecordRepository {
         final ServiceRegistration updatedRegistration = existingRegistration.withSubtypes(
                 subtypes);
         mServices.put(serviceId, updatedRegistration);
+        mRecordIndex = null;
     }
 
     /**
@@ -424,6 +476,7 @@ public class MdnsRecordRepository {
 
         // Remove existing exiting service
         mServices.remove(existing);
+        mRecordIndex = null;
         return existing;
     }
 
@@ -518,6 +571,7 @@ public class MdnsRecordRepository {
 
     public void removeService(int id) {
         mServices.remove(id);
+        mRecordIndex = null;
     }
 
     /**
@@ -556,9 +610,52 @@ public class MdnsRecordRepository {
             ret[i] = mServices.keyAt(i);
         }
         mServices.clear();
+        mRecordIndex = null;
         return ret;
     }
 
+    /**
+     * Get the index of the general and service records by name.
+     *
+     * <p>The index is rebuilt after records were added or removed, which is rare compared to
+     * lookups. For each name, the general records come first, then the records of each service
+     * in the order of mServices, so that lookups visit records in the same order as a scan of
+     * all records would. The index includes exiting and probing services.
+     */
+    @NonNull
+    private Map<DnsNameKey, List<IndexedRecords>> getRecordIndex() {
+        if (mRecordIndex != null) return mRecordIndex;
+        final HashMap<DnsNameKey, List<IndexedRecords>> index = new HashMap<>();
+        addRecordsToIndex(index, NO_SERVICE, mGeneralRecords);
+        for (int i = 0; i < mServices.size(); i++) {
+            addRecordsToIndex(index, mServices.keyAt(i), mServices.valueAt(i).allRecords);
+        }
+        mRecordIndex = index;
+        return index;
+    }
+
+    private static void addRecordsToIndex(@NonNull Map<DnsNameKey, List<IndexedRecords>> index,
+            int serviceId, @NonNull List<RecordInfo<?>> records) {
+        for (RecordInfo<?> info : records) {
+            final List<IndexedRecords> recordsForName = index.computeIfAbsent(
+                    new DnsNameKey(info.record.getName()), key -> new ArrayList<>(1));
+            IndexedRecords last = recordsForName.isEmpty()
+                    ? null : recordsForName.get(recordsForName.size() - 1);
+            if (last == null || last.serviceId != serviceId) {
+                last = new IndexedRecords(serviceId);
+                recordsForName.add(last);
+            }
+            last.records.add(info);
+        }
+    }
+
+    /** Get the records with the given name (ignoring DNS case), grouped by owner. */
+    @NonNull
+    private List<IndexedRecords> getRecordsByName(@NonNull String[] name) {
+        final List<IndexedRecords> records = getRecordIndex().get(new DnsNameKey(name));
+        return records == null ? Collections.emptyList() : records;
+    }
+
     private boolean isTruncatedKnownAnswerPacket(MdnsPacket packet) {
         if (!mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled()
                 // Should ignore the response packet.
@@ -589,25 +686,31 @@ public class MdnsRecordRepository {
         // Reply unicast if the feature is enabled AND all replied questions request unicast
         final boolean replyUnicastEnabled = mMdnsFeatureFlags.isUnicastReplyEnabled();
         boolean replyUnicast = replyUnicastEnabled;
+        final Map<MdnsRecord, Long> knownAnswers = getKnownAnswers(packet);
         for (MdnsRecord question : packet.questions) {
-            // Add answers from general records
-            if (addReplyFromService(question, mGeneralRecords, null /* servicePtrRecord */,
-                    null /* serviceSrvRecord */, null /* serviceTxtRecord */,
-                    null /* hostname */,
-                    replyUnicastEnabled, now, answerInfo, additionalAnswerInfo,
-                    Collections.emptyList())) {
-                replyUnicast &= question.isUnicastReplyRequested();
-            }
+            // Only records with the question name can answer it. The index lists the general
+            // records first, then the records of each service.
+            for (IndexedRecords indexed : getRecordsByName(question.getName())) {
+                if (indexed.serviceId == NO_SERVICE) {
+                    // Add answers from general records
+                    if (addReplyFromService(question, indexed.records,
+                            null /* servicePtrRecord */, null /* serviceSrvRecord */,
+                            null /* serviceTxtRecord */, null /* hostname */,
+                            replyUnicastEnabled, now, answerInfo, additionalAnswerInfo,
+                            Collections.emptyMap())) {
+                        replyUnicast &= question.isUnicastReplyRequested();
+                    }
+                    continue;
+                }
 
-            // Add answers from each service
-            for (int i = 0; i < mServices.size(); i++) {
-                final ServiceRegistration registration = mServices.valueAt(i);
+                // Add answers from each service
+                final ServiceRegistration registration = mServices.get(indexed.serviceId);
                 if (registration.exiting || registration.isProbing) continue;
-                if (addReplyFromService(question, registration.allRecords, registration.ptrRecords,
+                if (addReplyFromService(question, indexed.records, registration.ptrRecords,
                         registration.srvRecord, registration.txtRecord,
                         registration.serviceInfo.getHostname(),
                         replyUnicastEnabled, now,
-                        answerInfo, additionalAnswerInfo, packet.answers)) {
+                        answerInfo, additionalAnswerInfo, knownAnswers)) {
                     replyUnicast &= question.isUnicastReplyRequested();
                     registration.repliedServiceCount++;
                     registration.sentPacketCount++;
@@ -709,13 +812,28 @@ public class MdnsRecordRepository {
                 new ArrayList<>(packet.answers));
     }
 
-    private boolean isKnownAnswer(MdnsRecord answer, @NonNull List<MdnsRecord> knownAnswerRecords) {
-        for (MdnsRecord knownAnswer : knownAnswerRecords) {
-            if (answer.equals(knownAnswer) && knownAnswer.getTtl() > (answer.getTtl() / 2)) {
-                return true;
-            }
+    /**
+     * Get the known answers of a packet, mapped to the highest TTL they were given with.
+     *
+     * <p>Records are hashed once per packet so that checking known answers does not scan the
+     * answer section for each record.
+     */
+    @NonNull
+    private Map<MdnsRecord, Long> getKnownAnswers(@NonNull MdnsPacket packet) {
+        if (!mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled() || packet.answers.isEmpty()) {
+            return Collections.emptyMap();
         }
-        return false;
+        final HashMap<MdnsRecord, Long> knownAnswers = new HashMap<>(packet.answers.size() * 2);
+        for (MdnsRecord knownAnswer : packet.answers) {
+            knownAnswers.merge(knownAnswer, knownAnswer.getTtl(), Math::max);
+        }
+        return knownAnswers;
+    }
+
+    private static boolean isKnownAnswer(MdnsRecord answer,
+            @NonNull Map<MdnsRecord, Long> knownAnswers) {
+        final Long knownTtl = knownAnswers.get(answer);
+        return knownTtl != null && knownTtl > (answer.getTtl() / 2);
     }
 
     /**
@@ -729,7 +847,7 @@ public class MdnsRecordRepository {
             @Nullable String hostname,
             boolean replyUnicastEnabled, long now, @NonNull Set<RecordInfo<?>> answerInfo,
             @NonNull Set<RecordInfo<?>> additionalAnswerInfo,
-            @NonNull List<MdnsRecord> knownAnswerRecords) {
+            @NonNull Map<MdnsRecord, Long> knownAnswers) {
         boolean hasDnsSdPtrRecordAnswer = false;
         boolean hasDnsSdSrvRecordAnswer = false;
         boolean hasFullyOwnedNameMatch = false;
@@ -768,7 +886,7 @@ public class MdnsRecordRepository {
             // send an answer so as to update the querier's cache before the record
             // becomes in danger of expiration.
             if (mMdnsFeatureFlags.isKnownAnswerSuppressionEnabled()
-                    && isKnownAnswer(info.record, knownAnswerRecords)) {
+                    && isKnownAnswer(info.record, knownAnswers)) {
                 continue;
             }
 
@@ -879,11 +997,9 @@ public class MdnsRecordRepository {
 
     /** Returns the number of unique records on this device for a given {@code name}. */
     private int countUniqueRecords(String[] name) {
-        int cnt = countUniqueRecords(mGeneralRecords, name);
-
-        for (int i = 0; i < mServices.size(); i++) {
-            final ServiceRegistration registration = mServices.valueAt(i);
-            cnt += countUniqueRecords(registration.allRecords, name);
+        int cnt = 0;
+        for (IndexedRecords indexed : getRecordsByName(name)) {
+            cnt += countUniqueRecords(indexed.records, name);
         }
         return cnt;
     }
@@ -1137,12 +1253,17 @@ public class MdnsRecordRepository {
         if (TextUtils.isEmpty(hostname)) {
             forEachAddressRecord(mGeneralRecords, records::add);
         } else {
-            forEachActiveServiceRegistrationWithHostname(
-                    hostname,
-                    (id, service) -> {
-                        if (service.isProbing) return;
-                        records.addAll(service.addressRecords);
-                    });
+            // Services with a custom host have address records named after it, so only the
+            // services with such records need to be visited.
+            for (IndexedRecords indexed : getRecordsByName(
+                    new String[] { hostname, LOCAL_TLD })) {
+                if (indexed.serviceId == NO_SERVICE) continue;
+                final ServiceRegistration service = mServices.get(indexed.serviceId);
+                if (service.exiting || service.isProbing) continue;
+                if (MdnsUtils.equalsIgnoreDnsCase(service.serviceInfo.getHostname(), hostname)) {
+                    records.addAll(service.addressRecords);
+                }
+            }
         }
         return records;
     }
@@ -1235,6 +1356,7 @@ public class MdnsRecordRepository {
         final ServiceRegistration newService = new ServiceRegistration(mDeviceHostname, newInfo,
                 existing.repliedServiceCount, existing.sentPacketCount, existing.ttl);
         mServices.put(serviceId, newService);
+        mRecordIndex = null;
         return makeProbingInfo(serviceId, newService);
     }
 
@@ -34,6 +34,7 @@ import com.android.net.module.util.SharedLog;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
@@ -73,6 +74,9 @@ public class MdnsReplySender {
     private final Map<InetSocketAddress, MdnsReplyInfo> mSrcReplies = new ArrayMap<>();
     @NonNull
     private final MdnsFeatureFlags mMdnsFeatureFlags;
+    // Announcements and replies are made of the same records most of the time.
+    @NonNull
+    private final MdnsPacketCache mPacketCache = new MdnsPacketCache();
 
     /**
      * Dependencies of MdnsReplySender, for injection in tests.
@@ -210,7 +214,9 @@ public class MdnsReplySender {
             // Skip sending if the socket has not joined the v4/v6 group (there was no address)
             return PACKET_NOT_SENT;
         }
-        final byte[] outBuffer = MdnsUtils.createRawDnsPacket(mPacketCreationBuffer, packet);
+        final byte[] outBuffer = mMdnsFeatureFlags.isCachedReplyPacketsEnabled()
+                ? mPacketCache.getOrCreateRawPacket(mPacketCreationBuffer, packet)
+                : MdnsUtils.createRawDnsPacket(mPacketCreationBuffer, packet);
         mSocket.send(new DatagramPacket(outBuffer, 0, outBuffer.length, destination));
         return PACKET_SENT;
     }
@@ -221,6 +227,17 @@ public class MdnsReplySender {
     public void cancelAll() {
         ensureRunningOnHandlerThread(mHandler);
         mDependencies.removeMessages(mHandler, MSG_SEND);
+        mPacketCache.clear();
+    }
+
+    /**
+     * Dump the reply sender stats.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        ensureRunningOnHandlerThread(mHandler);
+        pw.println("ReplySender: " + mSharedLog.getTag()
+                + " packetCacheHits=" + mPacketCache.getHitCount()
+                + " packetCacheMisses=" + mPacketCache.getMissCount());
     }
 
     private class SendHandler extends Handler {
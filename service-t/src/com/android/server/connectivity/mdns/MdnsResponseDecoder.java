@@ -19,14 +19,17 @@ package com.android.server.connectivity.mdns;
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.net.Network;
+import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Pair;
 
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.EOFException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -110,6 +113,182 @@ public class MdnsResponseDecoder {
         }
     }
 
+    /**
+     * Service types that records of received responses are filtered with, see
+     * {@link #parseResponse(byte[], int, MdnsFeatureFlags, ServiceTypeFilter)}.
+     *
+     * <p>The labels of the service types are converted to DNS lowercase and encoded once, so they
+     * can be compared with the labels of received packets without decoding them.
+     */
+    public static final class ServiceTypeFilter {
+        private static final byte[] SUBTYPE_LABEL =
+                MdnsConstants.SUBTYPE_LABEL.getBytes(MdnsConstants.getUtf8Charset());
+
+        @NonNull
+        private final byte[][][] mServiceTypes;
+
+        /**
+         * Creates a filter for the given service types.
+         *
+         * @param serviceTypes the service types, as dot-separated names such as
+         *                     "_http._tcp.local".
+         */
+        public ServiceTypeFilter(@NonNull Collection<String> serviceTypes) {
+            mServiceTypes = new byte[serviceTypes.size()][][];
+            int i = 0;
+            for (String serviceType : serviceTypes) {
+                final String[] labels = MdnsUtils.toDnsLabelsLowerCase(
+                        TextUtils.split(serviceType, "\\."));
+                final byte[][] encoded = new byte[labels.length][];
+                for (int j = 0; j < labels.length; j++) {
+                    encoded[j] = labels[j].getBytes(MdnsConstants.getUtf8Charset());
+                }
+                mServiceTypes[i++] = encoded;
+            }
+        }
+
+        // Whether the labels last read by the reader are one of the service types, or a subtype
+        // of one of them.
+        boolean matchesTypeOrSubtype(@NonNull MdnsPacketReader reader, int labelCount) {
+            for (byte[][] serviceType : mServiceTypes) {
+                if (reader.labelsEqualIgnoreDnsCase(0, serviceType)) return true;
+                if (labelCount == serviceType.length + 2
+                        && reader.labelEqualsIgnoreDnsCase(1, SUBTYPE_LABEL)
+                        && reader.labelsEqualIgnoreDnsCase(2, serviceType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Whether the labels last read by the reader are an instance name of one of the service
+        // types.
+        boolean matchesInstance(@NonNull MdnsPacketReader reader, int labelCount) {
+            for (byte[][] serviceType : mServiceTypes) {
+                if (labelCount > serviceType.length && reader.labelsEqualIgnoreDnsCase(
+                        labelCount - serviceType.length, serviceType)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the records of a response packet that are relevant to the given service types.
+     *
+     * <p>Unlike {@link #parseResponse(byte[], int, MdnsFeatureFlags)}, names are compared with the
+     * service types directly in the packet buffer, and records that are not relevant are skipped
+     * without being decoded. The returned packet has no questions, and only contains the address
+     * records, the PTR records of the service types or their subtypes, and the SRV and TXT
+     * records of their instances.
+     *
+     * @param recvbuf The received data buffer to read from.
+     * @param length The length of received data buffer.
+     * @param filter The service types to keep records for.
+     * @return A decoded {@link MdnsPacket}, or null if the packet has no relevant records.
+     * @throws MdnsPacket.ParseException if a response packet could not be parsed.
+     */
+    @Nullable
+    public static MdnsPacket parseResponse(@NonNull byte[] recvbuf, int length,
+            @NonNull MdnsFeatureFlags mdnsFeatureFlags, @NonNull ServiceTypeFilter filter)
+            throws MdnsPacket.ParseException {
+        final MdnsPacketReader reader = new MdnsPacketReader(recvbuf, length, mdnsFeatureFlags);
+
+        try {
+            final int transactionId = reader.readUInt16();
+            final int flags = reader.readUInt16();
+            if ((flags & MdnsConstants.FLAGS_RESPONSE_MASK) != MdnsConstants.FLAGS_RESPONSE) {
+                throw new MdnsPacket.ParseException(
+                        MdnsResponseErrorCode.ERROR_NOT_RESPONSE_MESSAGE, "Not a response", null);
+            }
+
+            final int numQuestions = reader.readUInt16();
+            final int numAnswers = reader.readUInt16();
+            final int numAuthority = reader.readUInt16();
+            final int numAdditional = reader.readUInt16();
+            if (numAnswers < 1) {
+                throw new MdnsPacket.ParseException(
+                        MdnsResponseErrorCode.ERROR_NO_ANSWERS, "Response has no answers",
+                        null);
+            }
+
+            for (int i = 0; i < numQuestions; i++) {
+                readRecordName(reader);
+                reader.skip(4); // Skip the type and class
+            }
+            final List<MdnsRecord> answers = parseRelevantRecords(reader, numAnswers, filter);
+            final List<MdnsRecord> authority = parseRelevantRecords(reader, numAuthority, filter);
+            final List<MdnsRecord> additional =
+                    parseRelevantRecords(reader, numAdditional, filter);
+            if (answers.isEmpty() && authority.isEmpty() && additional.isEmpty()) {
+                return null;
+            }
+            return new MdnsPacket(transactionId, flags, Collections.emptyList(), answers,
+                    authority, additional);
+        } catch (EOFException e) {
+            throw new MdnsPacket.ParseException(MdnsResponseErrorCode.ERROR_END_OF_FILE,
+                    "Reached the end of the mDNS response unexpectedly.", e);
+        }
+    }
+
+    private static int readRecordName(@NonNull MdnsPacketReader reader)
+            throws MdnsPacket.ParseException {
+        try {
+            return reader.readLabelOffsets();
+        } catch (IOException e) {
+            throw new MdnsPacket.ParseException(MdnsResponseErrorCode.ERROR_READING_RECORD_NAME,
+                    "Failed to read labels from mDNS response.", e);
+        }
+    }
+
+    @NonNull
+    private static List<MdnsRecord> parseRelevantRecords(@NonNull MdnsPacketReader reader,
+            int count, @NonNull ServiceTypeFilter filter)
+            throws MdnsPacket.ParseException, EOFException {
+        List<MdnsRecord> records = null;
+        for (int i = 0; i < count; i++) {
+            final int labelCount = readRecordName(reader);
+            final int type = reader.readUInt16();
+            if (!isRelevantRecord(reader, labelCount, type, filter)) {
+                try {
+                    MdnsPacket.skipMdnsRecord(reader, false /* isQuestion */);
+                } catch (IOException e) {
+                    throw new MdnsPacket.ParseException(
+                            MdnsResponseErrorCode.ERROR_SKIPPING_UNKNOWN_RECORD,
+                            "Failed to skip mDNS record.", e);
+                }
+                continue;
+            }
+            final MdnsRecord record = MdnsPacket.parseRecordData(reader, reader.decodeLabels(),
+                    type, false /* isQuestion */);
+            if (records == null) {
+                records = new ArrayList<>(count - i);
+            }
+            records.add(record);
+        }
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    private static boolean isRelevantRecord(@NonNull MdnsPacketReader reader, int labelCount,
+            int type, @NonNull ServiceTypeFilter filter) {
+        switch (type) {
+            case MdnsRecord.TYPE_A:
+            case MdnsRecord.TYPE_AAAA:
+                // Address records are matched by host name, which is only known from SRV records
+                // that may be in other packets.
+                return true;
+            case MdnsRecord.TYPE_PTR:
+                return filter.matchesTypeOrSubtype(reader, labelCount);
+            case MdnsRecord.TYPE_SRV:
+            case MdnsRecord.TYPE_TXT:
+                return filter.matchesInstance(reader, labelCount);
+            default:
+                // Other records are ignored by augmentResponses.
+                return false;
+        }
+    }
+
     /**
      * Augments a list of {@link MdnsResponse} with records from a packet. The class does not check
      * the resulting responses for completeness; the caller should do that.
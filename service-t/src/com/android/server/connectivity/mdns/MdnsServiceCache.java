@@ -21,8 +21,6 @@ import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningO
 import static com.android.server.connectivity.mdns.util.MdnsUtils.equalsIgnoreDnsCase;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.toDnsLowerCase;
 
-import static java.lang.Math.min;
-
 import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.os.Handler;
@@ -33,8 +31,9 @@ import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Objects;
 
@@ -73,14 +72,69 @@ public class MdnsServiceCache {
         }
     }
     /**
-     * A map of cached services. Key is composed of service type and socket. Value is the list of
-     * services which are discovered from the given CacheKey.
-     * When the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled, the lists are sorted
-     * by expiration time, with the earliest entries appearing first. This sorting allows the
-     * removal process to progress through the expiration check efficiently.
+     * A service in the cache, indexed by its name in {@link CachedServices} and linked in the
+     * expiration wheel slot of its expiration time.
+     */
+    private static class CachedService {
+        @NonNull final CacheKey mCacheKey;
+        @Nullable final String mLowercaseName;
+        @NonNull MdnsResponse mResponse;
+        long mExpirationTime = EXPIRATION_NEVER;
+        int mSlot = NO_SLOT;
+        @Nullable CachedService mPrev;
+        @Nullable CachedService mNext;
+
+        CachedService(@NonNull CacheKey cacheKey, @Nullable String lowercaseName,
+                @NonNull MdnsResponse response) {
+            mCacheKey = cacheKey;
+            mLowercaseName = lowercaseName;
+            mResponse = response;
+        }
+    }
+
+    /** The services discovered for a given CacheKey. */
+    private static class CachedServices {
+        /**
+         * The services keyed by their DNS-lowercase instance name, in the order in which they
+         * were last added or updated.
+         */
+        @NonNull
+        final LinkedHashMap<String, CachedService> mServices = new LinkedHashMap<>();
+        /**
+         * An immutable list of the responses of {@link #mServices}, or null if it changed since
+         * the list was built. Callers get this list, so reading the cache does not allocate
+         * unless the cache changed, and the lists callers hold never change.
+         */
+        @Nullable
+        List<MdnsResponse> mSnapshot;
+    }
+
+    // The expiration wheel has WHEEL_SLOTS slots of WHEEL_TICK_MS each. A service is linked in
+    // the slot of the tick in which it expires ; services expiring more than one revolution
+    // ahead are skipped when their slot is visited before their expiration time.
+    private static final long WHEEL_TICK_MS = 1000L;
+    // Must be a power of two.
+    private static final int WHEEL_SLOTS = 64;
+    private static final int NO_SLOT = -1;
+
+    /**
+     * A map of cached services. Key is composed of service type and socket. Value is the services
+     * which are discovered from the given CacheKey. Empty values are not kept in the map.
+     */
+    @NonNull
+    private final ArrayMap<CacheKey, CachedServices> mCachedServices = new ArrayMap<>();
+    /**
+     * The expiration wheel, only used when the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL
+     * flag is enabled. Each slot is the head of a doubly-linked list of services, so that
+     * services can be scheduled and unscheduled in constant time, and checking expirations only
+     * visits the slots of the ticks elapsed since the last check.
      */
     @NonNull
-    private final ArrayMap<CacheKey, List<MdnsResponse>> mCachedServices = new ArrayMap<>();
+    private final CachedService[] mExpirationWheel = new CachedService[WHEEL_SLOTS];
+    // The last tick whose slot was checked for expired services. Expirations in the past are
+    // scheduled in this tick.
+    private long mCurrentTick;
+    private int mScheduledServiceCount;
     /**
      * A map of service expire callbacks. Key is composed of service type and socket and value is
      * the callback listener.
@@ -93,7 +147,6 @@ public class MdnsServiceCache {
     private final MdnsFeatureFlags mMdnsFeatureFlags;
     @NonNull
     private final MdnsUtils.Clock mClock;
-    private long mNextExpirationTime = EXPIRATION_NEVER;
 
     public MdnsServiceCache(@NonNull Looper looper, @NonNull MdnsFeatureFlags mdnsFeatureFlags) {
         this(looper, mdnsFeatureFlags, new MdnsUtils.Clock());
@@ -110,6 +163,10 @@ public class MdnsServiceCache {
     /**
      * Get the cache services which are queried from given service type and socket.
      *
+     * <p>The returned list is immutable and is not affected by later changes to the cache.
+     * When the MdnsFeatureFlags#NSD_EXPIRED_SERVICES_REMOVAL flag is enabled, it is sorted by
+     * expiration time, with the earliest entries appearing first.
+     *
      * @param cacheKey the target CacheKey.
      * @return the set of services which matches the given service type.
      */
@@ -117,11 +174,30 @@ public class MdnsServiceCache {
     public List<MdnsResponse> getCachedServices(@NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
-            maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
+            maybeRemoveExpiredServices(mClock.elapsedRealtime());
+        }
+        final CachedServices services = mCachedServices.get(cacheKey);
+        if (services == null) {
+            return Collections.emptyList();
+        }
+        if (services.mSnapshot == null) {
+            services.mSnapshot = makeSnapshot(services);
+        }
+        return services.mSnapshot;
+    }
+
+    @NonNull
+    private List<MdnsResponse> makeSnapshot(@NonNull CachedServices services) {
+        final ArrayList<CachedService> sorted = new ArrayList<>(services.mServices.values());
+        if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
+            // The sort is stable, so services expiring at the same time stay in update order.
+            sorted.sort((o1, o2) -> Long.compare(o1.mExpirationTime, o2.mExpirationTime));
         }
-        return mCachedServices.containsKey(cacheKey)
-                ? Collections.unmodifiableList(new ArrayList<>(mCachedServices.get(cacheKey)))
-                : Collections.emptyList();
+        final MdnsResponse[] responses = new MdnsResponse[sorted.size()];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = sorted.get(i).mResponse;
+        }
+        return Collections.unmodifiableList(Arrays.asList(responses));
     }
 
     /**
@@ -141,6 +217,18 @@ public class MdnsServiceCache {
         return null;
     }
 
+    @Nullable
+    private static String toIndexKey(@Nullable String serviceName) {
+        return serviceName == null ? null : toDnsLowerCase(serviceName);
+    }
+
+    @Nullable
+    private CachedService findCachedService(@Nullable String serviceName,
+            @NonNull CacheKey cacheKey) {
+        final CachedServices services = mCachedServices.get(cacheKey);
+        return services == null ? null : services.mServices.get(toIndexKey(serviceName));
+    }
+
     /**
      * Get the cache service.
      *
@@ -152,24 +240,25 @@ public class MdnsServiceCache {
     public MdnsResponse getCachedService(@NonNull String serviceName, @NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
-            maybeRemoveExpiredServices(cacheKey, mClock.elapsedRealtime());
-        }
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
-            return null;
+            maybeRemoveExpiredServices(mClock.elapsedRealtime());
         }
-        final MdnsResponse response = findMatchedResponse(responses, serviceName);
-        return response != null ? new MdnsResponse(response) : null;
+        final CachedService service = findCachedService(serviceName, cacheKey);
+        return service != null ? new MdnsResponse(service.mResponse) : null;
     }
 
-    static void insertResponseAndSortList(
-            List<MdnsResponse> responses, MdnsResponse response, long now) {
-        // binarySearch returns "the index of the search key, if it is contained in the list;
-        // otherwise, (-(insertion point) - 1)"
-        final int searchRes = Collections.binarySearch(responses, response,
-                // Sort the list by ttl.
-                (o1, o2) -> Long.compare(o1.getMinRemainingTtl(now), o2.getMinRemainingTtl(now)));
-        responses.add(searchRes >= 0 ? searchRes : (-searchRes - 1), response);
+    /**
+     * Check whether a service is in the cache.
+     *
+     * <p>Unlike {@link #getCachedService}, this does not copy the response nor remove expired
+     * services, so it is suitable for checks done while processing a packet.
+     *
+     * @param serviceName the target service name.
+     * @param cacheKey the target CacheKey.
+     * @return whether a service with the given name is cached for the given CacheKey.
+     */
+    public boolean hasCachedService(@Nullable String serviceName, @NonNull CacheKey cacheKey) {
+        ensureRunningOnHandlerThread(mHandler);
+        return findCachedService(serviceName, cacheKey) != null;
     }
 
     /**
@@ -180,20 +269,25 @@ public class MdnsServiceCache {
      */
     public void addOrUpdateService(@NonNull CacheKey cacheKey, @NonNull MdnsResponse response) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.computeIfAbsent(
-                cacheKey, key -> new ArrayList<>());
-        // Remove existing service if present.
-        final MdnsResponse existing =
-                findMatchedResponse(responses, response.getServiceInstanceName());
-        responses.remove(existing);
+        final CachedServices services =
+                mCachedServices.computeIfAbsent(cacheKey, key -> new CachedServices());
+        final String indexKey = toIndexKey(response.getServiceInstanceName());
+        // Remove the existing service if present, so that the services stay in update order.
+        CachedService service = services.mServices.remove(indexKey);
+        if (service == null) {
+            service = new CachedService(cacheKey, indexKey, response);
+        } else {
+            service.mResponse = response;
+        }
+        services.mServices.put(indexKey, service);
+        services.mSnapshot = null;
         if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
             final long now = mClock.elapsedRealtime();
-            // Insert and sort service
-            insertResponseAndSortList(responses, response, now);
-            // Update the next expiration check time when a new service is added.
-            mNextExpirationTime = getNextExpirationTime(now);
-        } else {
-            responses.add(response);
+            unschedule(service);
+            // Responses without a service record never expire.
+            if (response.hasServiceRecord()) {
+                schedule(service, now + response.getMinRemainingTtl(now));
+            }
         }
     }
 
@@ -206,30 +300,21 @@ public class MdnsServiceCache {
     @Nullable
     public MdnsResponse removeService(@NonNull String serviceName, @NonNull CacheKey cacheKey) {
         ensureRunningOnHandlerThread(mHandler);
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
+        final CachedServices services = mCachedServices.get(cacheKey);
+        if (services == null) {
             return null;
         }
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        MdnsResponse removedResponse = null;
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
-            if (equalsIgnoreDnsCase(serviceName, response.getServiceInstanceName())) {
-                iterator.remove();
-                removedResponse = response;
-                break;
-            }
+        final CachedService service = services.mServices.remove(toIndexKey(serviceName));
+        if (service == null) {
+            return null;
         }
-
-        if (mMdnsFeatureFlags.mIsExpiredServicesRemovalEnabled) {
+        services.mSnapshot = null;
+        if (services.mServices.isEmpty()) {
             // Remove the serviceType if no response.
-            if (responses.isEmpty()) {
-                mCachedServices.remove(cacheKey);
-            }
-            // Update the next expiration check time when a service is removed.
-            mNextExpirationTime = getNextExpirationTime(mClock.elapsedRealtime());
+            mCachedServices.remove(cacheKey);
         }
-        return removedResponse;
+        unschedule(service);
+        return service.mResponse;
     }
 
     /**
@@ -267,75 +352,77 @@ public class MdnsServiceCache {
         mHandler.post(()-> callback.onServiceRecordExpired(previousResponse, newResponse));
     }
 
-    static List<MdnsResponse> removeExpiredServices(@NonNull List<MdnsResponse> responses,
-            long now) {
-        final List<MdnsResponse> removedResponses = new ArrayList<>();
-        final Iterator<MdnsResponse> iterator = responses.iterator();
-        while (iterator.hasNext()) {
-            final MdnsResponse response = iterator.next();
-            // TODO: Check other records (A, AAAA, TXT) ttl time and remove the record if it's
-            //  expired. Then send service update notification.
-            if (!response.hasServiceRecord() || response.getMinRemainingTtl(now) > 0) {
-                // The responses are sorted by the service record ttl time. Break out of loop
-                // early if service is not expired or no service record.
-                break;
-            }
-            // Remove the ttl expired service.
-            iterator.remove();
-            removedResponses.add(response);
-        }
-        return removedResponses;
+    private void schedule(@NonNull CachedService service, long expirationTime) {
+        service.mExpirationTime = expirationTime;
+        final long tick = Math.max(expirationTime / WHEEL_TICK_MS, mCurrentTick);
+        final int slot = (int) (tick & (WHEEL_SLOTS - 1));
+        service.mSlot = slot;
+        service.mPrev = null;
+        service.mNext = mExpirationWheel[slot];
+        if (service.mNext != null) service.mNext.mPrev = service;
+        mExpirationWheel[slot] = service;
+        mScheduledServiceCount++;
     }
 
-    private long getNextExpirationTime(long now) {
-        if (mCachedServices.isEmpty()) {
-            return EXPIRATION_NEVER;
-        }
-
-        long minRemainingTtl = EXPIRATION_NEVER;
-        for (int i = 0; i < mCachedServices.size(); i++) {
-            minRemainingTtl = min(minRemainingTtl,
-                    // The empty lists are not kept in the map, so there's always at least one
-                    // element in the list. Therefore, it's fine to get the first element without a
-                    // null check.
-                    mCachedServices.valueAt(i).get(0).getMinRemainingTtl(now));
+    private void unschedule(@NonNull CachedService service) {
+        if (service.mSlot == NO_SLOT) return;
+        if (service.mPrev != null) {
+            service.mPrev.mNext = service.mNext;
+        } else {
+            mExpirationWheel[service.mSlot] = service.mNext;
         }
-        return minRemainingTtl == EXPIRATION_NEVER ? EXPIRATION_NEVER : now + minRemainingTtl;
+        if (service.mNext != null) service.mNext.mPrev = service.mPrev;
+        service.mPrev = null;
+        service.mNext = null;
+        service.mSlot = NO_SLOT;
+        service.mExpirationTime = EXPIRATION_NEVER;
+        mScheduledServiceCount--;
     }
 
     /**
-     * Check whether the ttl time is expired on each service and notify to the listeners
+     * Remove the services whose ttl expired from the cache and notify the listeners.
+     *
+     * <p>Only the slots of the ticks elapsed since the last check are visited.
      */
-    private void maybeRemoveExpiredServices(CacheKey cacheKey, long now) {
-        ensureRunningOnHandlerThread(mHandler);
-        if (now < mNextExpirationTime) {
-            // Skip the check if ttl time is not expired.
+    private void maybeRemoveExpiredServices(long now) {
+        final long nowTick = now / WHEEL_TICK_MS;
+        if (mScheduledServiceCount == 0) {
+            mCurrentTick = Math.max(mCurrentTick, nowTick);
             return;
         }
-
-        final List<MdnsResponse> responses = mCachedServices.get(cacheKey);
-        if (responses == null) {
-            // No such services.
-            return;
+        // A full revolution visits all slots, so there is no need to visit more ticks.
+        final long firstTick = Math.max(mCurrentTick, nowTick - WHEEL_SLOTS + 1);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            CachedService service = mExpirationWheel[(int) (tick & (WHEEL_SLOTS - 1))];
+            while (service != null) {
+                final CachedService next = service.mNext;
+                if (service.mExpirationTime <= now) {
+                    expireService(service, now);
+                }
+                service = next;
+            }
         }
+        mCurrentTick = Math.max(mCurrentTick, nowTick);
+    }
 
-        final List<MdnsResponse> removedResponses = removeExpiredServices(responses, now);
-        if (removedResponses.isEmpty()) {
-            // No expired services.
+    private void expireService(@NonNull CachedService service, long now) {
+        unschedule(service);
+        // TODO: Check other records (A, AAAA, TXT) ttl time and remove the record if it's
+        //  expired. Then send service update notification.
+        final long remainingTtl = service.mResponse.getMinRemainingTtl(now);
+        if (remainingTtl > 0) {
+            // Records received with RECEIPT_TIME_NOT_SENT do not age.
+            schedule(service, now + remainingTtl);
             return;
         }
-
-        for (MdnsResponse previousResponse : removedResponses) {
-            notifyServiceExpired(cacheKey, previousResponse, null /* newResponse */);
-        }
-
-        // Remove the serviceType if no response.
-        if (responses.isEmpty()) {
-            mCachedServices.remove(cacheKey);
+        final CachedServices services = mCachedServices.get(service.mCacheKey);
+        services.mServices.remove(service.mLowercaseName);
+        services.mSnapshot = null;
+        if (services.mServices.isEmpty()) {
+            // Remove the serviceType if no response.
+            mCachedServices.remove(service.mCacheKey);
         }
-
-        // Update next expiration time.
-        mNextExpirationTime = getNextExpirationTime(now);
+        notifyServiceExpired(service.mCacheKey, service.mResponse, null /* newResponse */);
     }
 
     /*** Callbacks for listening service expiration */
@@ -17,7 +17,6 @@
 package com.android.server.connectivity.mdns;
 
 import static com.android.server.connectivity.mdns.MdnsServiceCache.ServiceExpiredCallback;
-import static com.android.server.connectivity.mdns.MdnsServiceCache.findMatchedResponse;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.Clock;
 import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningOnHandlerThread;
 
@@ -71,6 +70,7 @@ public class MdnsServiceTypeClient {
     @NonNull private final Handler handler;
     @NonNull private final MdnsQueryScheduler mdnsQueryScheduler;
     @NonNull private final Dependencies dependencies;
+    @Nullable private final MdnsQueryAggregator queryAggregator;
     /**
      * The service caches for each socket. It should be accessed from looper thread only.
      */
@@ -237,8 +237,27 @@ public class MdnsServiceTypeClient {
             @NonNull SharedLog sharedLog,
             @NonNull Looper looper,
             @NonNull MdnsServiceCache serviceCache) {
+        this(serviceType, socketClient, executor, socketKey, sharedLog, looper, serviceCache,
+                null /* queryAggregator */);
+    }
+
+    /**
+     * Constructor of {@link MdnsServiceTypeClient}.
+     *
+     * @param queryAggregator Aggregator that queries are enqueued to, or null to send them
+     *                        directly.
+     */
+    public MdnsServiceTypeClient(
+            @NonNull String serviceType,
+            @NonNull MdnsSocketClientBase socketClient,
+            @NonNull ScheduledExecutorService executor,
+            @NonNull SocketKey socketKey,
+            @NonNull SharedLog sharedLog,
+            @NonNull Looper looper,
+            @NonNull MdnsServiceCache serviceCache,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this(serviceType, socketClient, executor, new Clock(), socketKey, sharedLog, looper,
-                new Dependencies(), serviceCache);
+                new Dependencies(), serviceCache, queryAggregator);
     }
 
     @VisibleForTesting
@@ -252,6 +271,22 @@ public class MdnsServiceTypeClient {
             @NonNull Looper looper,
             @NonNull Dependencies dependencies,
             @NonNull MdnsServiceCache serviceCache) {
+        this(serviceType, socketClient, executor, clock, socketKey, sharedLog, looper,
+                dependencies, serviceCache, null /* queryAggregator */);
+    }
+
+    @VisibleForTesting
+    public MdnsServiceTypeClient(
+            @NonNull String serviceType,
+            @NonNull MdnsSocketClientBase socketClient,
+            @NonNull ScheduledExecutorService executor,
+            @NonNull Clock clock,
+            @NonNull SocketKey socketKey,
+            @NonNull SharedLog sharedLog,
+            @NonNull Looper looper,
+            @NonNull Dependencies dependencies,
+            @NonNull MdnsServiceCache serviceCache,
+            @Nullable MdnsQueryAggregator queryAggregator) {
         this.serviceType = serviceType;
         this.socketClient = socketClient;
         this.executor = executor;
@@ -265,6 +300,7 @@ public class MdnsServiceTypeClient {
         this.serviceCache = serviceCache;
         this.mdnsQueryScheduler = new MdnsQueryScheduler();
         this.cacheKey = new MdnsServiceCache.CacheKey(serviceType, socketKey);
+        this.queryAggregator = queryAggregator;
     }
 
     /**
@@ -467,12 +503,12 @@ public class MdnsServiceTypeClient {
         ensureRunningOnHandlerThread(handler);
         // Augment the list of current known responses, and generated responses for resolve
         // requests if there is no known response
-        final List<MdnsResponse> cachedList = serviceCache.getCachedServices(cacheKey);
-        final List<MdnsResponse> currentList = new ArrayList<>(cachedList);
+        final List<MdnsResponse> currentList =
+                new ArrayList<>(serviceCache.getCachedServices(cacheKey));
         List<MdnsResponse> additionalResponses = makeResponsesForResolve(socketKey);
         for (MdnsResponse additionalResponse : additionalResponses) {
-            if (findMatchedResponse(
-                    cachedList, additionalResponse.getServiceInstanceName()) == null) {
+            if (!serviceCache.hasCachedService(
+                    additionalResponse.getServiceInstanceName(), cacheKey)) {
                 currentList.add(additionalResponse);
             }
         }
@@ -491,7 +527,7 @@ public class MdnsServiceTypeClient {
                 } else {
                     onResponseModified(response);
                 }
-            } else if (findMatchedResponse(cachedList, serviceInstanceName) != null) {
+            } else if (serviceCache.hasCachedService(serviceInstanceName, cacheKey)) {
                 // If the response is not modified and already in the cache. The cache will
                 // need to be updated to refresh the last receipt time.
                 serviceCache.addOrUpdateService(cacheKey, response);
@@ -694,6 +730,7 @@ public class MdnsServiceTypeClient {
         private final List<MdnsResponse> servicesToResolve = new ArrayList<>();
         private final List<String> subtypes = new ArrayList<>();
         private final boolean sendDiscoveryQueries;
+        private final List<MdnsPointerRecord> knownAnswers;
         QueryTask(@NonNull MdnsQueryScheduler.ScheduledQueryTaskArgs taskArgs,
                 @NonNull Collection<MdnsResponse> servicesToResolve,
                 @NonNull Collection<String> subtypes,
@@ -702,6 +739,8 @@ public class MdnsServiceTypeClient {
             this.servicesToResolve.addAll(servicesToResolve);
             this.subtypes.addAll(subtypes);
             this.sendDiscoveryQueries = sendDiscoveryQueries;
+            this.knownAnswers = queryAggregator == null
+                    ? Collections.emptyList() : makeKnownAnswers();
         }
 
         @Override
@@ -721,7 +760,9 @@ public class MdnsServiceTypeClient {
                                 sendDiscoveryQueries,
                                 servicesToResolve,
                                 clock,
-                                sharedLog)
+                                sharedLog,
+                                knownAnswers,
+                                queryAggregator)
                                 .call();
             } catch (RuntimeException e) {
                 sharedLog.e(String.format("Failed to run EnqueueMdnsQueryCallable for subtype: %s",
@@ -734,6 +775,21 @@ public class MdnsServiceTypeClient {
         }
     }
 
+    // PTR records of the service type and its subtypes that do not need to be renewed yet, to be
+    // sent as known answers of the discovery queries (RFC6762 7.1).
+    private List<MdnsPointerRecord> makeKnownAnswers() {
+        final long now = clock.elapsedRealtime();
+        final List<MdnsPointerRecord> knownAnswers = new ArrayList<>();
+        for (MdnsResponse response : serviceCache.getCachedServices(cacheKey)) {
+            for (MdnsPointerRecord pointerRecord : response.getPointerRecords()) {
+                if (!MdnsUtils.isRecordRenewalNeeded(pointerRecord, now)) {
+                    knownAnswers.add(pointerRecord);
+                }
+            }
+        }
+        return knownAnswers;
+    }
+
     private long getMinRemainingTtl(long now) {
         long minRemainingTtl = Long.MAX_VALUE;
         for (MdnsResponse response : serviceCache.getCachedServices(cacheKey)) {
@@ -74,6 +74,16 @@ public interface MdnsSocketClientBase {
         /*** Parse a mdns response failed */
         void onFailedToParseMdnsResponse(int receivedPacketNumber, int errorCode,
                 @NonNull SocketKey socketKey);
+
+        /**
+         * Gets the service types that responses received on the given socket are filtered with,
+         * or null to receive all records. Called on the looper of the socket client.
+         */
+        @Nullable
+        default MdnsResponseDecoder.ServiceTypeFilter getServiceTypeFilter(
+                @NonNull SocketKey socketKey) {
+            return null;
+        }
     }
 
     /*** Callback for requested socket creation  */
@@ -53,6 +53,7 @@ import com.android.net.module.util.LinkPropertiesUtils.CompareResult;
 import com.android.net.module.util.SharedLog;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -740,6 +741,22 @@ public class MdnsSocketProvider {
         maybeStopMonitoringSockets();
     }
 
+    /**
+     * Dump the receive statistics of each socket.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        ensureRunningOnHandlerThread(mHandler);
+        pw.println("Sockets:");
+        for (int i = 0; i < mNetworkSockets.size(); i++) {
+            final SocketInfo info = mNetworkSockets.valueAt(i);
+            pw.println("  " + info.mSocketKey + " " + info.mSocket.getReceiveStats());
+        }
+        for (int i = 0; i < mTetherInterfaceSockets.size(); i++) {
+            final SocketInfo info = mTetherInterfaceSockets.valueAt(i);
+            pw.println("  " + mTetherInterfaceSockets.keyAt(i) + " " + info.mSocketKey + " "
+                    + info.mSocket.getReceiveStats());
+        }
+    }
 
     /**
      * Callback used to register socket requests.
@@ -21,17 +21,31 @@ import static com.android.server.connectivity.mdns.util.MdnsUtils.ensureRunningO
 import android.annotation.NonNull;
 import android.os.Handler;
 import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
 import android.system.Os;
+import android.system.OsConstants;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.FdEventsReader;
 import com.android.server.connectivity.mdns.util.MdnsUtils;
 
 import java.io.FileDescriptor;
 import java.net.InetSocketAddress;
+import java.net.SocketException;
 import java.util.Set;
 
-/** Simple reader for mDNS packets. */
+/**
+ * Simple reader for mDNS packets.
+ *
+ * <p>All readers of a {@link MdnsSocketProvider} share the same looper, which polls their sockets
+ * together, and the same receive buffer. To keep a socket flooded with packets from delaying the
+ * others, at most {@link #MAX_PACKETS_PER_READ} packets are read each time the socket is polled;
+ * the remaining packets are read once the looper has polled the other sockets again.
+ */
 public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.RecvBuffer> {
+    @VisibleForTesting
+    static final int MAX_PACKETS_PER_READ = 16;
+
     @NonNull
     private final String mLogTag;
     @NonNull
@@ -41,6 +55,14 @@ public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.
     @NonNull
     private final Set<PacketHandler> mPacketHandlers = MdnsUtils.newSet();
 
+    // The following are only accessed on the handler thread.
+    private int mPacketsInRead;
+    private long mPacketCount;
+    private long mTruncatedPacketCount;
+    private long mReadCount;
+    private long mBackloggedReadCount;
+    private int mMaxPacketsPerRead;
+
     interface PacketHandler {
         /**
          * Handle an incoming packet.
@@ -51,6 +73,40 @@ public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.
         void handlePacket(byte[] recvbuf, int length, InetSocketAddress src);
     }
 
+    /**
+     * Statistics of the packets received on a socket.
+     */
+    public static final class ReceiveStats {
+        /** Number of packets received. */
+        public final long packetCount;
+        /** Number of packets that were larger than the receive buffer, and truncated. */
+        public final long truncatedPacketCount;
+        /** Number of times packets were read after the socket was polled. */
+        public final long readCount;
+        /** Number of reads that stopped with packets still queued on the socket. */
+        public final long backloggedReadCount;
+        /** Maximum number of packets queued on the socket when it was polled, up to the limit. */
+        public final int maxPacketsPerRead;
+
+        ReceiveStats(long packetCount, long truncatedPacketCount, long readCount,
+                long backloggedReadCount, int maxPacketsPerRead) {
+            this.packetCount = packetCount;
+            this.truncatedPacketCount = truncatedPacketCount;
+            this.readCount = readCount;
+            this.backloggedReadCount = backloggedReadCount;
+            this.maxPacketsPerRead = maxPacketsPerRead;
+        }
+
+        @Override
+        public String toString() {
+            return "packets=" + packetCount
+                    + " truncated=" + truncatedPacketCount
+                    + " reads=" + readCount
+                    + " backlogged=" + backloggedReadCount
+                    + " maxPacketsPerRead=" + maxPacketsPerRead;
+        }
+    }
+
     public static final class RecvBuffer {
         final byte[] data;
         final InetSocketAddress src;
@@ -97,12 +153,46 @@ public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.
     @Override
     protected int readPacket(@NonNull FileDescriptor fd, @NonNull RecvBuffer buffer)
             throws Exception {
-        return Os.recvfrom(
-                fd, buffer.data, 0, buffer.data.length, 0 /* flags */, buffer.src);
+        if (mPacketsInRead >= MAX_PACKETS_PER_READ) {
+            // Yield to the other sockets: if the socket is still readable, the looper will poll
+            // it again on its next iteration.
+            if (hasQueuedPacket(fd, buffer)) mBackloggedReadCount++;
+            endRead();
+            throw new ErrnoException("recvfrom", OsConstants.EAGAIN);
+        }
+        try {
+            return Os.recvfrom(
+                    fd, buffer.data, 0, buffer.data.length, 0 /* flags */, buffer.src);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.EAGAIN) endRead();
+            throw e;
+        }
+    }
+
+    private static boolean hasQueuedPacket(@NonNull FileDescriptor fd,
+            @NonNull RecvBuffer buffer) {
+        try {
+            Os.recvfrom(fd, buffer.data, 0, 1,
+                    OsConstants.MSG_PEEK | OsConstants.MSG_DONTWAIT, null /* srcAddress */);
+            return true;
+        } catch (ErrnoException | SocketException e) {
+            return false;
+        }
+    }
+
+    private void endRead() {
+        if (mPacketsInRead == 0) return;
+        mReadCount++;
+        mMaxPacketsPerRead = Math.max(mMaxPacketsPerRead, mPacketsInRead);
+        mPacketsInRead = 0;
     }
 
     @Override
     protected void handlePacket(@NonNull RecvBuffer recvbuf, int length) {
+        mPacketsInRead++;
+        mPacketCount++;
+        // recvfrom returns the size of the buffer if the packet was larger.
+        if (length >= recvbuf.data.length) mTruncatedPacketCount++;
         for (PacketHandler handler : mPacketHandlers) {
             handler.handlePacket(recvbuf.data, length, recvbuf.src);
         }
@@ -125,5 +215,15 @@ public class MulticastPacketReader extends FdEventsReader<MulticastPacketReader.
         ensureRunningOnHandlerThread(mHandler);
         mPacketHandlers.remove(handler);
     }
+
+    /**
+     * Get the statistics of the packets received so far.
+     */
+    @NonNull
+    public ReceiveStats getReceiveStats() {
+        ensureRunningOnHandlerThread(mHandler);
+        return new ReceiveStats(mPacketCount, mTruncatedPacketCount, mReadCount,
+                mBackloggedReadCount, mMaxPacketsPerRead);
+    }
 }
 
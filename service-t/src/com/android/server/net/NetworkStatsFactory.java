@@ -27,6 +27,7 @@ import android.net.NetworkStats;
 import android.net.UnderlyingNetworkInfo;
 import android.os.ServiceSpecificException;
 import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
@@ -73,24 +74,39 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats mTunAnd464xlatAdjustedStats;
 
+    // Number of reads of detailed stats, and the rows and bytes read from BPF by the last one.
+    @GuardedBy("mPersistentDataLock")
+    private long mDetailReads;
+    @GuardedBy("mPersistentDataLock")
+    private int mLastDetailRows;
+    @GuardedBy("mPersistentDataLock")
+    private long mLastDetailBytes;
+
     private final Dependencies mDeps;
     /**
      * Dependencies of NetworkStatsFactory, for injection in tests.
      */
     @VisibleForTesting
     public static class Dependencies {
+        // Reused by every read of detailed stats, so that its arrays are not reallocated on
+        // every poll.
+        private final NetworkStats mDetailStats = new NetworkStats(0L, 0);
+
         /**
          * Parse detailed statistics from bpf into given {@link NetworkStats} object. Values
          * are expected to monotonically increase since device boot.
+         *
+         * <p>The returned object is reused by the next call, so callers must not keep it, and
+         * calls must be serialized.
          */
         @NonNull
         public NetworkStats getNetworkStatsDetail() throws IOException {
-            final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 0);
-            final int ret = nativeReadNetworkStatsDetail(stats);
-            if (ret != 0) {
+            mDetailStats.setElapsedRealtime(SystemClock.elapsedRealtime());
+            final int ret = nativeReadNetworkStatsDetail(mDetailStats);
+            if (ret < 0) {
                 throw new IOException("Failed to parse network stats");
             }
-            return stats;
+            return mDetailStats;
         }
         /**
          * Parse device summary statistics from bpf into given {@link NetworkStats} object. Values
@@ -100,7 +116,7 @@ public class NetworkStatsFactory {
         public NetworkStats getNetworkStatsDev() throws IOException {
             final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 6);
             final int ret = nativeReadNetworkStatsDev(stats);
-            if (ret != 0) {
+            if (ret < 0) {
                 throw new IOException("Failed to parse bpf iface stats");
             }
             return stats;
@@ -211,6 +227,9 @@ public class NetworkStatsFactory {
             // Stats are always read from the inactive map, so they must be read after the
             // swap
             final NetworkStats stats = mDeps.getNetworkStatsDetail();
+            mDetailReads++;
+            mLastDetailRows = stats.size();
+            mLastDetailBytes = stats.getTotalBytes();
             // BPF stats are incremental; fold into mPersistSnapshot.
             mPersistSnapshot.setElapsedRealtime(stats.getElapsedRealtime());
             mPersistSnapshot.combineAllValues(stats);
@@ -261,6 +280,15 @@ public class NetworkStatsFactory {
         }
     }
 
+    /** Dump counters about the reads of detailed stats. */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mPersistentDataLock) {
+            pw.println("Detail reads: " + mDetailReads);
+            pw.println("Last detail read: rows=" + mLastDetailRows
+                    + " bytes=" + mLastDetailBytes);
+        }
+    }
+
     public void assertEquals(NetworkStats expected, NetworkStats actual) {
         if (expected.size() != actual.size()) {
             throw new AssertionError(
@@ -295,6 +323,8 @@ public class NetworkStatsFactory {
     /**
      * Parse statistics from file into given {@link NetworkStats} object. Values
      * are expected to monotonically increase since device boot.
+     *
+     * @return the number of rows read, or a negative value on error.
      */
     @VisibleForTesting
     public static native int nativeReadNetworkStatsDetail(NetworkStats stats);
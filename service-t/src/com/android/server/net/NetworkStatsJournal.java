@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkStatsCollection;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of {@link NetworkStatsCollection} deltas, used by
+ * {@link NetworkStatsRecorder} to persist pending stats without rewriting the whole active
+ * {@link com.android.internal.util.FileRotator} file every time.
+ *
+ * <p>Each record is a {@link NetworkStatsCollection#write} of the buckets dirtied since the
+ * previous record, framed as:
+ * <pre>
+ *   record := magic(int) timeMillis(long) length(int) payload(byte[length]) crc32(long)
+ * </pre>
+ * Replaying the records in order into an empty collection yields the sum of all deltas. A
+ * record with an empty payload only carries its time. A record that is truncated or fails its
+ * checksum, such as one being written during a crash, ends the valid part of the journal; it is
+ * dropped together with anything after it.
+ * <p>
+ * Not inherently thread safe.
+ */
+final class NetworkStatsJournal {
+    private static final String TAG = "NetworkStatsJournal";
+
+    /** Suffix of journal file names, appended to the recorder prefix. */
+    static final String SUFFIX = ".journal";
+    /** Suffix appended to the journal file name while its contents are being compacted. */
+    static final String COMPACTING_SUFFIX = ".compacting";
+
+    private static final int RECORD_MAGIC = 0x4E534A31; // "NSJ1"
+    // magic + timeMillis + length, and the trailing crc32.
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final int RECORD_TRAILER_SIZE = 8;
+
+    @NonNull
+    private final File mFile;
+    @NonNull
+    private final File mTempFile;
+
+    // Whether any torn tail left by a previous process was truncated. Appending after a
+    // torn record would make the new records unreachable on replay.
+    private boolean mTailChecked;
+    // Time of the first valid record, or -1 if the journal is empty or unknown.
+    private long mFirstRecordMillis = -1;
+    // Time of the last valid record, or -1 if the journal is empty or unknown.
+    private long mLastRecordMillis = -1;
+
+    NetworkStatsJournal(@NonNull File file) {
+        mFile = Objects.requireNonNull(file, "missing journal file");
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /** Whether there is anything to replay. */
+    boolean exists() {
+        return mFile.length() > 0;
+    }
+
+    /** Size of the journal on disk, in bytes. */
+    long length() {
+        return mFile.length();
+    }
+
+    /**
+     * Time passed to {@link #append} for the oldest record in the journal, or -1 if the journal
+     * is empty.
+     */
+    long getFirstRecordMillis() throws IOException {
+        if (!mTailChecked) checkTail();
+        return mFirstRecordMillis;
+    }
+
+    /**
+     * Time passed to {@link #append} for the newest record in the journal, or -1 if the journal
+     * is empty.
+     */
+    long getLastRecordMillis() throws IOException {
+        if (!mTailChecked) checkTail();
+        return mLastRecordMillis;
+    }
+
+    /**
+     * Append a record containing all entries of {@code delta}, and sync it to disk.
+     */
+    void append(@NonNull NetworkStatsCollection delta, long timeMillis) throws IOException {
+        if (!mTailChecked) checkTail();
+        final byte[] record = encodeRecord(delta, timeMillis);
+        try (FileOutputStream out = new FileOutputStream(mFile, true /* append */)) {
+            out.write(record);
+            out.getFD().sync();
+        }
+        if (mFirstRecordMillis == -1) mFirstRecordMillis = timeMillis;
+        mLastRecordMillis = timeMillis;
+    }
+
+    /**
+     * Replay all valid records into the given collection.
+     *
+     * @return the number of records replayed.
+     */
+    int replay(@NonNull NetworkStatsCollection into) throws IOException {
+        return scan(into).records;
+    }
+
+    /**
+     * Atomically replace the journal contents with a record of {@code collection} at
+     * {@code firstMillis}, keeping {@code lastMillis} as the time of the last record.
+     */
+    void rewrite(@NonNull NetworkStatsCollection collection, long firstMillis, long lastMillis)
+            throws IOException {
+        try (FileOutputStream out = new FileOutputStream(mTempFile)) {
+            out.write(encodeRecord(collection, firstMillis));
+            if (lastMillis != firstMillis) {
+                out.write(encodeRecord(null /* collection */, lastMillis));
+            }
+            out.getFD().sync();
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("failed to replace " + mFile);
+        }
+        mTailChecked = true;
+        mFirstRecordMillis = firstMillis;
+        mLastRecordMillis = lastMillis;
+    }
+
+    /**
+     * Atomically move the journal contents to {@code dest}, which must not exist, leaving this
+     * journal empty.
+     */
+    void renameTo(@NonNull NetworkStatsJournal dest) throws IOException {
+        if (dest.exists()) throw new IOException(dest.mFile + " already exists");
+        if (!mFile.renameTo(dest.mFile)) {
+            throw new IOException("failed to rename " + mFile + " to " + dest.mFile);
+        }
+        dest.mTailChecked = false;
+        mTempFile.delete();
+        mTailChecked = true;
+        mFirstRecordMillis = -1;
+        mLastRecordMillis = -1;
+    }
+
+    /** Delete the journal, e.g. after its contents were compacted elsewhere. */
+    void delete() {
+        mFile.delete();
+        mTempFile.delete();
+        mTailChecked = true;
+        mFirstRecordMillis = -1;
+        mLastRecordMillis = -1;
+    }
+
+    private static byte[] encodeRecord(@Nullable NetworkStatsCollection collection,
+            long timeMillis) throws IOException {
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        if (collection != null) collection.write(payload);
+        final CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(
+                RECORD_HEADER_SIZE + payload.size() + RECORD_TRAILER_SIZE);
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(RECORD_MAGIC);
+        out.writeLong(timeMillis);
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.writeLong(crc.getValue());
+        out.flush();
+        return record.toByteArray();
+    }
+
+    /** Truncate any invalid tail so that new records are appended after the last valid one. */
+    private void checkTail() throws IOException {
+        final ScanResult result = scan(null);
+        if (result.validLength < mFile.length()) {
+            Log.w(TAG, "Dropping " + (mFile.length() - result.validLength)
+                    + " invalid trailing bytes from " + mFile);
+            try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                raf.setLength(result.validLength);
+            }
+        }
+        mTailChecked = true;
+    }
+
+    private static class ScanResult {
+        int records;
+        long validLength;
+    }
+
+    @NonNull
+    private ScanResult scan(@Nullable NetworkStatsCollection into) throws IOException {
+        final ScanResult result = new ScanResult();
+        final long fileLength = mFile.length();
+        long firstRecordMillis = -1;
+        long lastRecordMillis = -1;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            final CRC32 crc = new CRC32();
+            while (result.validLength + RECORD_HEADER_SIZE + RECORD_TRAILER_SIZE
+                    <= fileLength) {
+                if (in.readInt() != RECORD_MAGIC) break;
+                final long timeMillis = in.readLong();
+                final int length = in.readInt();
+                if (length < 0 || result.validLength + RECORD_HEADER_SIZE + length
+                        + RECORD_TRAILER_SIZE > fileLength) {
+                    break;
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) break;
+
+                if (into != null && length > 0) {
+                    into.read(new ByteArrayInputStream(payload));
+                }
+                if (firstRecordMillis == -1) firstRecordMillis = timeMillis;
+                lastRecordMillis = timeMillis;
+                result.records++;
+                result.validLength += RECORD_HEADER_SIZE + length + RECORD_TRAILER_SIZE;
+            }
+        } catch (FileNotFoundException e) {
+            // No journal yet.
+        } catch (EOFException e) {
+            // Torn tail; everything up to result.validLength is usable.
+        }
+        mFirstRecordMillis = firstRecordMillis;
+        mLastRecordMillis = lastRecordMillis;
+        mTailChecked = mTailChecked || result.validLength == fileLength;
+        return result;
+    }
+}
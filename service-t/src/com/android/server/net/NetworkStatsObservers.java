@@ -23,12 +23,11 @@ import android.app.usage.NetworkStatsManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.DataUsageRequest;
+import android.net.NetworkIdentity;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStack;
 import android.net.NetworkStats;
 import android.net.NetworkStatsAccess;
-import android.net.NetworkStatsCollection;
-import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.netstats.IUsageCallback;
 import android.os.Handler;
@@ -42,6 +41,7 @@ import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.PerUidCounter;
@@ -78,6 +78,12 @@ class NetworkStatsObservers {
     // Sequence number of DataUsageRequests
     private final AtomicInteger mNextDataUsageRequestId = new AtomicInteger();
 
+    // Last snapshots received, against which the next deltas are computed. Only accessed from
+    // the handler thread. Kept even when there are no observers, so that the delta seen by a new
+    // observer covers a single polling interval.
+    private NetworkStats mLastXtSnapshot;
+    private NetworkStats mLastUidSnapshot;
+
     // Lazily instantiated when an observer is registered.
     private volatile Handler mHandler;
 
@@ -209,16 +215,32 @@ class NetworkStatsObservers {
     }
 
     private void handleUpdateStats(StatsContext statsContext) {
+        final NetworkStats lastXtSnapshot = mLastXtSnapshot;
+        final NetworkStats lastUidSnapshot = mLastUidSnapshot;
+        if (statsContext.mXtSnapshot != null) mLastXtSnapshot = statsContext.mXtSnapshot;
+        if (statsContext.mUidSnapshot != null) mLastUidSnapshot = statsContext.mUidSnapshot;
+
         if (mDataUsageRequests.size() == 0) {
             return;
         }
 
+        final StatsDelta xtDelta = new StatsDelta(
+                subtract(statsContext.mXtSnapshot, lastXtSnapshot), statsContext.mActiveIfaces);
+        final StatsDelta uidDelta = new StatsDelta(
+                subtract(statsContext.mUidSnapshot, lastUidSnapshot),
+                statsContext.mActiveUidIfaces);
         for (int i = 0; i < mDataUsageRequests.size(); i++) {
             RequestInfo requestInfo = mDataUsageRequests.valueAt(i);
-            requestInfo.updateStats(statsContext);
+            requestInfo.updateStats(xtDelta, uidDelta);
         }
     }
 
+    private static NetworkStats subtract(NetworkStats snapshot, NetworkStats lastSnapshot) {
+        if (snapshot == null || lastSnapshot == null) return null;
+        // Negative deltas, e.g. after a counter reset, are clamped to zero.
+        return snapshot.subtract(lastSnapshot);
+    }
+
     private DataUsageRequest buildRequest(Context context, DataUsageRequest request,
                 int callingUid) {
         // For non-NETWORK_STACK permission uid, cap the minimum threshold to a safe default to
@@ -264,8 +286,8 @@ class NetworkStatsObservers {
         protected final int mCallingUid;
         protected final String mCallingPackage;
         protected final @NetworkStatsAccess.Level int mAccessLevel;
-        protected NetworkStatsRecorder mRecorder;
-        protected NetworkStatsCollection mCollection;
+        // Whether a first sample was seen. Usage is only counted from the first sample on.
+        private boolean mHasBaseline;
 
         RequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
@@ -306,19 +328,18 @@ class NetworkStatsObservers {
         }
 
         /**
-         * Update stats given the samples and interface to identity mappings.
+         * Update stats given the deltas since the last samples.
          */
-        private void updateStats(StatsContext statsContext) {
-            if (mRecorder == null) {
+        private void updateStats(StatsDelta xtDelta, StatsDelta uidDelta) {
+            if (!mHasBaseline) {
                 // First run; establish baseline stats
-                resetRecorder();
-                recordSample(statsContext);
+                mHasBaseline = true;
                 return;
             }
-            recordSample(statsContext);
+            recordSample(xtDelta, uidDelta);
 
             if (checkStats()) {
-                resetRecorder();
+                resetStats();
                 callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
             }
         }
@@ -343,14 +364,11 @@ class NetworkStatsObservers {
             }
         }
 
-        private void resetRecorder() {
-            mRecorder = new NetworkStatsRecorder();
-            mCollection = mRecorder.getSinceBoot();
-        }
-
         protected abstract boolean checkStats();
 
-        protected abstract void recordSample(StatsContext statsContext);
+        protected abstract void recordSample(StatsDelta xtDelta, StatsDelta uidDelta);
+
+        protected abstract void resetStats();
 
         private String callbackTypeToName(int callbackType) {
             switch (callbackType) {
@@ -365,6 +383,9 @@ class NetworkStatsObservers {
     }
 
     private static class NetworkUsageRequestInfo extends RequestInfo {
+        // Bytes matching the template since the last notification.
+        private long mBytesSoFar;
+
         NetworkUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -374,40 +395,38 @@ class NetworkStatsObservers {
 
         @Override
         protected boolean checkStats() {
-            long bytesSoFar = getTotalBytesForNetwork(mRequest.template);
             if (LOGV) {
-                Log.v(TAG, bytesSoFar + " bytes so far since notification for "
+                Log.v(TAG, mBytesSoFar + " bytes so far since notification for "
                         + mRequest.template);
             }
-            if (bytesSoFar > mRequest.thresholdInBytes) {
-                return true;
-            }
-            return false;
+            return mBytesSoFar > mRequest.thresholdInBytes;
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass a null VPN array because usage is aggregated by uid
-            // for this snapshot, so VPN traffic can't be reattributed to responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
-                    statsContext.mCurrentTime);
+        protected void recordSample(StatsDelta xtDelta, StatsDelta uidDelta) {
+            // Usage is aggregated by uid in the xt snapshot, so VPN traffic can't be reattributed
+            // to responsible apps.
+            final SparseLongArray bytesByUid = xtDelta.getBytesByUid(mRequest.template);
+            for (int i = 0; i < bytesByUid.size(); i++) {
+                if (NetworkStatsAccess.isAccessibleToUser(bytesByUid.keyAt(i), mCallingUid,
+                        mAccessLevel)) {
+                    mBytesSoFar += bytesByUid.valueAt(i);
+                }
+            }
         }
 
-        /**
-         * Reads stats matching the given template. {@link NetworkStatsCollection} will aggregate
-         * over all buckets, which in this case should be only one since we built it big enough
-         * that it will outlive the caller. If it doesn't, then there will be multiple buckets.
-         */
-        private long getTotalBytesForNetwork(NetworkTemplate template) {
-            NetworkStats stats = mCollection.getSummary(template,
-                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                    mAccessLevel, mCallingUid);
-            return stats.getTotalBytes();
+        @Override
+        protected void resetStats() {
+            mBytesSoFar = 0;
         }
     }
 
     private static class UserUsageRequestInfo extends RequestInfo {
+        // Bytes matching the template since the last notification, for each uid that used any.
+        private final SparseLongArray mBytesSoFarByUid = new SparseLongArray();
+        // The largest value in mBytesSoFarByUid.
+        private long mMaxBytesSoFar;
+
         UserUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -417,46 +436,99 @@ class NetworkStatsObservers {
 
         @Override
         protected boolean checkStats() {
-            int[] uidsToMonitor = mCollection.getRelevantUids(mAccessLevel, mCallingUid);
+            return mMaxBytesSoFar > mRequest.thresholdInBytes;
+        }
 
-            for (int i = 0; i < uidsToMonitor.length; i++) {
-                long bytesSoFar = getTotalBytesForNetworkUid(mRequest.template, uidsToMonitor[i]);
-                if (bytesSoFar > mRequest.thresholdInBytes) {
-                    return true;
+        @Override
+        protected void recordSample(StatsDelta xtDelta, StatsDelta uidDelta) {
+            // The uid snapshot has VPN traffic reattributed to responsible apps.
+            final SparseLongArray bytesByUid = uidDelta.getBytesByUid(mRequest.template);
+            for (int i = 0; i < bytesByUid.size(); i++) {
+                final int uid = bytesByUid.keyAt(i);
+                // Callers may lose access to a uid, e.g. when it moves to another user.
+                if (!NetworkStatsAccess.isAccessibleToUser(uid, mCallingUid, mAccessLevel)) {
+                    continue;
                 }
+                final long bytesSoFar = mBytesSoFarByUid.get(uid) + bytesByUid.valueAt(i);
+                mBytesSoFarByUid.put(uid, bytesSoFar);
+                mMaxBytesSoFar = Math.max(mMaxBytesSoFar, bytesSoFar);
             }
-            return false;
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass the VPN info so VPN traffic is reattributed to
-            // responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
-                    statsContext.mCurrentTime);
+        protected void resetStats() {
+            mBytesSoFarByUid.clear();
+            mMaxBytesSoFar = 0;
+        }
+    }
+
+    /**
+     * Delta between two consecutive snapshots, with the usage matching each template computed
+     * once and shared by all requests for that template.
+     *
+     * <p>Only counts untagged usage in non-debug sets, as the usage returned by
+     * {@link NetworkStatsManager} for the same template.
+     */
+    private static class StatsDelta {
+        private static final SparseLongArray EMPTY = new SparseLongArray(0);
+
+        // null if there is no delta, e.g. on the first snapshot.
+        private final NetworkStats mDelta;
+        private final ArrayMap<String, NetworkIdentitySet> mActiveIfaces;
+        private final ArrayMap<NetworkTemplate, SparseLongArray> mBytesByUid = new ArrayMap<>();
+
+        StatsDelta(NetworkStats delta, ArrayMap<String, NetworkIdentitySet> activeIfaces) {
+            mDelta = delta;
+            mActiveIfaces = activeIfaces;
         }
 
         /**
-         * Reads all stats matching the given template and uid. Ther history will likely only
-         * contain one bucket per ident since we build it big enough that it will outlive the
-         * caller lifetime.
+         * Returns bytes matching the given template for each uid that used any. The returned
+         * array must not be modified.
          */
-        private long getTotalBytesForNetworkUid(NetworkTemplate template, int uid) {
-            try {
-                NetworkStatsHistory history = mCollection.getHistory(template, null, uid,
-                        NetworkStats.SET_ALL, NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL,
-                        Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                        mAccessLevel, mCallingUid);
-                return history.getTotalBytes();
-            } catch (SecurityException e) {
-                if (LOGV) {
-                    Log.w(TAG, "CallerUid " + mCallingUid + " may have lost access to uid "
-                            + uid);
+        SparseLongArray getBytesByUid(NetworkTemplate template) {
+            if (mDelta == null) return EMPTY;
+            SparseLongArray bytesByUid = mBytesByUid.get(template);
+            if (bytesByUid == null) {
+                bytesByUid = computeBytesByUid(template);
+                mBytesByUid.put(template, bytesByUid);
+            }
+            return bytesByUid;
+        }
+
+        private SparseLongArray computeBytesByUid(NetworkTemplate template) {
+            final SparseLongArray bytesByUid = new SparseLongArray();
+            // Few interfaces are active, so cache whether each of them matches.
+            final ArrayMap<String, Boolean> ifaceMatches = new ArrayMap<>();
+            NetworkStats.Entry entry = null;
+            for (int i = 0; i < mDelta.size(); i++) {
+                entry = mDelta.getValues(i, entry);
+                if (entry.tag != NetworkStats.TAG_NONE
+                        || entry.set >= NetworkStats.SET_DEBUG_START) {
+                    continue;
+                }
+                final long bytes = entry.rxBytes + entry.txBytes;
+                if (bytes == 0) continue;
+
+                Boolean matches = ifaceMatches.get(entry.iface);
+                if (matches == null) {
+                    matches = templateMatches(template, mActiveIfaces.get(entry.iface));
+                    ifaceMatches.put(entry.iface, matches);
+                }
+                if (matches) {
+                    bytesByUid.put(entry.uid, bytesByUid.get(entry.uid) + bytes);
                 }
-                return 0;
             }
+            return bytesByUid;
+        }
+
+        private static boolean templateMatches(NetworkTemplate template,
+                NetworkIdentitySet identSet) {
+            if (identSet == null) return false;
+            for (NetworkIdentity ident : identSet) {
+                if (template.matches(ident)) return true;
+            }
+            return false;
         }
     }
 
@@ -56,12 +56,15 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 /**
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
  * {@link NetworkStatsHistory} that belong to {@link NetworkStatsCollection}.
  * Keeps pending changes in memory until they pass a specific threshold, in
- * bytes. Uses {@link FileRotator} for persistence logic if present.
+ * bytes. Uses {@link FileRotator} for persistence logic if present, optionally
+ * appending pending changes to a {@link NetworkStatsJournal} and only moving them into a
+ * {@link FileRotator} file once the journal grows old or large.
  * <p>
  * Not inherently thread safe.
  */
@@ -75,6 +78,8 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverAndDeleteData()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    private static final long JOURNAL_COMPACT_THRESHOLD_BYTES = 512 * KB_IN_BYTES;
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -93,7 +98,21 @@ public class NetworkStatsRecorder {
 
     private final CombiningRewriter mPendingRewriter;
 
+    @Nullable
+    private final NetworkStatsJournal mJournal;
+    // Journal generation being moved into a FileRotator file, see compactJournalLocked.
+    @Nullable
+    private final NetworkStatsJournal mCompactingJournal;
+    private final boolean mAppendToJournal;
+    private final long mJournalMaxAgeMillis;
+
     private WeakReference<NetworkStatsCollection> mComplete;
+    // History loaded from mPartialStart on by getOrLoadSinceLocked while the complete history
+    // is not loaded. Updated with new snapshots like mComplete, and dropped on the next persist
+    // so that it does not hold memory for long.
+    @Nullable
+    private NetworkStatsCollection mPartial;
+    private long mPartialStart;
     private final NetworkStatsMetricsLogger mMetricsLogger = new NetworkStatsMetricsLogger();
     @Nullable
     private final File mStatsDir;
@@ -119,6 +138,11 @@ public class NetworkStatsRecorder {
 
         mPendingRewriter = null;
         mStatsDir = null;
+
+        mJournal = null;
+        mCompactingJournal = null;
+        mAppendToJournal = false;
+        mJournalMaxAgeMillis = 0;
     }
 
     /**
@@ -127,6 +151,27 @@ public class NetworkStatsRecorder {
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
             boolean wipeOnError, boolean useFastDataInput, @Nullable File statsDir) {
+        this(rotator, observer, dropBox, cookie, bucketDuration, onlyTags, wipeOnError,
+                useFastDataInput, statsDir, null /* journalFile */, false /* appendToJournal */,
+                0 /* journalMaxAgeMillis */);
+    }
+
+    /**
+     * Persisted recorder with a journal.
+     *
+     * @param journalFile file of the {@link NetworkStatsJournal}. Any journal left in this file
+     *                    is always replayed on load, and compacted into a {@link FileRotator}
+     *                    file on the next persist if {@code appendToJournal} is false.
+     * @param appendToJournal whether to persist pending changes by appending them to the
+     *                        journal instead of rewriting the active file.
+     * @param journalMaxAgeMillis the journal is compacted into a {@link FileRotator} file once
+     *                            its oldest record is older than this, typically the rotation
+     *                            age.
+     */
+    public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            boolean wipeOnError, boolean useFastDataInput, @Nullable File statsDir,
+            @Nullable File journalFile, boolean appendToJournal, long journalMaxAgeMillis) {
         mRotator = Objects.requireNonNull(rotator, "missing FileRotator");
         mObserver = Objects.requireNonNull(observer, "missing NonMonotonicObserver");
         mDropBox = Objects.requireNonNull(dropBox, "missing DropBoxManager");
@@ -142,6 +187,12 @@ public class NetworkStatsRecorder {
 
         mPendingRewriter = new CombiningRewriter(mPending);
         mStatsDir = statsDir;
+
+        mJournal = journalFile != null ? new NetworkStatsJournal(journalFile) : null;
+        mCompactingJournal = journalFile != null ? new NetworkStatsJournal(new File(
+                journalFile.getPath() + NetworkStatsJournal.COMPACTING_SUFFIX)) : null;
+        mAppendToJournal = mJournal != null && appendToJournal;
+        mJournalMaxAgeMillis = journalMaxAgeMillis;
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -161,6 +212,7 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        mPartial = null;
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -193,7 +245,10 @@ public class NetworkStatsRecorder {
         if (res == null) {
             final long readStart = SystemClock.elapsedRealtime();
             res = loadLocked(Long.MIN_VALUE, Long.MAX_VALUE);
+            // The complete history is large and mostly queried, keep it in a columnar store.
+            res.compact();
             mComplete = new WeakReference<NetworkStatsCollection>(res);
+            mPartial = null;
             final long readEnd = SystemClock.elapsedRealtime();
             // For legacy recorders which are used for data integrity check, which
             // have wipeOnError flag unset, skip reporting metrics.
@@ -214,6 +269,29 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Returns a collection holding at least all the history from the given time on. Unless the
+     * complete history is already loaded, only reads the files that can hold that history. The
+     * result is kept until the next persist, and reused by queries of the same or a later window.
+     *
+     * <p>Data is written to a file covering the time it is persisted at, which may be after the
+     * data was recorded, so history within a window can be in any file that ends after the window
+     * starts. Files that end before it can be skipped, except that the bucket holding the start
+     * of the window may have been split across a rotation: reading starts at that bucket.
+     */
+    public NetworkStatsCollection getOrLoadSinceLocked(long start) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) return complete;
+        final long bucketStart = start > Long.MIN_VALUE + mBucketDuration
+                ? start - Math.floorMod(start, mBucketDuration) : Long.MIN_VALUE;
+        if (mPartial == null || bucketStart < mPartialStart) {
+            mPartial = loadLocked(bucketStart, Long.MAX_VALUE);
+            mPartialStart = bucketStart;
+        }
+        return mPartial;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) {
             Log.d(TAG, "loadLocked() reading from disk for " + mCookie
@@ -222,7 +300,12 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection res =
                 new NetworkStatsCollection(mBucketDuration, mUseFastDataInput);
         try {
+            // Finish any compaction interrupted by a crash, so that its deltas are read once.
+            finishCompactionLocked();
             mRotator.readMatching(res, start, end);
+            if (mJournal != null) {
+                mJournal.replay(res);
+            }
             res.recordCollection(mPending);
         } catch (IOException e) {
             Log.wtf(TAG, "problem completely reading network stats", e);
@@ -300,6 +383,9 @@ public class NetworkStatsRecorder {
                 if (complete != null) {
                     complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
+                if (mPartial != null) {
+                    mPartial.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                }
             }
         }
 
@@ -320,6 +406,15 @@ public class NetworkStatsRecorder {
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
         } else {
+            try {
+                maybeCompactJournalLocked(currentTimeMillis);
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem compacting stats journal", e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem compacting stats journal", e);
+                recoverAndDeleteData();
+            }
             mRotator.maybeRotate(currentTimeMillis);
         }
     }
@@ -332,9 +427,22 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                if (mAppendToJournal) {
+                    // Only write what changed since the last persist, the active file is
+                    // rewritten when the journal is compacted.
+                    mJournal.append(mPending, currentTimeMillis);
+                    maybeCompactJournalLocked(currentTimeMillis);
+                } else {
+                    compactJournalLocked();
+                    mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                }
                 mRotator.maybeRotate(currentTimeMillis);
                 mPending.reset();
+                // Move what was recorded into the complete history since the last persist to
+                // its columnar store.
+                final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+                if (complete != null) complete.compact();
+                mPartial = null;
             } catch (IOException e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
                 recoverAndDeleteData();
@@ -345,6 +453,73 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Compact the journal into a {@link FileRotator} file once it gets older than
+     * {@link #mJournalMaxAgeMillis} or larger than {@link #JOURNAL_COMPACT_THRESHOLD_BYTES}, so
+     * that its contents are rotated and deleted along with the rest of the history, and that
+     * replaying it on load stays cheap.
+     */
+    private void maybeCompactJournalLocked(long currentTimeMillis) throws IOException {
+        if (mJournal == null || !mJournal.exists()) return;
+        final long firstRecordMillis = mJournal.getFirstRecordMillis();
+        if (currentTimeMillis - firstRecordMillis >= mJournalMaxAgeMillis
+                || mJournal.length() >= JOURNAL_COMPACT_THRESHOLD_BYTES) {
+            compactJournalLocked();
+        }
+    }
+
+    /**
+     * Move all journaled deltas into a {@link FileRotator} file spanning the times they were
+     * journaled at, and delete the journal.
+     *
+     * <p>The journal is first renamed to a compacting generation. Its deltas are then written to
+     * a file named after its record times, replacing that file if a previous attempt already
+     * wrote it, and the generation is only deleted afterwards. A crash at any point leaves the
+     * deltas either in the journal, or in a generation that is compacted again with the same
+     * result before the next load.
+     */
+    private void compactJournalLocked() throws IOException {
+        if (mJournal == null) return;
+        finishCompactionLocked();
+        if (!mJournal.exists()) return;
+        if (LOGD) Log.d(TAG, "compactJournalLocked() for " + mCookie);
+        mJournal.renameTo(mCompactingJournal);
+        finishCompactionLocked();
+    }
+
+    /**
+     * Write the compacting journal generation, if any, to its {@link FileRotator} file and
+     * delete it.
+     */
+    private void finishCompactionLocked() throws IOException {
+        if (mCompactingJournal == null || !mCompactingJournal.exists()) return;
+        final NetworkStatsCollection compacted = new NetworkStatsCollection(mBucketDuration);
+        if (mCompactingJournal.replay(compacted) > 0) {
+            final long firstMillis = mCompactingJournal.getFirstRecordMillis();
+            final long lastMillis = mCompactingJournal.getLastRecordMillis();
+            mRotator.rewriteSingle(new ReplacingRewriter(compacted),
+                    Math.min(firstMillis, lastMillis), Math.max(firstMillis, lastMillis) + 1);
+        }
+        mCompactingJournal.delete();
+    }
+
+    /**
+     * Apply the given change to the journal, e.g. to remove data that is being removed from
+     * the {@link FileRotator} files as well.
+     */
+    private void rewriteJournalLocked(@NonNull Consumer<NetworkStatsCollection> change)
+            throws IOException {
+        if (mJournal == null || !mJournal.exists()) return;
+        final NetworkStatsCollection journaled = new NetworkStatsCollection(mBucketDuration);
+        mJournal.replay(journaled);
+        journaled.clearDirty();
+        change.accept(journaled);
+        if (journaled.isDirty()) {
+            mJournal.rewrite(journaled, mJournal.getFirstRecordMillis(),
+                    mJournal.getLastRecordMillis());
+        }
+    }
+
     /**
      * Remove the given UID from all {@link FileRotator} history, migrating it
      * to {@link TrafficStats#UID_REMOVED}.
@@ -352,8 +527,10 @@ public class NetworkStatsRecorder {
     public void removeUidsLocked(int[] uids) {
         if (mRotator != null) {
             try {
+                finishCompactionLocked();
                 // Rewrite all persisted data to migrate UID stats
                 mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                rewriteJournalLocked(c -> c.removeUids(uids));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
                 recoverAndDeleteData();
@@ -380,6 +557,39 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeUids(uids);
         }
+        mPartial = null;
+    }
+
+    /**
+     * Rewriter that will replace anything read from disk with the given
+     * {@link NetworkStatsCollection}, so that writing it again has no further effect.
+     */
+    private static class ReplacingRewriter implements FileRotator.Rewriter {
+        private final NetworkStatsCollection mCollection;
+
+        ReplacingRewriter(NetworkStatsCollection collection) {
+            mCollection = Objects.requireNonNull(collection, "missing NetworkStatsCollection");
+        }
+
+        @Override
+        public void reset() {
+            // ignored
+        }
+
+        @Override
+        public void read(InputStream in) {
+            // ignored, replaced by mCollection
+        }
+
+        @Override
+        public boolean shouldWrite() {
+            return true;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mCollection.write(out);
+        }
     }
 
     /**
@@ -509,8 +719,10 @@ public class NetworkStatsRecorder {
     public void removeDataBefore(long cutoffMillis) throws IOException {
         if (mRotator != null) {
             try {
+                finishCompactionLocked();
                 mRotator.rewriteAll(new RemoveDataBeforeRewriter(
                         mBucketDuration, cutoffMillis));
+                rewriteJournalLocked(c -> c.removeHistoryBefore(cutoffMillis));
             } catch (IOException e) {
                 Log.wtf(TAG, "problem importing netstats", e);
                 recoverAndDeleteData();
@@ -532,12 +744,16 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeHistoryBefore(cutoffMillis);
         }
+        mPartial = null;
     }
 
     public void dumpLocked(IndentingPrintWriter pw, boolean fullHistory) {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (mJournal != null) {
+            pw.print("Journal file bytes: "); pw.println(mJournal.length());
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
@@ -584,6 +800,10 @@ public class NetworkStatsRecorder {
         // Delete all files if this recorder is set wipe on error.
         if (mWipeOnError) {
             mRotator.deleteAll();
+            if (mJournal != null) {
+                mJournal.delete();
+                mCompactingJournal.delete();
+            }
         }
     }
 }
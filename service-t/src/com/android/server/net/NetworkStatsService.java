@@ -298,6 +298,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             "netstats_fastdatainput_target_attempts";
     static final String NETSTATS_FASTDATAINPUT_SUCCESSES_COUNTER_NAME = "fastdatainput.successes";
     static final String NETSTATS_FASTDATAINPUT_FALLBACKS_COUNTER_NAME = "fastdatainput.fallbacks";
+    /**
+     * DeviceConfig flag used to indicate whether recorders persist pending stats by appending
+     * them to a journal, instead of rewriting the active file on every persist.
+     */
+    static final String NETSTATS_JOURNAL_ENABLED = "netstats_journal_enabled";
 
     private final Context mContext;
     private final NetworkStatsFactory mStatsFactory;
@@ -711,6 +716,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NETSTATS_FASTDATAINPUT_TARGET_ATTEMPTS, 0);
         }
 
+        /**
+         * Get whether recorders should append pending stats to a journal when persisting.
+         */
+        public boolean isStatsJournalEnabled() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_JOURNAL_ENABLED, false);
+        }
+
         /**
          * Compare two {@link NetworkStatsCollection} instances and returning a human-readable
          * string description of difference for debugging purpose.
@@ -982,10 +996,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             File baseDir, boolean wipeOnError, boolean useFastDataInput) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
+        // Always pass the journal file so that a journal left while the feature was enabled
+        // is still replayed and compacted after it gets disabled.
         return new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
                 mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
-                wipeOnError, useFastDataInput, baseDir);
+                wipeOnError, useFastDataInput, baseDir,
+                new File(baseDir, prefix + NetworkStatsJournal.SUFFIX),
+                mDeps.isStatsJournalEnabled(), config.rotateAgeMillis);
     }
 
     @GuardedBy("mStatsLock")
@@ -1524,6 +1542,26 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Returns uid history holding at least everything from the given time on. Partial
+             * loads are not kept by the session but by the recorder, which updates them with
+             * new stats until the next persist.
+             */
+            private NetworkStatsCollection getUidSince(long start) {
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) return mUidComplete;
+                    return mUidRecorder.getOrLoadSinceLocked(start);
+                }
+            }
+
+            /** Returns uid tag history holding at least everything from the given time on. */
+            private NetworkStatsCollection getUidTagSince(long start) {
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) return mUidTagComplete;
+                    return mUidTagRecorder.getOrLoadSinceLocked(start);
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -1568,10 +1606,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, long start, long end, boolean includeTags) {
                 enforceTemplatePermissions(template, callingPackage);
                 try {
-                    final NetworkStats stats = getUidComplete()
+                    final NetworkStats stats = getUidSince(start)
                             .getSummary(template, start, end, mAccessLevel, mCallingUid);
                     if (includeTags) {
-                        final NetworkStats tagStats = getUidTagComplete()
+                        final NetworkStats tagStats = getUidTagSince(start)
                                 .getSummary(template, start, end, mAccessLevel, mCallingUid);
                         stats.combineAllValues(tagStats);
                     }
@@ -1586,7 +1624,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, long start, long end) {
                 enforceTemplatePermissions(template, callingPackage);
                 try {
-                    final NetworkStats tagStats = getUidTagComplete()
+                    final NetworkStats tagStats = getUidTagSince(start)
                             .getSummary(template, start, end, mAccessLevel, mCallingUid);
                     return tagStats;
                 } catch (NullPointerException e) {
@@ -1617,11 +1655,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 //  sensitive but the caller is not privileged.
                 // NOTE: We don't augment UID-level statistics
                 if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
+                    return getUidSince(start).getHistory(template, null, uid, set, tag, fields,
                             start, end, mAccessLevel, mCallingUid);
                 } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                    return getUidTagSince(start).getHistory(template, null, uid, set, tag,
+                            fields, start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -2562,21 +2600,24 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         if (e.errno != ENOENT) Log.e(TAG, msg, e);
     }
 
-    private <K extends StatsMapKey, V extends StatsMapValue> void deleteStatsMapTagData(
-            IBpfMap<K, V> statsMap, int uid) {
+    private void deleteStatsMapTagData(IBpfMap<StatsMapKey, StatsMapValue> statsMap, int uid) {
+        final List<StatsMapKey> keysToDelete = new ArrayList<>();
         try {
-            statsMap.forEach((key, value) -> {
-                if (key.uid == uid) {
-                    try {
-                        statsMap.deleteEntry(key);
-                    } catch (ErrnoException e) {
-                        logErrorIfNotErrNoent(e, "Failed to delete data(uid = " + key.uid + ")");
-                    }
+            // Only materialize the keys of the uid, which are usually a small fraction of the map.
+            statsMap.lookupBatchRaw((rawKey, rawValue) -> {
+                if (StatsMapKey.getUid(rawKey) == uid) {
+                    keysToDelete.add(Struct.parse(StatsMapKey.class, rawKey));
                 }
             });
         } catch (ErrnoException e) {
             Log.e(TAG, "FAILED to delete tag data from stats map", e);
         }
+
+        try {
+            statsMap.deleteBatch(keysToDelete);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to delete data(uid = " + uid + ")", e);
+        }
     }
 
     /**
@@ -2584,26 +2625,24 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
      * @param uid
      */
     private void deleteKernelTagData(int uid) {
+        final List<CookieTagMapKey> cookiesToDelete = new ArrayList<>();
         try {
-            mCookieTagMap.forEach((key, value) -> {
-                // If SkDestroyListener deletes the socket tag while this code is running,
-                // forEach will either restart iteration from the beginning or return null,
-                // depending on when the deletion happens.
-                // If it returns null, continue iteration to delete the data and in fact it would
-                // just iterate from first key because BpfMap#getNextKey would return first key
-                // if the current key is not exist.
-                if (value != null && value.uid == uid) {
-                    try {
-                        mCookieTagMap.deleteEntry(key);
-                    } catch (ErrnoException e) {
-                        logErrorIfNotErrNoent(e, "Failed to delete data(cookie = " + key + ")");
-                    }
-                }
+            mCookieTagMap.lookupBatch((key, value) -> {
+                // If SkDestroyListener deletes the socket tag while this code is running, the
+                // value may be null when falling back to per-key iteration on older kernels.
+                // Deleting keys which no longer exist below is harmless.
+                if (value != null && value.uid == uid) cookiesToDelete.add(key);
             });
         } catch (ErrnoException e) {
             Log.e(TAG, "Failed to delete tag data from cookie tag map", e);
         }
 
+        try {
+            mCookieTagMap.deleteBatch(cookiesToDelete);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to delete tag data from cookie tag map(uid = " + uid + ")", e);
+        }
+
         deleteStatsMapTagData(mStatsMapA, uid);
         deleteStatsMapTagData(mStatsMapB, uid);
 
@@ -2868,6 +2907,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.decreaseIndent();
             pw.println();
 
+            pw.println("Stats Factory:");
+            pw.increaseIndent();
+            mStatsFactory.dump(pw);
+            pw.decreaseIndent();
+            pw.println();
+
             pw.println("Dev stats:");
             pw.increaseIndent();
             pw.println("Pending bytes: ");
@@ -2959,14 +3004,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.println("");
             return;
         }
-        // If there is a concurrent entry deletion, value could be null. http://b/220084230.
-        // Also, map.forEach could restart iteration from the beginning and dump could contain
+        // Entries deleted concurrently are skipped. http://b/220084230.
+        // Also, map.forEachRaw could restart iteration from the beginning and dump could contain
         // duplicated entries. User of this dump needs to take care of the duplicated entries.
-        map.forEach((k, v) -> {
-            if (v != null) {
-                pw.println(BpfDump.toBase64EncodedString(k, v));
-            }
-        });
+        map.forEachRaw((k, v) -> pw.println(BpfDump.toBase64EncodedString(k, v)));
     }
 
     @GuardedBy("mStatsLock")
@@ -3044,19 +3085,22 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return;
         }
 
-        BpfDump.dumpMap(statsMap, pw, mapName,
+        // The stats maps can be large, so read the fields from the raw entries instead of
+        // parsing every key and value.
+        BpfDump.dumpMapRaw(statsMap, pw, mapName,
                 "ifaceIndex ifaceName tag_hex uid_int cnt_set rxBytes rxPackets txBytes txPackets",
                 (key, value) -> {
-                    final String ifName = mInterfaceMapHelper.getIfNameByIndex(key.ifaceIndex);
-                    return key.ifaceIndex + " "
+                    final int ifaceIndex = StatsMapKey.getIfaceIndex(key);
+                    final String ifName = mInterfaceMapHelper.getIfNameByIndex(ifaceIndex);
+                    return ifaceIndex + " "
                             + (ifName != null ? ifName : "unknown") + " "
-                            + "0x" + Long.toHexString(key.tag) + " "
-                            + key.uid + " "
-                            + key.counterSet + " "
-                            + value.rxBytes + " "
-                            + value.rxPackets + " "
-                            + value.txBytes + " "
-                            + value.txPackets;
+                            + "0x" + Long.toHexString(StatsMapKey.getTag(key)) + " "
+                            + StatsMapKey.getUid(key) + " "
+                            + StatsMapKey.getCounterSet(key) + " "
+                            + StatsMapValue.getRxBytes(value) + " "
+                            + StatsMapValue.getRxPackets(value) + " "
+                            + StatsMapValue.getTxBytes(value) + " "
+                            + StatsMapValue.getTxPackets(value);
                 });
     }
 
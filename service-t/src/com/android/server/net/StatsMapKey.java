@@ -16,10 +16,14 @@
 
 package com.android.server.net;
 
+import android.annotation.NonNull;
+
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /**
  * Key for both stats maps.
  */
@@ -36,6 +40,12 @@ public class StatsMapKey extends Struct {
     @Field(order = 3, type = Type.S32)
     public final int ifaceIndex;
 
+    // Offsets of the fields in the raw key, following the @Field layout above.
+    private static final int UID_OFFSET = 0;
+    private static final int TAG_OFFSET = 4;
+    private static final int COUNTER_SET_OFFSET = 8;
+    private static final int IFACE_INDEX_OFFSET = 12;
+
     public StatsMapKey(final int uid, final long tag, final long counterSet,
             final int ifaceIndex) {
         this.uid = uid;
@@ -43,4 +53,46 @@ public class StatsMapKey extends Struct {
         this.counterSet = counterSet;
         this.ifaceIndex = ifaceIndex;
     }
+
+    /** Read the uid of a raw key, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static int getUid(@NonNull final ByteBuffer rawKey) {
+        return rawKey.getInt(rawKey.position() + UID_OFFSET);
+    }
+
+    /** Read the tag of a raw key, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static long getTag(@NonNull final ByteBuffer rawKey) {
+        return rawKey.getInt(rawKey.position() + TAG_OFFSET) & 0xFFFFFFFFL;
+    }
+
+    /** Read the counter set of a raw key, as passed by IBpfMap#forEachRaw. */
+    public static long getCounterSet(@NonNull final ByteBuffer rawKey) {
+        return rawKey.getInt(rawKey.position() + COUNTER_SET_OFFSET) & 0xFFFFFFFFL;
+    }
+
+    /** Read the interface index of a raw key, as passed by IBpfMap#forEachRaw. */
+    public static int getIfaceIndex(@NonNull final ByteBuffer rawKey) {
+        return rawKey.getInt(rawKey.position() + IFACE_INDEX_OFFSET);
+    }
+
+    static {
+        // Specialized codec matching the @Field layout above, see Struct.Codec.
+        Struct.registerCodec(StatsMapKey.class, new Struct.Codec<StatsMapKey>() {
+            @Override
+            public StatsMapKey decode(ByteBuffer buf) {
+                final int uid = buf.getInt();
+                final long tag = buf.getInt() & 0xFFFFFFFFL;
+                final long counterSet = buf.getInt() & 0xFFFFFFFFL;
+                final int ifaceIndex = buf.getInt();
+                return new StatsMapKey(uid, tag, counterSet, ifaceIndex);
+            }
+
+            @Override
+            public void encode(StatsMapKey value, ByteBuffer output) {
+                output.putInt(value.uid);
+                output.putInt((int) (value.tag & 0xFFFFFFFFL));
+                output.putInt((int) (value.counterSet & 0xFFFFFFFFL));
+                output.putInt(value.ifaceIndex);
+            }
+        });
+    }
 }
@@ -16,10 +16,14 @@
 
 package com.android.server.net;
 
+import android.annotation.NonNull;
+
 import com.android.net.module.util.Struct;
 import com.android.net.module.util.Struct.Field;
 import com.android.net.module.util.Struct.Type;
 
+import java.nio.ByteBuffer;
+
 /**
  * Value used for both stats maps and uid stats map.
  */
@@ -36,6 +40,12 @@ public class StatsMapValue extends Struct {
     @Field(order = 3, type = Type.U63)
     public final long txBytes;
 
+    // Offsets of the fields in the raw value, following the @Field layout above.
+    private static final int RX_PACKETS_OFFSET = 0;
+    private static final int RX_BYTES_OFFSET = 8;
+    private static final int TX_PACKETS_OFFSET = 16;
+    private static final int TX_BYTES_OFFSET = 24;
+
     public StatsMapValue(final long rxPackets, final long rxBytes, final long txPackets,
             final long txBytes) {
         this.rxPackets = rxPackets;
@@ -43,4 +53,46 @@ public class StatsMapValue extends Struct {
         this.txPackets = txPackets;
         this.txBytes = txBytes;
     }
+
+    /** Read rxPackets of a raw value, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static long getRxPackets(@NonNull final ByteBuffer rawValue) {
+        return rawValue.getLong(rawValue.position() + RX_PACKETS_OFFSET);
+    }
+
+    /** Read rxBytes of a raw value, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static long getRxBytes(@NonNull final ByteBuffer rawValue) {
+        return rawValue.getLong(rawValue.position() + RX_BYTES_OFFSET);
+    }
+
+    /** Read txPackets of a raw value, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static long getTxPackets(@NonNull final ByteBuffer rawValue) {
+        return rawValue.getLong(rawValue.position() + TX_PACKETS_OFFSET);
+    }
+
+    /** Read txBytes of a raw value, as passed by IBpfMap#forEachRaw, without parsing it. */
+    public static long getTxBytes(@NonNull final ByteBuffer rawValue) {
+        return rawValue.getLong(rawValue.position() + TX_BYTES_OFFSET);
+    }
+
+    static {
+        // Specialized codec matching the @Field layout above, see Struct.Codec.
+        Struct.registerCodec(StatsMapValue.class, new Struct.Codec<StatsMapValue>() {
+            @Override
+            public StatsMapValue decode(ByteBuffer buf) {
+                final long rxPackets = buf.getLong();
+                final long rxBytes = buf.getLong();
+                final long txPackets = buf.getLong();
+                final long txBytes = buf.getLong();
+                return new StatsMapValue(rxPackets, rxBytes, txPackets, txBytes);
+            }
+
+            @Override
+            public void encode(StatsMapValue value, ByteBuffer output) {
+                output.putLong(value.rxPackets);
+                output.putLong(value.rxBytes);
+                output.putLong(value.txPackets);
+                output.putLong(value.txBytes);
+            }
+        });
+    }
 }
@@ -61,6 +61,7 @@ import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.util.StatsEvent;
 
 import androidx.annotation.RequiresApi;
@@ -83,6 +84,7 @@ import com.android.net.module.util.bpf.IngressDiscardValue;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
@@ -123,6 +125,10 @@ public class BpfNetMaps {
     private static IBpfMap<S32, U32> sConfigurationMap = null;
     // BpfMap for UID_OWNER_MAP_PATH. This map is not accessed by others.
     private static IBpfMap<S32, UidOwnerValue> sUidOwnerMap = null;
+    // Userspace copy of sUidOwnerMap, used by replaceUidChain to avoid scanning the map. Built
+    // lazily from the map, kept up to date by all writes, and reset to null if a write fails.
+    // Guarded by the sUidOwnerMap lock.
+    private static SparseArray<UidOwnerValue> sUidOwnerShadow = null;
     private static IBpfMap<S32, U8> sUidPermissionMap = null;
     private static IBpfMap<CookieTagMapKey, CookieTagMapValue> sCookieTagMap = null;
     // TODO: Add BOOL class and replace U8?
@@ -148,6 +154,7 @@ public class BpfNetMaps {
     @VisibleForTesting
     public static void setUidOwnerMapForTest(IBpfMap<S32, UidOwnerValue> uidOwnerMap) {
         sUidOwnerMap = uidOwnerMap;
+        sUidOwnerShadow = null;
     }
 
     /**
@@ -266,7 +273,10 @@ public class BpfNetMaps {
             sUidOwnerMap = getUidOwnerMap();
         }
         try {
-            sUidOwnerMap.clear();
+            synchronized (sUidOwnerMap) {
+                sUidOwnerShadow = null;
+                sUidOwnerMap.clear();
+            }
         } catch (ErrnoException e) {
             throw new IllegalStateException("Failed to initialize uid owner map", e);
         }
@@ -401,11 +411,14 @@ public class BpfNetMaps {
 
                 if (newMatch.rule == 0) {
                     sUidOwnerMap.deleteEntry(new S32(uid));
+                    if (sUidOwnerShadow != null) sUidOwnerShadow.delete(uid);
                 } else {
                     sUidOwnerMap.updateEntry(new S32(uid), newMatch);
+                    if (sUidOwnerShadow != null) sUidOwnerShadow.put(uid, newMatch);
                 }
             }
         } catch (ErrnoException e) {
+            invalidateUidOwnerShadow();
             throw new ServiceSpecificException(e.errno,
                     caller + " failed to remove rule: " + Os.strerror(e.errno));
         }
@@ -434,8 +447,10 @@ public class BpfNetMaps {
                     );
                 }
                 sUidOwnerMap.updateEntry(new S32(uid), newMatch);
+                if (sUidOwnerShadow != null) sUidOwnerShadow.put(uid, newMatch);
             }
         } catch (ErrnoException e) {
+            invalidateUidOwnerShadow();
             throw new ServiceSpecificException(e.errno,
                     caller + " failed to add rule: " + Os.strerror(e.errno));
         }
@@ -445,6 +460,34 @@ public class BpfNetMaps {
         addRule(uid, match, 0 /* iif */, caller);
     }
 
+    private static void invalidateUidOwnerShadow() {
+        synchronized (sUidOwnerMap) {
+            sUidOwnerShadow = null;
+        }
+    }
+
+    /**
+     * Get the userspace copy of sUidOwnerMap, reading the whole map if there is none.
+     * Must be called with the sUidOwnerMap lock held.
+     */
+    private static SparseArray<UidOwnerValue> getUidOwnerShadowLocked() throws ErrnoException {
+        if (sUidOwnerShadow == null) {
+            final SparseArray<UidOwnerValue> shadow = new SparseArray<>();
+            sUidOwnerMap.forEach((uid, config) -> {
+                // config could be null if there is a concurrent entry deletion.
+                // http://b/220084230. But sUidOwnerMap update must be done while holding a
+                // lock, so this should not happen.
+                if (config == null) {
+                    Log.wtf(TAG, "sUidOwnerMap entry was deleted while holding a lock");
+                } else {
+                    shadow.put(uid.val, config);
+                }
+            });
+            sUidOwnerShadow = shadow;
+        }
+        return sUidOwnerShadow;
+    }
+
     /**
      * Add naughty app bandwidth rule for specific app
      *
@@ -575,28 +618,53 @@ public class BpfNetMaps {
             throw new IllegalArgumentException("Invalid firewall chain: " + chain);
         }
         final Set<Integer> uidSet = asSet(uids);
-        final Set<Integer> uidSetToRemoveRule = new ArraySet<>();
         try {
             synchronized (sUidOwnerMap) {
-                sUidOwnerMap.forEach((uid, config) -> {
-                    // config could be null if there is a concurrent entry deletion.
-                    // http://b/220084230. But sUidOwnerMap update must be done while holding a
-                    // lock, so this should not happen.
+                // Compute the difference with the current chain contents in userspace, so only
+                // the entries of UIDs that enter or leave the chain are written.
+                final SparseArray<UidOwnerValue> shadow = getUidOwnerShadowLocked();
+                final List<S32> keysToDelete = new ArrayList<>();
+                final List<S32> keysToUpdate = new ArrayList<>();
+                final List<UidOwnerValue> valuesToUpdate = new ArrayList<>();
+                for (int i = 0; i < shadow.size(); i++) {
+                    final int uid = shadow.keyAt(i);
+                    final UidOwnerValue config = shadow.valueAt(i);
+                    if (uidSet.contains(uid) || (config.rule & match) == 0) continue;
+                    final long newRule = config.rule & ~match;
+                    if (newRule == 0) {
+                        keysToDelete.add(new S32(uid));
+                    } else {
+                        keysToUpdate.add(new S32(uid));
+                        valuesToUpdate.add(new UidOwnerValue(config.iif, newRule));
+                    }
+                }
+                for (final int uid : uidSet) {
+                    final UidOwnerValue config = shadow.get(uid);
                     if (config == null) {
-                        Log.wtf(TAG, "sUidOwnerMap entry was deleted while holding a lock");
-                    } else if (!uidSet.contains((int) uid.val) && (config.rule & match) != 0) {
-                        uidSetToRemoveRule.add((int) uid.val);
+                        keysToUpdate.add(new S32(uid));
+                        valuesToUpdate.add(new UidOwnerValue(0 /* iif */, match));
+                    } else if ((config.rule & match) == 0) {
+                        keysToUpdate.add(new S32(uid));
+                        valuesToUpdate.add(new UidOwnerValue(config.iif, config.rule | match));
                     }
-                });
+                }
 
-                for (final int uid : uidSetToRemoveRule) {
-                    removeRule(uid, match, "replaceUidChain");
+                try {
+                    sUidOwnerMap.deleteBatch(keysToDelete);
+                    sUidOwnerMap.updateBatch(keysToUpdate, valuesToUpdate);
+                } catch (ErrnoException e) {
+                    // Some of the writes may have been done.
+                    sUidOwnerShadow = null;
+                    throw e;
                 }
-                for (final int uid : uids) {
-                    addRule(uid, match, "replaceUidChain");
+                for (final S32 key : keysToDelete) {
+                    shadow.delete(key.val);
+                }
+                for (int i = 0; i < keysToUpdate.size(); i++) {
+                    shadow.put(keysToUpdate.get(i).val, valuesToUpdate.get(i));
                 }
             }
-        } catch (ErrnoException | ServiceSpecificException e) {
+        } catch (ErrnoException e) {
             Log.e(TAG, "replaceUidChain failed: " + e);
         }
     }
@@ -42,6 +42,7 @@ import static android.net.ConnectivityManager.FIREWALL_CHAIN_BACKGROUND;
 import static android.net.ConnectivityManager.FIREWALL_RULE_ALLOW;
 import static android.net.ConnectivityManager.FIREWALL_RULE_DEFAULT;
 import static android.net.ConnectivityManager.FIREWALL_RULE_DENY;
+import static android.net.ConnectivityManager.NETID_UNSET;
 import static android.net.ConnectivityManager.TYPE_BLUETOOTH;
 import static android.net.ConnectivityManager.TYPE_ETHERNET;
 import static android.net.ConnectivityManager.TYPE_MOBILE;
@@ -328,17 +329,20 @@ import com.android.server.connectivity.MockableSystemProperties;
 import com.android.server.connectivity.MulticastRoutingCoordinatorService;
 import com.android.server.connectivity.MultinetworkPolicyTracker;
 import com.android.server.connectivity.NetworkAgentInfo;
+import com.android.server.connectivity.NetworkCallbackBatcher;
 import com.android.server.connectivity.NetworkDiagnostics;
 import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
 import com.android.server.connectivity.NetworkOffer;
 import com.android.server.connectivity.NetworkPreferenceList;
 import com.android.server.connectivity.NetworkRanker;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.NetworkRequestStateStatsMetrics;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.ProfileNetworkPreferenceInfo;
 import com.android.server.connectivity.ProxyTracker;
 import com.android.server.connectivity.QosCallbackTracker;
+import com.android.server.connectivity.RematchMetrics;
 import com.android.server.connectivity.RoutingCoordinatorService;
 import com.android.server.connectivity.SatelliteAccessController;
 import com.android.server.connectivity.UidRangeUtils;
@@ -1229,6 +1233,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
     protected final HandlerThread mHandlerThread;
     /** Handler used for internal events. */
     final private InternalHandler mHandler;
+    // Batches the callbacks sent to apps when ConnectivityFlags#batchNetworkCallbacks is set.
+    private final NetworkCallbackBatcher mCallbackBatcher;
     /** Handler used for incoming {@link NetworkStateTracker} events. */
     final private NetworkStateTrackerHandler mTrackerHandler;
     /** Handler used for processing {@link android.net.ConnectivityDiagnosticsManager} events */
@@ -2065,6 +2071,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 null /* binder */, NetworkCallback.FLAG_INCLUDE_LOCATION_INFO,
                 null /* attributionTags */);
         mNetworkRequests.put(defaultInternetRequest, mDefaultRequest);
+        addToRequestIndex(defaultInternetRequest, mDefaultRequest);
         mDefaultNetworkRequests.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + mDefaultRequest);
 
@@ -2117,6 +2124,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 new PermissionMonitor(mContext, mNetd, mBpfNetMaps, mHandlerThread);
         mHandlerThread.start();
         mHandler = new InternalHandler(mHandlerThread.getLooper());
+        mCallbackBatcher = new NetworkCallbackBatcher(mHandler);
         mTrackerHandler = new NetworkStateTrackerHandler(mHandlerThread.getLooper());
         mConnectivityDiagnosticsHandler =
                 new ConnectivityDiagnosticsHandler(mHandlerThread.getLooper());
@@ -4419,6 +4427,14 @@ public class ConnectivityService extends IConnectivityManager.Stub
         pw.decreaseIndent();
         pw.println();
 
+        mCallbackBatcher.dump(pw);
+        pw.println();
+
+        pw.println("Indexed requests: " + mRequestIndex.size()
+                + " (" + mRequestIndex.getSignatureCount() + " signatures)");
+        mRematchMetrics.dump(pw);
+        pw.println();
+
         pw.println("Network Offers:");
         pw.increaseIndent();
         for (final NetworkOfferInfo offerInfo : mNetworkOffers) {
@@ -4864,7 +4880,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     // This rematch is almost certainly not going to result in any changes, because
                     // the destroyed flag is only just above the "current satisfier wins"
                     // tie-breaker. But technically anything that affects scoring should rematch.
-                    rematchAllNetworksAndRequests();
+                    rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
                     mHandler.postDelayed(() -> nai.disconnect(), timeoutMs);
                     break;
                 }
@@ -5034,7 +5050,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             } else if (becameEvaluated) {
                 // If valid or partial connectivity changed, updateCapabilities* has
                 // done the rematch.
-                rematchAllNetworksAndRequests();
+                rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
             }
             updateInetCondition(nai);
 
@@ -5808,6 +5824,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             checkNrisConsistency(nri);
             for (final NetworkRequest req : nri.mRequests) {
                 mNetworkRequests.put(req, nri);
+                addToRequestIndex(req, nri);
                 // TODO: Consider update signal strength for other types.
                 if (req.isListen()) {
                     for (final NetworkAgentInfo network : mNetworkAgentInfos) {
@@ -6033,6 +6050,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 logw("Attempted removal of untracked request " + req + " for nri " + nri);
                 continue;
             }
+            mRequestIndex.remove(req, nri);
             if (req.isListen()) {
                 removeListenRequestFromNetworks(req);
             } else if (req.isRequest() && mNetworkRequestStateStatsMetrics != null) {
@@ -6062,6 +6080,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
 
         nri.mPerUidCounter.decrementCount(nri.mUid);
+        if (mNetworkRequestCounter.get(nri.mUid) == 0
+                && mSystemNetworkRequestCounter.get(nri.mUid) == 0) {
+            mCallbackBatcher.onUidCallbacksRemoved(nri.mUid);
+        }
         mNetworkRequestInfoLogs.log("RELEASE " + nri);
         checkNrisConsistency(nri);
 
@@ -6245,7 +6267,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // PARTIAL_CONNECTIVITY notification to user again.
             nai.networkAgentConfig.acceptPartialConnectivity = accept;
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
         }
 
         if (always) {
@@ -6313,7 +6335,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         if (0L == nai.getAvoidUnvalidated()) {
             nai.setAvoidUnvalidated();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
         }
     }
 
@@ -6594,7 +6616,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // This may have an impact on request matching if bad WiFi avoidance is off and the
             // network was found not to have Internet access.
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
 
             // Also, if this is WiFi and it should be preferred actively, now is the time to
             // prompt the user that they walked past and connected to a bad WiFi.
@@ -7594,6 +7616,18 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkProviderInfo> mNetworkProviderInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // The NRIs in mNetworkRequests that computeNetworkReassignment evaluates, indexed by the
+    // transports and capabilities of their requests.
+    private final NetworkRequestIndex<NetworkRequestInfo> mRequestIndex =
+            new NetworkRequestIndex<>();
+    private final RematchMetrics mRematchMetrics = new RematchMetrics();
+
+    private void addToRequestIndex(@NonNull final NetworkRequest req,
+            @NonNull final NetworkRequestInfo nri) {
+        // Non-multilayer listen requests are ignored by computeNetworkReassignment.
+        if (!nri.isMultilayerRequest() && nri.mRequests.get(0).isListen()) return;
+        mRequestIndex.add(req, nri);
+    }
 
     private static class NetworkProviderInfo {
         public final String name;
@@ -9627,7 +9661,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
             // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
+            rematchRequestsAffectedByNetwork(nai, prevNc);
             notifyNetworkCallbacks(nai, ConnectivityManager.CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
@@ -10235,6 +10269,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         msg.what = notificationType;
         msg.setData(bundle);
+        if (mFlags.batchNetworkCallbacks()) {
+            if (VDBG) {
+                String notification = ConnectivityManager.getCallbackName(notificationType);
+                log("queuing notification " + notification + " for " + nrForCallback);
+            }
+            mCallbackBatcher.enqueue(nri.mMessenger, nri.mUid, nrForCallback.requestId,
+                    null == networkAgent ? NETID_UNSET : networkAgent.network.getNetId(), msg);
+            return;
+        }
         try {
             if (VDBG) {
                 String notification = ConnectivityManager.getCallbackName(notificationType);
@@ -10562,6 +10605,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
             return mReassignments;
         }
 
+        int size() {
+            return mReassignments.size();
+        }
+
         void addRequestReassignment(@NonNull final RequestReassignment reassignment) {
             if (Build.isDebuggable()) {
                 // The code is never supposed to add two reassignments of the same request. Make
@@ -10726,7 +10773,37 @@ public class ConnectivityService extends IConnectivityManager.Stub
      * being disconnected.
      */
     private void rematchAllNetworksAndRequests() {
-        rematchNetworksAndRequests(getNrisFromGlobalRequests());
+        rematchNetworksAndRequests(getNrisFromGlobalRequests(), true /* full */);
+    }
+
+    /**
+     * Attempt to rematch the requests that may be affected by a change in the score or the
+     * capabilities of the given network. This may result in Networks being disconnected.
+     *
+     * The ranker only ever picks the satisfier of a request among the networks that satisfy it,
+     * so a network that neither satisfies a request nor could satisfy it after the change can't
+     * affect which network that request is assigned. This only rematches the requests that the
+     * network currently satisfies, and the requests that it could satisfy according to its
+     * previous or current capabilities as found by {@link #mRequestIndex}.
+     *
+     * @param nai the network that changed.
+     * @param prevNc the capabilities of the network before the change, or null if they didn't
+     *               change.
+     */
+    private void rematchRequestsAffectedByNetwork(@NonNull final NetworkAgentInfo nai,
+            @Nullable final NetworkCapabilities prevNc) {
+        if (!mFlags.incrementalRematchOnNetworkChange()) {
+            rematchAllNetworksAndRequests();
+            return;
+        }
+        final Set<NetworkRequestInfo> nris = new HashSet<>();
+        mRequestIndex.collectCandidates(nai.networkCapabilities, nris);
+        if (null != prevNc) mRequestIndex.collectCandidates(prevNc, nris);
+        for (int i = 0; i < nai.numNetworkRequests(); i++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(nai.requestAt(i));
+            if (null != nri) nris.add(nri);
+        }
+        rematchNetworksAndRequests(nris, false /* full */);
     }
 
     /**
@@ -10735,23 +10812,32 @@ public class ConnectivityService extends IConnectivityManager.Stub
      */
     private void rematchNetworksAndRequests(
             @NonNull final Set<NetworkRequestInfo> networkRequests) {
+        rematchNetworksAndRequests(networkRequests, false /* full */);
+    }
+
+    private void rematchNetworksAndRequests(
+            @NonNull final Set<NetworkRequestInfo> networkRequests, final boolean full) {
         ensureRunningOnConnectivityServiceThread();
-        // TODO: This may be slow, and should be optimized.
-        final long start = SystemClock.elapsedRealtime();
+        final long now = SystemClock.elapsedRealtime();
+        final long start = SystemClock.elapsedRealtimeNanos();
         final NetworkReassignment changes = computeNetworkReassignment(networkRequests);
-        final long computed = SystemClock.elapsedRealtime();
-        applyNetworkReassignment(changes, start);
-        final long applied = SystemClock.elapsedRealtime();
+        final long computed = SystemClock.elapsedRealtimeNanos();
+        applyNetworkReassignment(changes, now);
+        final long applied = SystemClock.elapsedRealtimeNanos();
         issueNetworkNeeds();
-        final long end = SystemClock.elapsedRealtime();
+        final long end = SystemClock.elapsedRealtimeNanos();
+        mRematchMetrics.onRematch(full, networkRequests.size(), changes.size(),
+                computed - start, applied - computed, end - applied);
         if (VDBG || DDBG) {
             log(String.format("Rematched networks [computed %dms] [applied %dms] [issued %d]",
-                    computed - start, applied - computed, end - applied));
+                    (computed - start) / 1_000_000, (applied - computed) / 1_000_000,
+                    (end - applied) / 1_000_000));
             log(changes.debugString());
         } else if (DBG) {
             // Shorter form, only one line of log
             log(String.format("%s [c %d] [a %d] [i %d]", changes.toString(),
-                    computed - start, applied - computed, end - applied));
+                    (computed - start) / 1_000_000, (applied - computed) / 1_000_000,
+                    (end - applied) / 1_000_000));
         }
     }
 
@@ -11294,7 +11380,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
 
             // Consider network even though it is not yet validated.
-            rematchAllNetworksAndRequests();
+            rematchRequestsAffectedByNetwork(networkAgent, null /* prevNc */);
 
             // This has to happen after matching the requests, because callbacks are just requests.
             notifyNetworkCallbacks(networkAgent, ConnectivityManager.CALLBACK_PRECHECK);
@@ -11320,7 +11406,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        rematchRequestsAffectedByNetwork(nai, null /* prevNc */);
     }
 
     // Notify only this one new request of the current state. Transfer all the
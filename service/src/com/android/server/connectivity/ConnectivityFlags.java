@@ -33,12 +33,29 @@ public final class ConnectivityFlags {
     public static final String NO_REMATCH_ALL_REQUESTS_ON_REGISTER =
             "no_rematch_all_requests_on_register";
 
+    /**
+     * Minimum module version at which to rematch only the requests that a network could
+     * satisfy when its score or capabilities change, instead of rematching all requests.
+     */
+    @VisibleForTesting
+    public static final String INCREMENTAL_REMATCH_ON_NETWORK_CHANGE =
+            "incremental_rematch_on_network_change";
+
+    /**
+     * Minimum module version at which to send the network callbacks queued for each app during
+     * a ConnectivityService handler turn together, coalescing superseded changes.
+     */
+    @VisibleForTesting
+    public static final String BATCH_NETWORK_CALLBACKS = "batch_network_callbacks";
+
     public static final String CARRIER_SERVICE_CHANGED_USE_CALLBACK =
             "carrier_service_changed_use_callback_version";
 
     public static final String REQUEST_RESTRICTED_WIFI =
             "request_restricted_wifi";
     private boolean mNoRematchAllRequestsOnRegister;
+    private boolean mIncrementalRematchOnNetworkChange;
+    private boolean mBatchNetworkCallbacks;
 
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
@@ -60,6 +77,30 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should only rematch the requests that may be affected when the
+     * score or capabilities of a network change, instead of rematching all requests.
+     *
+     * This flag is disabled by default, and follows the same loading model as
+     * {@link #noRematchAllRequestsOnRegister} : it only controls a performance optimization, so
+     * its value does not need to be consistent over time.
+     */
+    public boolean incrementalRematchOnNetworkChange() {
+        return mIncrementalRematchOnNetworkChange;
+    }
+
+    /**
+     * Whether ConnectivityService should queue the network callbacks for each app and send them
+     * together at the end of the handler turn, instead of sending each one immediately.
+     *
+     * This flag is disabled by default. It is loaded in systemReady like the other flags ; as
+     * the callbacks of each app are still sent in order, it is fine for it to change from false
+     * to true while callbacks are being sent.
+     */
+    public boolean batchNetworkCallbacks() {
+        return mBatchNetworkCallbacks;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -67,5 +108,8 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER);
+        mIncrementalRematchOnNetworkChange = deps.isFeatureEnabled(
+                ctx, INCREMENTAL_REMATCH_ON_NETWORK_CHANGE);
+        mBatchNetworkCallbacks = deps.isFeatureEnabled(ctx, BATCH_NETWORK_CALLBACKS);
     }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.ConnectivityManager.CALLBACK_BATCH;
+import static android.net.ConnectivityManager.CALLBACK_BATCH_MESSAGES_KEY;
+import static android.net.ConnectivityManager.CALLBACK_CAP_CHANGED;
+import static android.net.ConnectivityManager.CALLBACK_IP_CHANGED;
+
+import android.annotation.NonNull;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.ArrayMap;
+import android.util.IndentingPrintWriter;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Batches the network callback messages sent to each app messenger during one handler turn.
+ *
+ * ConnectivityService sends one message per callback per request, so a single network event
+ * can result in dozens of binder transactions to an app holding many callbacks. This class
+ * queues the messages per destination messenger, and sends them at the end of the current
+ * handler turn, in order, as a single {@link android.net.ConnectivityManager#CALLBACK_BATCH}
+ * message that the app unpacks. While queued, a capabilities or link properties change for a
+ * request and network supersedes an immediately preceding change of the same kind for the same
+ * request and network, which is then not sent at all.
+ *
+ * This class must only be used on the thread of the handler it is constructed with.
+ */
+public class NetworkCallbackBatcher {
+    private static final String TAG = NetworkCallbackBatcher.class.getSimpleName();
+
+    /**
+     * Maximum number of callbacks in a single batch, to keep the size of each transaction well
+     * below the binder buffer size, as each callback may carry capabilities and link properties.
+     */
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 32;
+
+    /**
+     * Maximum parceled size of the callbacks in a single batch. The binder buffer of the app is
+     * shared by all its incoming transactions, and oneway transactions may only use half of it.
+     * A callback larger than this is sent on its own.
+     */
+    @VisibleForTesting
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private static final class PendingCallback {
+        final int mUid;
+        final int mRequestId;
+        final int mNetId;
+        @NonNull Message mMessage;
+
+        PendingCallback(int uid, int requestId, int netId, @NonNull Message message) {
+            mUid = uid;
+            mRequestId = requestId;
+            mNetId = netId;
+            mMessage = message;
+        }
+    }
+
+    /** Delivery counters for one UID. */
+    @VisibleForTesting
+    static final class CallbackCounters {
+        // Callbacks sent to the app, whether batched or not.
+        long mSent;
+        // Callbacks superseded by a later callback before being sent.
+        long mCoalesced;
+
+        @Override
+        public String toString() {
+            return "sent=" + mSent + " coalesced=" + mCoalesced;
+        }
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    private final ArrayMap<Messenger, ArrayList<PendingCallback>> mPending = new ArrayMap<>();
+    private final SparseArray<CallbackCounters> mCounters = new SparseArray<>();
+    // UIDs whose counters are dropped after the next flush, as they no longer have callbacks.
+    private final SparseBooleanArray mRemovedUids = new SparseBooleanArray();
+    private final Runnable mFlushRunnable = this::flush;
+    private boolean mFlushScheduled = false;
+    // Number of binder transactions used to send callbacks.
+    private long mTransactions = 0;
+
+    public NetworkCallbackBatcher(@NonNull Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Queue a callback message to be sent to the given messenger at the end of the current
+     * handler turn.
+     *
+     * @param messenger the messenger of the app.
+     * @param uid the UID of the app, for accounting.
+     * @param requestId the ID of the request the callback is for.
+     * @param netId the ID of the network the callback is about, or NETID_UNSET if none.
+     * @param msg the callback message, as would be sent to the messenger directly.
+     */
+    public void enqueue(@NonNull Messenger messenger, int uid, int requestId, int netId,
+            @NonNull Message msg) {
+        ensureRunningOnHandlerThread();
+        ArrayList<PendingCallback> pending = mPending.get(messenger);
+        if (null == pending) {
+            pending = new ArrayList<>();
+            mPending.put(messenger, pending);
+        }
+        if (msg.what == CALLBACK_CAP_CHANGED || msg.what == CALLBACK_IP_CHANGED) {
+            final PendingCallback previous = findLastForRequest(pending, requestId);
+            if (null != previous && previous.mNetId == netId
+                    && previous.mMessage.what == msg.what) {
+                // Nothing was queued for this request after the previous change, so the app
+                // would observe the same sequence of states without it.
+                previous.mMessage = msg;
+                getCounters(uid).mCoalesced++;
+                return;
+            }
+        }
+        pending.add(new PendingCallback(uid, requestId, netId, msg));
+        scheduleFlush();
+    }
+
+    /**
+     * Notify that the given UID no longer has any registered callback. Its delivery counters are
+     * dropped once the callbacks already queued for it, if any, are sent.
+     */
+    public void onUidCallbacksRemoved(int uid) {
+        ensureRunningOnHandlerThread();
+        if (mCounters.indexOfKey(uid) < 0) return;
+        mRemovedUids.put(uid, true);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postAtFrontOfQueue(mFlushRunnable);
+        }
+    }
+
+    private void ensureRunningOnHandlerThread() {
+        if (mHandler.getLooper().getThread() != Thread.currentThread()) {
+            throw new IllegalStateException(
+                    "Not running on Handler thread: " + Thread.currentThread().getName());
+        }
+    }
+
+    private static PendingCallback findLastForRequest(
+            @NonNull ArrayList<PendingCallback> pending, int requestId) {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            if (pending.get(i).mRequestId == requestId) return pending.get(i);
+        }
+        return null;
+    }
+
+    @NonNull
+    private CallbackCounters getCounters(int uid) {
+        CallbackCounters counters = mCounters.get(uid);
+        if (null == counters) {
+            counters = new CallbackCounters();
+            mCounters.put(uid, counters);
+        }
+        return counters;
+    }
+
+    /** Send all queued callbacks. */
+    public void flush() {
+        ensureRunningOnHandlerThread();
+        mFlushScheduled = false;
+        for (int i = 0; i < mPending.size(); i++) {
+            final Messenger messenger = mPending.keyAt(i);
+            final ArrayList<PendingCallback> pending = mPending.valueAt(i);
+            int start = 0;
+            while (start < pending.size()) {
+                final int end = findBatchEnd(pending, start);
+                send(messenger, pending, start, end);
+                start = end;
+            }
+        }
+        mPending.clear();
+        for (int i = 0; i < mRemovedUids.size(); i++) {
+            mCounters.remove(mRemovedUids.keyAt(i));
+        }
+        mRemovedUids.clear();
+    }
+
+    /**
+     * Returns the end of the batch starting at {@code start}, which holds at most
+     * {@link #MAX_BATCH_SIZE} callbacks and {@link #MAX_BATCH_BYTES} bytes, but at least one
+     * callback.
+     */
+    private static int findBatchEnd(@NonNull ArrayList<PendingCallback> pending, int start) {
+        final int maxEnd = Math.min(start + MAX_BATCH_SIZE, pending.size());
+        if (maxEnd - start == 1) return maxEnd;
+        int bytes = 0;
+        for (int end = start; end < maxEnd; end++) {
+            bytes += getParceledSize(pending.get(end).mMessage);
+            if (bytes > MAX_BATCH_BYTES) return Math.max(end, start + 1);
+        }
+        return maxEnd;
+    }
+
+    private static int getParceledSize(@NonNull Message msg) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            msg.writeToParcel(parcel, 0 /* flags */);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private void send(@NonNull Messenger messenger, @NonNull ArrayList<PendingCallback> pending,
+            int start, int end) {
+        final Message msg;
+        if (end - start == 1) {
+            msg = pending.get(start).mMessage;
+        } else {
+            final ArrayList<Message> batch = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                batch.add(pending.get(i).mMessage);
+            }
+            final Bundle bundle = new Bundle();
+            bundle.putParcelableArrayList(CALLBACK_BATCH_MESSAGES_KEY, batch);
+            msg = Message.obtain();
+            msg.what = CALLBACK_BATCH;
+            msg.setData(bundle);
+        }
+        mTransactions++;
+        try {
+            sendMessage(messenger, msg);
+        } catch (TransactionTooLargeException e) {
+            if (end - start > 1) {
+                // The app binder buffer may be partly used by other transactions: fall back to
+                // sending the callbacks one by one.
+                Log.w(TAG, "Batch of " + (end - start) + " callback msgs to uid "
+                        + pending.get(start).mUid + " too large, sending them one by one");
+                for (int i = start; i < end; i++) {
+                    send(messenger, pending, i, i + 1);
+                }
+                return;
+            }
+            Log.e(TAG, "Callback msg to uid " + pending.get(start).mUid + " too large", e);
+        } catch (RemoteException e) {
+            // may occur naturally in the race of binder death.
+            Log.e(TAG, "RemoteException caught trying to send " + (end - start)
+                    + " callback msgs to uid " + pending.get(start).mUid);
+        }
+        for (int i = start; i < end; i++) {
+            getCounters(pending.get(i).mUid).mSent++;
+        }
+    }
+
+    /** Send a message to the given messenger. Overridden in tests. */
+    @VisibleForTesting
+    protected void sendMessage(@NonNull Messenger messenger, @NonNull Message msg)
+            throws RemoteException {
+        messenger.send(msg);
+    }
+
+    /** Get the delivery counters for the given UID, or null if nothing was sent to it. */
+    @VisibleForTesting
+    CallbackCounters getCountersForUid(int uid) {
+        return mCounters.get(uid);
+    }
+
+    /** Get the number of binder transactions used to send callbacks. */
+    @VisibleForTesting
+    long getTransactionCount() {
+        return mTransactions;
+    }
+
+    /** Dump the delivery counters. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Network callback delivery: " + mTransactions + " transactions");
+        pw.increaseIndent();
+        for (int i = 0; i < mCounters.size(); i++) {
+            pw.println("uid " + mCounters.keyAt(i) + ": " + mCounters.valueAt(i));
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArrayMap;
+
+import java.util.Collection;
+
+/**
+ * An index of network requests by the transports and capabilities they require.
+ *
+ * A network can only satisfy a request if it has one of the transports of the request (or the
+ * request has no transport), and all of the capabilities of the request. Requests are grouped
+ * by this (transports, capabilities) signature, so the requests that a network could possibly
+ * satisfy can be found by testing each distinct signature once rather than each request. The
+ * result is a superset of the requests that the network actually satisfies : other requirements
+ * such as forbidden capabilities, UIDs or specifiers are not indexed.
+ *
+ * This class is not thread-safe.
+ *
+ * @param <T> the type of the owner of the requests, e.g. the NetworkRequestInfo.
+ */
+public class NetworkRequestIndex<T> {
+    private static final class Signature {
+        final long mTransports;
+        final long mCapabilities;
+
+        Signature(long transports, long capabilities) {
+            mTransports = transports;
+            mCapabilities = capabilities;
+        }
+
+        boolean couldBeSatisfiedBy(@NonNull final NetworkCapabilities nc) {
+            return (mTransports == 0 || (mTransports & nc.getTransportTypesInternal()) != 0)
+                    && (mCapabilities & ~nc.getCapabilitiesInternal()) == 0;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object o) {
+            if (!(o instanceof Signature)) return false;
+            final Signature that = (Signature) o;
+            return mTransports == that.mTransports && mCapabilities == that.mCapabilities;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(mTransports) * 31 + Long.hashCode(mCapabilities);
+        }
+
+        @Override
+        public String toString() {
+            return "Signature{transports=0x" + Long.toHexString(mTransports)
+                    + ", capabilities=0x" + Long.toHexString(mCapabilities) + "}";
+        }
+    }
+
+    // The owners of the requests with each signature, with the number of requests of each
+    // owner having this signature, so multi-layer owners are only dropped with their last
+    // request of a given signature.
+    private final ArrayMap<Signature, ArrayMap<T, Integer>> mOwnersBySignature = new ArrayMap<>();
+    private int mSize = 0;
+
+    @NonNull
+    private static Signature signatureOf(@NonNull final NetworkRequest request) {
+        final NetworkCapabilities nc = request.networkCapabilities;
+        return new Signature(nc.getTransportTypesInternal(), nc.getCapabilitiesInternal());
+    }
+
+    /** Add a request owned by the given owner. */
+    public void add(@NonNull final NetworkRequest request, @NonNull final T owner) {
+        final Signature signature = signatureOf(request);
+        ArrayMap<T, Integer> owners = mOwnersBySignature.get(signature);
+        if (null == owners) {
+            owners = new ArrayMap<>();
+            mOwnersBySignature.put(signature, owners);
+        }
+        final Integer count = owners.get(owner);
+        owners.put(owner, null == count ? 1 : count + 1);
+        mSize++;
+    }
+
+    /**
+     * Remove a request previously added with the same owner. Does nothing if absent. The
+     * capabilities of the request must not have changed since it was added.
+     */
+    public void remove(@NonNull final NetworkRequest request, @NonNull final T owner) {
+        final Signature signature = signatureOf(request);
+        final ArrayMap<T, Integer> owners = mOwnersBySignature.get(signature);
+        if (null == owners) return;
+        final Integer count = owners.get(owner);
+        if (null == count) return;
+        if (count > 1) {
+            owners.put(owner, count - 1);
+        } else {
+            owners.remove(owner);
+            if (owners.isEmpty()) mOwnersBySignature.remove(signature);
+        }
+        mSize--;
+    }
+
+    /** Number of requests in the index. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Number of distinct signatures in the index. */
+    public int getSignatureCount() {
+        return mOwnersBySignature.size();
+    }
+
+    /**
+     * Add to {@code out} the owners of all requests that a network with the given capabilities
+     * could satisfy.
+     */
+    public void collectCandidates(@NonNull final NetworkCapabilities nc,
+            @NonNull final Collection<T> out) {
+        for (int i = 0; i < mOwnersBySignature.size(); i++) {
+            if (mOwnersBySignature.keyAt(i).couldBeSatisfiedBy(nc)) {
+                out.addAll(mOwnersBySignature.valueAt(i).keySet());
+            }
+        }
+    }
+}
@@ -64,6 +64,7 @@ import android.provider.Settings;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
@@ -77,6 +78,7 @@ import com.android.networkstack.apishim.common.ProcessShim;
 import com.android.server.BpfNetMaps;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -111,6 +113,15 @@ public class PermissionMonitor {
     @GuardedBy("this")
     private final SparseIntArray mUidToNetworkPerm = new SparseIntArray();
 
+    // Immutable copies of mUidToNetworkPerm and mUidsAllowedOnRestrictedNetworks, published at
+    // the end of each update. The public lookup methods are called on binder threads for every
+    // network request, and read these without taking the lock, so they never wait for an update
+    // that is talking to netd or to the package manager. They must never be modified.
+    private volatile UidNetworkPermSnapshot mUidToNetworkPermSnapshot =
+            new UidNetworkPermSnapshot(new SparseIntArray(), new SparseIntArray());
+    private volatile Set<Integer> mUidsAllowedOnRestrictedNetworksSnapshot =
+            Collections.emptySet();
+
     // NonNull keys are active non-bypassable and fully-routed VPN's interface name, Values are uid
     // ranges for apps under the VPNs which enable interface filtering.
     // If key is null, Values are uid ranges for apps under the VPNs which are connected but do not
@@ -152,8 +163,30 @@ public class PermissionMonitor {
     @GuardedBy("this")
     private final Map<UserHandle, SparseIntArray> mUsersTrafficPermissions = new ArrayMap<>();
 
+    // Traffic permissions last written to the BPF map for each appId, including
+    // PERMISSION_UNINSTALLED. Used to only write the appIds whose permission changed, as adding
+    // or removing a user otherwise rewrites the permissions of every appId on the device. An
+    // appId missing from this array is always written. Only accessed on the handler thread.
+    private final SparseIntArray mAppIdsTrafficPermSent = new SparseIntArray();
+
+    // Netd permissions of each installed package, keyed by uid then by package name: the network
+    // permission (PERMISSION_NETWORK or PERMISSION_SYSTEM) ORed with the traffic permissions
+    // (PERMISSION_INTERNET and PERMISSION_UPDATE_DEVICE_STATS), as their values never overlap.
+    // Filled by the package scan of each user and by package events, so that a package event
+    // only fetches the changed package from the package manager instead of every package of
+    // its uid.
+    @GuardedBy("this")
+    private final SparseArray<ArrayMap<String, Integer>> mUidPackagesPerm = new SparseArray<>();
+
+    private static final int NETWORK_PERMISSIONS_MASK = PERMISSION_NETWORK | PERMISSION_SYSTEM;
+
     private static final int SYSTEM_APPID = SYSTEM_UID;
 
+    // Maximum number of uids changed since the last full copy of mUidToNetworkPerm in
+    // mUidToNetworkPermSnapshot. Beyond this, the next update publishes a new full copy.
+    @VisibleForTesting
+    static final int MAX_UID_NETWORK_PERM_CHANGES = 32;
+
     private static final int MAX_PERMISSION_UPDATE_LOGS = 40;
     private final SharedLog mPermissionUpdateLogs = new SharedLog(MAX_PERMISSION_UPDATE_LOGS, TAG);
 
@@ -261,6 +294,24 @@ public class PermissionMonitor {
         }
     }
 
+    // Immutable view of the uid network permissions: a full copy of mUidToNetworkPerm, and the
+    // permissions of the uids that changed after it was taken.
+    private static class UidNetworkPermSnapshot {
+        private final SparseIntArray mBase;
+        // PERMISSION_NONE for uids removed from mUidToNetworkPerm.
+        private final SparseIntArray mChanges;
+
+        UidNetworkPermSnapshot(@NonNull SparseIntArray base, @NonNull SparseIntArray changes) {
+            mBase = base;
+            mChanges = changes;
+        }
+
+        int get(int uid) {
+            final int index = mChanges.indexOfKey(uid);
+            return index >= 0 ? mChanges.valueAt(index) : mBase.get(uid, PERMISSION_NONE);
+        }
+    }
+
     public PermissionMonitor(@NonNull final Context context, @NonNull final INetd netd,
             @NonNull final BpfNetMaps bpfNetMaps, @NonNull final HandlerThread thread) {
         this(context, netd, bpfNetMaps, new Dependencies(), thread);
@@ -320,6 +371,84 @@ public class PermissionMonitor {
         }
     }
 
+    @GuardedBy("this")
+    private void indexPackagesPermissions(final List<PackageInfo> apps) {
+        for (PackageInfo app : apps) {
+            final int uid = app.applicationInfo != null ? app.applicationInfo.uid : INVALID_UID;
+            if (uid < 0 || app.packageName == null) {
+                continue;
+            }
+            putPackagePermissions(uid, app.packageName, getPackageNetdPermissions(app));
+        }
+    }
+
+    @GuardedBy("this")
+    private void putPackagePermissions(final int uid, @NonNull final String packageName,
+            final int permissions) {
+        ArrayMap<String, Integer> packages = mUidPackagesPerm.get(uid);
+        if (packages == null) {
+            packages = new ArrayMap<>();
+            mUidPackagesPerm.put(uid, packages);
+        }
+        packages.put(packageName, permissions);
+    }
+
+    private int getPackageNetdPermissions(@NonNull final PackageInfo app) {
+        return getPackageNetdNetworkPermission(app)
+                | getNetdPermissionMask(app.requestedPermissions, app.requestedPermissionsFlags);
+    }
+
+    /**
+     * Returns the netd permissions of the given uid, in the format of mUidPackagesPerm: the
+     * highest network permission of its packages ORed with the union of their traffic
+     * permissions, or PERMISSION_UNINSTALLED if the uid has no package left.
+     *
+     * Only the list of packages of the uid is queried from the package manager. The permissions
+     * of the packages come from mUidPackagesPerm, which is updated to drop the packages that are
+     * no longer installed and to add the ones that were not indexed yet.
+     */
+    @GuardedBy("this")
+    private int getIndexedPermissionsForUid(final int uid) {
+        final String[] packages = mPackageManager.getPackagesForUid(uid);
+        if (CollectionUtils.isEmpty(packages)) {
+            mUidPackagesPerm.remove(uid);
+            return PERMISSION_UNINSTALLED;
+        }
+        final ArrayMap<String, Integer> indexed = mUidPackagesPerm.get(uid);
+        final ArrayMap<String, Integer> installed = new ArrayMap<>(packages.length);
+        int networkPermission = PERMISSION_NONE;
+        int trafficPermissions = PERMISSION_NONE;
+        for (String name : packages) {
+            Integer permissions = indexed != null ? indexed.get(name) : null;
+            if (permissions == null) {
+                final PackageInfo app = getPackageInfoAsUser(name,
+                        UserHandle.getUserHandleForUid(uid));
+                if (app == null) continue;
+                permissions = getPackageNetdPermissions(app);
+            }
+            installed.put(name, permissions);
+            // If multiple packages have the same UID, give the UID all permissions that any
+            // package in that UID has.
+            final int packageNetworkPermission = permissions & NETWORK_PERMISSIONS_MASK;
+            if (isHigherNetworkPermission(packageNetworkPermission, networkPermission)) {
+                networkPermission = packageNetworkPermission;
+            }
+            trafficPermissions |= permissions & ~NETWORK_PERMISSIONS_MASK;
+        }
+        mUidPackagesPerm.put(uid, installed);
+        return networkPermission | trafficPermissions;
+    }
+
+    private static int getNetworkPermission(final int uidPermissions) {
+        if (uidPermissions == PERMISSION_UNINSTALLED) return PERMISSION_NONE;
+        return uidPermissions & NETWORK_PERMISSIONS_MASK;
+    }
+
+    private static int getTrafficPermission(final int uidPermissions) {
+        if (uidPermissions == PERMISSION_UNINSTALLED) return PERMISSION_UNINSTALLED;
+        return uidPermissions & ~NETWORK_PERMISSIONS_MASK;
+    }
+
     private static boolean hasSdkSandbox(final int uid) {
         return SdkLevel.isAtLeastT() && Process.isApplicationUid(uid);
     }
@@ -368,9 +497,35 @@ public class PermissionMonitor {
         for (int i = 0; i < uids.size(); i++) {
             mUidToNetworkPerm.put(uids.keyAt(i), uids.valueAt(i));
         }
+        publishUidToNetworkPerm();
         sendUidsNetworkPermission(uids, true /* add */);
     }
 
+    // Must be called after each update of mUidToNetworkPerm for the lookup methods to see it.
+    @GuardedBy("this")
+    private void publishUidToNetworkPerm() {
+        mUidToNetworkPermSnapshot =
+                new UidNetworkPermSnapshot(mUidToNetworkPerm.clone(), new SparseIntArray());
+    }
+
+    // Same as publishUidToNetworkPerm, for an update that only changed the permissions of the
+    // keys of changedUids. Package events only change a few uids, so this only copies the uids
+    // changed since the last full copy instead of the permissions of all uids.
+    @GuardedBy("this")
+    private void publishUidToNetworkPerm(@NonNull final SparseIntArray changedUids) {
+        final UidNetworkPermSnapshot current = mUidToNetworkPermSnapshot;
+        if (current.mChanges.size() + changedUids.size() > MAX_UID_NETWORK_PERM_CHANGES) {
+            publishUidToNetworkPerm();
+            return;
+        }
+        final SparseIntArray changes = current.mChanges.clone();
+        for (int i = 0; i < changedUids.size(); i++) {
+            final int uid = changedUids.keyAt(i);
+            changes.put(uid, mUidToNetworkPerm.get(uid, PERMISSION_NONE));
+        }
+        mUidToNetworkPermSnapshot = new UidNetworkPermSnapshot(current.mBase, changes);
+    }
+
     /**
      * Calculates permissions for appIds.
      * Maps each appId to the union of all traffic permissions that the appId has in all users.
@@ -474,6 +629,8 @@ public class PermissionMonitor {
     synchronized void updateUidsAllowedOnRestrictedNetworks(final Set<Integer> uids) {
         mUidsAllowedOnRestrictedNetworks.clear();
         mUidsAllowedOnRestrictedNetworks.addAll(uids);
+        mUidsAllowedOnRestrictedNetworksSnapshot =
+                Collections.unmodifiableSet(new ArraySet<>(uids));
     }
 
     @VisibleForTesting
@@ -492,7 +649,7 @@ public class PermissionMonitor {
     }
 
     @VisibleForTesting
-    synchronized boolean isUidAllowedOnRestrictedNetworks(final ApplicationInfo appInfo) {
+    boolean isUidAllowedOnRestrictedNetworks(final ApplicationInfo appInfo) {
         if (appInfo == null) return false;
         // Check whether package's uid is in allowed on restricted networks uid list. If so, this
         // uid can have netd system permission.
@@ -502,8 +659,8 @@ public class PermissionMonitor {
     /**
      * Returns whether the given uid is in allowed on restricted networks list.
      */
-    public synchronized boolean isUidAllowedOnRestrictedNetworks(final int uid) {
-        return mUidsAllowedOnRestrictedNetworks.contains(uid);
+    public boolean isUidAllowedOnRestrictedNetworks(final int uid) {
+        return mUidsAllowedOnRestrictedNetworksSnapshot.contains(uid);
     }
 
     @VisibleForTesting
@@ -532,20 +689,25 @@ public class PermissionMonitor {
     }
 
     /** Returns whether the given uid has using background network permission. */
-    public synchronized boolean hasUseBackgroundNetworksPermission(final int uid) {
+    public boolean hasUseBackgroundNetworksPermission(final int uid) {
         // Apps with any of the CHANGE_NETWORK_STATE, NETWORK_STACK, CONNECTIVITY_INTERNAL or
         // CONNECTIVITY_USE_RESTRICTED_NETWORKS permission has the permission to use background
         // networks. mUidToNetworkPerm contains the result of checks for hasNetworkPermission and
         // hasRestrictedNetworkPermission, as well as the list of UIDs allowed on restricted
         // networks. If uid is in the mUidToNetworkPerm list that means uid has one of permissions
         // at least.
-        return mUidToNetworkPerm.get(uid, PERMISSION_NONE) != PERMISSION_NONE;
+        return mUidToNetworkPermSnapshot.get(uid) != PERMISSION_NONE;
     }
 
     /**
      * Returns whether the given uid has permission to use restricted networks.
      */
-    public synchronized boolean hasRestrictedNetworksPermission(int uid) {
+    public boolean hasRestrictedNetworksPermission(int uid) {
+        return PERMISSION_SYSTEM == mUidToNetworkPermSnapshot.get(uid);
+    }
+
+    // Same as hasRestrictedNetworksPermission, but sees the updates in progress.
+    private synchronized boolean hasRestrictedNetworksPermissionInternal(int uid) {
         return PERMISSION_SYSTEM == mUidToNetworkPerm.get(uid, PERMISSION_NONE);
     }
 
@@ -589,6 +751,7 @@ public class PermissionMonitor {
 
         // Save all apps
         updateAllApps(apps);
+        indexPackagesPermissions(apps);
 
         // Uids network permissions
         final SparseIntArray uids = makeUidsNetworkPerm(apps);
@@ -627,7 +790,13 @@ public class PermissionMonitor {
                 removedUids.put(uid, allUids.valueAt(i));
             }
         }
+        publishUidToNetworkPerm();
         sendUidsNetworkPermission(removedUids, false /* add */);
+        for (int i = mUidPackagesPerm.size() - 1; i >= 0; i--) {
+            if (user.equals(UserHandle.getUserHandleForUid(mUidPackagesPerm.keyAt(i)))) {
+                mUidPackagesPerm.removeAt(i);
+            }
+        }
 
         // Remove appIds traffic permission that belongs to the user
         final SparseIntArray removedUserAppIds = mUsersTrafficPermissions.remove(user);
@@ -681,30 +850,9 @@ public class PermissionMonitor {
         return currentPermission;
     }
 
-    private int getTrafficPermissionForUid(final int uid) {
-        int permission = PERMISSION_NONE;
-        // Check all the packages for this UID. The UID has the permission if any of the
-        // packages in it has the permission.
-        final String[] packages = mPackageManager.getPackagesForUid(uid);
-        if (packages != null && packages.length > 0) {
-            for (String name : packages) {
-                final PackageInfo app = getPackageInfoAsUser(name,
-                        UserHandle.getUserHandleForUid(uid));
-                if (app != null && app.requestedPermissions != null) {
-                    permission |= getNetdPermissionMask(app.requestedPermissions,
-                            app.requestedPermissionsFlags);
-                }
-            }
-        } else {
-            // The last package of this uid is removed from device. Clean the package up.
-            permission = PERMISSION_UNINSTALLED;
-        }
-        return permission;
-    }
-
     private synchronized void updateVpnUid(int uid, boolean add) {
         // Apps that can use restricted networks can always bypass VPNs.
-        if (hasRestrictedNetworksPermission(uid)) {
+        if (hasRestrictedNetworksPermissionInternal(uid)) {
             return;
         }
         for (Map.Entry<String, Set<UidRange>> vpn : mVpnInterfaceUidRanges.entrySet()) {
@@ -718,7 +866,7 @@ public class PermissionMonitor {
 
     private synchronized void updateLockdownUid(int uid, boolean add) {
         // Apps that can use restricted networks can always bypass VPNs.
-        if (hasRestrictedNetworksPermission(uid)) {
+        if (hasRestrictedNetworksPermissionInternal(uid)) {
             return;
         }
 
@@ -753,8 +901,7 @@ public class PermissionMonitor {
         }
     }
 
-    private synchronized void updateAppIdTrafficPermission(int uid) {
-        final int uidTrafficPerm = getTrafficPermissionForUid(uid);
+    private synchronized void updateAppIdTrafficPermission(int uid, int uidTrafficPerm) {
         final SparseIntArray userTrafficPerms =
                 mUsersTrafficPermissions.get(UserHandle.getUserHandleForUid(uid));
         if (userTrafficPerms == null) {
@@ -796,15 +943,27 @@ public class PermissionMonitor {
      */
     @VisibleForTesting
     synchronized void onPackageAdded(@NonNull final String packageName, final int uid) {
+        // Only the added package is fetched, the other packages of the uid are already indexed.
+        // The package may have been updated, so always replace its indexed permissions.
+        final PackageInfo app = getPackageInfoAsUser(packageName,
+                UserHandle.getUserHandleForUid(uid));
+        if (app != null) {
+            putPackagePermissions(uid, packageName, getPackageNetdPermissions(app));
+        }
         // Update uid permission.
-        updateAppIdTrafficPermission(uid);
+        updateAppIdTrafficPermission(uid, getTrafficPermission(getIndexedPermissionsForUid(uid)));
         // Get the appId permission from all users then send the latest permission to netd.
         final int appId = UserHandle.getAppId(uid);
         final int appIdTrafficPerm = getAppIdTrafficPermission(appId);
         sendPackagePermissionsForAppId(appId, appIdTrafficPerm);
 
+        // If multiple packages share a UID (cf: android:sharedUserId) and ask for different
+        // permissions, don't downgrade.
         final int currentPermission = mUidToNetworkPerm.get(uid, PERMISSION_NONE);
-        final int permission = highestPermissionForUid(uid, currentPermission, packageName);
+        final int packagePermission =
+                app != null ? getPackageNetdNetworkPermission(app) : PERMISSION_NONE;
+        final int permission = isHigherNetworkPermission(packagePermission, currentPermission)
+                ? packagePermission : currentPermission;
         if (permission != currentPermission) {
             mUidToNetworkPerm.put(uid, permission);
 
@@ -816,13 +975,14 @@ public class PermissionMonitor {
                 mUidToNetworkPerm.put(sdkSandboxUid, permission);
                 apps.put(sdkSandboxUid, permission);
             }
+            publishUidToNetworkPerm(apps);
             sendUidsNetworkPermission(apps, true /* add */);
         }
 
         // If the newly-installed package falls within some VPN's uid range, update Netd with it.
         // This needs to happen after the mUidToNetworkPerm update above, since
-        // hasRestrictedNetworksPermission() in updateVpnUid() and updateLockdownUid() depends on
-        // mUidToNetworkPerm to check if the package can bypass VPN.
+        // hasRestrictedNetworksPermissionInternal() in updateVpnUid() and updateLockdownUid()
+        // depends on mUidToNetworkPerm to check if the package can bypass VPN.
         updateVpnUid(uid, true /* add */);
         updateLockdownUid(uid, true /* add */);
         mAllApps.add(appId);
@@ -860,8 +1020,11 @@ public class PermissionMonitor {
      */
     @VisibleForTesting
     synchronized void onPackageRemoved(@NonNull final String packageName, final int uid) {
+        // The removed package is dropped from the index unless it is still installed, e.g. when
+        // it is being replaced by an update.
+        final int uidPermissions = getIndexedPermissionsForUid(uid);
         // Update uid permission.
-        updateAppIdTrafficPermission(uid);
+        updateAppIdTrafficPermission(uid, getTrafficPermission(uidPermissions));
         // Get the appId permission from all users then send the latest permission to netd.
         final int appId = UserHandle.getAppId(uid);
         final int appIdTrafficPerm = getAppIdTrafficPermission(appId);
@@ -869,8 +1032,8 @@ public class PermissionMonitor {
 
         // If the newly-removed package falls within some VPN's uid range, update Netd with it.
         // This needs to happen before the mUidToNetworkPerm update below, since
-        // hasRestrictedNetworksPermission() in updateVpnUid() and updateLockdownUid() depends on
-        // mUidToNetworkPerm to check if the package can bypass VPN.
+        // hasRestrictedNetworksPermissionInternal() in updateVpnUid() and updateLockdownUid()
+        // depends on mUidToNetworkPerm to check if the package can bypass VPN.
         updateVpnUid(uid, false /* add */);
         updateLockdownUid(uid, false /* add */);
         // If the package has been removed from all users on the device, clear it form mAllApps.
@@ -879,7 +1042,7 @@ public class PermissionMonitor {
         }
 
         final int currentPermission = mUidToNetworkPerm.get(uid, PERMISSION_NONE);
-        final int permission = highestUidNetworkPermission(uid);
+        final int permission = getNetworkPermission(uidPermissions);
 
         // Log package removed.
         mPermissionUpdateLogs.log("Package remove: uid=" + uid
@@ -900,6 +1063,7 @@ public class PermissionMonitor {
                     mUidToNetworkPerm.delete(sdkSandboxUid);
                     apps.put(sdkSandboxUid, PERMISSION_NETWORK);
                 }
+                publishUidToNetworkPerm(apps);
                 sendUidsNetworkPermission(apps, false);
             } else {
                 mUidToNetworkPerm.put(uid, permission);
@@ -908,6 +1072,7 @@ public class PermissionMonitor {
                     mUidToNetworkPerm.put(sdkSandboxUid, permission);
                     apps.put(sdkSandboxUid, permission);
                 }
+                publishUidToNetworkPerm(apps);
                 sendUidsNetworkPermission(apps, true);
             }
         }
@@ -1068,7 +1233,7 @@ public class PermissionMonitor {
         // prohibit rules observe the protected from VPN bit.
         // If removing a UID, we ensure it is not present anywhere in the set first.
         for (final int uid: affectedUids) {
-            if (!hasRestrictedNetworksPermission(uid)
+            if (!hasRestrictedNetworksPermissionInternal(uid)
                     && (add || !UidRange.containsUid(mVpnLockdownUidRanges.getSet(), uid))) {
                 updateLockdownUidRule(uid, add);
             }
@@ -1110,7 +1275,7 @@ public class PermissionMonitor {
      */
     private void removeBypassingUids(Set<Integer> uids, int vpnAppUid) {
         uids.remove(vpnAppUid);
-        uids.removeIf(this::hasRestrictedNetworksPermission);
+        uids.removeIf(this::hasRestrictedNetworksPermissionInternal);
     }
 
     /**
@@ -1181,6 +1346,7 @@ public class PermissionMonitor {
 
     /**
      * Grant or revoke the INTERNET and/or UPDATE_DEVICE_STATS permission of the appIds in array.
+     * AppIds whose permission is already in the BPF map are skipped.
      *
      * @param netdPermissionsAppIds integer pairs of appIds and the permission granted to it. If the
      * permission is 0, revoke all permissions of that appId.
@@ -1197,6 +1363,10 @@ public class PermissionMonitor {
         final ArrayList<Integer> uninstalledAppIds = new ArrayList<>();
         for (int i = 0; i < netdPermissionsAppIds.size(); i++) {
             int permissions = netdPermissionsAppIds.valueAt(i);
+            final int sentIdx = mAppIdsTrafficPermSent.indexOfKey(netdPermissionsAppIds.keyAt(i));
+            if (sentIdx >= 0 && mAppIdsTrafficPermSent.valueAt(sentIdx) == permissions) {
+                continue;
+            }
             switch(permissions) {
                 case (PERMISSION_INTERNET | PERMISSION_UPDATE_DEVICE_STATS):
                     allPermissionAppIds.add(netdPermissionsAppIds.keyAt(i));
@@ -1220,38 +1390,37 @@ public class PermissionMonitor {
         }
         try {
             // TODO: add a lock inside netd to protect IPC trafficSetNetPermForUids()
-            if (allPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(
-                        PERMISSION_INTERNET | PERMISSION_UPDATE_DEVICE_STATS,
-                        toIntArray(allPermissionAppIds));
-            }
-            if (internetPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_INTERNET,
-                        toIntArray(internetPermissionAppIds));
-            }
-            if (updateStatsPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_UPDATE_DEVICE_STATS,
-                        toIntArray(updateStatsPermissionAppIds));
-            }
-            if (noPermissionAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_NONE,
-                        toIntArray(noPermissionAppIds));
-            }
-            if (uninstalledAppIds.size() != 0) {
-                mBpfNetMaps.setNetPermForUids(PERMISSION_UNINSTALLED,
-                        toIntArray(uninstalledAppIds));
-            }
+            setNetPermForAppIds(PERMISSION_INTERNET | PERMISSION_UPDATE_DEVICE_STATS,
+                    allPermissionAppIds);
+            setNetPermForAppIds(PERMISSION_INTERNET, internetPermissionAppIds);
+            setNetPermForAppIds(PERMISSION_UPDATE_DEVICE_STATS, updateStatsPermissionAppIds);
+            setNetPermForAppIds(PERMISSION_NONE, noPermissionAppIds);
+            setNetPermForAppIds(PERMISSION_UNINSTALLED, uninstalledAppIds);
         } catch (RemoteException | ServiceSpecificException e) {
             Log.e(TAG, "Pass appId list of special permission failed." + e);
+            // The state of the BPF map is unknown, so write everything again next time.
+            mAppIdsTrafficPermSent.clear();
+        }
+    }
+
+    private void setNetPermForAppIds(int permission, ArrayList<Integer> appIds)
+            throws RemoteException {
+        if (appIds.size() == 0) return;
+        mBpfNetMaps.setNetPermForUids(permission, toIntArray(appIds));
+        for (final int appId : appIds) {
+            mAppIdsTrafficPermSent.put(appId, permission);
         }
     }
 
     private synchronized void onSettingChanged() {
         // Step1. Update uids allowed to use restricted networks and compute the set of uids to
-        // update.
-        final Set<Integer> uidsToUpdate = new ArraySet<>(mUidsAllowedOnRestrictedNetworks);
+        // update. Only the uids added to or removed from the setting can change permission.
+        final Set<Integer> oldUids = new ArraySet<>(mUidsAllowedOnRestrictedNetworks);
         updateUidsAllowedOnRestrictedNetworks(mDeps.getUidsAllowedOnRestrictedNetworks(mContext));
-        uidsToUpdate.addAll(mUidsAllowedOnRestrictedNetworks);
+        final Set<Integer> uidsToUpdate = new ArraySet<>(mUidsAllowedOnRestrictedNetworks);
+        uidsToUpdate.removeAll(oldUids);
+        oldUids.removeAll(mUidsAllowedOnRestrictedNetworks);
+        uidsToUpdate.addAll(oldUids);
 
         final SparseIntArray updatedUids = new SparseIntArray();
         final SparseIntArray removedUids = new SparseIntArray();
@@ -1259,6 +1428,7 @@ public class PermissionMonitor {
         // Step2. For each uid to update, find out its new permission.
         for (Integer uid : uidsToUpdate) {
             final int permission = highestUidNetworkPermission(uid);
+            if (permission == mUidToNetworkPerm.get(uid, PERMISSION_NONE)) continue;
 
             if (PERMISSION_NONE == permission) {
                 // Doesn't matter which permission is set here.
@@ -1281,6 +1451,7 @@ public class PermissionMonitor {
         }
 
         // Step3. Update or revoke permission for uids with netd.
+        publishUidToNetworkPerm();
         sendUidsNetworkPermission(updatedUids, true /* add */);
         sendUidsNetworkPermission(removedUids, false /* add */);
         mPermissionUpdateLogs.log("Setting change: update=" + updatedUids
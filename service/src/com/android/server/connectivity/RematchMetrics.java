@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.util.IndentingPrintWriter;
+
+/**
+ * Aggregated timings of the request-to-network rematches run by ConnectivityService.
+ *
+ * Each rematch is made of three phases : computing the reassignment, applying it, and issuing
+ * the resulting network needs to the providers. This class keeps count, total and maximum
+ * duration for each phase, separately for full rematches (all requests) and partial rematches
+ * (a subset of the requests), together with the number of requests evaluated.
+ *
+ * This class is not thread-safe.
+ */
+public class RematchMetrics {
+    /** Duration statistics for one phase. */
+    public static final class PhaseStats {
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void add(long nanos) {
+            mCount++;
+            mTotalNanos += nanos;
+            if (nanos > mMaxNanos) mMaxNanos = nanos;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            final long avgMicros = mCount == 0 ? 0 : mTotalNanos / mCount / 1000;
+            return "avg " + avgMicros + "us max " + mMaxNanos / 1000 + "us";
+        }
+    }
+
+    /** Statistics for one kind of rematch, full or partial. */
+    public static final class RematchStats {
+        private long mEvaluatedRequests;
+        private long mReassignments;
+        public final PhaseStats computed = new PhaseStats();
+        public final PhaseStats applied = new PhaseStats();
+        public final PhaseStats issued = new PhaseStats();
+
+        public long getCount() {
+            return computed.getCount();
+        }
+
+        public long getEvaluatedRequests() {
+            return mEvaluatedRequests;
+        }
+
+        public long getReassignments() {
+            return mReassignments;
+        }
+
+        @Override
+        public String toString() {
+            return getCount() + " rematches, " + mEvaluatedRequests + " requests evaluated, "
+                    + mReassignments + " reassignments, computed [" + computed + "], applied ["
+                    + applied + "], issued [" + issued + "]";
+        }
+    }
+
+    private final RematchStats mFull = new RematchStats();
+    private final RematchStats mPartial = new RematchStats();
+
+    /**
+     * Record one rematch.
+     *
+     * @param full whether all requests were rematched.
+     * @param evaluatedRequests the number of requests passed to the rematch.
+     * @param reassignments the number of requests that changed satisfier.
+     */
+    public void onRematch(boolean full, int evaluatedRequests, int reassignments,
+            long computedNanos, long appliedNanos, long issuedNanos) {
+        final RematchStats stats = full ? mFull : mPartial;
+        stats.mEvaluatedRequests += evaluatedRequests;
+        stats.mReassignments += reassignments;
+        stats.computed.add(computedNanos);
+        stats.applied.add(appliedNanos);
+        stats.issued.add(issuedNanos);
+    }
+
+    @NonNull
+    public RematchStats getFullRematchStats() {
+        return mFull;
+    }
+
+    @NonNull
+    public RematchStats getPartialRematchStats() {
+        return mPartial;
+    }
+
+    /** Dump the statistics. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Rematch metrics:");
+        pw.increaseIndent();
+        pw.println("Full: " + mFull);
+        pw.println("Partial: " + mPartial);
+        pw.decreaseIndent();
+    }
+}
@@ -53,6 +53,28 @@ public class BpfDump {
         return keyBase64Str + BASE64_DELIMITER + valueBase64Str;
     }
 
+    /**
+     * Encode raw BPF key and value, as passed by {@link IBpfMap#forEachRaw}, into the same
+     * format as {@link #toBase64EncodedString(Struct, Struct)}.
+     */
+    public static String toBase64EncodedString(@NonNull final ByteBuffer key,
+            @NonNull final ByteBuffer value) {
+        return encodeBase64(key) + BASE64_DELIMITER + encodeBase64(value);
+    }
+
+    private static String encodeBase64(@NonNull final ByteBuffer buffer) {
+        final String base64Str;
+        if (buffer.hasArray()) {
+            base64Str = Base64.encodeToString(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining(), Base64.DEFAULT);
+        } else {
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            base64Str = Base64.encodeToString(bytes, Base64.DEFAULT);
+        }
+        return base64Str.replace("\n", "");
+    }
+
     /**
      * Decode Struct from a base64 format string
      */
@@ -112,6 +134,26 @@ public class BpfDump {
         }
     }
 
+    /**
+     * Dump the BpfMap name, header, and entries, passing the raw key and value of each entry to
+     * {@code entryToString} as {@link IBpfMap#forEachRaw} does. Useful for large maps, where only
+     * a few fields of each entry need to be read.
+     */
+    public static <K extends Struct, V extends Struct> void dumpMapRaw(IBpfMap<K, V> map,
+            PrintWriter pw, String mapName, String header,
+            BiFunction<ByteBuffer, ByteBuffer, String> entryToString) {
+        pw.println(mapName + ":");
+        if (!header.isEmpty()) {
+            pw.println("  " + header);
+        }
+        try {
+            // Entries deleted concurrently are skipped.
+            map.forEachRaw((key, value) -> pw.println("  " + entryToString.apply(key, value)));
+        } catch (ErrnoException e) {
+            pw.println("Map dump end with error: " + Os.strerror(e.errno));
+        }
+    }
+
     /**
      * Dump the BpfMap status
      */
@@ -16,7 +16,9 @@
 package com.android.net.module.util;
 
 import static android.system.OsConstants.EEXIST;
+import static android.system.OsConstants.EINVAL;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.EOPNOTSUPP;
 
 import android.os.Build;
 import android.os.ParcelFileDescriptor;
@@ -29,6 +31,7 @@ import androidx.annotation.RequiresApi;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
@@ -60,11 +63,23 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private static final int BPF_NOEXIST = 1;
     private static final int BPF_EXIST = 2;
 
+    // Kernel-internal errno returned by the BPF_MAP_*_BATCH commands for map types which do not
+    // implement them, see include/linux/errno.h.
+    private static final int ENOTSUPP = 524;
+
+    // Number of entries requested from the kernel by each BPF_MAP_LOOKUP_BATCH syscall.
+    private static final int LOOKUP_BATCH_SIZE = 256;
+
     private final ParcelFileDescriptor mMapFd;
     private final Class<K> mKeyClass;
     private final Class<V> mValueClass;
     private final int mKeySize;
     private final int mValueSize;
+    // Cleared if the kernel rejects the first BPF_MAP_*_BATCH command, in which case the batch
+    // methods fall back to per-key operations. Set once that first command has completed, after
+    // which batch errors are reported to the caller.
+    private volatile boolean mBatchOpsSupported = true;
+    private volatile boolean mBatchOpsProbed = false;
 
     private static ConcurrentHashMap<Pair<String, Integer>, ParcelFileDescriptor> sFdCache =
             new ConcurrentHashMap<>();
@@ -252,6 +267,197 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
         return Struct.parse(mValueClass, buffer);
     }
 
+    /**
+     * Iterate through the map passing the raw key and value of each entry. Unlike
+     * {@link #forEach}, the key and value buffers are allocated once and reused for every entry.
+     */
+    @Override
+    public void forEachRaw(ThrowingBiConsumer<ByteBuffer, ByteBuffer> action)
+            throws ErrnoException {
+        byte[] curKey = new byte[mKeySize];
+        byte[] nextKey = new byte[mKeySize];
+        final byte[] rawValue = new byte[mValueSize];
+        ByteBuffer curKeyBuffer = ByteBuffer.wrap(curKey).order(ByteOrder.nativeOrder());
+        ByteBuffer nextKeyBuffer = ByteBuffer.wrap(nextKey).order(ByteOrder.nativeOrder());
+        final ByteBuffer valueBuffer = ByteBuffer.wrap(rawValue).order(ByteOrder.nativeOrder());
+
+        if (!nativeGetNextMapKey(mMapFd.getFd(), null /* key */, nextKey)) return;
+        while (true) {
+            // The next key becomes the current key, and its buffer is reused for the key after.
+            final byte[] tmpKey = curKey;
+            curKey = nextKey;
+            nextKey = tmpKey;
+            final ByteBuffer tmpKeyBuffer = curKeyBuffer;
+            curKeyBuffer = nextKeyBuffer;
+            nextKeyBuffer = tmpKeyBuffer;
+
+            final boolean found = nativeFindMapEntry(mMapFd.getFd(), curKey, rawValue);
+            // Get the next key before calling the action, so the action may delete the entry.
+            final boolean hasNext = nativeGetNextMapKey(mMapFd.getFd(), curKey, nextKey);
+            if (found) {
+                curKeyBuffer.clear();
+                valueBuffer.clear();
+                action.accept(curKeyBuffer, valueBuffer);
+            }
+            if (!hasNext) return;
+        }
+    }
+
+    private static boolean isBatchOpUnsupported(final int errno) {
+        // Kernels before 5.6 return EINVAL for unknown commands.
+        return errno == EINVAL || errno == EOPNOTSUPP || errno == ENOTSUPP;
+    }
+
+    /**
+     * Record the result of a batch command, and return whether its failure means that the
+     * kernel does not support batch commands. Only the first batch command probes the support,
+     * as EINVAL from later commands means an invalid argument rather than an unknown command.
+     */
+    private boolean onBatchOpDone(@Nullable final ErrnoException e) {
+        if (mBatchOpsProbed) return false;
+        mBatchOpsProbed = true;
+        if (e == null || !isBatchOpUnsupported(e.errno)) return false;
+        mBatchOpsSupported = false;
+        return true;
+    }
+
+    /**
+     * Iterate through the map, retrieving up to LOOKUP_BATCH_SIZE entries per syscall with
+     * BPF_MAP_LOOKUP_BATCH. Falls back to {@link #forEach} on kernels which don't support it.
+     */
+    @Override
+    public void lookupBatch(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        if (!lookupBatchInternal((key, value) -> action.accept(Struct.parse(mKeyClass, key),
+                Struct.parse(mValueClass, value)))) {
+            forEach(action);
+        }
+    }
+
+    /**
+     * Iterate through the map like {@link #lookupBatch}, passing slices of the batch buffers
+     * instead of parsed Structs. Falls back to {@link #forEachRaw} on kernels which don't
+     * support BPF_MAP_LOOKUP_BATCH.
+     */
+    @Override
+    public void lookupBatchRaw(ThrowingBiConsumer<ByteBuffer, ByteBuffer> action)
+            throws ErrnoException {
+        if (!lookupBatchInternal(action)) {
+            forEachRaw(action);
+        }
+    }
+
+    /**
+     * Pass the raw key and value of each entry, read with BPF_MAP_LOOKUP_BATCH.
+     *
+     * @return false if batch operations are not supported, in which case no entry was passed.
+     */
+    private boolean lookupBatchInternal(ThrowingBiConsumer<ByteBuffer, ByteBuffer> action)
+            throws ErrnoException {
+        if (!mBatchOpsSupported) return false;
+
+        final byte[] rawKeys = new byte[LOOKUP_BATCH_SIZE * mKeySize];
+        final byte[] rawValues = new byte[LOOKUP_BATCH_SIZE * mValueSize];
+        // Opaque position tokens passed back and forth with the kernel. Hash maps use a u32
+        // bucket index, other map types use a key.
+        final byte[] inBatch = new byte[Math.max(Long.BYTES, mKeySize)];
+        final byte[] outBatch = new byte[inBatch.length];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(rawKeys).order(ByteOrder.nativeOrder());
+        final ByteBuffer valueBuffer = ByteBuffer.wrap(rawValues).order(ByteOrder.nativeOrder());
+        boolean firstBatch = true;
+        while (true) {
+            final int ret;
+            try {
+                ret = nativeLookupBatch(mMapFd.getFd(), firstBatch ? null : inBatch, outBatch,
+                        rawKeys, rawValues, LOOKUP_BATCH_SIZE);
+            } catch (ErrnoException e) {
+                // Nothing was reported yet by the probe, so no entry is reported twice.
+                if (!onBatchOpDone(e)) throw e;
+                return false;
+            }
+            onBatchOpDone(null);
+
+            final boolean lastBatch = ret < 0;
+            final int count = lastBatch ? -1 - ret : ret;
+            for (int i = 0; i < count; i++) {
+                // The action may move the position, so reset both slices for every entry.
+                keyBuffer.limit((i + 1) * mKeySize);
+                keyBuffer.position(i * mKeySize);
+                valueBuffer.limit((i + 1) * mValueSize);
+                valueBuffer.position(i * mValueSize);
+                action.accept(keyBuffer, valueBuffer);
+            }
+            if (lastBatch) return true;
+
+            System.arraycopy(outBatch, 0, inBatch, 0, outBatch.length);
+            firstBatch = false;
+        }
+    }
+
+    /**
+     * Update existing or create new entries with a single BPF_MAP_UPDATE_BATCH syscall. Falls
+     * back to per-key updates on kernels which don't support it.
+     */
+    @Override
+    public void updateBatch(@NonNull List<K> keys, @NonNull List<V> values)
+            throws ErrnoException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Mismatched number of keys (" + keys.size()
+                    + ") and values (" + values.size() + ")");
+        }
+        if (keys.isEmpty()) return;
+        if (!mBatchOpsSupported) {
+            IBpfMap.super.updateBatch(keys, values);
+            return;
+        }
+
+        final byte[] rawKeys = new byte[keys.size() * mKeySize];
+        final byte[] rawValues = new byte[values.size() * mValueSize];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(rawKeys);
+        keyBuffer.order(ByteOrder.nativeOrder());
+        final ByteBuffer valueBuffer = ByteBuffer.wrap(rawValues);
+        valueBuffer.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < keys.size(); i++) {
+            keys.get(i).writeToByteBuffer(keyBuffer);
+            values.get(i).writeToByteBuffer(valueBuffer);
+        }
+
+        try {
+            nativeUpdateBatch(mMapFd.getFd(), rawKeys, rawValues, keys.size(), BPF_ANY);
+        } catch (ErrnoException e) {
+            if (!onBatchOpDone(e)) throw e;
+            IBpfMap.super.updateBatch(keys, values);
+            return;
+        }
+        onBatchOpDone(null);
+    }
+
+    /**
+     * Remove the given keys with BPF_MAP_DELETE_BATCH syscalls, skipping keys which don't exist.
+     * Falls back to per-key deletes on kernels which don't support it.
+     */
+    @Override
+    public int deleteBatch(@NonNull List<K> keys) throws ErrnoException {
+        if (keys.isEmpty()) return 0;
+        if (!mBatchOpsSupported) return IBpfMap.super.deleteBatch(keys);
+
+        final byte[] rawKeys = new byte[keys.size() * mKeySize];
+        final ByteBuffer keyBuffer = ByteBuffer.wrap(rawKeys);
+        keyBuffer.order(ByteOrder.nativeOrder());
+        for (K key : keys) {
+            key.writeToByteBuffer(keyBuffer);
+        }
+
+        final int deleted;
+        try {
+            deleted = nativeDeleteBatch(mMapFd.getFd(), rawKeys, keys.size(), mKeySize);
+        } catch (ErrnoException e) {
+            if (!onBatchOpDone(e)) throw e;
+            return IBpfMap.super.deleteBatch(keys);
+        }
+        onBatchOpDone(null);
+        return deleted;
+    }
+
     /** Synchronize Kernel RCU */
     public static void synchronizeKernelRCU() throws ErrnoException {
         nativeSynchronizeKernelRCU();
@@ -279,5 +485,19 @@ public class BpfMap<K extends Struct, V extends Struct> implements IBpfMap<K, V>
     private native boolean nativeFindMapEntry(int fd, byte[] key, byte[] value)
             throws ErrnoException;
 
+    // Reads up to count entries following the position token inBatch (or from the start of the
+    // map if null) into keys and values, and stores the position of the next entry in outBatch.
+    // Returns the number of entries read, or (-1 - number of entries read) if the end of the map
+    // was reached.
+    private native int nativeLookupBatch(int fd, byte[] inBatch, byte[] outBatch, byte[] keys,
+            byte[] values, int count) throws ErrnoException;
+
+    private native void nativeUpdateBatch(int fd, byte[] keys, byte[] values, int count,
+            int flags) throws ErrnoException;
+
+    // Returns the number of keys actually deleted. Keys which are not found are skipped.
+    private native int nativeDeleteBatch(int fd, byte[] keys, int count, int keySize)
+            throws ErrnoException;
+
     private static native void nativeSynchronizeKernelRCU() throws ErrnoException;
 }
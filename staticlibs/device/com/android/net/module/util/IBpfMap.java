@@ -21,6 +21,10 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -89,6 +93,83 @@ public interface IBpfMap<K extends Struct, V extends Struct> extends AutoCloseab
         }
     }
 
+    /**
+     * Iterate through the map like {@link #forEach}, but pass the raw key and value bytes of each
+     * entry instead of parsed Structs, so readers which only need a few fields don't have to
+     * materialize Struct instances.
+     *
+     * The buffers are in native byte order and positioned at the start of the key and value
+     * respectively. Implementations may reuse the same buffers for every entry, so the given
+     * BiConsumer must not modify them or keep references to them after it returns. Entries
+     * deleted concurrently are skipped. The default implementation serializes the entries
+     * returned by {@link #forEach}.
+     */
+    default void forEachRaw(ThrowingBiConsumer<ByteBuffer, ByteBuffer> action)
+            throws ErrnoException {
+        forEach((key, value) -> {
+            if (value == null) return;
+            action.accept(ByteBuffer.wrap(key.writeToBytes()).order(ByteOrder.nativeOrder()),
+                    ByteBuffer.wrap(value.writeToBytes()).order(ByteOrder.nativeOrder()));
+        });
+    }
+
+    /**
+     * Iterate through the map like {@link #forEach}, but retrieve the entries from the map in
+     * batches instead of one key and one value at a time, where supported.
+     *
+     * Unlike {@link #forEach}, the given BiConsumer is called after the entries of a batch have
+     * been read, so it may perform any modification to the map. Entries added or removed during
+     * the iteration may or may not be reported. The default implementation falls back to
+     * {@link #forEach}.
+     */
+    default void lookupBatch(ThrowingBiConsumer<K, V> action) throws ErrnoException {
+        forEach(action);
+    }
+
+    /**
+     * Iterate through the map like {@link #lookupBatch}, but pass the raw key and value bytes of
+     * each entry like {@link #forEachRaw}.
+     *
+     * The buffers follow the same rules as in {@link #forEachRaw}: they are only valid until the
+     * BiConsumer returns. The default implementation falls back to {@link #forEachRaw}.
+     */
+    default void lookupBatchRaw(ThrowingBiConsumer<ByteBuffer, ByteBuffer> action)
+            throws ErrnoException {
+        forEachRaw(action);
+    }
+
+    /**
+     * Update existing or create new key -> value entries in the map, where keys.get(i) maps to
+     * values.get(i). The default implementation calls {@link #updateEntry} for each entry.
+     *
+     * @throws ErrnoException if any of the updates failed. Entries before the failing one have
+     *                        been written.
+     */
+    default void updateBatch(@NonNull List<K> keys, @NonNull List<V> values)
+            throws ErrnoException {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Mismatched number of keys (" + keys.size()
+                    + ") and values (" + values.size() + ")");
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            updateEntry(keys.get(i), values.get(i));
+        }
+    }
+
+    /**
+     * Remove the given keys from the map. Keys which don't exist are ignored. The default
+     * implementation calls {@link #deleteEntry} for each key.
+     *
+     * @return the number of entries actually deleted.
+     */
+    default int deleteBatch(@NonNull List<K> keys) throws ErrnoException {
+        int deleted = 0;
+        for (K key : keys) {
+            if (deleteEntry(key)) deleted++;
+        }
+        return deleted;
+    }
+
     /**
      * Clears the map. The map may already be empty.
      *
@@ -96,10 +177,11 @@ public interface IBpfMap<K extends Struct, V extends Struct> extends AutoCloseab
      *                        or if a non-ENOENT error occurred when deleting a key.
      */
     default public void clear() throws ErrnoException {
-        K key = getFirstKey();
-        while (key != null) {
-            deleteEntry(key);  // ignores ENOENT.
-            key = getFirstKey();
+        // Entries may be added concurrently, so keep going until the map is observed empty.
+        while (!isEmpty()) {
+            final List<K> keys = new ArrayList<>();
+            lookupBatch((key, value) -> keys.add(key));
+            deleteBatch(keys);  // ignores ENOENT.
         }
     }
 
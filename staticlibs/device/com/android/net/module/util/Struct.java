@@ -20,6 +20,7 @@ import android.net.MacAddress;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
@@ -33,11 +34,13 @@ import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -154,6 +157,71 @@ public class Struct {
     @Target(ElementType.FIELD)
     public @interface Computed {}
 
+    /**
+     * A specialized, reflection-free encoder/decoder for a Struct subclass.
+     *
+     * A codec must produce and consume exactly the same layout as the one derived from the
+     * {@link Field} annotations of the class, including padding, so that the reflection-based
+     * path and the codec are interchangeable. Struct subclasses register their codec from their
+     * static initializer with {@link #registerCodec}; {@link #parse} and
+     * {@link #writeToByteBuffer} dispatch to it when one exists and fall back to reflection
+     * otherwise.
+     *
+     * @param <T> the Struct subclass handled by this codec.
+     */
+    public interface Codec<T extends Struct> {
+        /** Decode an instance from the current position of the buffer. */
+        @NonNull
+        T decode(@NonNull ByteBuffer buf) throws BufferUnderflowException;
+
+        /** Encode the given instance at the current position of the buffer. */
+        void encode(@NonNull T value, @NonNull ByteBuffer output) throws BufferOverflowException;
+    }
+
+    private static final ConcurrentHashMap<Class, Codec> sCodecCache = new ConcurrentHashMap<>();
+    // Classes which don't provide a codec, so that the class initialization in #getCodec is only
+    // attempted once per class.
+    private static final Set<Class> sClassesWithoutCodec = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Register a specialized codec for the given Struct subclass.
+     *
+     * This is expected to be called from the static initializer of the subclass itself, which
+     * guarantees the codec is registered before the first {@link #parse} or
+     * {@link #writeToByteBuffer} of that class.
+     */
+    public static <T extends Struct> void registerCodec(@NonNull final Class<T> clazz,
+            @NonNull final Codec<T> codec) {
+        if (!isStructSubclass(clazz)) {
+            throw new IllegalArgumentException(clazz.getName() + " is not a subclass of "
+                    + Struct.class.getName());
+        }
+        Objects.requireNonNull(codec);
+        final Codec previous = sCodecCache.putIfAbsent(clazz, codec);
+        if (previous != null && previous != codec) {
+            throw new IllegalStateException("Codec already registered for " + clazz.getName());
+        }
+    }
+
+    /** Returns the codec of the given class, or null if it must be handled by reflection. */
+    @Nullable
+    private static Codec getCodec(final Class clazz) {
+        final Codec codec = sCodecCache.get(clazz);
+        if (codec != null || sClassesWithoutCodec.contains(clazz)) return codec;
+
+        // Referring to a class literal does not run its static initializer, so the codec of the
+        // class may not be registered yet. Initialize the class once and remember if it doesn't
+        // provide any codec.
+        try {
+            Class.forName(clazz.getName(), true /* initialize */, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            // Cannot happen for a class which is already loaded, fall back to reflection.
+        }
+        final Codec registered = sCodecCache.get(clazz);
+        if (registered == null) sClassesWithoutCodec.add(clazz);
+        return registered;
+    }
+
     private static class FieldInfo {
         @NonNull
         public final Field annotation;
@@ -579,6 +647,22 @@ public class Struct {
      * 2. Introduce annotation processor to enforce the subclass naming schema.
      */
     public static <T> T parse(final Class<T> clazz, final ByteBuffer buf) {
+        final Codec codec = isStructSubclass(clazz) ? getCodec(clazz) : null;
+        if (codec != null) {
+            try {
+                return (T) codec.decode(buf);
+            } catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("Fail to read raw data from ByteBuffer", e);
+            }
+        }
+        return parseWithReflection(clazz, buf);
+    }
+
+    /**
+     * Same as {@link #parse}, but always uses reflection even if the class has a codec.
+     */
+    @VisibleForTesting
+    public static <T> T parseWithReflection(final Class<T> clazz, final ByteBuffer buf) {
         try {
             final FieldInfo[] foundFields = getClassFieldInfo(clazz);
             if (hasBothMutableAndImmutableFields(foundFields)) {
@@ -661,6 +745,20 @@ public class Struct {
      * @param output ByteBuffer passed-in from the caller.
      */
     public final void writeToByteBuffer(final ByteBuffer output) {
+        final Codec codec = getCodec(this.getClass());
+        if (codec != null) {
+            codec.encode(this, output);
+            return;
+        }
+        writeToByteBufferWithReflection(output);
+    }
+
+    /**
+     * Same as {@link #writeToByteBuffer}, but always uses reflection even if the class has a
+     * codec.
+     */
+    @VisibleForTesting
+    public final void writeToByteBufferWithReflection(final ByteBuffer output) {
         final FieldInfo[] fieldInfos = getClassFieldInfo(this.getClass());
         writeToByteBufferInternal(output, fieldInfos);
     }
@@ -675,7 +773,12 @@ public class Struct {
         final byte[] output = new byte[getSizeInternal(fieldInfos)];
         final ByteBuffer buffer = ByteBuffer.wrap(output);
         buffer.order(order);
-        writeToByteBufferInternal(buffer, fieldInfos);
+        final Codec codec = getCodec(this.getClass());
+        if (codec != null) {
+            codec.encode(this, buffer);
+        } else {
+            writeToByteBufferInternal(buffer, fieldInfos);
+        }
         return output;
     }
 
@@ -756,6 +859,20 @@ public class Struct {
         public U8(final short val) {
             this.val = val;
         }
+
+        static {
+            registerCodec(U8.class, new Codec<U8>() {
+                @Override
+                public U8 decode(ByteBuffer buf) {
+                    return new U8((short) (buf.get() & 0xFF));
+                }
+
+                @Override
+                public void encode(U8 value, ByteBuffer output) {
+                    output.put((byte) (value.val & 0xFF));
+                }
+            });
+        }
     }
 
     /** A simple Struct which only contains an s32 field. */
@@ -766,6 +883,20 @@ public class Struct {
         public S32(final int val) {
             this.val = val;
         }
+
+        static {
+            registerCodec(S32.class, new Codec<S32>() {
+                @Override
+                public S32 decode(ByteBuffer buf) {
+                    return new S32(buf.getInt());
+                }
+
+                @Override
+                public void encode(S32 value, ByteBuffer output) {
+                    output.putInt(value.val);
+                }
+            });
+        }
     }
 
     /** A simple Struct which only contains a u32 field. */
@@ -776,6 +907,20 @@ public class Struct {
         public U32(final long val) {
             this.val = val;
         }
+
+        static {
+            registerCodec(U32.class, new Codec<U32>() {
+                @Override
+                public U32 decode(ByteBuffer buf) {
+                    return new U32(buf.getInt() & 0xFFFFFFFFL);
+                }
+
+                @Override
+                public void encode(U32 value, ByteBuffer output) {
+                    output.putInt((int) (value.val & 0xFFFFFFFFL));
+                }
+            });
+        }
     }
 
     /** A simple Struct which only contains an s64 field. */
@@ -786,5 +931,19 @@ public class Struct {
         public S64(final long val) {
             this.val = val;
         }
+
+        static {
+            registerCodec(S64.class, new Codec<S64>() {
+                @Override
+                public S64 decode(ByteBuffer buf) {
+                    return new S64(buf.getLong());
+                }
+
+                @Override
+                public void encode(S64 value, ByteBuffer output) {
+                    output.putLong(value.val);
+                }
+            });
+        }
     }
 }
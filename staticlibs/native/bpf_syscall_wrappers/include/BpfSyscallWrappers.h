@@ -18,6 +18,7 @@
 
 #include <linux/bpf.h>
 #include <linux/unistd.h>
+#include <string.h>
 
 #ifdef BPF_FD_JUST_USE_INT
   #define BPF_FD_TYPE int
@@ -114,6 +115,50 @@ inline int getFirstMapKey(const BPF_FD_TYPE map_fd, void* firstKey) {
     return getNextMapKey(map_fd, NULL, firstKey);
 }
 
+// The BPF_MAP_*_BATCH commands are available in 5.6 and later kernels.
+//
+// On input, *count is the number of elements in the keys/values arrays. On output, it is the
+// number of elements actually processed, which is valid even if the call failed.
+inline int lookupMapBatch(const BPF_FD_TYPE map_fd, const void* in_batch, void* out_batch,
+                          void* keys, void* values, uint32_t* count) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.in_batch = ptr_to_u64(in_batch);
+    attr.batch.out_batch = ptr_to_u64(out_batch);
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.values = ptr_to_u64(values);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    const int ret = bpf(BPF_MAP_LOOKUP_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
+inline int updateMapBatch(const BPF_FD_TYPE map_fd, const void* keys, const void* values,
+                          uint32_t* count, uint64_t elem_flags) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.values = ptr_to_u64(values);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    attr.batch.elem_flags = elem_flags;
+    const int ret = bpf(BPF_MAP_UPDATE_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
+inline int deleteMapBatch(const BPF_FD_TYPE map_fd, const void* keys, uint32_t* count) {
+    bpf_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.batch.keys = ptr_to_u64(keys);
+    attr.batch.count = *count;
+    attr.batch.map_fd = BPF_FD_TO_U32(map_fd);
+    const int ret = bpf(BPF_MAP_DELETE_BATCH, &attr);
+    *count = attr.batch.count;
+    return ret;
+}
+
 inline int bpfFdPin(const BPF_FD_TYPE map_fd, const char* pathname) {
     return bpf(BPF_OBJ_PIN, {
                                     .pathname = ptr_to_u64(pathname),
@@ -119,6 +119,87 @@ static jboolean com_android_net_module_util_BpfMap_nativeFindMapEntry(JNIEnv *en
     return throwIfNotEnoent(env, "nativeFindMapEntry", ret, errno);
 }
 
+static bool throwIfBatchOpsUnsupported(JNIEnv *env, const char* functionName) {
+    if (bpf::isAtLeastKernelVersion(5, 6, 0)) return false;
+
+    // Older kernels fail with EINVAL, report a more explicit error to the caller.
+    jniThrowErrnoException(env, functionName, EOPNOTSUPP);
+    return true;
+}
+
+static jint com_android_net_module_util_BpfMap_nativeLookupBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray inBatch, jbyteArray outBatch, jbyteArray keys, jbyteArray values,
+        jint count) {
+    if (throwIfBatchOpsUnsupported(env, "nativeLookupBatch")) return 0;
+
+    ScopedByteArrayRW outBatchRW(env, outBatch);
+    ScopedByteArrayRW keysRW(env, keys);
+    ScopedByteArrayRW valuesRW(env, values);
+    uint32_t n = static_cast<uint32_t>(count);
+    int ret;
+    int err;
+    if (inBatch == nullptr) {
+        // Start from the beginning of the map.
+        ret = bpf::lookupMapBatch(static_cast<int>(fd), nullptr, outBatchRW.get(), keysRW.get(),
+                valuesRW.get(), &n);
+        err = errno;
+    } else {
+        ScopedByteArrayRO inBatchRO(env, inBatch);
+        ret = bpf::lookupMapBatch(static_cast<int>(fd), inBatchRO.get(), outBatchRW.get(),
+                keysRW.get(), valuesRW.get(), &n);
+        err = errno;
+    }
+
+    if (ret == 0) return static_cast<jint>(n);
+    // ENOENT means the end of the map was reached, and n entries were still read.
+    if (err == ENOENT) return -1 - static_cast<jint>(n);
+
+    jniThrowErrnoException(env, "nativeLookupBatch", err);
+    return 0;
+}
+
+static void com_android_net_module_util_BpfMap_nativeUpdateBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jbyteArray values, jint count, jint flags) {
+    if (throwIfBatchOpsUnsupported(env, "nativeUpdateBatch")) return;
+
+    ScopedByteArrayRO keysRO(env, keys);
+    ScopedByteArrayRO valuesRO(env, values);
+    uint32_t n = static_cast<uint32_t>(count);
+
+    int ret = bpf::updateMapBatch(static_cast<int>(fd), keysRO.get(), valuesRO.get(), &n,
+            static_cast<uint64_t>(flags));
+
+    if (ret) jniThrowErrnoException(env, "nativeUpdateBatch", errno);
+}
+
+static jint com_android_net_module_util_BpfMap_nativeDeleteBatch(JNIEnv *env, jobject self,
+        jint fd, jbyteArray keys, jint count, jint keySize) {
+    if (throwIfBatchOpsUnsupported(env, "nativeDeleteBatch")) return 0;
+
+    ScopedByteArrayRO keysRO(env, keys);
+    const uint32_t total = static_cast<uint32_t>(count);
+    uint32_t done = 0;
+    jint deleted = 0;
+    while (done < total) {
+        // The kernel stops at the first key which fails to be deleted, and reports how many keys
+        // were deleted before it.
+        uint32_t n = total - done;
+        int ret = bpf::deleteMapBatch(static_cast<int>(fd), keysRO.get() + done * keySize, &n);
+        int err = errno;
+        deleted += n;
+        done += n;
+        if (ret == 0) break;
+
+        if (err != ENOENT) {
+            jniThrowErrnoException(env, "nativeDeleteBatch", err);
+            return deleted;
+        }
+        // Skip the key which was not found.
+        done++;
+    }
+    return deleted;
+}
+
 static void com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU(JNIEnv *env,
                                                                           jclass clazz) {
     const int pfSocket = socket(AF_KEY, SOCK_RAW | SOCK_CLOEXEC, PF_KEY_V2);
@@ -150,6 +231,12 @@ static const JNINativeMethod gMethods[] = {
         (void*) com_android_net_module_util_BpfMap_nativeGetNextMapKey },
     { "nativeFindMapEntry", "(I[B[B)Z",
         (void*) com_android_net_module_util_BpfMap_nativeFindMapEntry },
+    { "nativeLookupBatch", "(I[B[B[B[BI)I",
+        (void*) com_android_net_module_util_BpfMap_nativeLookupBatch },
+    { "nativeUpdateBatch", "(I[B[BII)V",
+        (void*) com_android_net_module_util_BpfMap_nativeUpdateBatch },
+    { "nativeDeleteBatch", "(I[BII)I",
+        (void*) com_android_net_module_util_BpfMap_nativeDeleteBatch },
     { "nativeSynchronizeKernelRCU", "()V",
         (void*) com_android_net_module_util_BpfMap_nativeSynchronizeKernelRCU },
 
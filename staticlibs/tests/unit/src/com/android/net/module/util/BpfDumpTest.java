@@ -42,6 +42,8 @@ import org.mockito.MockitoSession;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -69,6 +71,23 @@ public class BpfDumpTest {
         assertEquals(TEST_KEY_VAL_BASE64, BpfDump.toBase64EncodedString(key, value));
     }
 
+    @Test
+    public void testToBase64EncodedString_rawBuffers() throws Exception {
+        final TestBpfMap<Struct.S32, Struct.S32> map = new TestBpfMap<>();
+        map.insertEntry(new Struct.S32(TEST_KEY), new Struct.S32(TEST_VAL));
+
+        final StringBuilder sb = new StringBuilder();
+        map.forEachRaw((key, value) -> sb.append(BpfDump.toBase64EncodedString(key, value)));
+        assertEquals(TEST_KEY_VAL_BASE64, sb.toString());
+
+        // Only the remaining bytes of the buffers are encoded, including for direct buffers.
+        final ByteBuffer key = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        key.putInt(0).putInt(TEST_KEY).position(4);
+        final ByteBuffer value = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+        value.putInt(0, TEST_VAL);
+        assertEquals(TEST_KEY_VAL_BASE64, BpfDump.toBase64EncodedString(key, value));
+    }
+
     @Test
     public void testFromBase64EncodedString() {
         Pair<Struct.S32, Struct.S32> decodedKeyValue = BpfDump.fromBase64EncodedString(
@@ -115,6 +134,21 @@ public class BpfDumpTest {
                 + "  key=123, val=456\n");
     }
 
+    @Test
+    public void testDumpMapRaw() throws Exception {
+        final IBpfMap<Struct.S32, Struct.S32> map =
+                new TestBpfMap<>(Struct.S32.class, Struct.S32.class);
+        map.updateEntry(new Struct.S32(123), new Struct.S32(456));
+
+        final StringWriter sw = new StringWriter();
+        BpfDump.dumpMapRaw(map, new PrintWriter(sw), "mapName", "header",
+                (key, val) -> "key=" + key.getInt(key.position())
+                        + ", val=" + val.getInt(val.position()));
+        assertEquals("mapName:\n"
+                + "  header\n"
+                + "  key=123, val=456\n", sw.toString());
+    }
+
     @Test
     public void testDumpMapMultipleEntries() throws Exception {
         final IBpfMap<Struct.S32, Struct.S32> map =
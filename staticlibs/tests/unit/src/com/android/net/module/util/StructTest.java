@@ -1080,4 +1080,96 @@ public class StructTest {
                 ByteOrder.BIG_ENDIAN);
         assertArrayEquals(TEST_PREFIX64, msg.bytes);
     }
+
+    static class CodecMessage extends Struct {
+        @Field(order = 0, type = Type.U16)
+        final int value;
+        @Field(order = 1, type = Type.S64)
+        final long cookie;
+
+        static int sDecodeCount = 0;
+        static int sEncodeCount = 0;
+
+        CodecMessage(final int value, final long cookie) {
+            this.value = value;
+            this.cookie = cookie;
+        }
+
+        static {
+            registerCodec(CodecMessage.class, new Codec<CodecMessage>() {
+                @Override
+                public CodecMessage decode(ByteBuffer buf) {
+                    sDecodeCount++;
+                    final int value = buf.getShort() & 0xFFFF;
+                    final long cookie = buf.getLong();
+                    return new CodecMessage(value, cookie);
+                }
+
+                @Override
+                public void encode(CodecMessage value, ByteBuffer output) {
+                    sEncodeCount++;
+                    output.putShort((short) (value.value & 0xFFFF));
+                    output.putLong(value.cookie);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testStructClass_Codec() {
+        final String hexBytes = "feff" + "0102030405060708";
+        final ByteBuffer buf = toByteBuffer(hexBytes);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        final int decodeCount = CodecMessage.sDecodeCount;
+        final CodecMessage msg = Struct.parse(CodecMessage.class, buf);
+        assertEquals(decodeCount + 1, CodecMessage.sDecodeCount);
+        assertEquals(0xfffe, msg.value);
+        assertEquals(0x0807060504030201L, msg.cookie);
+
+        buf.rewind();
+        assertEquals(msg, Struct.parseWithReflection(CodecMessage.class, buf));
+
+        final int encodeCount = CodecMessage.sEncodeCount;
+        final byte[] bytes = msg.writeToBytes(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(encodeCount + 1, CodecMessage.sEncodeCount);
+        assertEquals(hexBytes, HexDump.toHexString(bytes).toLowerCase());
+
+        final ByteBuffer output = ByteBuffer.allocate(Struct.getSize(CodecMessage.class));
+        output.order(ByteOrder.LITTLE_ENDIAN);
+        msg.writeToByteBufferWithReflection(output);
+        assertArrayEquals(bytes, output.array());
+    }
+
+    @Test
+    public void testStructClass_CodecMatchesReflection() {
+        final Struct[] structs = new Struct[] {
+                new Struct.U8((short) 0xff),
+                new Struct.S32(-1),
+                new Struct.U32(0xfffffffeL),
+                new Struct.S64(Long.MIN_VALUE),
+        };
+        for (Struct s : structs) {
+            for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN,
+                    ByteOrder.BIG_ENDIAN}) {
+                final byte[] bytes = s.writeToBytes(order);
+                final ByteBuffer reflected = ByteBuffer.allocate(bytes.length);
+                reflected.order(order);
+                s.writeToByteBufferWithReflection(reflected);
+                assertArrayEquals(reflected.array(), bytes);
+
+                final ByteBuffer buf = ByteBuffer.wrap(bytes);
+                buf.order(order);
+                assertEquals(s, Struct.parse(s.getClass(), buf));
+                assertFalse(buf.hasRemaining());
+            }
+        }
+    }
+
+    @Test
+    public void testStructClass_CodecBufferUnderflow() {
+        final ByteBuffer buf = toByteBuffer("feff01020304");
+        assertThrows(IllegalArgumentException.class,
+                () -> Struct.parse(CodecMessage.class, buf));
+    }
 }
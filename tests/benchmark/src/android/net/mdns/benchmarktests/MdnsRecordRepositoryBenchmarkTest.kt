@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns.benchmarktests
+
+import android.net.InetAddresses.parseNumericAddress
+import android.net.LinkAddress
+import android.net.nsd.NsdServiceInfo
+import android.os.HandlerThread
+import com.android.server.connectivity.mdns.MdnsFeatureFlags
+import com.android.server.connectivity.mdns.MdnsInetAddressRecord
+import com.android.server.connectivity.mdns.MdnsPacket
+import com.android.server.connectivity.mdns.MdnsPacketReader
+import com.android.server.connectivity.mdns.MdnsPacketWriter
+import com.android.server.connectivity.mdns.MdnsPointerRecord
+import com.android.server.connectivity.mdns.MdnsRecord
+import com.android.server.connectivity.mdns.MdnsRecordRepository
+import com.android.server.connectivity.mdns.MdnsServiceRecord
+import com.android.server.connectivity.mdns.MdnsTextRecord
+import com.android.server.net.benchmarktests.MicroBenchmark
+import java.net.InetSocketAddress
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+
+private const val MAX_PACKET_SIZE = 9000
+private const val LONG_TTL_MS = 4_500_000L
+private val HOSTNAME = arrayOf("Android_000102030405060708090A0B0C0D0E0F", "local")
+private val ADDRESSES = listOf(
+    LinkAddress(parseNumericAddress("192.0.2.111"), 24),
+    LinkAddress(parseNumericAddress("2001:db8::111"), 64))
+private val SERVICE_TYPES = listOf("_ipp._tcp", "_googlecast._tcp", "_airplay._tcp",
+    "_http._tcp", "_printer._tcp")
+private val SRC = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+
+/**
+ * Benchmarks of [MdnsRecordRepository.getReply] with repositories of various sizes.
+ *
+ * Query packets typical of a busy network are serialized and parsed back like received packets,
+ * then replayed against the repository: a browse for several service types with a large
+ * known-answer section, a resolve of several instances, and a query for names of other hosts.
+ * Questions request unicast replies, so that answers are not rate-limited across iterations.
+ */
+@RunWith(Parameterized::class)
+class MdnsRecordRepositoryBenchmarkTest(private val serviceCount: Int) {
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "{0} services")
+        fun serviceCounts() = listOf(10, 100, 1000)
+    }
+
+    private val thread = HandlerThread(MdnsRecordRepositoryBenchmarkTest::class.simpleName)
+        .apply { start() }
+    private val flags = MdnsFeatureFlags.Builder()
+        .setIsKnownAnswerSuppressionEnabled(true)
+        .setIsUnicastReplyEnabled(true)
+        .build()
+    private val benchmark = MicroBenchmark()
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun typeOf(index: Int) = SERVICE_TYPES[index % SERVICE_TYPES.size]
+    private fun instanceName(index: Int) = "Service $index"
+    private fun labels(name: String) = "$name.local".split(".").toTypedArray()
+    private fun instanceLabels(index: Int) =
+        arrayOf(instanceName(index)) + labels(typeOf(index))
+
+    private fun makeRepository() = MdnsRecordRepository(thread.looper, HOSTNAME, flags).apply {
+        updateAddresses(ADDRESSES)
+        for (i in 0 until serviceCount) {
+            val info = NsdServiceInfo().apply {
+                serviceName = instanceName(i)
+                serviceType = typeOf(i)
+                port = 1000 + i
+                if (i % 2 == 0) subtypes = setOf("_sub$i")
+            }
+            addService(i, info, null /* ttl */)
+            onProbingSucceeded(setServiceProbing(i)!!)
+        }
+    }
+
+    /** Serialize the packet, and parse it back as the mDNS socket would. */
+    private fun replay(questions: List<MdnsRecord>, knownAnswers: List<MdnsRecord>): MdnsPacket {
+        val writer = MdnsPacketWriter(MAX_PACKET_SIZE)
+        writer.writeUInt16(0) // Transaction ID
+        writer.writeUInt16(0) // Flags: query
+        writer.writeUInt16(questions.size)
+        writer.writeUInt16(knownAnswers.size)
+        writer.writeUInt16(0) // Authority records
+        writer.writeUInt16(0) // Additional records
+        questions.forEach { it.writeHeaderFields(writer) }
+        knownAnswers.forEach { it.write(writer, 0L /* now */) }
+        val bytes = writer.getPacket(SRC).data
+        return MdnsPacket.parse(MdnsPacketReader(bytes, writer.writePosition, flags))
+    }
+
+    // Browse for 3 service types, with the services of the first type already known.
+    private fun browseQuery() = replay(
+        SERVICE_TYPES.take(3).map { MdnsPointerRecord(labels(it), true /* isUnicast */) },
+        (0 until serviceCount step SERVICE_TYPES.size).take(100).map {
+            MdnsPointerRecord(labels(typeOf(it)), 0L /* receiptTimeMillis */,
+                false /* cacheFlush */, LONG_TTL_MS, instanceLabels(it))
+        })
+
+    // Resolve 4 instances and the addresses of the host.
+    private fun resolveQuery() = replay(
+        (0 until 4).flatMap {
+            val name = instanceLabels(it * serviceCount / 4)
+            listOf(MdnsServiceRecord(name, true /* isUnicast */),
+                MdnsTextRecord(name, true /* isUnicast */))
+        } + listOf(
+            MdnsInetAddressRecord(HOSTNAME, MdnsRecord.TYPE_A, true /* isUnicast */),
+            MdnsInetAddressRecord(HOSTNAME, MdnsRecord.TYPE_AAAA, true /* isUnicast */)),
+        emptyList())
+
+    // Names that other hosts on the network advertise.
+    private fun otherHostsQuery() = replay(
+        (0 until 6).map {
+            MdnsServiceRecord(arrayOf("Other $it") + labels(typeOf(it)), true /* isUnicast */)
+        },
+        emptyList())
+
+    @Test
+    fun testGetReply() {
+        val repository = makeRepository()
+        val browse = browseQuery()
+        val resolve = resolveQuery()
+        val otherHosts = otherHostsQuery()
+        assertNotNull(repository.getReply(browse, SRC))
+        assertNotNull(repository.getReply(resolve, SRC))
+        assertNull(repository.getReply(otherHosts, SRC))
+
+        benchmark.run("getReply_browse[$serviceCount]") { repository.getReply(browse, SRC) }
+        benchmark.run("getReply_resolve[$serviceCount]") { repository.getReply(resolve, SRC) }
+        benchmark.run("getReply_otherHosts[$serviceCount]") {
+            repository.getReply(otherHosts, SRC)
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.os.Debug
+import android.os.SystemClock
+import android.util.Log
+
+/**
+ * A minimal microbenchmark harness for instrumentation tests, in the spirit of JMH.
+ *
+ * Each benchmark runs [warmupIterations] unmeasured iterations, then [rounds] rounds of
+ * [iterations] measured iterations, with a GC before each round. JMH would run the rounds in
+ * forked VMs ; an instrumentation test runs in a single process, so separate rounds are the
+ * closest equivalent, and the median over rounds is reported to filter out the noisy ones.
+ *
+ * Allocations are measured with the "art.gc.bytes-allocated" runtime stat. It counts the bytes
+ * allocated by all threads of the process, so it is only meaningful while the test process is
+ * otherwise idle.
+ */
+class MicroBenchmark(
+    private val warmupIterations: Int = 10,
+    private val iterations: Int = 20,
+    private val rounds: Int = 5
+) {
+    companion object {
+        private val TAG = MicroBenchmark::class.simpleName
+        private const val BYTES_ALLOCATED_STAT = "art.gc.bytes-allocated"
+
+        private fun allocatedBytes() = Debug.getRuntimeStat(BYTES_ALLOCATED_STAT)?.toLong() ?: 0L
+
+        private fun gc() {
+            val runtime = Runtime.getRuntime()
+            runtime.gc()
+            System.runFinalization()
+            runtime.gc()
+        }
+    }
+
+    /** Results of one benchmark, per operation. */
+    data class Result(
+        val name: String,
+        val medianNanos: Long,
+        val minNanos: Long,
+        val allocatedBytes: Long
+    ) {
+        override fun toString() =
+            "$name: ${medianNanos / 1000}us (min ${minNanos / 1000}us), ${allocatedBytes}B alloc"
+    }
+
+    // Results of the benchmarked operations are stored here, so they can't be optimized away.
+    @Volatile
+    private var sink: Any? = null
+
+    /** Run [op] as a benchmark named [name], log and return the results. */
+    fun run(name: String, op: () -> Any?): Result {
+        repeat(warmupIterations) { sink = op() }
+        val nanos = LongArray(rounds)
+        val bytes = LongArray(rounds)
+        for (round in 0 until rounds) {
+            gc()
+            val startBytes = allocatedBytes()
+            val start = SystemClock.elapsedRealtimeNanos()
+            repeat(iterations) { sink = op() }
+            nanos[round] = (SystemClock.elapsedRealtimeNanos() - start) / iterations
+            bytes[round] = (allocatedBytes() - startBytes) / iterations
+        }
+        nanos.sort()
+        bytes.sort()
+        return Result(name, nanos[rounds / 2], nanos[0], bytes[rounds / 2]).also {
+            Log.i(TAG, it.toString())
+        }
+    }
+}
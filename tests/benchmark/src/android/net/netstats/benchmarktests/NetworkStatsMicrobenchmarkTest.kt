@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.NetworkStats
+import android.net.NetworkStats.METERED_YES
+import android.net.NetworkStats.SET_ALL
+import android.net.NetworkStats.TAG_NONE
+import android.net.NetworkStatsAccess
+import android.net.NetworkStatsCollection
+import android.net.NetworkStatsHistory
+import android.net.NetworkStatsHistory.FIELD_ALL
+import android.net.NetworkTemplate
+import android.net.NetworkTemplate.MATCH_ETHERNET
+import android.net.NetworkTemplate.MATCH_MOBILE
+import android.net.NetworkTemplate.MATCH_WIFI
+import android.os.Process
+import com.android.modules.utils.build.SdkLevel
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.BUCKET_DURATION_MS
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.LARGE
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.SMALL
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.START_TIME_MS
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.Scale
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.TEST_SUBSCRIBER_ID
+import com.android.server.net.benchmarktests.SyntheticNetworkStats.TEST_WIFI_KEY
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import kotlin.test.assertEquals
+import org.junit.Assume.assumeFalse
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Parameterized
+
+/**
+ * Microbenchmarks of the network stats data structures on synthetic data of several sizes.
+ *
+ * Unlike [NetworkStatsTest], which measures whole operations on real user datasets, these
+ * measure the hot paths individually with warmup, several rounds and allocation counts, see
+ * [MicroBenchmark]. Results are logged ; the tests only check that the operations did their
+ * job, so that a broken benchmark is not mistaken for a fast one.
+ */
+@RunWith(Parameterized::class)
+class NetworkStatsMicrobenchmarkTest(private val scale: Scale) {
+    companion object {
+        @JvmStatic
+        @Parameterized.Parameters(name = "{0}")
+        fun scales() = listOf(SMALL, LARGE)
+
+        // Generating the data is expensive, so it is shared by all tests of a given scale.
+        private val collections = HashMap<Scale, NetworkStatsCollection>()
+
+        private val templates = listOf(
+            NetworkTemplate.Builder(MATCH_MOBILE).setSubscriberIds(setOf(TEST_SUBSCRIBER_ID))
+                .setMeteredness(METERED_YES).build(),
+            NetworkTemplate.Builder(MATCH_WIFI).setWifiNetworkKeys(setOf(TEST_WIFI_KEY)).build(),
+            NetworkTemplate.Builder(MATCH_ETHERNET).build()
+        )
+    }
+
+    private val benchmark = MicroBenchmark()
+    private val end = START_TIME_MS + scale.buckets * BUCKET_DURATION_MS
+    private val collection
+        get() = collections.getOrPut(scale) { SyntheticNetworkStats.collection(scale) }
+
+    private fun run(name: String, op: () -> Any?) = benchmark.run("$name[$scale]", op)
+
+    @Test
+    fun testNetworkStats_combineValues() {
+        // Every key is combined twice, so half of the calls find an existing entry.
+        val entries = SyntheticNetworkStats.entries(scale).let { it + it }
+        var stats: NetworkStats? = null
+        run("combineValues") {
+            stats = NetworkStats(0L, 16).apply { entries.forEach { combineValues(it) } }
+            stats
+        }
+        assertEquals(entries.size / 2, stats!!.size())
+    }
+
+    @Test
+    fun testNetworkStats_groupedByUid() {
+        // groupedByUid is not supported any more, but its callers on older releases are still
+        // hot paths.
+        assumeFalse(SdkLevel.isAtLeastV())
+        val snapshot = SyntheticNetworkStats.snapshot(scale)
+        run("groupedByUid") { snapshot.groupedByUid() }
+        assertEquals(scale.uids, snapshot.groupedByUid().size())
+    }
+
+    @Test
+    fun testNetworkStats_withoutInterfaces() {
+        val snapshot = SyntheticNetworkStats.snapshot(scale)
+        run("withoutInterfaces") { snapshot.withoutInterfaces() }
+        assertEquals(scale.uids * (scale.tags + 2), snapshot.withoutInterfaces().size())
+    }
+
+    @Test
+    fun testNetworkStats_subtract() {
+        val previous = SyntheticNetworkStats.snapshot(scale, multiplier = 1L)
+        val current = SyntheticNetworkStats.snapshot(scale, multiplier = 2L)
+        run("subtract") { current.subtract(previous) }
+        assertEquals(previous.getTotalBytes(), current.subtract(previous).getTotalBytes())
+    }
+
+    @Test
+    fun testNetworkStatsHistory_recordData() {
+        val entry = SyntheticNetworkStats.entries(scale).first()
+        run("recordData") {
+            NetworkStatsHistory(BUCKET_DURATION_MS, 16).apply {
+                for (b in 0 until scale.buckets) {
+                    val start = START_TIME_MS + b * BUCKET_DURATION_MS
+                    // Unaligned, so each record is spread over two buckets.
+                    recordData(start + BUCKET_DURATION_MS / 2,
+                        start + BUCKET_DURATION_MS * 3 / 2, entry)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testNetworkStatsHistory_getValues() {
+        val history = SyntheticNetworkStats.history(scale)
+        var recycle: NetworkStatsHistory.Entry? = null
+        run("getValues") {
+            recycle = history.getValues(START_TIME_MS + BUCKET_DURATION_MS / 3, end, recycle)
+            recycle
+        }
+        assertEquals(history.totalBytes, history.getValues(Long.MIN_VALUE, Long.MAX_VALUE,
+            null).let { it.rxBytes + it.txBytes })
+    }
+
+    @Test
+    fun testNetworkStatsCollection_getSummary() {
+        val collection = this.collection
+        run("getSummary") {
+            templates.map {
+                collection.getSummary(it, START_TIME_MS, end, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID)
+            }
+        }
+    }
+
+    @Test
+    fun testNetworkStatsCollection_getHistory() {
+        val collection = this.collection
+        run("getHistory") {
+            templates.map {
+                collection.getHistory(it, null, Process.FIRST_APPLICATION_UID, SET_ALL,
+                    TAG_NONE, FIELD_ALL, START_TIME_MS, end, NetworkStatsAccess.Level.DEVICE,
+                    Process.SYSTEM_UID)
+            }
+        }
+    }
+
+    @Test
+    fun testNetworkStatsCollection_write() {
+        val collection = this.collection
+        run("write") { ByteArrayOutputStream().also { collection.write(it) } }
+    }
+
+    @Test
+    fun testNetworkStatsCollection_read() {
+        val bytes = ByteArrayOutputStream().also { collection.write(it) }.toByteArray()
+        var readCollection: NetworkStatsCollection? = null
+        run("read") {
+            readCollection = NetworkStatsCollection(BUCKET_DURATION_MS).apply {
+                read(ByteArrayInputStream(bytes))
+            }
+            readCollection
+        }
+        assertEquals(collection.totalBytes, readCollection!!.totalBytes)
+    }
+
+    @Test
+    fun testNetworkTemplate_matches() {
+        val identities = SyntheticNetworkStats.identities
+        // Matching is done for each identity of each key of the collections, so scale the
+        // number of calls with the number of keys.
+        val repeat = scale.uids * (scale.tags + 2)
+        run("matches") {
+            var matches = 0
+            repeat(repeat) {
+                for (template in templates) {
+                    for (ident in identities) {
+                        if (template.matches(ident)) matches++
+                    }
+                }
+            }
+            matches
+        }
+    }
+}
@@ -16,10 +16,26 @@
 
 package com.android.server.net.benchmarktests
 
+import android.net.ConnectivityManager.TYPE_WIFI
+import android.net.NetworkIdentity
+import android.net.NetworkIdentitySet
+import android.net.NetworkStats
+import android.net.NetworkStats.METERED_YES
 import android.net.NetworkStats.NonMonotonicObserver
+import android.net.NetworkStats.SET_ALL
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.TAG_NONE
+import android.net.NetworkStatsAccess
 import android.net.NetworkStatsCollection
+import android.net.NetworkStatsHistory.FIELD_ALL
+import android.net.NetworkTemplate
+import android.net.NetworkTemplate.MATCH_MOBILE
+import android.net.NetworkTemplate.MATCH_WIFI
 import android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID
 import android.os.DropBoxManager
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
 import androidx.test.platform.app.InstrumentationRegistry
 import com.android.internal.util.FileRotator
 import com.android.internal.util.FileRotator.Reader
@@ -41,8 +57,13 @@ import org.mockito.Mockito.mock
 @RunWith(JUnit4::class)
 class NetworkStatsTest {
     companion object {
+        private val TAG = NetworkStatsTest::class.simpleName
         private val DEFAULT_BUFFER_SIZE = 8192
         private val FILE_CACHE_WARM_UP_REPEAT_COUNT = 10
+        private val QUERY_REPEAT_COUNT = 20
+        private val PERSIST_REPEAT_COUNT = 20
+        private val PERSIST_UID_COUNT = 200
+        private val TEST_IFACE = "wlan0"
         private val UID_COLLECTION_BUCKET_DURATION_MS = TimeUnit.HOURS.toMillis(2)
         private val UID_RECORDER_ROTATE_AGE_MS = TimeUnit.DAYS.toMillis(15)
         private val UID_RECORDER_DELETE_AGE_MS = TimeUnit.DAYS.toMillis(90)
@@ -80,6 +101,49 @@ class NetworkStatsTest {
             }
         }
 
+        private val queryTemplates = listOf(
+            NetworkTemplate.Builder(MATCH_MOBILE).setMeteredness(METERED_YES).build(),
+            NetworkTemplate.Builder(MATCH_WIFI).build()
+        )
+
+        private fun readUidCollection(statsDir: File): NetworkStatsCollection {
+            val collection = NetworkStatsCollection(UID_COLLECTION_BUCKET_DURATION_MS)
+            for (file in getSortedListForPrefix(statsDir, "uid")) {
+                readFile(file, collection)
+            }
+            return collection
+        }
+
+        private val uidCollections by lazy { testFilesAssets.map { readUidCollection(it) } }
+        private val compactedUidCollections by lazy {
+            testFilesAssets.map { readUidCollection(it).apply { compact() } }
+        }
+
+        private fun usedHeapBytes(): Long {
+            val runtime = Runtime.getRuntime()
+            repeat(3) {
+                System.gc()
+                System.runFinalization()
+            }
+            return runtime.totalMemory() - runtime.freeMemory()
+        }
+
+        // Copy a dataset so that persisting does not affect the other test cases.
+        private fun copyToTempDir(statsDir: File): File {
+            val copy = Files.createTempDirectory(NetworkStatsTest::class.simpleName).toFile()
+            statsDir.copyRecursively(copy)
+            return copy
+        }
+
+        // Snapshot of PERSIST_UID_COUNT uids which each received (round * 1000) bytes.
+        private fun uidSnapshot(round: Int) =
+            NetworkStats(TimeUnit.MINUTES.toMillis(30L * round), PERSIST_UID_COUNT).apply {
+                repeat(PERSIST_UID_COUNT) {
+                    insertEntry(TEST_IFACE, Process.FIRST_APPLICATION_UID + it, SET_DEFAULT,
+                        TAG_NONE, round * 1000L, round * 10L, round * 100L, round.toLong(), 0L)
+                }
+            }
+
         val context get() = InstrumentationRegistry.getInstrumentation().getContext()
         private fun String.toAssetInputStream() = DataInputStream(context.assets.open(this))
 
@@ -163,5 +227,117 @@ class NetworkStatsTest {
         }
     }
 
+    @Test
+    fun testGetSummary_collection() {
+        doTestGetSummary(uidCollections)
+    }
+
+    @Test
+    fun testGetSummary_compactedCollection() {
+        doTestGetSummary(compactedUidCollections)
+    }
+
+    fun doTestGetSummary(collections: List<NetworkStatsCollection>) {
+        repeat(QUERY_REPEAT_COUNT) {
+            collections.forEach { collection ->
+                queryTemplates.forEach {
+                    collection.getSummary(it, Long.MIN_VALUE, Long.MAX_VALUE,
+                        NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testGetHistory_collection() {
+        doTestGetHistory(uidCollections)
+    }
+
+    @Test
+    fun testGetHistory_compactedCollection() {
+        doTestGetHistory(compactedUidCollections)
+    }
+
+    fun doTestGetHistory(collections: List<NetworkStatsCollection>) {
+        repeat(QUERY_REPEAT_COUNT) {
+            collections.forEach { collection ->
+                queryTemplates.forEach {
+                    collection.getHistory(it, null, Process.SYSTEM_UID, SET_ALL, TAG_NONE,
+                        FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE,
+                        NetworkStatsAccess.Level.DEVICE, Process.SYSTEM_UID)
+                }
+            }
+        }
+    }
+
+    // Log the heap taken by each real-user dataset, with one history per key and once compacted
+    // to a columnar store.
+    @Test
+    fun testCompact_heapUsage() {
+        testFilesAssets.forEach {
+            val before = usedHeapBytes()
+            val collection = readUidCollection(it)
+            val loaded = usedHeapBytes()
+            collection.compact()
+            val compacted = usedHeapBytes()
+            Log.i(TAG, "${it.parentFile!!.name}: ${(loaded - before) / 1024}KB as histories, " +
+                    "${(compacted - before) / 1024}KB compacted")
+            assertTrue(collection.isCompacted)
+        }
+    }
+
+    @Test
+    fun testPersist_rewriteActive() {
+        doTestPersist(useJournal = false)
+    }
+
+    @Test
+    fun testPersist_journal() {
+        doTestPersist(useJournal = true)
+    }
+
+    // Persist small deltas into recorders loaded from the real-user datasets. Without the
+    // journal, the cost of each persist grows with the size of the active file.
+    fun doTestPersist(useJournal: Boolean) {
+        val mockObserver = mock<NonMonotonicObserver<String>>()
+        val mockDropBox = mock<DropBoxManager>()
+        val ident = NetworkIdentitySet().apply {
+            add(NetworkIdentity.Builder().setType(TYPE_WIFI).build())
+        }
+        val ifaceIdent = mapOf(TEST_IFACE to ident)
+        testFilesAssets.forEach {
+            val statsDir = copyToTempDir(it)
+            val recorder = NetworkStatsRecorder(
+                FileRotator(
+                    statsDir, PREFIX_UID, UID_RECORDER_ROTATE_AGE_MS, UID_RECORDER_DELETE_AGE_MS
+                ),
+                mockObserver,
+                mockDropBox,
+                PREFIX_UID,
+                UID_COLLECTION_BUCKET_DURATION_MS,
+                false /* includeTags */,
+                false /* wipeOnError */,
+                false /* useFastDataInput */,
+                statsDir,
+                File(statsDir, PREFIX_UID + ".journal"),
+                useJournal /* appendToJournal */,
+                UID_RECORDER_ROTATE_AGE_MS
+            )
+            val activeFileBytes = getSortedListForPrefix(statsDir, PREFIX_UID)
+                .lastOrNull()?.length() ?: 0
+            val now = System.currentTimeMillis()
+            recorder.recordSnapshotLocked(uidSnapshot(0), ifaceIdent, now)
+            val start = SystemClock.elapsedRealtimeNanos()
+            for (round in 1..PERSIST_REPEAT_COUNT) {
+                recorder.recordSnapshotLocked(uidSnapshot(round), ifaceIdent, now)
+                recorder.forcePersistLocked(now)
+            }
+            val elapsedNanos = SystemClock.elapsedRealtimeNanos() - start
+            Log.i(TAG, "persist with journal=$useJournal, active file ${activeFileBytes}B: " +
+                    "${elapsedNanos / PERSIST_REPEAT_COUNT / 1000}us per persist")
+            statsDir.deleteRecursively()
+        }
+    }
+
     inline fun <reified T> mock(): T = mock(T::class.java)
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import com.android.net.module.util.Struct
+import com.android.net.module.util.bpf.CookieTagMapKey
+import com.android.server.net.StatsMapKey
+import com.android.server.net.StatsMapValue
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.assertEquals
+import org.junit.BeforeClass
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+/**
+ * Compares the reflection-based Struct path with the specialized Struct.Codec path for the
+ * structs read on every stats map dump. Each pair of test cases runs the same workload, so the
+ * test durations can be compared directly.
+ */
+@RunWith(JUnit4::class)
+class StructCodecTest {
+    companion object {
+        // Roughly the size of a full stats map on a busy device.
+        private val ENTRY_COUNT = 10_000
+        private val REPEAT_COUNT = 20
+        private val WARM_UP_REPEAT_COUNT = 5
+
+        private val statsKeys = List(ENTRY_COUNT) {
+            StatsMapKey(10000 + it % 500, (it % 7).toLong(), (it % 2).toLong(), it % 10)
+        }
+        private val statsValues = List(ENTRY_COUNT) {
+            StatsMapValue(it.toLong(), it * 1500L, it.toLong(), it * 100L)
+        }
+        private val cookieKeys = List(ENTRY_COUNT) { CookieTagMapKey(it * 31L) }
+
+        private val keySize = Struct.getSize(StatsMapKey::class.java)
+        private val valueSize = Struct.getSize(StatsMapValue::class.java)
+        private val cookieSize = Struct.getSize(CookieTagMapKey::class.java)
+
+        private val rawKeys = encode(statsKeys, keySize)
+        private val rawValues = encode(statsValues, valueSize)
+        private val rawCookies = encode(cookieKeys, cookieSize)
+
+        private fun encode(structs: List<Struct>, size: Int): ByteBuffer {
+            val buf = ByteBuffer.allocate(structs.size * size).order(ByteOrder.nativeOrder())
+            structs.forEach { it.writeToByteBufferWithReflection(buf) }
+            buf.flip()
+            return buf
+        }
+
+        // Make sure both paths are JIT-compiled and the field caches are populated before the
+        // measured test cases run.
+        @JvmStatic
+        @BeforeClass
+        fun setUpOnce() {
+            repeat(WARM_UP_REPEAT_COUNT) {
+                parseAll(useCodec = true)
+                parseAll(useCodec = false)
+                writeAll(useCodec = true)
+                writeAll(useCodec = false)
+            }
+        }
+
+        private fun <T> parseEach(raw: ByteBuffer, clazz: Class<T>, useCodec: Boolean) {
+            val buf = raw.duplicate().order(ByteOrder.nativeOrder())
+            repeat(ENTRY_COUNT) {
+                if (useCodec) {
+                    Struct.parse(clazz, buf)
+                } else {
+                    Struct.parseWithReflection(clazz, buf)
+                }
+            }
+            assertEquals(0, buf.remaining())
+        }
+
+        private fun parseAll(useCodec: Boolean) {
+            parseEach(rawKeys, StatsMapKey::class.java, useCodec)
+            parseEach(rawValues, StatsMapValue::class.java, useCodec)
+            parseEach(rawCookies, CookieTagMapKey::class.java, useCodec)
+        }
+
+        private fun writeEach(structs: List<Struct>, size: Int, useCodec: Boolean) {
+            val buf = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder())
+            structs.forEach {
+                buf.clear()
+                if (useCodec) {
+                    it.writeToByteBuffer(buf)
+                } else {
+                    it.writeToByteBufferWithReflection(buf)
+                }
+            }
+        }
+
+        private fun writeAll(useCodec: Boolean) {
+            writeEach(statsKeys, keySize, useCodec)
+            writeEach(statsValues, valueSize, useCodec)
+            writeEach(cookieKeys, cookieSize, useCodec)
+        }
+    }
+
+    @Test
+    fun testParse_codec() {
+        repeat(REPEAT_COUNT) { parseAll(useCodec = true) }
+    }
+
+    @Test
+    fun testParse_reflection() {
+        repeat(REPEAT_COUNT) { parseAll(useCodec = false) }
+    }
+
+    @Test
+    fun testWrite_codec() {
+        repeat(REPEAT_COUNT) { writeAll(useCodec = true) }
+    }
+
+    @Test
+    fun testWrite_reflection() {
+        repeat(REPEAT_COUNT) { writeAll(useCodec = false) }
+    }
+
+    @Test
+    fun testCodecMatchesReflection() {
+        val codecBuf = ByteBuffer.allocate(rawKeys.limit()).order(ByteOrder.nativeOrder())
+        statsKeys.forEach { it.writeToByteBuffer(codecBuf) }
+        assertEquals(rawKeys, codecBuf.flip())
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net.benchmarktests
+
+import android.net.ConnectivityManager.TYPE_ETHERNET
+import android.net.ConnectivityManager.TYPE_MOBILE
+import android.net.ConnectivityManager.TYPE_WIFI
+import android.net.NetworkIdentity
+import android.net.NetworkIdentitySet
+import android.net.NetworkStats
+import android.net.NetworkStats.DEFAULT_NETWORK_NO
+import android.net.NetworkStats.DEFAULT_NETWORK_YES
+import android.net.NetworkStats.IFACE_ALL
+import android.net.NetworkStats.METERED_NO
+import android.net.NetworkStats.METERED_YES
+import android.net.NetworkStats.ROAMING_NO
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.SET_FOREGROUND
+import android.net.NetworkStats.TAG_NONE
+import android.net.NetworkStatsCollection
+import android.net.NetworkStatsHistory
+import android.os.Process
+import java.util.concurrent.TimeUnit
+
+/**
+ * Generators of synthetic network stats data structures for benchmarks.
+ *
+ * The data is deterministic, and its size is controlled by a [Scale] so that the cost of the
+ * benchmarked operations can be compared across sizes.
+ */
+object SyntheticNetworkStats {
+    val BUCKET_DURATION_MS = TimeUnit.HOURS.toMillis(1)
+    // Aligned on the bucket duration.
+    const val START_TIME_MS = 1_700_000_000_000L - 1_700_000_000_000L % 3_600_000L
+    const val TEST_SUBSCRIBER_ID = "310260000000000"
+    const val TEST_WIFI_KEY = "TEST_SSID"
+    private val IFACES = listOf("wlan0", "rmnet0", "eth0")
+
+    /**
+     * Size of the generated data.
+     *
+     * @param uids the number of distinct UIDs.
+     * @param tags the number of tags used by each UID, in addition to TAG_NONE.
+     * @param buckets the number of history buckets.
+     */
+    data class Scale(val name: String, val uids: Int, val tags: Int, val buckets: Int) {
+        override fun toString() = "$name($uids uids, $tags tags, $buckets buckets)"
+    }
+
+    val SMALL = Scale("small", uids = 50, tags = 2, buckets = 24)
+    val LARGE = Scale("large", uids = 500, tags = 4, buckets = 24 * 7)
+
+    private fun uid(index: Int) = Process.FIRST_APPLICATION_UID + index
+    private fun tag(index: Int) = if (index == 0) TAG_NONE else 0x1000 + index
+
+    /**
+     * Entries for all (iface, uid, set, tag) keys of the given scale. Each UID has traffic on
+     * every interface, with all its tags on SET_DEFAULT and untagged traffic on SET_FOREGROUND.
+     */
+    fun entries(scale: Scale, multiplier: Long = 1L): List<NetworkStats.Entry> {
+        val entries = ArrayList<NetworkStats.Entry>()
+        for (u in 0 until scale.uids) {
+            for (iface in IFACES) {
+                for (t in 0..scale.tags) {
+                    entries.add(entry(iface, uid(u), SET_DEFAULT, tag(t), (u + t + 1) * multiplier))
+                }
+                entries.add(entry(iface, uid(u), SET_FOREGROUND, TAG_NONE, (u + 1) * multiplier))
+            }
+        }
+        return entries
+    }
+
+    private fun entry(iface: String, uid: Int, set: Int, tag: Int, bytes: Long) =
+        NetworkStats.Entry(iface, uid, set, tag, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO,
+            bytes * 1000, bytes, bytes * 100, bytes / 2 + 1, 0L)
+
+    /** A snapshot containing all [entries] of the given scale. */
+    fun snapshot(scale: Scale, multiplier: Long = 1L): NetworkStats {
+        val entries = entries(scale, multiplier)
+        return NetworkStats(0L, entries.size).apply {
+            entries.forEach { insertEntry(it) }
+        }
+    }
+
+    /** A history with one record in each bucket of the given scale. */
+    fun history(scale: Scale): NetworkStatsHistory {
+        return NetworkStatsHistory(BUCKET_DURATION_MS, scale.buckets).apply {
+            for (b in 0 until scale.buckets) {
+                val start = START_TIME_MS + b * BUCKET_DURATION_MS
+                recordData(start, start + BUCKET_DURATION_MS, entry(IFACES[0], uid(0),
+                    SET_DEFAULT, TAG_NONE, b + 1L))
+            }
+        }
+    }
+
+    /** Identities of the networks used by the generated data. */
+    val identities = listOf(
+        NetworkIdentity.Builder().setType(TYPE_WIFI).setWifiNetworkKey(TEST_WIFI_KEY).build(),
+        NetworkIdentity.Builder().setType(TYPE_MOBILE).setSubscriberId(TEST_SUBSCRIBER_ID)
+            .setMetered(true).setDefaultNetwork(true).build(),
+        NetworkIdentity.Builder().setType(TYPE_MOBILE).setSubscriberId(TEST_SUBSCRIBER_ID)
+            .setMetered(true).setRoaming(true).build(),
+        NetworkIdentity.Builder().setType(TYPE_ETHERNET).build()
+    )
+
+    /**
+     * A collection with, for each network identity and each key of [entries], one record in
+     * each bucket of the given scale.
+     */
+    fun collection(scale: Scale): NetworkStatsCollection {
+        val collection = NetworkStatsCollection(BUCKET_DURATION_MS)
+        val idents = identities.map { NetworkIdentitySet().apply { add(it) } }
+        // One interface per identity is enough, as collections are keyed by identity.
+        val entries = entries(scale).filter { it.iface == IFACES[0] }
+        for (ident in idents) {
+            for (entry in entries) {
+                val e = NetworkStats.Entry(IFACE_ALL, entry.uid, entry.set,
+                    entry.tag, METERED_YES, ROAMING_NO, DEFAULT_NETWORK_YES, entry.rxBytes,
+                    entry.rxPackets, entry.txBytes, entry.txPackets, 0L)
+                for (b in 0 until scale.buckets) {
+                    val start = START_TIME_MS + b * BUCKET_DURATION_MS
+                    collection.recordData(ident, entry.uid, entry.set, entry.tag, start,
+                        start + BUCKET_DURATION_MS, e)
+                }
+            }
+        }
+        return collection
+    }
+}
@@ -17,6 +17,7 @@
 package android.net;
 
 import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
 import static android.net.NetworkIdentity.OEM_NONE;
 import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
 import static android.net.NetworkStats.IFACE_ALL;
@@ -38,7 +39,10 @@ import static com.android.testutils.MiscAsserts.assertThrows;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import android.annotation.NonNull;
@@ -82,6 +86,7 @@ import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 /**
@@ -304,6 +309,278 @@ public class NetworkStatsCollectionTest {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    @Test
+    public void testKeysOnSameNetworkShareIdentSet() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentity ident = new NetworkIdentity(TYPE_MOBILE,
+                TelephonyManager.NETWORK_TYPE_UNKNOWN, TEST_IMSI, null, false, true, true,
+                OEM_NONE, TEST_SUBID);
+        final NetworkIdentitySet identSet1 = new NetworkIdentitySet();
+        identSet1.add(ident);
+        final NetworkIdentitySet identSet2 = new NetworkIdentitySet();
+        identSet2.add(ident);
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 32;
+        collection.recordData(identSet1, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet2, myUid() + 1, SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        entry.rxBytes = 128;
+        history.recordData(0, 60 * MINUTE_IN_MILLIS, entry);
+        collection.recordHistory(new Key(Set.of(ident), myUid() + 2, SET_DEFAULT, TAG_NONE),
+                history);
+
+        final Map<Key, NetworkStatsHistory> entries = collection.getEntries();
+        assertEquals(3, entries.size());
+        for (Key key : entries.keySet()) {
+            assertSame(identSet1, key.ident);
+        }
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
+    @Test
+    public void testRemovedNetworksDropIdentSet() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet identSet1 = new NetworkIdentitySet();
+        identSet1.add(new NetworkIdentity.Builder().setSubscriberId(TEST_IMSI).build());
+        final NetworkIdentitySet identSet2 = new NetworkIdentitySet();
+        identSet2.add(new NetworkIdentity.Builder().setSubscriberId(TEST_IMSI + "1").build());
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 32;
+        collection.recordData(identSet1, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        collection.recordData(identSet2, myUid() + 1, SET_DEFAULT, 0xF00D, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertEquals(2, collection.getIdentSetCount());
+
+        // Tagged stats of removed UIDs are dropped, so nothing is left on the second network.
+        collection.removeUids(new int[] { myUid() + 1 });
+        assertEquals(1, collection.getEntries().size());
+        assertEquals(1, collection.getIdentSetCount());
+
+        // Untagged stats move to UID_REMOVED on the same network, which is still used.
+        collection.removeUids(new int[] { myUid() });
+        assertEquals(1, collection.getIdentSetCount());
+
+        collection.removeHistoryBefore(Long.MAX_VALUE);
+        assertEquals(0, collection.getEntries().size());
+        assertEquals(0, collection.getIdentSetCount());
+
+        // A network seen again after being dropped is interned again.
+        collection.recordData(identSet2, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertEquals(1, collection.getIdentSetCount());
+        assertSame(identSet2, collection.getEntries().keySet().iterator().next().ident);
+    }
+
+    @Test
+    public void testTemplateMatchersSharedAcrossQueries() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet identSet1 = new NetworkIdentitySet();
+        identSet1.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI).setMetered(true).build());
+        final NetworkIdentitySet identSet2 = new NetworkIdentitySet();
+        identSet2.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI + "1").setMetered(true).build());
+        final NetworkIdentitySet roamingIdentSet = new NetworkIdentitySet();
+        roamingIdentSet.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI).setMetered(true).setRoaming(true).build());
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 32;
+        collection.recordData(identSet1, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        collection.recordData(identSet2, myUid() + 1, SET_DEFAULT, 0xF00D, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertEquals(0, collection.getTemplateMatcherCount());
+
+        // Queries with equal templates share one matcher.
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertEquals(1, collection.getTemplateMatcherCount());
+
+        // A new network drops the matchers, and is matched by the next queries.
+        entry.rxBytes = 64;
+        collection.recordData(roamingIdentSet, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertEquals(0, collection.getTemplateMatcherCount());
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        assertEquals(1, collection.getTemplateMatcherCount());
+
+        // Data recorded on a known network keeps them.
+        collection.recordData(identSet1, myUid(), SET_DEFAULT, TAG_NONE, 0,
+                60 * MINUTE_IN_MILLIS, entry);
+        assertEquals(1, collection.getTemplateMatcherCount());
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // Pruning a network drops them too.
+        collection.removeUids(new int[] { myUid() + 1 });
+        assertEquals(2, collection.getIdentSetCount());
+        assertEquals(0, collection.getTemplateMatcherCount());
+        assertSummaryTotal(collection, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
+    // Record random data on two networks, for a few uids, tags and sets.
+    private static void recordRandomData(Random random, int count,
+            NetworkStatsCollection... collections) {
+        final NetworkIdentitySet mobile = new NetworkIdentitySet();
+        mobile.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(TEST_IMSI).setMetered(true).build());
+        final NetworkIdentitySet wifi = new NetworkIdentitySet();
+        wifi.add(new NetworkIdentity.Builder().setType(TYPE_WIFI)
+                .setWifiNetworkKey("TEST_WIFI").setDefaultNetwork(true).build());
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        for (int i = 0; i < count; i++) {
+            final NetworkIdentitySet ident = random.nextBoolean() ? mobile : wifi;
+            final int uid = myUid() + random.nextInt(4);
+            final int set = random.nextInt(3) == 0 ? NetworkStats.SET_FOREGROUND : SET_DEFAULT;
+            final int tag = random.nextInt(3) == 0 ? 0xF00D : TAG_NONE;
+            final long start = TIME_A + random.nextInt(48) * 20 * MINUTE_IN_MILLIS;
+            final long end = start + (1 + random.nextInt(6)) * 20 * MINUTE_IN_MILLIS;
+            entry.rxBytes = random.nextInt(100_000);
+            entry.rxPackets = random.nextInt(100);
+            entry.txBytes = random.nextInt(100_000);
+            entry.txPackets = random.nextInt(100);
+            entry.operations = random.nextInt(3);
+            for (NetworkStatsCollection collection : collections) {
+                collection.recordData(ident, uid, set, tag, start, end, entry);
+            }
+        }
+    }
+
+    private static void assertSameSummary(NetworkStatsCollection expected,
+            NetworkStatsCollection actual, NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel) {
+        final NetworkStats expectedStats =
+                expected.getSummary(template, start, end, accessLevel, myUid());
+        final NetworkStats actualStats =
+                actual.getSummary(template, start, end, accessLevel, myUid());
+        assertEquals(expectedStats.size(), actualStats.size());
+        for (int i = 0; i < expectedStats.size(); i++) {
+            final NetworkStats.Entry entry = expectedStats.getValues(i, null);
+            final int index = actualStats.findIndex(entry.iface, entry.uid, entry.set, entry.tag,
+                    entry.metered, entry.roaming, entry.defaultNetwork);
+            assertEquals(entry, actualStats.getValues(index, null));
+        }
+    }
+
+    private static void assertSameContent(NetworkStatsCollection expected,
+            NetworkStatsCollection actual) throws Exception {
+        assertCollectionEntries(expected.getEntries(), actual);
+        assertArrayEquals(expected.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid()),
+                actual.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid()));
+
+        final List<NetworkTemplate> templates = List.of(buildTemplateMobileAll(TEST_IMSI),
+                new NetworkTemplate.Builder(NetworkTemplate.MATCH_WIFI).build());
+        final SubscriptionPlan plan = SubscriptionPlan.Builder
+                .createNonrecurring(ZonedDateTime.parse("2012-01-09T06:00:00.00Z"),
+                        ZonedDateTime.parse("2012-01-10T06:00:00.00Z"))
+                .setDataUsage(10_000_000L, TIME_B).build();
+        for (NetworkTemplate template : templates) {
+            for (int level : new int[] {
+                    NetworkStatsAccess.Level.DEFAULT, NetworkStatsAccess.Level.DEVICE }) {
+                assertSameSummary(expected, actual, template, Long.MIN_VALUE, Long.MAX_VALUE,
+                        level);
+                // Windows that do not fall on bucket boundaries are interpolated.
+                assertSameSummary(expected, actual, template, TIME_A + 10 * MINUTE_IN_MILLIS,
+                        TIME_B + 25 * MINUTE_IN_MILLIS, level);
+            }
+            for (int uid = myUid(); uid < myUid() + 4; uid++) {
+                for (SubscriptionPlan augmentPlan : new SubscriptionPlan[] { null, plan }) {
+                    final NetworkStatsHistory expectedHistory = expected.getHistory(template,
+                            augmentPlan, uid, SET_ALL, TAG_NONE, FIELD_ALL, TIME_A, TIME_C,
+                            NetworkStatsAccess.Level.DEVICE, myUid());
+                    final NetworkStatsHistory actualHistory = actual.getHistory(template,
+                            augmentPlan, uid, SET_ALL, TAG_NONE, FIELD_ALL, TIME_A, TIME_C,
+                            NetworkStatsAccess.Level.DEVICE, myUid());
+                    assertEquals(expectedHistory.getEntries(), actualHistory.getEntries());
+                }
+            }
+        }
+
+        // Reading and copying collections record whole buckets, so activeTime differs from the
+        // original collection: compare to the same operations on the expected collection.
+        assertCollectionEntries(writeAndRead(expected).getEntries(), writeAndRead(actual));
+        final NetworkStatsCollection expectedCopy = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        expectedCopy.recordCollection(expected);
+        final NetworkStatsCollection actualCopy = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        actualCopy.recordCollection(actual);
+        assertCollectionEntries(expectedCopy.getEntries(), actualCopy);
+    }
+
+    private static NetworkStatsCollection writeAndRead(NetworkStatsCollection collection)
+            throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(bos);
+        final NetworkStatsCollection read = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        read.read(new ByteArrayInputStream(bos.toByteArray()));
+        return read;
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        final Random random = new Random(42);
+        final NetworkStatsCollection expected = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStatsCollection actual = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        recordRandomData(random, 200, expected, actual);
+        actual.compact();
+        assertTrue(actual.isCompacted());
+        assertSameContent(expected, actual);
+
+        // Data recorded after compaction is added to the histories of the columnar store.
+        recordRandomData(random, 50, expected, actual);
+        final NetworkStatsHistory history = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        history.recordData(TIME_B, TIME_B + HOUR_IN_MILLIS, 1000L, 2000L);
+        final Key key = actual.getEntries().keySet().iterator().next();
+        expected.recordHistory(key, history);
+        actual.recordHistory(key, history);
+        assertSameContent(expected, actual);
+        assertEquals(expected.getTotalBytes(), actual.getTotalBytes());
+
+        // Compacting again merges them into a new store.
+        actual.compact();
+        assertSameContent(expected, actual);
+
+        // Removing data moves the histories out of the columnar store.
+        expected.removeUids(new int[] { myUid() + 1 });
+        actual.removeUids(new int[] { myUid() + 1 });
+        assertFalse(actual.isCompacted());
+        assertSameContent(expected, actual);
+        assertEquals(expected.getIdentSetCount(), actual.getIdentSetCount());
+
+        actual.compact();
+        expected.removeHistoryBefore(TIME_B);
+        actual.removeHistoryBefore(TIME_B);
+        assertSameContent(expected, actual);
+    }
+
+    @Test
+    public void testCompactKeepsOtherBucketDurations() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStatsHistory history = new NetworkStatsHistory(2 * HOUR_IN_MILLIS);
+        history.recordData(TIME_A, TIME_A + 2 * HOUR_IN_MILLIS, 1000L, 2000L);
+        final Key key = new Key(Set.of(new NetworkIdentity.Builder()
+                .setSubscriberId(TEST_IMSI).build()), myUid(), SET_DEFAULT, TAG_NONE);
+        collection.recordHistory(key, history);
+        final NetworkStatsCollection expected = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        expected.recordCollection(collection);
+
+        collection.compact();
+        assertSameContent(expected, collection);
+        assertEquals(2 * HOUR_IN_MILLIS,
+                collection.getEntries().get(key).getBucketDuration());
+    }
+
     @Test
     public void testAugmentPlan() throws Exception {
         final File testFile =
@@ -19,19 +19,28 @@ package com.android.server.net;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.SET_FOREGROUND;
 import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG;
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_UID;
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_UIDTAG;
 import static com.android.server.ConnectivityStatsLog.NETWORK_STATS_RECORDER_FILE_OPERATED__RECORDER_PREFIX__PREFIX_XT;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -64,6 +73,9 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.function.Supplier;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -74,6 +86,10 @@ public final class NetworkStatsRecorderTest {
     private static final String TEST_PREFIX = "test";
     private static final int TEST_UID1 = 1234;
     private static final int TEST_UID2 = 1235;
+    private static final String TEST_IFACE = "test0";
+    private static final long TEST_START = 1194220800000L;
+    private static final long TEST_ROTATE_AGE = DAY_IN_MILLIS;
+    private static final long TEST_DELETE_AGE = 365 * DAY_IN_MILLIS;
 
     @Mock private DropBoxManager mDropBox;
     @Mock private NetworkStats.NonMonotonicObserver mObserver;
@@ -108,6 +124,210 @@ public final class NetworkStatsRecorderTest {
         verify(rotator, never()).deleteAll();
     }
 
+    @Test
+    public void testGetOrLoadSince_readsOnlyFilesEndingAfterStart() throws Exception {
+        final FileRotator rotator = mock(FileRotator.class);
+        final NetworkStatsRecorder recorder = buildRecorder(rotator, true);
+
+        // Reading starts at the bucket holding the start of the window.
+        recorder.getOrLoadSinceLocked(TEST_START + 30 * MINUTE_IN_MILLIS);
+        verify(rotator).readMatching(any(), eq(TEST_START), eq(Long.MAX_VALUE));
+        // Later windows reuse the loaded history, earlier ones load it again.
+        recorder.getOrLoadSinceLocked(TEST_START + HOUR_IN_MILLIS);
+        verify(rotator, times(1)).readMatching(any(), anyLong(), anyLong());
+        recorder.getOrLoadSinceLocked(TEST_START - HOUR_IN_MILLIS);
+        verify(rotator).readMatching(any(), eq(TEST_START - HOUR_IN_MILLIS), eq(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testGetOrLoadSince_bucketSplitAcrossRotation() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final Supplier<NetworkStatsRecorder> recorderSupplier = () -> new NetworkStatsRecorder(
+                new FileRotator(statsDir, TEST_PREFIX, 10 * MINUTE_IN_MILLIS, TEST_DELETE_AGE),
+                mObserver, mDropBox, TEST_PREFIX, HOUR_IN_MILLIS, false /* includeTags */,
+                false /* wipeOnError */, false /* useFastDataInput */, statsDir);
+        final NetworkStatsRecorder recorder = recorderSupplier.get();
+        recordSnapshotAt(recorder, 0, 0);
+        recordSnapshotAt(recorder, 10 * MINUTE_IN_MILLIS, 1000);
+        recorder.forcePersistLocked(TEST_START + 10 * MINUTE_IN_MILLIS);
+        // The file holding the first part of the bucket is rotated out before the window starts.
+        recorder.maybePersistLocked(TEST_START + 20 * MINUTE_IN_MILLIS);
+        recordSnapshotAt(recorder, 40 * MINUTE_IN_MILLIS, 1500);
+        recorder.forcePersistLocked(TEST_START + 40 * MINUTE_IN_MILLIS);
+
+        final NetworkStatsCollection complete = recorderSupplier.get().getOrLoadCompleteLocked();
+        final NetworkStatsCollection since = recorderSupplier.get()
+                .getOrLoadSinceLocked(TEST_START + 30 * MINUTE_IN_MILLIS);
+        assertEquals(1500, complete.getTotalBytes());
+        assertEquals(complete.getTotalBytes(), since.getTotalBytes());
+    }
+
+    private NetworkStatsRecorder buildJournalRecorder(File statsDir) {
+        return new NetworkStatsRecorder(
+                new FileRotator(statsDir, TEST_PREFIX, TEST_ROTATE_AGE, TEST_DELETE_AGE),
+                mObserver, mDropBox, TEST_PREFIX, HOUR_IN_MILLIS, false /* includeTags */,
+                false /* wipeOnError */, false /* useFastDataInput */, statsDir,
+                getJournalFile(statsDir), true /* appendToJournal */, TEST_ROTATE_AGE);
+    }
+
+    private static File getJournalFile(File statsDir) {
+        return new File(statsDir, TEST_PREFIX + NetworkStatsJournal.SUFFIX);
+    }
+
+    private static File getCompactingFile(File statsDir) {
+        return new File(getJournalFile(statsDir).getPath()
+                + NetworkStatsJournal.COMPACTING_SUFFIX);
+    }
+
+    private static boolean hasActiveFile(File statsDir) {
+        final String[] names = statsDir.list((dir, name) -> name.startsWith(TEST_PREFIX + ".")
+                && name.endsWith("-"));
+        return names != null && names.length > 0;
+    }
+
+    /**
+     * Record a snapshot where {@link #TEST_UID1} received {@code rxBytes} in total, taken
+     * {@code hours} hours after boot. The first snapshot is only used as the baseline.
+     */
+    private static void recordSnapshot(NetworkStatsRecorder recorder, int hours, long rxBytes) {
+        recordSnapshotAt(recorder, hours * HOUR_IN_MILLIS, rxBytes);
+    }
+
+    private static void recordSnapshotAt(NetworkStatsRecorder recorder, long offsetMillis,
+            long rxBytes) {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().build());
+        final NetworkStats snapshot = new NetworkStats(offsetMillis, 1).insertEntry(
+                TEST_IFACE, TEST_UID1, SET_DEFAULT, TAG_NONE, rxBytes, rxBytes / 100, 0, 0, 0);
+        recorder.recordSnapshotLocked(snapshot, Map.of(TEST_IFACE, identSet),
+                TEST_START + offsetMillis);
+    }
+
+    @Test
+    public void testJournal_appendAndReplay() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        recordSnapshot(recorder, 2, 1500);
+        recorder.forcePersistLocked(TEST_START + 2 * HOUR_IN_MILLIS);
+
+        // Deltas were only appended to the journal.
+        assertFalse(hasActiveFile(statsDir));
+        assertTrue(getJournalFile(statsDir).length() > 0);
+
+        // A new recorder, e.g. after a crash, replays the journal.
+        final NetworkStatsRecorder restarted = buildJournalRecorder(statsDir);
+        assertEquals(1500, restarted.getOrLoadCompleteLocked().getTotalBytes());
+    }
+
+    @Test
+    public void testJournal_compactAfterMaxAge() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        recorder.forcePersistLocked(TEST_START);
+
+        // Not old enough yet.
+        recorder.maybePersistLocked(TEST_START + TEST_ROTATE_AGE - 1);
+        assertFalse(hasActiveFile(statsDir));
+
+        recorder.maybePersistLocked(TEST_START + TEST_ROTATE_AGE);
+        assertFalse(getJournalFile(statsDir).exists());
+        assertFalse(getCompactingFile(statsDir).exists());
+        // Deltas are filed by the time they were journaled at, not into the active file.
+        assertFalse(hasActiveFile(statsDir));
+        assertTrue(new File(statsDir,
+                TEST_PREFIX + "." + TEST_START + "-" + (TEST_START + 1)).exists());
+        assertEquals(1000, buildJournalRecorder(statsDir).getOrLoadCompleteLocked()
+                .getTotalBytes());
+    }
+
+    @Test
+    public void testJournal_compactionInterruptedByCrash() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        final byte[] journal = Files.readAllBytes(getJournalFile(statsDir).toPath());
+
+        // Crash after the journal was renamed to a compacting generation.
+        assertTrue(getJournalFile(statsDir).renameTo(getCompactingFile(statsDir)));
+        assertEquals(1000, buildJournalRecorder(statsDir).getOrLoadCompleteLocked()
+                .getTotalBytes());
+        assertFalse(getCompactingFile(statsDir).exists());
+
+        // Crash after the generation was written to its file but before it was deleted.
+        Files.write(getCompactingFile(statsDir).toPath(), journal);
+        assertEquals(1000, buildJournalRecorder(statsDir).getOrLoadCompleteLocked()
+                .getTotalBytes());
+        assertFalse(getCompactingFile(statsDir).exists());
+    }
+
+    @Test
+    public void testJournal_tornRecordDropped() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+
+        // Simulate a crash in the middle of appending a record.
+        try (FileOutputStream out = new FileOutputStream(getJournalFile(statsDir), true)) {
+            out.write(new byte[] { 0x4E, 0x53, 0x4A, 0x31, 0, 0, 0 });
+        }
+        recorder = buildJournalRecorder(statsDir);
+        assertEquals(1000, recorder.getOrLoadCompleteLocked().getTotalBytes());
+
+        // Records appended after recovery are not hidden behind the torn one.
+        recordSnapshot(recorder, 1, 1000);
+        recordSnapshot(recorder, 2, 1500);
+        recorder.forcePersistLocked(TEST_START + 2 * HOUR_IN_MILLIS);
+        assertEquals(1500, buildJournalRecorder(statsDir).getOrLoadCompleteLocked()
+                .getTotalBytes());
+    }
+
+    @Test
+    public void testGetOrLoadSince_keptUntilPersist() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        final NetworkStatsCollection since = recorder.getOrLoadSinceLocked(TEST_START);
+        assertEquals(1000, since.getTotalBytes());
+
+        // The loaded history is reused, and updated with new snapshots.
+        recordSnapshot(recorder, 2, 1500);
+        assertSame(since, recorder.getOrLoadSinceLocked(TEST_START + HOUR_IN_MILLIS));
+        assertEquals(1500, since.getTotalBytes());
+
+        // Persisting drops it.
+        recorder.forcePersistLocked(TEST_START + 2 * HOUR_IN_MILLIS);
+        final NetworkStatsCollection reloaded = recorder.getOrLoadSinceLocked(TEST_START);
+        assertNotSame(since, reloaded);
+        assertEquals(1500, reloaded.getTotalBytes());
+    }
+
+    @Test
+    public void testJournal_removeUids() throws Exception {
+        final File statsDir = TestIoUtils.createTemporaryDirectory(getClass().getSimpleName());
+        final NetworkStatsRecorder recorder = buildJournalRecorder(statsDir);
+        recordSnapshot(recorder, 0, 0);
+        recordSnapshot(recorder, 1, 1000);
+        recorder.forcePersistLocked(TEST_START + HOUR_IN_MILLIS);
+        recorder.removeUidsLocked(new int[] { TEST_UID1 });
+
+        final NetworkStatsCollection collection =
+                buildJournalRecorder(statsDir).getOrLoadCompleteLocked();
+        assertEquals(1000, collection.getTotalBytes());
+        for (NetworkStatsCollection.Key key : collection.getEntries().keySet()) {
+            assertEquals(UID_REMOVED, key.uid);
+        }
+    }
+
     @Test
     public void testFileReadingMetrics_empty() {
         final NetworkStatsCollection collection = new NetworkStatsCollection(30);
@@ -146,6 +146,83 @@ public class NetworkStatsTest {
         }
     }
 
+    // Stats with enough rows for lookups to use a key index, with uids 0 until rows.
+    private static NetworkStats makeManyRowsStats(int rows, long rxBytes) {
+        final NetworkStats stats = new NetworkStats(TEST_START, rows);
+        for (int uid = 0; uid < rows; uid++) {
+            stats.insertEntry(uid % 2 == 0 ? TEST_IFACE : TEST_IFACE2, uid, SET_DEFAULT,
+                    TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, rxBytes, 1L, 0L, 0L, 0L);
+        }
+        return stats;
+    }
+
+    @Test
+    public void testFindIndex_ManyRows() {
+        final int rows = 200;
+        final NetworkStats stats = makeManyRowsStats(rows, 1024L);
+        for (int uid = 0; uid < rows; uid++) {
+            final String iface = uid % 2 == 0 ? TEST_IFACE : TEST_IFACE2;
+            assertEquals(uid, stats.findIndex(iface, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO));
+            assertEquals(-1, stats.findIndex(iface, uid, SET_FOREGROUND, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_NO));
+        }
+
+        // Rows inserted after a lookup are found, and duplicate rows resolve to the first one.
+        stats.insertEntry(TEST_IFACE, rows, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1L, 1L, 0L, 0L, 0L);
+        stats.insertEntry(TEST_IFACE, 0, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1L, 1L, 0L, 0L, 0L);
+        assertEquals(rows, stats.findIndex(TEST_IFACE, rows, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(0, stats.findIndex(TEST_IFACE, 0, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+
+        // Removing rows moves the others, which are still found.
+        stats.removeUids(new int[] { 0, 1 });
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 0, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(0, stats.findIndex(TEST_IFACE, 2, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(rows - 2, stats.findIndex(TEST_IFACE, rows, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO));
+    }
+
+    @Test
+    public void testSubtract_ManyReorderedRows() {
+        final int rows = 200;
+        final NetworkStats before = makeManyRowsStats(rows, 1000L);
+        // Same rows in reverse order, plus a new row.
+        final NetworkStats after = new NetworkStats(TEST_START, rows + 1);
+        for (int uid = rows; uid >= 0; uid--) {
+            after.insertEntry(uid % 2 == 0 ? TEST_IFACE : TEST_IFACE2, uid, SET_DEFAULT,
+                    TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 1000L + uid, 1L, 0L, 0L,
+                    0L);
+        }
+
+        final NetworkStats result = after.subtract(before);
+        assertEquals(rows + 1, result.size());
+        assertValues(result, 0, TEST_IFACE, rows, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_NO, 1000L + rows, 1L, 0L, 0L, 0L);
+        for (int i = 1; i <= rows; i++) {
+            final int uid = rows - i;
+            assertValues(result, i, uid % 2 == 0 ? TEST_IFACE : TEST_IFACE2, uid, SET_DEFAULT,
+                    TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, uid, 0L, 0L, 0L, 0L);
+        }
+    }
+
+    @Test
+    public void testCombineValues_ManyRows() {
+        final int rows = 200;
+        final NetworkStats stats = makeManyRowsStats(rows, 1L);
+        stats.combineAllValues(makeManyRowsStats(rows, 2L));
+        assertEquals(rows, stats.size());
+        for (int uid = 0; uid < rows; uid++) {
+            assertValues(stats, uid, uid % 2 == 0 ? TEST_IFACE : TEST_IFACE2, uid, SET_DEFAULT,
+                    TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 3L, 2L, 0L, 0L, 0L);
+        }
+    }
+
     @Test
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
@@ -62,8 +62,10 @@ import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 
@@ -147,7 +149,7 @@ public final class BpfNetMapsTest {
     @Mock Context mContext;
     private final IBpfMap<S32, U32> mConfigurationMap = new TestBpfMap<>(S32.class, U32.class);
     private final IBpfMap<S32, UidOwnerValue> mUidOwnerMap =
-            new TestBpfMap<>(S32.class, UidOwnerValue.class);
+            spy(new TestBpfMap<>(S32.class, UidOwnerValue.class));
     private final IBpfMap<S32, U8> mUidPermissionMap = new TestBpfMap<>(S32.class, U8.class);
     private final IBpfMap<CookieTagMapKey, CookieTagMapValue> mCookieTagMap =
             spy(new TestBpfMap<>(CookieTagMapKey.class, CookieTagMapValue.class));
@@ -843,6 +845,29 @@ public final class BpfNetMapsTest {
         checkUidOwnerValue(uid1, NULL_IIF, match1 | DOZABLE_MATCH);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testReplaceUidChainWritesOnlyChangedUids() throws Exception {
+        final int uid0 = TEST_UIDS[0];
+        final int uid1 = TEST_UIDS[1];
+        final int uid2 = 10004;
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid0, uid1});
+        mBpfNetMaps.setUidRule(FIREWALL_CHAIN_POWERSAVE, uid1, FIREWALL_RULE_ALLOW);
+        clearInvocations(mUidOwnerMap);
+
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid1, uid2});
+
+        // The map is not read again, and uid1 which stays in the chain is not written.
+        verify(mUidOwnerMap, never()).forEach(any());
+        verify(mUidOwnerMap, never()).getValue(any());
+        verify(mUidOwnerMap).deleteBatch(List.of(new S32(uid0)));
+        verify(mUidOwnerMap).updateBatch(List.of(new S32(uid2)),
+                List.of(new UidOwnerValue(NO_IIF, DOZABLE_MATCH)));
+        checkUidOwnerValue(uid0, NO_IIF, 0);
+        checkUidOwnerValue(uid1, NO_IIF, DOZABLE_MATCH | POWERSAVE_MATCH);
+        checkUidOwnerValue(uid2, NO_IIF, DOZABLE_MATCH);
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testReplaceUidChainInvalidChain() {
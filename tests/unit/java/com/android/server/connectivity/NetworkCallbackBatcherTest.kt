@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.ConnectivityManager.CALLBACK_AVAILABLE
+import android.net.ConnectivityManager.CALLBACK_BATCH
+import android.net.ConnectivityManager.CALLBACK_BATCH_MESSAGES_KEY
+import android.net.ConnectivityManager.CALLBACK_CAP_CHANGED
+import android.net.ConnectivityManager.CALLBACK_IP_CHANGED
+import android.net.ConnectivityManager.CALLBACK_LOST
+import android.net.ConnectivityManager.CALLBACK_UNAVAIL
+import android.os.Build
+import android.os.Bundle
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Message
+import android.os.Messenger
+import android.os.TransactionTooLargeException
+import androidx.test.filters.SmallTest
+import com.android.server.connectivity.NetworkCallbackBatcher.MAX_BATCH_BYTES
+import com.android.server.connectivity.NetworkCallbackBatcher.MAX_BATCH_SIZE
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.waitForIdle
+import org.junit.After
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNull
+
+private const val TIMEOUT_MS = 1000L
+private const val TEST_UID = 10001
+private const val OTHER_UID = 10002
+private const val NET_ID = 100
+private const val OTHER_NET_ID = 101
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkCallbackBatcherTest {
+    private val csThread = HandlerThread(NetworkCallbackBatcherTest::class.simpleName).apply {
+        start()
+    }
+    private val appThread = HandlerThread("${NetworkCallbackBatcherTest::class.simpleName}App")
+            .apply { start() }
+    private val csHandler = Handler(csThread.looper)
+    private val batcher = NetworkCallbackBatcher(csHandler)
+
+    // Each element is one message received by the app, i.e. one binder transaction.
+    private class RecordingHandler(thread: HandlerThread) : Handler(thread.looper) {
+        val received = ArrayList<List<Message>>()
+        override fun handleMessage(msg: Message) {
+            if (msg.what == CALLBACK_BATCH) {
+                received.add(msg.data.getParcelableArrayList(CALLBACK_BATCH_MESSAGES_KEY)!!)
+            } else {
+                received.add(listOf(Message.obtain(msg)))
+            }
+        }
+    }
+
+    private val app = RecordingHandler(appThread)
+    private val otherApp = RecordingHandler(appThread)
+
+    @After
+    fun tearDown() {
+        csThread.quitSafely()
+        appThread.quitSafely()
+        csThread.join()
+        appThread.join()
+    }
+
+    private fun callback(what: Int, arg1: Int = 0) = Message.obtain().also {
+        it.what = what
+        it.arg1 = arg1
+    }
+
+    private fun runOnCsThread(r: () -> Unit) {
+        csHandler.post(r)
+        csHandler.waitForIdle(TIMEOUT_MS)
+        appThread.waitForIdle(TIMEOUT_MS)
+    }
+
+    private fun RecordingHandler.receivedCallbacks() =
+            received.map { batch -> batch.map { it.what to it.arg1 } }
+
+    @Test
+    fun testBatchedPerMessenger() {
+        runOnCsThread {
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+            batcher.enqueue(Messenger(otherApp), OTHER_UID, 2, NET_ID, callback(CALLBACK_LOST))
+            batcher.enqueue(Messenger(app), TEST_UID, 3, NET_ID, callback(CALLBACK_AVAILABLE))
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_LOST))
+        }
+        assertEquals(listOf(listOf(CALLBACK_AVAILABLE to 0, CALLBACK_AVAILABLE to 0,
+                CALLBACK_LOST to 0)), app.receivedCallbacks())
+        assertEquals(listOf(listOf(CALLBACK_LOST to 0)), otherApp.receivedCallbacks())
+        assertEquals(2, batcher.transactionCount)
+        assertEquals(3, batcher.getCountersForUid(TEST_UID).mSent)
+        assertEquals(1, batcher.getCountersForUid(OTHER_UID).mSent)
+
+        // Callbacks queued in a later handler turn are sent separately.
+        runOnCsThread {
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+        }
+        assertEquals(2, app.received.size)
+        assertEquals(3, batcher.transactionCount)
+    }
+
+    @Test
+    fun testCoalesceSupersededChanges() {
+        runOnCsThread {
+            val messenger = Messenger(app)
+            batcher.enqueue(messenger, TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+            batcher.enqueue(messenger, TEST_UID, 1, NET_ID, callback(CALLBACK_CAP_CHANGED, 1))
+            // Supersedes the previous capabilities change.
+            batcher.enqueue(messenger, TEST_UID, 1, NET_ID, callback(CALLBACK_CAP_CHANGED, 2))
+            // Callbacks for other requests or networks do not prevent coalescing, as the app
+            // only observes the callbacks of each request in order.
+            batcher.enqueue(messenger, TEST_UID, 2, NET_ID, callback(CALLBACK_CAP_CHANGED, 3))
+            batcher.enqueue(messenger, TEST_UID, 1, OTHER_NET_ID,
+                    callback(CALLBACK_CAP_CHANGED, 4))
+            batcher.enqueue(messenger, TEST_UID, 2, NET_ID, callback(CALLBACK_CAP_CHANGED, 5))
+            batcher.enqueue(messenger, TEST_UID, 1, OTHER_NET_ID,
+                    callback(CALLBACK_IP_CHANGED, 6))
+            // Not superseding : the previous callback for this request is of another type.
+            batcher.enqueue(messenger, TEST_UID, 1, OTHER_NET_ID,
+                    callback(CALLBACK_CAP_CHANGED, 7))
+            batcher.enqueue(messenger, TEST_UID, 1, OTHER_NET_ID,
+                    callback(CALLBACK_IP_CHANGED, 8))
+            batcher.enqueue(messenger, TEST_UID, 1, OTHER_NET_ID,
+                    callback(CALLBACK_IP_CHANGED, 9))
+        }
+        assertEquals(listOf(listOf(
+                CALLBACK_AVAILABLE to 0,
+                CALLBACK_CAP_CHANGED to 2,
+                CALLBACK_CAP_CHANGED to 5,
+                CALLBACK_CAP_CHANGED to 4,
+                CALLBACK_IP_CHANGED to 6,
+                CALLBACK_CAP_CHANGED to 7,
+                CALLBACK_IP_CHANGED to 9)), app.receivedCallbacks())
+        assertEquals(7, batcher.getCountersForUid(TEST_UID).mSent)
+        assertEquals(3, batcher.getCountersForUid(TEST_UID).mCoalesced)
+    }
+
+    @Test
+    fun testMaxBatchSize() {
+        runOnCsThread {
+            for (i in 0 until MAX_BATCH_SIZE + 1) {
+                batcher.enqueue(Messenger(app), TEST_UID, i, NET_ID, callback(CALLBACK_LOST, i))
+            }
+        }
+        val received = app.receivedCallbacks()
+        assertEquals(2, received.size)
+        assertEquals(MAX_BATCH_SIZE, received[0].size)
+        assertEquals(listOf(CALLBACK_LOST to MAX_BATCH_SIZE), received[1])
+        assertEquals((0..MAX_BATCH_SIZE).map { CALLBACK_LOST to it }, received.flatten())
+    }
+
+    @Test
+    fun testMaxBatchBytes() {
+        runOnCsThread {
+            for (i in 0 until 8) {
+                val msg = callback(CALLBACK_IP_CHANGED, i)
+                msg.data = Bundle().apply { putByteArray("data", ByteArray(MAX_BATCH_BYTES / 4)) }
+                batcher.enqueue(Messenger(app), TEST_UID, i, NET_ID, msg)
+            }
+            // Larger than a whole batch, sent on its own.
+            val msg = callback(CALLBACK_IP_CHANGED, 8)
+            msg.data = Bundle().apply { putByteArray("data", ByteArray(MAX_BATCH_BYTES)) }
+            batcher.enqueue(Messenger(app), TEST_UID, 8, NET_ID, msg)
+        }
+        val received = app.receivedCallbacks()
+        // Each callback takes a bit more than a quarter of the maximum batch size.
+        assertEquals(listOf(3, 3, 2, 1), received.map { it.size })
+        assertEquals((0..8).map { CALLBACK_IP_CHANGED to it }, received.flatten())
+        assertEquals(9, batcher.getCountersForUid(TEST_UID).mSent)
+    }
+
+    @Test
+    fun testTooLargeBatchSentOneByOne() {
+        val batcher = object : NetworkCallbackBatcher(csHandler) {
+            override fun sendMessage(messenger: Messenger, msg: Message) {
+                if (msg.what == CALLBACK_BATCH) throw TransactionTooLargeException()
+                super.sendMessage(messenger, msg)
+            }
+        }
+        runOnCsThread {
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_LOST))
+        }
+        assertEquals(listOf(listOf(CALLBACK_AVAILABLE to 0), listOf(CALLBACK_LOST to 0)),
+                app.receivedCallbacks())
+        assertEquals(2, batcher.getCountersForUid(TEST_UID).mSent)
+        assertEquals(3, batcher.transactionCount)
+    }
+
+    @Test
+    fun testCountersDroppedWithLastCallback() {
+        runOnCsThread {
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+            batcher.enqueue(Messenger(otherApp), OTHER_UID, 2, NET_ID, callback(CALLBACK_LOST))
+        }
+        runOnCsThread {
+            // Callbacks queued in the same turn are still sent.
+            batcher.onUidCallbacksRemoved(TEST_UID)
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_UNAVAIL))
+        }
+        assertEquals(listOf(listOf(CALLBACK_AVAILABLE to 0), listOf(CALLBACK_UNAVAIL to 0)),
+                app.receivedCallbacks())
+        assertNull(batcher.getCountersForUid(TEST_UID))
+        assertEquals(1, batcher.getCountersForUid(OTHER_UID).mSent)
+    }
+
+    @Test
+    fun testMustRunOnHandlerThread() {
+        assertFailsWith<IllegalStateException> {
+            batcher.enqueue(Messenger(app), TEST_UID, 1, NET_ID, callback(CALLBACK_AVAILABLE))
+        }
+    }
+}
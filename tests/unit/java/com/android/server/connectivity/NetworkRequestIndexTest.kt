@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_IMS
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkRequestIndexTest {
+    private fun request(transports: IntArray = intArrayOf(), vararg caps: Int) =
+            NetworkRequest.Builder().clearCapabilities().apply {
+                transports.forEach { addTransportType(it) }
+                caps.forEach { addCapability(it) }
+            }.build()
+
+    private fun network(transport: Int, vararg caps: Int) =
+            NetworkCapabilities.Builder().addTransportType(transport).apply {
+                caps.forEach { addCapability(it) }
+            }.build()
+
+    private fun NetworkRequestIndex<String>.candidates(nc: NetworkCapabilities) =
+            HashSet<String>().also { collectCandidates(nc, it) }
+
+    @Test
+    fun testCollectCandidates() {
+        val index = NetworkRequestIndex<String>()
+        index.add(request(intArrayOf(), NET_CAPABILITY_INTERNET), "anyInternet")
+        index.add(request(intArrayOf(TRANSPORT_WIFI)), "wifi")
+        index.add(request(intArrayOf(TRANSPORT_WIFI, TRANSPORT_ETHERNET),
+                NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_RESTRICTED), "wifiOrEth")
+        index.add(request(intArrayOf(TRANSPORT_CELLULAR), NET_CAPABILITY_IMS), "ims")
+        assertEquals(4, index.size())
+        assertEquals(4, index.signatureCount)
+
+        assertEquals(setOf("anyInternet", "wifi", "wifiOrEth"), index.candidates(
+                network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_RESTRICTED)))
+        assertEquals(setOf("wifi"), index.candidates(network(TRANSPORT_WIFI)))
+        assertEquals(setOf("anyInternet"), index.candidates(
+                network(TRANSPORT_ETHERNET, NET_CAPABILITY_INTERNET)))
+        assertEquals(setOf("anyInternet", "ims"), index.candidates(
+                network(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET, NET_CAPABILITY_IMS)))
+        assertEquals(setOf(), index.candidates(network(TRANSPORT_CELLULAR)))
+    }
+
+    @Test
+    fun testSharedSignatures() {
+        val index = NetworkRequestIndex<String>()
+        val req = request(intArrayOf(TRANSPORT_WIFI), NET_CAPABILITY_INTERNET)
+        index.add(req, "app1")
+        index.add(req, "app2")
+        // Multi-layer owners can have several requests with the same signature.
+        index.add(req, "app2")
+        assertEquals(3, index.size())
+        assertEquals(1, index.signatureCount)
+
+        val wifi = network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET)
+        assertEquals(setOf("app1", "app2"), index.candidates(wifi))
+
+        index.remove(req, "app2")
+        assertEquals(setOf("app1", "app2"), index.candidates(wifi))
+        index.remove(req, "app2")
+        assertEquals(setOf("app1"), index.candidates(wifi))
+        // Removing an absent request does nothing.
+        index.remove(req, "app2")
+        index.remove(request(intArrayOf(TRANSPORT_CELLULAR)), "app1")
+        assertEquals(1, index.size())
+
+        index.remove(req, "app1")
+        assertEquals(0, index.size())
+        assertEquals(0, index.signatureCount)
+        assertEquals(setOf(), index.candidates(wifi))
+    }
+}
@@ -56,6 +56,7 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.intThat;
 import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.doReturn;
@@ -1255,6 +1256,106 @@ public class PermissionMonitorTest {
         mBpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID2);
     }
 
+    @Test
+    public void testOnUserAddedOnlyWritesChangedTrafficPermissions() throws Exception {
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID11, INTERNET),
+                buildPackageInfo(MOCK_PACKAGE2, MOCK_UID12)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS),
+                        eq(MOCK_USER_ID1));
+        startMonitoring();
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_INTERNET, MOCK_APPID1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_NONE, MOCK_APPID2);
+
+        // The second user only changes the permission of MOCK_APPID2.
+        doReturn(List.of(
+                buildPackageInfo(MOCK_PACKAGE1, MOCK_UID21, INTERNET),
+                buildPackageInfo(MOCK_PACKAGE2, MOCK_UID22, UPDATE_DEVICE_STATS)))
+                .when(mPackageManager).getInstalledPackagesAsUser(eq(GET_PERMISSIONS),
+                        eq(MOCK_USER_ID2));
+        clearInvocations(mBpfNetMaps);
+        onUserAdded(MOCK_USER2);
+        verify(mBpfNetMaps).setNetPermForUids(anyInt(), any());
+        verify(mBpfNetMaps, never()).setNetPermForUids(eq(PERMISSION_INTERNET), any());
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_INTERNET, MOCK_APPID1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_UPDATE_DEVICE_STATS, MOCK_APPID2);
+
+        // Removing the user restores the previous permission of MOCK_APPID2 only.
+        clearInvocations(mBpfNetMaps);
+        onUserRemoved(MOCK_USER2);
+        verify(mBpfNetMaps).setNetPermForUids(anyInt(), any());
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_INTERNET, MOCK_APPID1);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_NONE, MOCK_APPID2);
+    }
+
+    @Test
+    public void testNetworkPermissionLookups() throws Exception {
+        startMonitoring();
+        assertFalse(mPermissionMonitor.hasUseBackgroundNetworksPermission(MOCK_UID11));
+        assertFalse(mPermissionMonitor.hasRestrictedNetworksPermission(MOCK_UID11));
+
+        // Lookups are called from binder threads, and see the result of completed updates.
+        addPackage(MOCK_PACKAGE1, MOCK_UID11, CONNECTIVITY_USE_RESTRICTED_NETWORKS);
+        assertTrue(mPermissionMonitor.hasUseBackgroundNetworksPermission(MOCK_UID11));
+        assertTrue(mPermissionMonitor.hasRestrictedNetworksPermission(MOCK_UID11));
+        assertFalse(mPermissionMonitor.hasRestrictedNetworksPermission(MOCK_UID21));
+
+        removePackage(MOCK_PACKAGE1, MOCK_UID11);
+        assertFalse(mPermissionMonitor.hasUseBackgroundNetworksPermission(MOCK_UID11));
+        assertFalse(mPermissionMonitor.hasRestrictedNetworksPermission(MOCK_UID11));
+
+        mPermissionMonitor.updateUidsAllowedOnRestrictedNetworks(Set.of(MOCK_UID12));
+        assertTrue(mPermissionMonitor.isUidAllowedOnRestrictedNetworks(MOCK_UID12));
+        assertFalse(mPermissionMonitor.isUidAllowedOnRestrictedNetworks(MOCK_UID11));
+    }
+
+    @Test
+    public void testNetworkPermissionLookupsAcrossManyPackageEvents() throws Exception {
+        startMonitoring();
+        // Package events only publish the changed uids, until there are enough changes to publish
+        // a full copy again. Lookups must see all of them on both sides of that limit.
+        final int count = 3 * PermissionMonitor.MAX_UID_NETWORK_PERM_CHANGES;
+        for (int i = 0; i < count; i++) {
+            addPackage("com.test.pkg" + i, MOCK_USER1.getUid(MOCK_APPID1 + i),
+                    CONNECTIVITY_USE_RESTRICTED_NETWORKS);
+        }
+        for (int i = 0; i < count; i += 2) {
+            removePackage("com.test.pkg" + i, MOCK_USER1.getUid(MOCK_APPID1 + i));
+        }
+        for (int i = 0; i < count; i++) {
+            final int uid = MOCK_USER1.getUid(MOCK_APPID1 + i);
+            final boolean installed = (i % 2) == 1;
+            assertEquals(installed, mPermissionMonitor.hasRestrictedNetworksPermission(uid));
+            assertEquals(installed, mPermissionMonitor.hasUseBackgroundNetworksPermission(uid));
+        }
+        assertFalse(mPermissionMonitor.hasRestrictedNetworksPermission(
+                MOCK_USER1.getUid(MOCK_APPID1 + count)));
+    }
+
+    @Test
+    public void testPackageEventsOnlyFetchChangedPackage() throws Exception {
+        addPackage(MOCK_PACKAGE1, MOCK_UID11, INTERNET);
+        addPackage(MOCK_PACKAGE2, MOCK_UID11, CHANGE_NETWORK_STATE, UPDATE_DEVICE_STATS);
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID1);
+        mNetdMonitor.expectNetworkPerm(PERMISSION_NETWORK, new UserHandle[]{MOCK_USER1},
+                MOCK_APPID1);
+
+        // The permissions of the other packages of the uid come from the index.
+        clearInvocations(mPackageManager);
+        addPackage(MOCK_PACKAGE3, MOCK_UID11);
+        verify(mPackageManager).getPackageInfo(eq(MOCK_PACKAGE3), anyInt());
+        verify(mPackageManager, never()).getPackageInfo(eq(MOCK_PACKAGE1), anyInt());
+        verify(mPackageManager, never()).getPackageInfo(eq(MOCK_PACKAGE2), anyInt());
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_TRAFFIC_ALL, MOCK_APPID1);
+
+        // Removing a package doesn't fetch any package.
+        clearInvocations(mPackageManager);
+        removePackage(MOCK_PACKAGE2, MOCK_UID11);
+        verify(mPackageManager, never()).getPackageInfo(anyString(), anyInt());
+        mBpfMapMonitor.expectTrafficPerm(PERMISSION_INTERNET, MOCK_APPID1);
+        mNetdMonitor.expectNoNetworkPerm(new UserHandle[]{MOCK_USER1}, MOCK_APPID1);
+    }
+
     private BroadcastReceiver expectBroadcastReceiver(String... actions) {
         final ArgumentCaptor<BroadcastReceiver> receiverCaptor =
                 ArgumentCaptor.forClass(BroadcastReceiver.class);
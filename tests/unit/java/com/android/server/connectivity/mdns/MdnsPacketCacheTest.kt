@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertNotSame
+import kotlin.test.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TTL_MS = 120_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsPacketCacheTest {
+    private val serviceType = arrayOf("_testservice", "_tcp", "local")
+    private val cache = MdnsPacketCache()
+
+    private fun ptrRecord(instanceName: String) = MdnsPointerRecord(serviceType,
+            0L /* receiptTimeMillis */, false /* cacheFlush */, TTL_MS,
+            arrayOf(instanceName) + serviceType)
+
+    private fun packet(answers: List<MdnsRecord>) = MdnsPacket(0x8400,
+            emptyList() /* questions */,
+            answers,
+            emptyList() /* authorityRecords */,
+            emptyList() /* additionalRecords */)
+
+    private fun getOrCreate(packet: MdnsPacket) =
+            cache.getOrCreateRawPacket(ByteArray(1500), packet)
+
+    @Test
+    fun testGetOrCreateRawPacket_SameRecords() {
+        val answers = listOf(ptrRecord("Instance1"), ptrRecord("Instance2"))
+        val rawPacket = getOrCreate(packet(answers))
+        assertContentEquals(MdnsUtils.createRawDnsPacket(ByteArray(1500), packet(answers)),
+                rawPacket)
+
+        // Another packet with the same record instances hits the cache
+        assertSame(rawPacket, getOrCreate(packet(ArrayList(answers))))
+        assertEquals(1, cache.hitCount)
+        assertEquals(1, cache.missCount)
+    }
+
+    @Test
+    fun testGetOrCreateRawPacket_DifferentRecords() {
+        val record = ptrRecord("Instance1")
+        val rawPacket = getOrCreate(packet(listOf(record)))
+
+        // Records are compared by identity, as replaced records may be equal but have other data.
+        assertNotSame(rawPacket, getOrCreate(packet(listOf(ptrRecord("Instance1")))))
+        // Same records in other sections
+        assertNotSame(rawPacket, getOrCreate(MdnsPacket(0x8400, emptyList(), emptyList(),
+                emptyList(), listOf(record))))
+        // Different flags
+        assertNotSame(rawPacket, getOrCreate(MdnsPacket(0x8000, emptyList(), listOf(record),
+                emptyList(), emptyList())))
+        assertEquals(0, cache.hitCount)
+        assertEquals(4, cache.missCount)
+    }
+
+    private fun nsecRecord(ttlMs: Long) = MdnsNsecRecord(serviceType,
+            0L /* receiptTimeMillis */, true /* cacheFlush */, ttlMs, serviceType,
+            intArrayOf(MdnsRecord.TYPE_PTR))
+
+    @Test
+    fun testGetOrCreateRawPacket_NsecRecordsComparedByContent() {
+        val ptr = ptrRecord("Instance1")
+        val rawPacket = getOrCreate(packet(listOf(ptr, nsecRecord(TTL_MS))))
+
+        // NSEC records are created for every packet, so new instances with the same content hit
+        assertSame(rawPacket, getOrCreate(packet(listOf(ptr, nsecRecord(TTL_MS)))))
+        // Other content serializes differently
+        assertNotSame(rawPacket, getOrCreate(packet(listOf(ptr, nsecRecord(TTL_MS / 2)))))
+        assertEquals(1, cache.hitCount)
+        assertEquals(2, cache.missCount)
+    }
+
+    @Test
+    fun testGetOrCreateRawPacket_Eviction() {
+        val firstPacket = packet(listOf(ptrRecord("Instance0")))
+        val rawPacket = getOrCreate(firstPacket)
+        for (i in 1 until MdnsPacketCache.MAX_ENTRIES) {
+            getOrCreate(packet(listOf(ptrRecord("Instance$i"))))
+        }
+        // Accessing the first packet makes it the most recently used
+        assertSame(rawPacket, getOrCreate(firstPacket))
+        val secondPacket = packet(listOf(ptrRecord("Other")))
+        getOrCreate(secondPacket)
+        assertSame(rawPacket, getOrCreate(firstPacket))
+
+        cache.clear()
+        assertNotSame(rawPacket, getOrCreate(firstPacket))
+    }
+}
@@ -18,8 +18,13 @@ package com.android.server.connectivity.mdns;
 
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.android.net.module.util.HexDump;
@@ -98,4 +103,43 @@ public class MdnsPacketReaderTests {
                 MdnsFeatureFlags.newBuilder().setIsLabelCountLimitEnabled(true).build());
         assertThrows(IOException.class, packetReader::readLabels);
     }
+
+    @Test
+    public void testForwardPtr() {
+        final byte[] forwardPtrData = HexDump.hexStringToByteArray(
+                "054C4142454C" // label "LABEL"
+                        + "C008" // PTR to the next label.
+                        + "0454455354" // label "TEST"
+                        + "00");
+        MdnsPacketReader packetReader = new MdnsPacketReader(
+                forwardPtrData, forwardPtrData.length, MdnsFeatureFlags.newBuilder().build());
+        assertThrows(IOException.class, packetReader::readLabels);
+    }
+
+    @Test
+    public void testReadLabels_compressedNames() throws IOException {
+        final byte[] data = HexDump.hexStringToByteArray(
+                "055F48545450" // label "_HTTP"
+                        + "045F746370" // label "_tcp"
+                        + "056C6F63616C00" // label "local", end of name
+                        + "04496E7374C000" // label "Inst", PTR to "_HTTP._tcp.local"
+                        + "C012" // PTR to "Inst._HTTP._tcp.local"
+                        + "FF"); // Trailing data, after the pointer
+        MdnsPacketReader packetReader = new MdnsPacketReader(
+                data, data.length, MdnsFeatureFlags.newBuilder().build());
+        assertArrayEquals(new String[] {"_HTTP", "_tcp", "local"}, packetReader.readLabels());
+        assertArrayEquals(new String[] {"Inst", "_HTTP", "_tcp", "local"},
+                packetReader.readLabels());
+
+        assertEquals(4, packetReader.readLabelOffsets());
+        assertEquals(1, packetReader.getRemaining());
+        final byte[][] httpType = new byte[][] {
+                "_http".getBytes(UTF_8), "_tcp".getBytes(UTF_8), "local".getBytes(UTF_8)};
+        assertTrue(packetReader.labelsEqualIgnoreDnsCase(1, httpType));
+        assertFalse(packetReader.labelsEqualIgnoreDnsCase(0, httpType));
+        assertTrue(packetReader.labelEqualsIgnoreDnsCase(0, "inst".getBytes(UTF_8)));
+        assertFalse(packetReader.labelEqualsIgnoreDnsCase(0, "ins".getBytes(UTF_8)));
+        assertArrayEquals(new String[] {"Inst", "_HTTP", "_tcp", "local"},
+                packetReader.decodeLabels());
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import com.android.net.module.util.SharedLog
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.waitForIdle
+import java.net.DatagramPacket
+import java.net.Inet4Address
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentCaptor
+import org.mockito.Mockito.after
+import org.mockito.Mockito.any
+import org.mockito.Mockito.anyBoolean
+import org.mockito.Mockito.atLeastOnce
+import org.mockito.Mockito.eq
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.timeout
+import org.mockito.Mockito.verify
+
+private const val SERVICE_TYPE_1 = "_test1._tcp.local"
+private const val SERVICE_TYPE_2 = "_test2._tcp.local"
+private const val INTERFACE_INDEX = 999
+private const val TIMEOUT_MS = 2000L
+private const val NO_PACKET_TIMEOUT_MS = 200L
+private const val TTL_MS = 120_000L
+
+@DevSdkIgnoreRunner.MonitorThreadLeak
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MdnsQueryAggregatorTest {
+    private val socketKey = SocketKey(null /* network */, INTERFACE_INDEX)
+    private val thread = HandlerThread(MdnsQueryAggregatorTest::class.simpleName)
+    private val socketClient = mock(MdnsMultinetworkSocketClient::class.java)
+    private val clock = mock(MdnsUtils.Clock::class.java)
+    private val flags = MdnsFeatureFlags.newBuilder().build()
+    private val handler by lazy {
+        Handler(thread.looper)
+    }
+    private val aggregator by lazy {
+        MdnsQueryAggregator(thread.looper, socketClient, socketKey, mock(SharedLog::class.java),
+                clock)
+    }
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun <T> runningOnHandlerAndReturn(functor: (() -> T)): T {
+        val future = CompletableFuture<T>()
+        handler.post {
+            future.complete(functor())
+        }
+        return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    }
+
+    private fun labels(name: String) = name.split(".").toTypedArray()
+
+    private fun question(serviceType: String, isUnicast: Boolean = false) =
+            MdnsPointerRecord(labels(serviceType), isUnicast)
+
+    private fun knownAnswer(serviceType: String, instanceName: String) =
+            MdnsPointerRecord(labels(serviceType), 0L /* receiptTimeMillis */,
+                    false /* cacheFlush */, TTL_MS, arrayOf(instanceName) + labels(serviceType))
+
+    // Returns the packets sent to the IPv4 multicast address, once the aggregator is idle.
+    private fun getSentPackets(expectUnicastResponse: Boolean = false): List<DatagramPacket> {
+        val captor = ArgumentCaptor.forClass(DatagramPacket::class.java)
+        val verifier = { mode: org.mockito.verification.VerificationMode ->
+            if (expectUnicastResponse) {
+                verify(socketClient, mode).sendPacketRequestingUnicastResponse(
+                        captor.capture(), eq(socketKey), eq(false))
+            } else {
+                verify(socketClient, mode).sendPacketRequestingMulticastResponse(
+                        captor.capture(), eq(socketKey), eq(false))
+            }
+        }
+        verifier(timeout(TIMEOUT_MS).atLeastOnce())
+        // Packets are all sent in the same handler message.
+        handler.waitForIdle(TIMEOUT_MS)
+        verifier(atLeastOnce())
+        return captor.allValues.distinct().filter { it.address is Inet4Address }
+    }
+
+    private fun parse(packet: DatagramPacket) =
+            MdnsPacket.parse(MdnsPacketReader(packet.data, packet.length, flags))
+
+    @Test
+    fun testEnqueueQueries_MergedInOnePacket() {
+        aggregator.enqueueQuery(1 /* transactionId */, listOf(question(SERVICE_TYPE_1)),
+                listOf(knownAnswer(SERVICE_TYPE_1, "Instance1")),
+                false /* expectUnicastResponse */, false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.enqueueQuery(2 /* transactionId */,
+                listOf(question(SERVICE_TYPE_2), question(SERVICE_TYPE_1)),
+                listOf(knownAnswer(SERVICE_TYPE_1, "Instance1"),
+                        knownAnswer(SERVICE_TYPE_2, "Instance2")),
+                false /* expectUnicastResponse */, false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+
+        val packets = getSentPackets()
+        assertEquals(1, packets.size)
+        val packet = parse(packets[0])
+        assertEquals(1, packet.transactionId)
+        assertEquals(0, packet.flags and MdnsConstants.FLAG_TRUNCATED)
+        assertEquals(listOf(SERVICE_TYPE_1, SERVICE_TYPE_2),
+                packet.questions.map { MdnsRecord.labelsToString(it.name) })
+        assertEquals(listOf(knownAnswer(SERVICE_TYPE_1, "Instance1"),
+                knownAnswer(SERVICE_TYPE_2, "Instance2")), packet.answers)
+
+        assertEquals(2, runningOnHandlerAndReturn { aggregator.queryCount })
+        assertEquals(1, runningOnHandlerAndReturn { aggregator.packetCount })
+    }
+
+    @Test
+    fun testEnqueueQueries_KnownAnswersInContinuationPackets() {
+        val knownAnswers = (0 until 100).map {
+            knownAnswer(SERVICE_TYPE_1, "Instance with a rather long name $it")
+        }
+        aggregator.enqueueQuery(1 /* transactionId */, listOf(question(SERVICE_TYPE_1)),
+                knownAnswers, false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+
+        val sentPackets = getSentPackets()
+        assertTrue(sentPackets.size > 1)
+        sentPackets.forEach { assertTrue(it.length <= MdnsQueryAggregator.MAX_PACKET_SIZE) }
+        val packets = sentPackets.map { parse(it) }
+        // Only the last packet does not have the TC bit set
+        packets.forEachIndexed { i, packet ->
+            assertEquals(i < packets.size - 1, (packet.flags and MdnsConstants.FLAG_TRUNCATED) != 0)
+        }
+        assertEquals(1, packets[0].questions.size)
+        packets.drop(1).forEach { assertEquals(0, it.questions.size) }
+        assertEquals(knownAnswers, packets.flatMap { it.answers })
+
+        assertEquals(packets.size, runningOnHandlerAndReturn { aggregator.packetCount })
+        assertEquals(packets.size - 1,
+                runningOnHandlerAndReturn { aggregator.truncatedPacketCount })
+    }
+
+    @Test
+    fun testEnqueueQueries_QuestionsOfAQueryKeptWithKnownAnswers() {
+        // Each question takes 22 bytes: 64 of them leave room for only one more in the packet.
+        val firstQuestions = (0 until 64).map { question("_s%03d._tcp.local".format(it)) }
+        val secondQuestions = (0 until 2).map { question("_q%03d._tcp.local".format(it)) }
+        val secondKnownAnswer = knownAnswer("_q000._tcp.local", "Instance")
+        aggregator.enqueueQuery(1 /* transactionId */, firstQuestions, emptyList(),
+                false /* expectUnicastResponse */, false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.enqueueQuery(2 /* transactionId */, secondQuestions,
+                listOf(secondKnownAnswer), false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+
+        val packets = getSentPackets().map { parse(it) }
+        assertEquals(2, packets.size)
+        packets.forEach { assertEquals(0, it.flags and MdnsConstants.FLAG_TRUNCATED) }
+        assertEquals(firstQuestions.size, packets[0].questions.size)
+        assertEquals(0, packets[0].answers.size)
+        assertEquals(listOf("_q000._tcp.local", "_q001._tcp.local"),
+                packets[1].questions.map { MdnsRecord.labelsToString(it.name) })
+        assertEquals(listOf(secondKnownAnswer), packets[1].answers)
+    }
+
+    @Test
+    fun testEnqueueQueries_DifferentSendOptionsNotMerged() {
+        aggregator.enqueueQuery(1 /* transactionId */, listOf(question(SERVICE_TYPE_1)),
+                emptyList(), false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        aggregator.enqueueQuery(2 /* transactionId */,
+                listOf(question(SERVICE_TYPE_2, isUnicast = true)), emptyList(),
+                true /* expectUnicastResponse */, false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+
+        val multicastPackets = getSentPackets(expectUnicastResponse = false)
+        assertEquals(1, multicastPackets.size)
+        assertEquals(1, parse(multicastPackets[0]).transactionId)
+        val unicastPackets = getSentPackets(expectUnicastResponse = true)
+        assertEquals(1, unicastPackets.size)
+        assertEquals(2, parse(unicastPackets[0]).transactionId)
+        assertEquals(2, runningOnHandlerAndReturn { aggregator.packetCount })
+    }
+
+    @Test
+    fun testShutDown_DropsPendingQueries() {
+        aggregator.enqueueQuery(1 /* transactionId */, listOf(question(SERVICE_TYPE_1)),
+                emptyList(), false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+        runningOnHandlerAndReturn { aggregator.shutDown() }
+        aggregator.enqueueQuery(2 /* transactionId */, listOf(question(SERVICE_TYPE_2)),
+                emptyList(), false /* expectUnicastResponse */,
+                false /* onlyUseIpv6OnIpv6OnlyNetworks */)
+
+        verify(socketClient, after(NO_PACKET_TIMEOUT_MS).never())
+                .sendPacketRequestingMulticastResponse(any(), any(), anyBoolean())
+    }
+}
@@ -1675,6 +1675,57 @@ class MdnsRecordRepositoryTest {
         assertEquals(0, reply.additionalAnswers.size)
         assertEquals(knownAnswers, reply.knownAnswers)
     }
+
+    @Test
+    fun testGetReply_HasAnswers_DuplicateKnownAnswers() {
+        val queriedName = arrayOf("_testservice", "_tcp", "local")
+        val serviceName = arrayOf("MyTestService", "_testservice", "_tcp", "local")
+        val questions = listOf(MdnsPointerRecord(queriedName, false /* isUnicast */))
+        // The answer is known if any copy of it has at least half of the TTL.
+        val knownAnswers = listOf(
+                MdnsPointerRecord(queriedName, 0L /* receiptTimeMillis */,
+                        false /* cacheFlush */, LONG_TTL / 2 - 1000L, serviceName),
+                MdnsPointerRecord(arrayOf("_TESTSERVICE", "_TCP", "local"),
+                        0L /* receiptTimeMillis */, false /* cacheFlush */, LONG_TTL,
+                        arrayOf("MYTESTSERVICE", "_testservice", "_tcp", "local")))
+        doGetReplyWithAnswersTest(questions, knownAnswers, emptyList() /* replyAnswers */,
+                emptyList() /* additionalAnswers */)
+    }
+
+    @Test
+    fun testGetReply_ServicesAddedAndRemoved() {
+        val repository = MdnsRecordRepository(thread.looper, deps, TEST_HOSTNAME, makeFlags())
+        repository.initWithService(TEST_SERVICE_ID_1, TEST_SERVICE_1)
+        val src = InetSocketAddress(parseNumericAddress("192.0.2.123"), 5353)
+        val serviceType = arrayOf("_testservice", "_tcp", "local")
+        val serviceName1 = arrayOf("MyTestService", "_testservice", "_tcp", "local")
+        val serviceName2 = arrayOf("MyOtherTestService", "_testservice", "_tcp", "local")
+        val ptrQuery = makeQuery(TYPE_PTR to serviceType)
+        fun ptrAnswers() = repository.getReply(ptrQuery, src)?.answers?.map {
+            (it as MdnsPointerRecord).pointer.toList()
+        }
+
+        assertEquals(listOf(serviceName1.toList()), ptrAnswers())
+
+        repository.addServiceAndFinishProbing(TEST_SERVICE_ID_2, TEST_SERVICE_2)
+        // Answers are in the order of the service IDs. The PTR record of the first service was
+        // just sent, so it is not sent again by multicast.
+        assertEquals(listOf(serviceName2.toList()), ptrAnswers())
+        val srvReply = repository.getReply(makeQuery(TYPE_SRV to serviceName2), src)
+        assertNotNull(srvReply)
+        assertEquals(listOf(serviceName2.toList()), srvReply.answers.map { it.name.toList() })
+
+        repository.removeService(TEST_SERVICE_ID_2)
+        assertNull(repository.getReply(makeQuery(TYPE_SRV to serviceName2), src))
+
+        // Subtypes added by an update are answered.
+        val subtypeName = arrayOf(TEST_SUBTYPE, "_sub", "_testservice", "_tcp", "local")
+        assertNull(repository.getReply(makeQuery(TYPE_PTR to subtypeName), src))
+        repository.updateService(TEST_SERVICE_ID_1, setOf(TEST_SUBTYPE))
+        val subtypeReply = repository.getReply(makeQuery(TYPE_PTR to subtypeName), src)
+        assertNotNull(subtypeReply)
+        assertEquals(listOf(subtypeName.toList()), subtypeReply.answers.map { it.name.toList() })
+    }
 }
 
 private fun MdnsRecordRepository.initWithService(
@@ -26,13 +26,16 @@ import com.android.net.module.util.SharedLog
 import com.android.server.connectivity.mdns.MdnsConstants.IPV4_SOCKET_ADDR
 import com.android.server.connectivity.mdns.MdnsConstants.IPV6_SOCKET_ADDR
 import com.android.server.connectivity.mdns.MdnsReplySender.getReplyDestination
+import com.android.server.connectivity.mdns.util.MdnsUtils
 import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
 import com.android.testutils.DevSdkIgnoreRunner
 import java.net.DatagramPacket
 import java.net.InetSocketAddress
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
+import kotlin.test.assertContentEquals
 import kotlin.test.assertEquals
+import kotlin.test.assertSame
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
@@ -162,6 +165,33 @@ class MdnsReplySenderTest {
         verify(socket).send(argThat{ it.socketAddress.equals(IPV4_SOCKET_ADDR) })
     }
 
+    @Test
+    fun testSendNow_CachedReplyPackets() {
+        val replySender = MdnsReplySender(thread.looper, socket, buffer, sharedLog,
+                false /* enableDebugLog */, deps,
+                MdnsFeatureFlags.newBuilder().setIsCachedReplyPacketsEnabled(true).build())
+        val packet = MdnsPacket(0x8400,
+                emptyList() /* questions */,
+                answers,
+                emptyList() /* authorityRecords */,
+                additionalAnswers)
+        val expectedBytes = MdnsUtils.createRawDnsPacket(ByteArray(1500), packet)
+        sendNow(replySender, packet, IPV4_SOCKET_ADDR)
+        // A different packet with the same records is not serialized again
+        sendNow(replySender, MdnsPacket(0x8400, emptyList(), answers, emptyList(),
+                additionalAnswers), IPV6_SOCKET_ADDR)
+
+        val captor = ArgumentCaptor.forClass(DatagramPacket::class.java)
+        verify(socket, times(2)).send(captor.capture())
+        assertEquals(IPV4_SOCKET_ADDR, captor.allValues[0].socketAddress)
+        assertEquals(IPV6_SOCKET_ADDR, captor.allValues[1].socketAddress)
+        captor.allValues.forEach {
+            assertContentEquals(expectedBytes,
+                    it.data.copyOfRange(it.offset, it.offset + it.length))
+        }
+        assertSame(captor.allValues[0].data, captor.allValues[1].data)
+    }
+
     private fun verifyMessageQueued(
             sender: MdnsReplySender,
             replies: List<MdnsReplyInfo>
@@ -50,6 +50,7 @@ import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -301,6 +302,79 @@ public class MdnsResponseDecoderTests {
         verifyResponse(decode(decoder, data6));
     }
 
+    @Test
+    public void testParseResponse_WithServiceTypeFilter() throws IOException {
+        final MdnsPacket fullPacket = MdnsResponseDecoder.parseResponse(
+                data, data.length, MdnsFeatureFlags.newBuilder().build());
+        final MdnsPacket filteredPacket = MdnsResponseDecoder.parseResponse(
+                data, data.length, MdnsFeatureFlags.newBuilder().build(),
+                new MdnsResponseDecoder.ServiceTypeFilter(List.of("_GoogleCast._tcp.local")));
+        assertNotNull(filteredPacket);
+        assertEquals(0, filteredPacket.questions.size());
+
+        // Only the PTR record of the _services._dns-sd._udp enumeration and the NSEC records are
+        // skipped.
+        final List<MdnsRecord> expected = getRecords(fullPacket).stream()
+                .filter(r -> !(r instanceof MdnsNsecRecord)
+                        && !r.getName()[0].equals("_services"))
+                .collect(Collectors.toList());
+        assertEquals(expected, getRecords(filteredPacket));
+
+        final MdnsResponseDecoder decoder = new MdnsResponseDecoder(mClock, CAST_SERVICE_TYPE);
+        final ArraySet<MdnsResponse> filteredResponses = new ArraySet<>(
+                decoder.augmentResponses(filteredPacket, Collections.emptyList(),
+                        MdnsSocket.INTERFACE_INDEX_UNSPECIFIED, mock(Network.class)).first);
+        assertEquals(1, filteredResponses.size());
+        assertTrue(filteredResponses.valueAt(0).isComplete());
+        assertEquals(responses.valueAt(0).getRecords(), filteredResponses.valueAt(0).getRecords());
+    }
+
+    @Test
+    public void testParseResponse_WithServiceTypeFilter_Subtypes() throws IOException {
+        final String[] instanceName = new String[] {"Instance", "_HTTP", "_tcp", "local"};
+        final String[] otherInstanceName = new String[] {"Instance", "_ipp", "_tcp", "local"};
+        final MdnsPointerRecord subtypePtr = new MdnsPointerRecord(
+                new String[] {"_printer", "_SUB", "_http", "_tcp", "local"},
+                0L /* receiptTimeMillis */, false /* cacheFlush */, 4500_000L /* ttlMillis */,
+                instanceName);
+        final MdnsPointerRecord otherSubtypePtr = new MdnsPointerRecord(
+                new String[] {"_printer", "_sub", "_ipp", "_tcp", "local"},
+                0L /* receiptTimeMillis */, false /* cacheFlush */, 4500_000L /* ttlMillis */,
+                otherInstanceName);
+        final MdnsServiceRecord srv = new MdnsServiceRecord(instanceName,
+                0L /* receiptTimeMillis */, true /* cacheFlush */, 120_000L /* ttlMillis */,
+                0 /* servicePriority */, 0 /* serviceWeight */, 80 /* servicePort */,
+                new String[] {"testhost1", "local"});
+        final MdnsTextRecord otherTxt = new MdnsTextRecord(otherInstanceName,
+                0L /* receiptTimeMillis */, true /* cacheFlush */, 120_000L /* ttlMillis */,
+                Collections.emptyList());
+        final byte[] packet = makeResponsePacket(subtypePtr, otherSubtypePtr, srv, otherTxt);
+
+        final MdnsPacket parsedPacket = MdnsResponseDecoder.parseResponse(packet, packet.length,
+                MdnsFeatureFlags.newBuilder().build(),
+                new MdnsResponseDecoder.ServiceTypeFilter(List.of("_http._tcp.local")));
+        assertNotNull(parsedPacket);
+        assertEquals(List.of(subtypePtr, srv), parsedPacket.answers);
+    }
+
+    @Test
+    public void testParseResponse_WithServiceTypeFilter_NoRelevantRecords() throws IOException {
+        final byte[] packet = makeResponsePacket(List.of(DATAIN_PTR_1, DATAIN_SERVICE_1,
+                DATAIN_TEXT_1));
+        assertNull(MdnsResponseDecoder.parseResponse(packet, packet.length,
+                MdnsFeatureFlags.newBuilder().build(),
+                new MdnsResponseDecoder.ServiceTypeFilter(List.of("_googlecast._tcp.local"))));
+
+        // Address records are always relevant, as they may be for the host of a known service.
+        final byte[] addressPacket = makeResponsePacket(List.of(DATAIN_PTR_1, DATAIN_IPV4_1));
+        final MdnsPacket parsedPacket = MdnsResponseDecoder.parseResponse(addressPacket,
+                addressPacket.length, MdnsFeatureFlags.newBuilder().build(),
+                new MdnsResponseDecoder.ServiceTypeFilter(List.of("_googlecast._tcp.local")));
+        assertNotNull(parsedPacket);
+        assertEquals(1, parsedPacket.answers.size());
+        assertTrue(parsedPacket.answers.get(0) instanceof MdnsInetAddressRecord);
+    }
+
     @Test
     public void testIsComplete() {
         MdnsResponse response = new MdnsResponse(responses.valueAt(0));
@@ -598,6 +672,30 @@ public class MdnsResponseDecoderTests {
         return response;
     }
 
+    private static List<MdnsRecord> getRecords(MdnsPacket packet) {
+        final List<MdnsRecord> records = new ArrayList<>(packet.answers);
+        records.addAll(packet.authorityRecords);
+        records.addAll(packet.additionalRecords);
+        return records;
+    }
+
+    private static byte[] makeResponsePacket(MdnsRecord... records) throws IOException {
+        final MdnsPacketWriter writer = new MdnsPacketWriter(1500);
+        writer.writeUInt16(0); // Transaction ID (advertisement: 0)
+        writer.writeUInt16(0x8400); // Flags: response, authoritative
+        writer.writeUInt16(0); // questions count
+        writer.writeUInt16(records.length); // answers count
+        writer.writeUInt16(0); // authority entries count
+        writer.writeUInt16(0); // additional records count
+
+        // Names are compressed by the writer.
+        for (MdnsRecord record : records) {
+            record.write(writer, 0L /* now */);
+        }
+        final DatagramPacket packet = writer.getPacket(new InetSocketAddress(0 /* port */));
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
     private static byte[] makeResponsePacket(byte[] responseRecord) throws IOException {
         return makeResponsePacket(List.of(responseRecord));
     }
@@ -30,7 +30,10 @@ import java.util.concurrent.TimeUnit
 import kotlin.test.assertNotNull
 import org.junit.After
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotSame
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
 import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
@@ -262,33 +265,129 @@ class MdnsServiceCacheTest {
     }
 
     @Test
-    fun testInsertResponseAndSortList() {
-        val responses = ArrayList<MdnsResponse>()
+    fun testGetCachedServices_sortedByExpiration() {
+        val serviceCache = MdnsServiceCache(
+                thread.looper, makeFlags(isExpiredServicesRemovalEnabled = true), clock)
+        doReturn(TEST_ELAPSED_REALTIME_MS).`when`(clock).elapsedRealtime()
         val response1 = createResponse(SERVICE_NAME_1, SERVICE_TYPE_1, 100L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response1, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(1, responses.size)
-        assertEquals(response1, responses[0])
+        addOrUpdateService(serviceCache, cacheKey1, response1)
+        assertEquals(listOf(response1), getServices(serviceCache, cacheKey1))
 
         val response2 = createResponse(SERVICE_NAME_2, SERVICE_TYPE_1, 50L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response2, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(2, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response1, responses[1])
+        addOrUpdateService(serviceCache, cacheKey1, response2)
+        assertEquals(listOf(response2, response1), getServices(serviceCache, cacheKey1))
 
         val response3 = createResponse(SERVICE_NAME_3, SERVICE_TYPE_1, 75L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response3, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(3, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response3, responses[1])
-        assertEquals(response1, responses[2])
+        addOrUpdateService(serviceCache, cacheKey1, response3)
+        assertEquals(listOf(response2, response3, response1),
+                getServices(serviceCache, cacheKey1))
 
         val response4 = createResponse("service-instance-4", SERVICE_TYPE_1, 125L /* ttlTime */)
-        MdnsServiceCache.insertResponseAndSortList(responses, response4, TEST_ELAPSED_REALTIME_MS)
-        assertEquals(4, responses.size)
-        assertEquals(response2, responses[0])
-        assertEquals(response3, responses[1])
-        assertEquals(response1, responses[2])
-        assertEquals(response4, responses[3])
+        addOrUpdateService(serviceCache, cacheKey1, response4)
+        assertEquals(listOf(response2, response3, response1, response4),
+                getServices(serviceCache, cacheKey1))
+    }
+
+    @Test
+    fun testGetCachedService_ignoresDnsCase() {
+        val serviceCache = MdnsServiceCache(thread.looper, makeFlags(), clock)
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_1, SERVICE_TYPE_1))
+        val response = getService(serviceCache, SERVICE_NAME_1.uppercase(), cacheKey1)
+        assertNotNull(response)
+        assertEquals(SERVICE_NAME_1, response.serviceInstanceName)
+        assertTrue(runningOnHandlerAndReturn {
+            serviceCache.hasCachedService("Service-Instance-1", cacheKey1)
+        })
+        assertFalse(runningOnHandlerAndReturn {
+            serviceCache.hasCachedService(SERVICE_NAME_1, cacheKey2)
+        })
+
+        // Updating with another case replaces the existing service.
+        addOrUpdateService(serviceCache, cacheKey1,
+                createResponse(SERVICE_NAME_1.uppercase(), SERVICE_TYPE_1))
+        val responses = getServices(serviceCache, cacheKey1)
+        assertEquals(1, responses.size)
+        assertEquals(SERVICE_NAME_1.uppercase(), responses[0].serviceInstanceName)
+
+        removeService(serviceCache, SERVICE_NAME_1, cacheKey1)
+        assertEquals(0, getServices(serviceCache, cacheKey1).size)
+    }
+
+    @Test
+    fun testGetCachedServices_snapshots() {
+        val serviceCache = MdnsServiceCache(thread.looper, makeFlags(), clock)
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_1, SERVICE_TYPE_1))
+        val snapshot1 = getServices(serviceCache, cacheKey1)
+        // The snapshot is reused as long as the services do not change.
+        assertSame(snapshot1, getServices(serviceCache, cacheKey1))
+
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_2, SERVICE_TYPE_1))
+        val snapshot2 = getServices(serviceCache, cacheKey1)
+        assertNotSame(snapshot1, snapshot2)
+        assertEquals(1, snapshot1.size)
+        assertEquals(2, snapshot2.size)
+
+        removeService(serviceCache, SERVICE_NAME_1, cacheKey1)
+        assertEquals(2, snapshot2.size)
+        assertEquals(listOf(SERVICE_NAME_2),
+                getServices(serviceCache, cacheKey1).map { it.serviceInstanceName })
+    }
+
+    @Test
+    fun testServiceExpired_afterWheelRevolutions() {
+        val serviceCache = MdnsServiceCache(
+                thread.looper, makeFlags(isExpiredServicesRemovalEnabled = true), clock)
+        val callback = ExpiredRecord()
+        registerServiceExpiredCallback(serviceCache, cacheKey1, callback)
+        doReturn(TEST_ELAPSED_REALTIME_MS).`when`(clock).elapsedRealtime()
+        // Expires after several revolutions of the expiration wheel.
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_1, SERVICE_TYPE_1,
+                10 * DEFAULT_TTL_TIME_MS))
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_2, SERVICE_TYPE_1,
+                DEFAULT_TTL_TIME_MS))
+
+        // Check the services every few seconds, so that all slots of the wheel are visited.
+        var now = TEST_ELAPSED_REALTIME_MS
+        while (now < TEST_ELAPSED_REALTIME_MS + DEFAULT_TTL_TIME_MS) {
+            doReturn(now).`when`(clock).elapsedRealtime()
+            assertEquals(2, getServices(serviceCache, cacheKey1).size)
+            now += 3_000L
+        }
+        callback.assertNoCallback()
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + DEFAULT_TTL_TIME_MS).`when`(clock).elapsedRealtime()
+        assertEquals(1, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_2)
+
+        // Jump far ahead: the remaining service expires even though the elapsed ticks were not
+        // visited one by one.
+        doReturn(TEST_ELAPSED_REALTIME_MS + 10 * DEFAULT_TTL_TIME_MS).`when`(clock)
+                .elapsedRealtime()
+        assertEquals(0, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_1)
+    }
+
+    @Test
+    fun testServiceExpired_updatedServiceRescheduled() {
+        val serviceCache = MdnsServiceCache(
+                thread.looper, makeFlags(isExpiredServicesRemovalEnabled = true), clock)
+        val callback = ExpiredRecord()
+        registerServiceExpiredCallback(serviceCache, cacheKey1, callback)
+        doReturn(TEST_ELAPSED_REALTIME_MS).`when`(clock).elapsedRealtime()
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_1, SERVICE_TYPE_1,
+                DEFAULT_TTL_TIME_MS))
+        // The service is refreshed with a longer ttl before it expires.
+        addOrUpdateService(serviceCache, cacheKey1, createResponse(SERVICE_NAME_1, SERVICE_TYPE_1,
+                2 * DEFAULT_TTL_TIME_MS))
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + DEFAULT_TTL_TIME_MS).`when`(clock).elapsedRealtime()
+        assertEquals(1, getServices(serviceCache, cacheKey1).size)
+        callback.assertNoCallback()
+
+        doReturn(TEST_ELAPSED_REALTIME_MS + 2 * DEFAULT_TTL_TIME_MS).`when`(clock)
+                .elapsedRealtime()
+        assertEquals(0, getServices(serviceCache, cacheKey1).size)
+        callback.expectedServiceRecordExpired(SERVICE_NAME_1)
     }
 
     private fun createResponse(
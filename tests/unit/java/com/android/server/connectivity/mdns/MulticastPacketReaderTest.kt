@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity.mdns
+
+import android.net.InetAddresses.parseNumericAddress
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.ParcelFileDescriptor
+import android.system.Os
+import android.system.OsConstants
+import com.android.server.connectivity.mdns.MulticastPacketReader.MAX_PACKETS_PER_READ
+import com.android.server.connectivity.mdns.util.MdnsUtils
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import java.net.DatagramPacket
+import java.net.DatagramSocket
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TIMEOUT_MS = 2000L
+private const val SOCKET_COUNT = 3
+private const val PACKETS_PER_SOCKET = 50
+private const val TTL_MS = 120_000L
+
+@DevSdkIgnoreRunner.MonitorThreadLeak
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.S_V2)
+class MulticastPacketReaderTest {
+    private val thread = HandlerThread(MulticastPacketReaderTest::class.simpleName)
+    private val handler by lazy { Handler(thread.looper) }
+    private val sender = DatagramSocket()
+    private val sockets = mutableListOf<DatagramSocket>()
+    private val fds = mutableListOf<ParcelFileDescriptor>()
+    private val readers = mutableListOf<MulticastPacketReader>()
+
+    @Before
+    fun setUp() {
+        thread.start()
+    }
+
+    @After
+    fun tearDown() {
+        runningOnHandlerAndReturn { readers.forEach { it.stop() } }
+        fds.forEach { it.close() }
+        sockets.forEach { it.close() }
+        sender.close()
+        thread.quitSafely()
+        thread.join()
+    }
+
+    private fun <T> runningOnHandlerAndReturn(functor: (() -> T)): T {
+        val future = CompletableFuture<T>()
+        handler.post {
+            future.complete(functor())
+        }
+        return future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+    }
+
+    // Responses as received on a busy network: each announces a service with its address.
+    private fun makeResponses(): List<ByteArray> = (0 until 5).map {
+        val serviceType = arrayOf("_type$it", "_tcp", "local")
+        val serviceName = arrayOf("Service $it") + serviceType
+        val hostname = arrayOf("Android_$it", "local")
+        MdnsUtils.createRawDnsPacket(ByteArray(1500), MdnsPacket(0x8400,
+                emptyList() /* questions */,
+                listOf(MdnsPointerRecord(serviceType, 0L /* receiptTimeMillis */,
+                        false /* cacheFlush */, TTL_MS, serviceName),
+                        MdnsServiceRecord(serviceName, 0L /* receiptTimeMillis */,
+                                true /* cacheFlush */, TTL_MS, 0 /* servicePriority */,
+                                0 /* serviceWeight */, 1234 + it, hostname),
+                        MdnsInetAddressRecord(hostname, 0L /* receiptTimeMillis */,
+                                true /* cacheFlush */, TTL_MS,
+                                parseNumericAddress("192.0.2.$it"))),
+                emptyList() /* authorityRecords */,
+                emptyList() /* additionalRecords */))
+    }
+
+    private fun makeSocket(): DatagramSocket {
+        val socket = DatagramSocket(0, InetAddress.getLoopbackAddress())
+        sockets.add(socket)
+        val fd = ParcelFileDescriptor.fromDatagramSocket(socket)
+        fds.add(fd)
+        val flags = Os.fcntlInt(fd.fileDescriptor, OsConstants.F_GETFL, 0)
+        Os.fcntlInt(fd.fileDescriptor, OsConstants.F_SETFL, flags or OsConstants.SOCK_NONBLOCK)
+        return socket
+    }
+
+    private fun send(socket: DatagramSocket, data: ByteArray) {
+        sender.send(DatagramPacket(data, data.size,
+                InetSocketAddress(InetAddress.getLoopbackAddress(), socket.localPort)))
+    }
+
+    private fun startReader(
+        index: Int,
+        buffer: ByteArray,
+        packetHandler: MulticastPacketReader.PacketHandler
+    ): MulticastPacketReader = runningOnHandlerAndReturn {
+        MulticastPacketReader("test$index", fds[index], handler, buffer).apply {
+            readers.add(this)
+            addPacketHandler(packetHandler)
+            assertTrue(start())
+        }
+    }
+
+    @Test
+    fun testReadPackets_ManySockets() {
+        val responses = makeResponses()
+        repeat(SOCKET_COUNT) { makeSocket() }
+        // Queue all packets before the readers start, as if all sockets were flooded at once.
+        for (i in 0 until PACKETS_PER_SOCKET) {
+            sockets.forEach { send(it, responses[i % responses.size]) }
+        }
+
+        // All readers share the same buffer, like the readers of MdnsSocketProvider.
+        val buffer = ByteArray(1500)
+        val received = mutableListOf<Int>()
+        val allReceived = CompletableFuture<Unit>()
+        val packetReaders = (0 until SOCKET_COUNT).map { index ->
+            startReader(index, buffer) { recvbuf, length, _ ->
+                val packet = MdnsPacket.parse(MdnsPacketReader(recvbuf, length,
+                        MdnsFeatureFlags.newBuilder().build()))
+                assertEquals(3, packet.answers.size)
+                received.add(index)
+                if (received.size == SOCKET_COUNT * PACKETS_PER_SOCKET) allReceived.complete(Unit)
+            }
+        }
+        allReceived.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+
+        // Sockets are read in turns, so none of them waits for the others to be drained.
+        val firstReads = runningOnHandlerAndReturn {
+            received.take(SOCKET_COUNT * MAX_PACKETS_PER_READ)
+        }
+        for (index in 0 until SOCKET_COUNT) {
+            assertEquals(MAX_PACKETS_PER_READ, firstReads.count { it == index })
+            val stats = runningOnHandlerAndReturn { packetReaders[index].receiveStats }
+            assertEquals(PACKETS_PER_SOCKET.toLong(), stats.packetCount)
+            assertEquals(0L, stats.truncatedPacketCount)
+            assertEquals(MAX_PACKETS_PER_READ, stats.maxPacketsPerRead)
+            val expectedReads = (PACKETS_PER_SOCKET + MAX_PACKETS_PER_READ - 1) /
+                    MAX_PACKETS_PER_READ
+            assertEquals(expectedReads.toLong(), stats.readCount)
+            assertEquals(expectedReads - 1L, stats.backloggedReadCount)
+        }
+    }
+
+    @Test
+    fun testReadPackets_DrainedAtLimitNotBacklogged() {
+        val socket = makeSocket()
+        val responses = makeResponses()
+        repeat(MAX_PACKETS_PER_READ) { send(socket, responses[it % responses.size]) }
+
+        var receivedCount = 0
+        var allReceived = CompletableFuture<Unit>()
+        val reader = startReader(0, ByteArray(1500)) { _, _, _ ->
+            receivedCount++
+            if (receivedCount == MAX_PACKETS_PER_READ) allReceived.complete(Unit)
+        }
+        allReceived.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+
+        // The read stopped at the limit, but the socket was empty so no packet had to wait.
+        val stats = runningOnHandlerAndReturn { reader.receiveStats }
+        assertEquals(MAX_PACKETS_PER_READ.toLong(), stats.packetCount)
+        assertEquals(1L, stats.readCount)
+        assertEquals(0L, stats.backloggedReadCount)
+
+        // A packet arriving later is a new read, not the rest of a backlogged one.
+        allReceived = CompletableFuture<Unit>()
+        runningOnHandlerAndReturn { receivedCount = MAX_PACKETS_PER_READ - 1 }
+        send(socket, responses[0])
+        allReceived.get(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        val newStats = runningOnHandlerAndReturn { reader.receiveStats }
+        assertEquals(MAX_PACKETS_PER_READ + 1L, newStats.packetCount)
+        assertEquals(2L, newStats.readCount)
+        assertEquals(0L, newStats.backloggedReadCount)
+    }
+
+    @Test
+    fun testReadPackets_Truncated() {
+        val socket = makeSocket()
+        val packetReceived = CompletableFuture<Int>()
+        val reader = startReader(0, ByteArray(100)) { _, length, _ ->
+            packetReceived.complete(length)
+        }
+        send(socket, ByteArray(150))
+
+        assertEquals(100, packetReceived.get(TIMEOUT_MS, TimeUnit.MILLISECONDS))
+        val stats = runningOnHandlerAndReturn { reader.receiveStats }
+        assertEquals(1L, stats.packetCount)
+        assertEquals(1L, stats.truncatedPacketCount)
+    }
+}
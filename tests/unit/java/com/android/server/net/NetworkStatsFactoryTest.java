@@ -33,6 +33,7 @@ import static com.android.server.net.NetworkStatsFactory.kernelToTag;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
@@ -43,6 +44,7 @@ import android.net.NetworkStats;
 import android.net.TrafficStats;
 import android.net.UnderlyingNetworkInfo;
 import android.os.SystemClock;
+import android.util.IndentingPrintWriter;
 
 import androidx.test.InstrumentationRegistry;
 import androidx.test.filters.SmallTest;
@@ -65,6 +67,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.net.ProtocolException;
 
 /** Tests for {@link NetworkStatsFactory}. */
@@ -498,6 +501,31 @@ public class NetworkStatsFactoryTest extends NetworkStatsBaseTest {
         assertValues(removedUidsStats, TEST_IFACE, UID_GREEN, 64L, 3L, 1024L, 8L);
     }
 
+    @Test
+    public void testDumpDetailReadCounters() throws Exception {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 2)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 16L, 1L, 32L, 1L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 64L, 1L, 128L, 1L, 0L);
+        doReturn(stats).when(mDeps).getNetworkStatsDetail();
+        mFactory.readNetworkStatsDetail();
+        doReturn(buildEmptyStats()).when(mDeps).getNetworkStatsDetail();
+        mFactory.readNetworkStatsDetail();
+        assertTrue(dumpFactory().contains("Detail reads: 2"));
+        assertTrue(dumpFactory().contains("Last detail read: rows=0 bytes=0"));
+
+        doReturn(stats).when(mDeps).getNetworkStatsDetail();
+        mFactory.readNetworkStatsDetail();
+        assertTrue(dumpFactory().contains("Last detail read: rows=2 bytes=240"));
+    }
+
+    private String dumpFactory() {
+        final StringWriter sw = new StringWriter();
+        final IndentingPrintWriter pw = new IndentingPrintWriter(sw, "  ");
+        mFactory.dump(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
     private NetworkStats buildEmptyStats() {
         return new NetworkStats(SystemClock.elapsedRealtime(), 0);
     }
@@ -476,6 +476,11 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             return mFastDataInputTargetAttempts;
         }
 
+        @Override
+        public boolean isStatsJournalEnabled() {
+            return false;
+        }
+
         @Override
         public String compareStats(NetworkStatsCollection a, NetworkStatsCollection b,
                  boolean allowKeyChange) {
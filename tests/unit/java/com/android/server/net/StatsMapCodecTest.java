@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2024 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.net.module.util.Struct;
+import com.android.net.module.util.bpf.CookieTagMapKey;
+import com.android.net.module.util.bpf.CookieTagMapValue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Checks that the specialized codecs of the traffic stats map structs produce the same bytes and
+ * values as the reflection based implementation of {@link Struct}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StatsMapCodecTest {
+    private static final ByteOrder[] BYTE_ORDERS =
+            new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN};
+
+    private static void assertCodecMatchesReflection(final Struct s) {
+        for (ByteOrder order : BYTE_ORDERS) {
+            final byte[] bytes = s.writeToBytes(order);
+            final ByteBuffer reflected = ByteBuffer.allocate(bytes.length).order(order);
+            s.writeToByteBufferWithReflection(reflected);
+            assertFalse(reflected.hasRemaining());
+            assertArrayEquals(reflected.array(), bytes);
+
+            final ByteBuffer buf = ByteBuffer.wrap(bytes).order(order);
+            final Struct parsed = Struct.parse(s.getClass(), buf);
+            assertFalse(buf.hasRemaining());
+            assertEquals(s, parsed);
+            assertEquals(Struct.parseWithReflection(s.getClass(),
+                    ByteBuffer.wrap(bytes).order(order)), parsed);
+        }
+    }
+
+    @Test
+    public void testStatsMapKey() {
+        assertCodecMatchesReflection(new StatsMapKey(0, 0, 0, 0));
+        assertCodecMatchesReflection(new StatsMapKey(10_123, 0x12345678L, 1, 7));
+        assertCodecMatchesReflection(new StatsMapKey(-1, 0xffffffffL, 0xfffffffeL,
+                Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void testStatsMapValue() {
+        assertCodecMatchesReflection(new StatsMapValue(0, 0, 0, 0));
+        assertCodecMatchesReflection(new StatsMapValue(1, 1500, 2, 3000));
+        assertCodecMatchesReflection(new StatsMapValue(Long.MAX_VALUE, Long.MAX_VALUE - 1,
+                0x1_0000_0000L, 0xffff_ffffL));
+    }
+
+    @Test
+    public void testCookieTagMapKey() {
+        assertCodecMatchesReflection(new CookieTagMapKey(0));
+        assertCodecMatchesReflection(new CookieTagMapKey(0x0123_4567_89ab_cdefL));
+        assertCodecMatchesReflection(new CookieTagMapKey(Long.MIN_VALUE));
+        assertCodecMatchesReflection(new CookieTagMapKey(-1));
+    }
+
+    @Test
+    public void testCookieTagMapValue() {
+        assertCodecMatchesReflection(new CookieTagMapValue(0, 0));
+        assertCodecMatchesReflection(new CookieTagMapValue(10_123, 0x80000000L));
+        assertCodecMatchesReflection(new CookieTagMapValue(-1, 0xffffffffL));
+        assertCodecMatchesReflection(new CookieTagMapValue(Integer.MAX_VALUE, 1));
+    }
+}